@@ -0,0 +1,530 @@
+package com.riverinnovations.saltui;
+
+import com.riverinnovations.saltui.metrics.Metrics;
+import com.riverinnovations.saltui.metrics.Timer;
+import com.riverinnovations.saltui.model.DuplicateNameException;
+import com.riverinnovations.saltui.model.audit.AuditException;
+import com.riverinnovations.saltui.model.audit.AuditLog;
+import com.riverinnovations.saltui.model.audit.AuditRecorder;
+import com.riverinnovations.saltui.model.gpg.GpgEncryptionException;
+import com.riverinnovations.saltui.model.history.PillarHistory;
+import com.riverinnovations.saltui.model.ModelException;
+import com.riverinnovations.saltui.model.password.PasswordChangeService;
+import com.riverinnovations.saltui.model.password.PasswordHasher;
+import com.riverinnovations.saltui.model.password.Sha512Crypt;
+import com.riverinnovations.saltui.model.ssh.SshKeyStore;
+import com.riverinnovations.saltui.model.target.TargetException;
+import com.riverinnovations.saltui.model.target.TargetSet;
+import com.riverinnovations.saltui.model.target.TargetWriter;
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.Users;
+import com.riverinnovations.saltui.model.validation.StandardRules;
+import com.riverinnovations.saltui.model.validation.UsersValidator;
+import com.riverinnovations.saltui.model.yaml.PillarScrubber;
+import com.riverinnovations.saltui.model.yaml.StaleGenerationException;
+import com.riverinnovations.saltui.model.yaml.JournalUserStore;
+import com.riverinnovations.saltui.model.yaml.UserState;
+import com.riverinnovations.saltui.model.yaml.UserStore;
+import com.riverinnovations.saltui.salt.StateApplyRunner;
+import com.riverinnovations.saltui.ui.UsersBroadcaster;
+
+import com.vaadin.flow.server.VaadinRequest;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The model shared by every session, so that changes made in one session
+ * are seen by the others.
+ *
+ * If the system properties saltui.state.file, saltui.pillar.file and saltui.gpg.key
+ * are set then the users are loaded from and saved to those files; otherwise some
+ * example users are created in memory.
+ *
+ * If saltui.store.file is also set then the users are saved a row each in that journal
+ * file, so a save only writes the users changed, and the state and pillar files are
+ * written from the journal after each save.
+ *
+ * Nothing is loaded until start() is called, normally by StartupListener as soon as the
+ * container starts, so the users are loaded in the background before the first session.
+ *
+ * If saltui.targets.state.root and saltui.targets.pillar.root are also set then a state
+ * and pillar file is written under them for each target in saltui.targets.file, with top
+ * files assigning them to minions.
+ *
+ * SSH keys are held by fingerprint in the directory saltui.sshkeys.dir if set, otherwise
+ * in a directory named sshkeys next to the pillar.
+ *
+ * Changes to the users are audited in the directory saltui.audit.dir if set.
+ *
+ * If saltui.scrub.secret.key is set then the saved files are checked in the background
+ * with the Salt master's secret key, every saltui.scrub.interval seconds and after each save.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class ApplicationModel {
+
+    /** System property holding the path of the state file */
+    public static final String STATE_FILE_PROPERTY = "saltui.state.file";
+
+    /** System property holding the path of the pillar file */
+    public static final String PILLAR_FILE_PROPERTY = "saltui.pillar.file";
+
+    /** System property holding the path of the GPG public key for encrypting passwords */
+    public static final String GPG_KEY_PROPERTY = "saltui.gpg.key";
+
+    /** System property holding the path of the journal file the users are saved in, if any */
+    public static final String STORE_FILE_PROPERTY = "saltui.store.file";
+
+    /** System property holding the path of the YAML file defining the targets */
+    public static final String TARGETS_FILE_PROPERTY = "saltui.targets.file";
+
+    /** System property holding the root of the state tree for the target files */
+    public static final String TARGETS_STATE_ROOT_PROPERTY = "saltui.targets.state.root";
+
+    /** System property holding the root of the pillar tree for the target files */
+    public static final String TARGETS_PILLAR_ROOT_PROPERTY = "saltui.targets.pillar.root";
+
+    /** System property holding the directory of the SSH keys */
+    public static final String SSH_KEYS_DIR_PROPERTY = "saltui.sshkeys.dir";
+
+    /** System property holding the directory of the history of saves, if one is kept */
+    public static final String HISTORY_DIR_PROPERTY = "saltui.history.dir";
+
+    /** System property holding the directory of the audit log */
+    public static final String AUDIT_DIR_PROPERTY = "saltui.audit.dir";
+
+    /** System property holding the path of the Salt master's secret key, to check the pillar with */
+    public static final String SCRUB_KEY_PROPERTY = "saltui.scrub.secret.key";
+
+    /** System property holding the seconds between checks of the pillar */
+    public static final String SCRUB_INTERVAL_PROPERTY = "saltui.scrub.interval";
+
+    /** System property holding the fraction of the processors the checks may use */
+    public static final String SCRUB_CPU_PROPERTY = "saltui.scrub.cpu";
+
+    /** System property holding the lowest UID for system users, as SYS_UID_MIN in login.defs */
+    public static final String SYS_UID_MIN_PROPERTY = "saltui.sys.uid.min";
+
+    /** System property holding the highest UID for system users, as SYS_UID_MAX in login.defs */
+    public static final String SYS_UID_MAX_PROPERTY = "saltui.sys.uid.max";
+
+    /** System property holding the lowest UID for other users, as UID_MIN in login.defs */
+    public static final String UID_MIN_PROPERTY = "saltui.uid.min";
+
+    /** System property holding the highest UID for other users, as UID_MAX in login.defs */
+    public static final String UID_MAX_PROPERTY = "saltui.uid.max";
+
+    /** Default seconds between checks of the pillar */
+    private static final long DEFAULT_SCRUB_INTERVAL_SECONDS = 3600;
+
+    /** Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ApplicationModel.class);
+
+    /** Time to load the users at startup */
+    private static final Timer START_TIMER = Metrics.get().timer("startup.load");
+
+    /** The single instance */
+    private static final ApplicationModel INSTANCE = new ApplicationModel();
+
+    /** The users */
+    private final Users users = new Users();
+
+    /** Pushes changes to the users to attached sessions */
+    private final UsersBroadcaster broadcaster = new UsersBroadcaster();
+
+    /** The state and pillar files, if configured */
+    private final @Nullable UserState userState;
+
+    /** Where the users are saved: the journal if configured, otherwise the state and pillar files */
+    private final @Nullable UserStore userStore;
+
+    /** Hashes passwords off the request threads */
+    private final PasswordHasher passwordHasher = new PasswordHasher(Sha512Crypt.DEFAULT_ROUNDS);
+
+    /** Self-service password changes */
+    private final PasswordChangeService passwordChanges;
+
+    /** The audit log, if configured */
+    private final @Nullable AuditLog auditLog;
+
+    /** Checks the saved files, if configured */
+    private final @Nullable PillarScrubber scrubber;
+
+    /** Runs state.apply, created on first use */
+    private @Nullable StateApplyRunner stateApplyRunner;
+
+    /** True once start() has been called */
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /** Completes once the users have been loaded */
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+
+    /**
+     * Constructor. Nothing is loaded until start() is called.
+     */
+    private ApplicationModel() {
+        this.users.addListener(this.broadcaster);
+        Metrics.get().gauge("users", () -> this.users.getUsers().size());
+        this.userState = createUserState();
+        this.userStore = createUserStore(this.userState);
+        this.auditLog = createAuditLog();
+        this.scrubber = createScrubber(this.userState);
+        // Without files the changes are only kept in memory
+        this.passwordChanges = new PasswordChangeService(this.users, this.passwordHasher,
+                                                         () -> this.userStore == null || this.save());
+        this.passwordChanges.setActor(ApplicationModel::currentActor);
+    }
+
+    /**
+     * Starts loading the users in the background, if not already started. The pillar is
+     * loaded, indexed and validated while the GPG key is parsed, so that neither the first
+     * session nor the first save pays for them.
+     * @return Completes when the users are loaded, whether or not loading succeeded.
+     */
+    public CompletableFuture<Void> start() {
+        if (this.started.compareAndSet(false, true)) {
+            ExecutorService executor = Executors.newFixedThreadPool(2, r -> {
+                Thread t = new Thread(r, "saltui-startup");
+                t.setDaemon(true);
+                return t;
+            });
+            CompletableFuture<Void> load = CompletableFuture.runAsync(this::loadUsers, executor);
+            CompletableFuture<Void> key = CompletableFuture.runAsync(this::prepareEncryptor, executor);
+            CompletableFuture.allOf(load, key).whenComplete((v, e) -> {
+                executor.shutdown();
+                this.ready.complete(null);
+                @Nullable PillarScrubber s = this.scrubber;
+                if (s != null) {
+                    s.start(TimeUnit.SECONDS.toMillis(Long.getLong(SCRUB_INTERVAL_PROPERTY,
+                                                                   DEFAULT_SCRUB_INTERVAL_SECONDS)));
+                }
+            });
+        }
+        return this.ready;
+    }
+
+    /**
+     * @return True once the users have been loaded.
+     */
+    public boolean isReady() {
+        return this.ready.isDone();
+    }
+
+    /**
+     * Starts loading the users if necessary and waits until they are loaded.
+     */
+    public void awaitReady() throws InterruptedException {
+        try {
+            this.start().get();
+        }
+        catch (ExecutionException e) {
+            // Not thrown: failures are logged and the future completed normally
+            LOGGER.error("Error starting: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Loads the users, or creates examples if there are no files. Runs in the background.
+     */
+    private void loadUsers() {
+        Timer.Context startTiming = START_TIMER.time();
+        try {
+            if (this.userState != null && this.userStore != null && this.userStore.exists()) {
+                this.reload();
+                // Fill the validator's cache so that the first save only validates changes
+                @Nullable UsersValidator validator = this.userState.getValidator();
+                if (validator != null) {
+                    validator.validate(this.users);
+                }
+            }
+            else {
+                // Create some users
+                User uFoo = new User("Foo");
+                uFoo.setUid(1000);
+                uFoo.setGid(2000);
+                uFoo.setGecosFullname("Mr F Ooooo");
+                this.users.addUser(uFoo);
+                this.users.addUser(new User("Bar"));
+                this.users.addUser(new User("Baz"));
+            }
+            LOGGER.info("Loaded " + this.users.getUsers().size() + " users");
+        }
+        catch (DuplicateNameException e) {
+            LOGGER.error("Error adding user: " + e.getMessage(), e);
+        }
+        catch (IOException | ModelException | RuntimeException e) {
+            LOGGER.error("Error loading users: " + e.getMessage(), e);
+        }
+        finally {
+            startTiming.stop();
+        }
+
+        // After loading, so that the loaded users are not recorded as added
+        if (this.auditLog != null) {
+            new AuditRecorder(this.users, this.auditLog, ApplicationModel::currentActor);
+        }
+    }
+
+    /**
+     * Parses the GPG key. Runs in the background.
+     */
+    private void prepareEncryptor() {
+        @Nullable UserState state = this.userState;
+        if (state != null) {
+            try {
+                state.prepareEncryptor();
+            }
+            catch (IOException | GpgEncryptionException | RuntimeException e) {
+                LOGGER.error("Error reading GPG key: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Stops the background services, saving any pending password changes.
+     */
+    public void shutdown() {
+        this.passwordChanges.close();
+        @Nullable PillarScrubber s = this.scrubber;
+        if (s != null) {
+            s.close();
+        }
+        @Nullable StateApplyRunner runner;
+        synchronized (this) {
+            runner = this.stateApplyRunner;
+            this.stateApplyRunner = null;
+        }
+        if (runner != null) {
+            runner.close();
+        }
+        @Nullable AuditLog log = this.auditLog;
+        if (log != null) {
+            try {
+                log.close();
+            }
+            catch (IOException e) {
+                LOGGER.error("Error closing audit log: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * @return The audit log in the directory from the system property, or null if it isn't set.
+     */
+    private static @Nullable AuditLog createAuditLog() {
+        @Nullable String dir = System.getProperty(AUDIT_DIR_PROPERTY);
+        if (dir == null) {
+            return null;
+        }
+        try {
+            return new AuditLog(Paths.get(dir));
+        }
+        catch (IOException | AuditException e) {
+            LOGGER.error("Changes will not be audited, cannot open audit log: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @return A checker for the saved files using the secret key from the system property,
+     *         or null if it isn't set or there are no files.
+     */
+    private static @Nullable PillarScrubber createScrubber(@Nullable UserState userState) {
+        @Nullable String key = System.getProperty(SCRUB_KEY_PROPERTY);
+        if (key == null || userState == null) {
+            return null;
+        }
+        PillarScrubber scrubber = new PillarScrubber(userState, Paths.get(key), null);
+        @Nullable String cpu = System.getProperty(SCRUB_CPU_PROPERTY);
+        if (cpu != null) {
+            try {
+                scrubber.setCpuBudget(Double.parseDouble(cpu));
+            }
+            catch (NumberFormatException e) {
+                LOGGER.warn("Ignoring bad " + SCRUB_CPU_PROPERTY + " '" + cpu + "'");
+            }
+        }
+        return scrubber;
+    }
+
+    /**
+     * @return Who is making a change: the remote user or address of the current request,
+     *         or null if the change isn't made by a request.
+     */
+    private static @Nullable String currentActor() {
+        @Nullable VaadinRequest request = VaadinRequest.getCurrent();
+        if (request == null) {
+            return null;
+        }
+        @Nullable String remoteUser = request.getRemoteUser();
+        return remoteUser != null ? remoteUser : request.getRemoteAddr();
+    }
+
+    /**
+     * @return The user state from the system properties, or null if they aren't set.
+     */
+    private static @Nullable UserState createUserState() {
+        @Nullable String state = System.getProperty(STATE_FILE_PROPERTY);
+        @Nullable String pillar = System.getProperty(PILLAR_FILE_PROPERTY);
+        @Nullable String key = System.getProperty(GPG_KEY_PROPERTY);
+        if (state == null || pillar == null || key == null) {
+            return null;
+        }
+        UserState userState = new UserState(Paths.get(state), Paths.get(pillar), Paths.get(key));
+        userState.setValidator(new UsersValidator(StandardRules.all(
+                Integer.getInteger(SYS_UID_MIN_PROPERTY, StandardRules.DEFAULT_SYS_UID_MIN),
+                Integer.getInteger(SYS_UID_MAX_PROPERTY, StandardRules.DEFAULT_SYS_UID_MAX),
+                Integer.getInteger(UID_MIN_PROPERTY, StandardRules.DEFAULT_UID_MIN),
+                Integer.getInteger(UID_MAX_PROPERTY, StandardRules.DEFAULT_UID_MAX))));
+        @Nullable String sshKeysDir = System.getProperty(SSH_KEYS_DIR_PROPERTY);
+        if (sshKeysDir != null) {
+            userState.setSshKeyStore(new SshKeyStore(Paths.get(sshKeysDir)));
+        }
+        @Nullable String historyDir = System.getProperty(HISTORY_DIR_PROPERTY);
+        if (historyDir != null) {
+            userState.setHistory(new PillarHistory(Paths.get(historyDir)));
+        }
+
+        @Nullable String stateRoot = System.getProperty(TARGETS_STATE_ROOT_PROPERTY);
+        @Nullable String pillarRoot = System.getProperty(TARGETS_PILLAR_ROOT_PROPERTY);
+        @Nullable String targetsFile = System.getProperty(TARGETS_FILE_PROPERTY);
+        if (stateRoot != null && pillarRoot != null) {
+            try {
+                TargetSet targets = targetsFile == null ? TargetSet.defaultOnly() : TargetSet.load(Paths.get(targetsFile));
+                userState.setTargetWriter(new TargetWriter(Paths.get(stateRoot), Paths.get(pillarRoot), targets));
+            }
+            catch (IOException | TargetException e) {
+                LOGGER.error("Not writing target files, cannot load targets: " + e.getMessage(), e);
+            }
+        }
+        return userState;
+    }
+
+    /**
+     * @return The journal from the system property, exporting to the files, or just the
+     *         files if it isn't set.
+     */
+    private static @Nullable UserStore createUserStore(@Nullable UserState userState) {
+        @Nullable String store = System.getProperty(STORE_FILE_PROPERTY);
+        if (store == null || userState == null) {
+            return userState;
+        }
+        return new JournalUserStore(Paths.get(store), userState);
+    }
+
+    /**
+     * Replaces the users with those last saved, by this or another instance.
+     */
+    public void reload() throws IOException, ModelException {
+        @Nullable UserStore state = this.userStore;
+        if (state == null) {
+            throw new ModelException("No files configured to load users from");
+        }
+        Users loaded = state.load();
+        this.users.setUsers(loaded.getUsers());
+        this.users.setGeneration(loaded.getGeneration());
+    }
+
+    /**
+     * Saves the users. If another instance has saved since the users were loaded then
+     * its changes are not overwritten: the users are reloaded instead, losing the changes
+     * made here, which must be made again.
+     * @return True if saved, false if the users were reloaded instead.
+     * @throws Exception If the users cannot be saved or reloaded.
+     */
+    public boolean save() throws Exception {
+        @Nullable UserStore state = this.userStore;
+        if (state == null) {
+            throw new ModelException("No files configured to save users to");
+        }
+        if (!this.isReady()) {
+            // Saving now would overwrite the pillar with the users loaded so far
+            throw new ModelException("Cannot save while the users are loading");
+        }
+        try {
+            state.save(this.users);
+            @Nullable PillarScrubber s = this.scrubber;
+            if (s != null) {
+                s.requestScrub();
+            }
+            return true;
+        }
+        catch (StaleGenerationException e) {
+            LOGGER.warn("Not saving users: " + e.getMessage() + "; reloading");
+            this.reload();
+            return false;
+        }
+    }
+
+    public static ApplicationModel get() {
+        return INSTANCE;
+    }
+
+    public Users getUsers() {
+        return users;
+    }
+
+    public UsersBroadcaster getBroadcaster() {
+        return broadcaster;
+    }
+
+    public PasswordChangeService getPasswordChanges() {
+        return passwordChanges;
+    }
+
+    /**
+     * @return The audit log, or null if none is configured.
+     */
+    public @Nullable AuditLog getAuditLog() {
+        return auditLog;
+    }
+
+    /**
+     * @return The checker for the saved files, or null if none is configured.
+     */
+    public @Nullable PillarScrubber getScrubber() {
+        return scrubber;
+    }
+
+    /**
+     * @return The runner for state.apply, started on first use and stopped by shutdown().
+     */
+    public synchronized StateApplyRunner getStateApplyRunner() {
+        @Nullable StateApplyRunner runner = this.stateApplyRunner;
+        if (runner == null) {
+            runner = new StateApplyRunner();
+            this.stateApplyRunner = runner;
+        }
+        return runner;
+    }
+
+    /**
+     * @return The state and pillar files, or null if no files are configured.
+     */
+    public @Nullable UserState getUserState() {
+        return userState;
+    }
+
+    /**
+     * @return Where the users are saved, or null if no files are configured.
+     */
+    public @Nullable UserStore getUserStore() {
+        return userStore;
+    }
+}
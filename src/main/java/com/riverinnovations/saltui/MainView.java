@@ -1,30 +1,169 @@
 package com.riverinnovations.saltui;
 
-import com.riverinnovations.saltui.model.DuplicateNameException;
+import com.riverinnovations.saltui.metrics.Metrics;
+import com.riverinnovations.saltui.metrics.Timer;
+import com.riverinnovations.saltui.model.query.QueryException;
+import com.riverinnovations.saltui.model.query.UserQuery;
 import com.riverinnovations.saltui.model.user.User;
-import com.riverinnovations.saltui.model.user.Users;
+import com.riverinnovations.saltui.ui.PasswordChangeView;
+import com.riverinnovations.saltui.ui.PendingChangesView;
+import com.riverinnovations.saltui.ui.StateApplyView;
 
 import com.vaadin.flow.component.AttachEvent;
+import com.vaadin.flow.component.DetachEvent;
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.UIDetachedException;
 import com.vaadin.flow.component.button.Button;
 import com.vaadin.flow.component.grid.Grid;
+import com.vaadin.flow.component.html.Span;
 import com.vaadin.flow.component.notification.Notification;
+import com.vaadin.flow.component.orderedlayout.HorizontalLayout;
 import com.vaadin.flow.component.orderedlayout.VerticalLayout;
+import com.vaadin.flow.component.page.Push;
+import com.vaadin.flow.component.textfield.TextField;
+import com.vaadin.flow.data.provider.ListDataProvider;
+import com.vaadin.flow.data.provider.Query;
 import com.vaadin.flow.data.renderer.NumberRenderer;
+import com.vaadin.flow.function.SerializablePredicate;
 import com.vaadin.flow.router.Route;
+import com.vaadin.flow.router.RouterLink;
+import com.vaadin.flow.shared.Registration;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.text.NumberFormat;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
- * The main view contains a button and a click listener.
+ * The main view shows the users, kept up to date by server push, optionally filtered
+ * by a query such as shell=/bin/bash AND group=wheel.
  */
+@Push
 @Route("")
 public class MainView extends VerticalLayout {
 
     private static final String NULL_REP_EMPTY_STRING = "";
 
+    /** Time for the grid to fetch a page of users */
+    private static final Timer FETCH_TIMER = Metrics.get().timer("ui.users.fetch");
+
+    /** Order of filtered users when the grid isn't sorted, so pages are stable */
+    private static final Comparator<User> BY_NAME = Comparator.comparing(User::getName);
+
+    /** Provider of the shared users, identifying each by name so single rows can be refreshed */
+    private final ListDataProvider<User> dataProvider =
+            new ListDataProvider<User>(ApplicationModel.get().getUsers().getUsers()) {
+                @Override
+                public Object getId(User user) {
+                    return user.getName();
+                }
+
+                @Override
+                public Stream<User> fetch(Query<User, SerializablePredicate<User>> query) {
+                    Timer.Context fetchTiming = FETCH_TIMER.time();
+                    try {
+                        @Nullable UserQuery userQuery = MainView.this.userQuery;
+                        Stream<User> users = userQuery == null
+                                ? super.fetch(query)
+                                : matching(userQuery, query).skip(query.getOffset()).limit(query.getLimit());
+                        // Collect so that the time includes filtering and sorting
+                        return users.collect(Collectors.toList()).stream();
+                    }
+                    finally {
+                        fetchTiming.stop();
+                    }
+                }
+
+                @Override
+                public int size(Query<User, SerializablePredicate<User>> query) {
+                    @Nullable UserQuery userQuery = MainView.this.userQuery;
+                    return userQuery == null ? super.size(query) : (int) matching(userQuery, query).count();
+                }
+            };
+
+    /** The query filtering the grid, or null to show every user */
+    private volatile @Nullable UserQuery userQuery;
+
+    /** Query to filter the users by */
+    private final TextField filter = new TextField();
+
+    /** Registration with the broadcaster while attached */
+    private @Nullable Registration pushRegistration;
+
+    /** The users */
+    private final Grid<User> grid = new Grid<>();
+
+    /** Shown instead of the grid until the users have been loaded */
+    private final Span loading = new Span("Loading users...");
+
     public MainView() {
         super();
+
+        add(new HorizontalLayout(new RouterLink("Apply states", StateApplyView.class),
+                                 new RouterLink("Pending changes", PendingChangesView.class),
+                                 new RouterLink("Change password", PasswordChangeView.class)));
+
+        this.filter.setPlaceholder("Filter, e.g. shell=/bin/bash AND group=wheel AND expire<30d AND present");
+        this.filter.setWidth("100%");
+        this.filter.addValueChangeListener(event -> this.setQuery(event.getValue()));
+        add(this.filter);
+
+        // Add users to a grid
+        Grid<User> grid = this.grid;
+        grid.setSizeFull();
+        grid.setDataProvider(this.dataProvider);
+        this.addColumns(grid);
+        add(this.loading, grid);
+        setHeight("100vh");
+
+        // Normally already loaded by StartupListener
+        boolean ready = ApplicationModel.get().isReady();
+        this.loading.setVisible(!ready);
+        grid.setVisible(ready);
+
+        // Selection listener
+        grid.addSelectionListener(event -> {
+            if (event.getFirstSelectedItem().isPresent()) {
+                User selected = event.getFirstSelectedItem().get();
+                Notification.show("Selected " + selected.getName());
+            }
+        });
+    }
+
+    /**
+     * Finds the users matching a query, using the indexes, then applies the grid's
+     * filter and sort order.
+     */
+    private static Stream<User> matching(UserQuery userQuery, Query<User, SerializablePredicate<User>> query) {
+        Stream<User> users = ApplicationModel.get().getUsers().find(userQuery).stream();
+        Optional<SerializablePredicate<User>> gridFilter = query.getFilter();
+        if (gridFilter.isPresent()) {
+            users = users.filter(gridFilter.get());
+        }
+        return users.sorted(query.getSortingComparator().orElse(BY_NAME));
+    }
+
+    /**
+     * Filters the grid by a query, or shows every user if the text is blank.
+     */
+    private void setQuery(@Nullable String text) {
+        if (text == null || text.trim().isEmpty()) {
+            this.userQuery = null;
+        }
+        else {
+            try {
+                this.userQuery = UserQuery.parse(text);
+            }
+            catch (QueryException e) {
+                this.filter.setErrorMessage(e.getMessage());
+                this.filter.setInvalid(true);
+                return;
+            }
+        }
+        this.filter.setInvalid(false);
+        this.dataProvider.refreshAll();
     }
 
     /**
@@ -64,37 +203,38 @@ public class MainView extends VerticalLayout {
     @Override
     protected void onAttach(AttachEvent attachEvent) {
         super.onAttach(attachEvent);
+        this.pushRegistration = ApplicationModel.get().getBroadcaster().register(attachEvent.getUI(), this.dataProvider);
+        // Catch up with changes made while detached
+        this.dataProvider.refreshAll();
 
-        // Create some users
-        Users users = new Users();
-        try {
-            User uFoo = new User("Foo");
-            uFoo.setUid(1000);
-            uFoo.setGid(2000);
-            uFoo.setGecosFullname("Mr F Ooooo");
-            users.addUser(uFoo);
-            users.addUser(new User("Bar"));
-            users.addUser(new User("Baz"));
-        }
-        catch (DuplicateNameException e) {
-            Notification.show("Error adding user: " + e.getMessage());
+        if (!ApplicationModel.get().isReady()) {
+            UI ui = attachEvent.getUI();
+            ApplicationModel.get().start().thenRun(() -> {
+                try {
+                    ui.access(this::showUsers);
+                }
+                catch (UIDetachedException e) {
+                    // The user has navigated away - nothing to update
+                }
+            });
         }
+    }
 
-        // Add users to a grid
-        Grid<User> grid = new Grid<>();
-        grid.setSizeFull();
-        grid.setItems(users.getUsers());
-        this.addColumns(grid);
-        add(grid);
-        setHeight("100vh");
+    /**
+     * Replaces the loading message with the users, once loaded.
+     */
+    private void showUsers() {
+        this.loading.setVisible(false);
+        this.grid.setVisible(true);
+        this.dataProvider.refreshAll();
+    }
 
-        // Selection listener
-        grid.addSelectionListener(event -> {
-            if (event.getFirstSelectedItem().isPresent()) {
-                User selected = event.getFirstSelectedItem().get();
-                Notification.show("Selected " + selected.getName());
-            }
-        });
+    @Override
+    protected void onDetach(DetachEvent detachEvent) {
+        if (this.pushRegistration != null) {
+            this.pushRegistration.remove();
+            this.pushRegistration = null;
+        }
+        super.onDetach(detachEvent);
     }
 }
-
@@ -0,0 +1,61 @@
+package com.riverinnovations.saltui;
+
+import com.riverinnovations.saltui.ui.PendingChangesView;
+
+import com.vaadin.flow.component.grid.Grid;
+import com.vaadin.flow.component.textfield.TextField;
+import com.vaadin.flow.data.provider.ListDataProvider;
+import com.vaadin.flow.data.renderer.NumberRenderer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Starts loading the model as soon as the container starts, rather than when the
+ * first session arrives, and stops its background services when the container stops.
+ *
+ * Also loads the classes used to build the main view, in parallel with the model,
+ * so that the first session doesn't wait for them either.
+ */
+@WebListener
+public class StartupListener implements ServletContextListener {
+
+    /** Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(StartupListener.class);
+
+    /** Classes used by the views, loaded and initialised in the background */
+    private static final Class<?>[] VIEW_CLASSES = {
+            MainView.class, PendingChangesView.class,
+            Grid.class, ListDataProvider.class, NumberRenderer.class, TextField.class
+    };
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        ApplicationModel.get().start();
+
+        Thread views = new Thread(StartupListener::loadViewClasses, "saltui-startup-views");
+        views.setDaemon(true);
+        views.setPriority(Thread.MIN_PRIORITY);
+        views.start();
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        ApplicationModel.get().shutdown();
+    }
+
+    private static void loadViewClasses() {
+        for (Class<?> c : VIEW_CLASSES) {
+            try {
+                Class.forName(c.getName(), true, c.getClassLoader());
+            }
+            catch (ClassNotFoundException | LinkageError e) {
+                LOGGER.warn("Cannot load " + c.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+}
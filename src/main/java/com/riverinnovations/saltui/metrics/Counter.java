@@ -0,0 +1,30 @@
+package com.riverinnovations.saltui.metrics;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up. Thread safe.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class Counter implements CounterMBean {
+
+    private final LongAdder count = new LongAdder();
+
+    public void inc() {
+        this.count.increment();
+    }
+
+    public void add(long n) {
+        this.count.add(n);
+    }
+
+    @Override
+    public long getCount() {
+        return this.count.sum();
+    }
+}
@@ -0,0 +1,27 @@
+package com.riverinnovations.saltui.metrics;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A value read when the metrics are reported, such as the number of users.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class Gauge implements GaugeMBean {
+
+    /** Reads the value; must be thread safe and cheap */
+    private final LongSupplier supplier;
+
+    public Gauge(LongSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    @Override
+    public long getValue() {
+        return this.supplier.getAsLong();
+    }
+}
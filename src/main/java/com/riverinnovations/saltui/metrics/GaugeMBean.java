@@ -0,0 +1,9 @@
+package com.riverinnovations.saltui.metrics;
+
+/**
+ * JMX view of a Gauge.
+ */
+public interface GaugeMBean {
+
+    long getValue();
+}
@@ -0,0 +1,139 @@
+package com.riverinnovations.saltui.metrics;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The distribution of non-negative values, such as sizes or latencies.
+ *
+ * Values are counted in buckets whose width grows with the value: each power of two is
+ * split into 16 buckets, so percentiles are within about 6% of the true value. Recording
+ * is lock free and takes constant time and memory however many values are recorded.
+ *
+ * Thread safe.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class Histogram implements HistogramMBean {
+
+    /** log2 of the number of buckets per power of two */
+    private static final int SUB_BITS = 4;
+
+    /** Number of buckets per power of two */
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    /** Enough buckets for any non-negative long */
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        this.buckets.incrementAndGet(bucketOf(v));
+        this.count.increment();
+        this.sum.add(v);
+        this.max.accumulate(v);
+    }
+
+    /**
+     * @return The bucket holding a value.
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * @return The highest value held by a bucket.
+     */
+    static long bucketMax(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+        long sub = bucket % SUB_COUNT;
+        long low = (SUB_COUNT + sub) << (exponent - SUB_BITS);
+        return low + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Returns an estimate of a percentile. As values are recorded while this runs the
+     * result is approximate under concurrent use.
+     * @param percentile The percentile, from 0 to 100.
+     * @return The upper bound of the bucket holding the percentile, or 0 if nothing is recorded.
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(bucketMax(i), this.getMax());
+            }
+        }
+        return this.getMax();
+    }
+
+    @Override
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    @Override
+    public long getSum() {
+        return this.sum.sum();
+    }
+
+    @Override
+    public long getMax() {
+        return this.max.get();
+    }
+
+    @Override
+    public double getMean() {
+        long n = this.getCount();
+        return n == 0 ? 0.0 : (double) this.getSum() / n;
+    }
+
+    @Override
+    public long getP50() {
+        return this.getPercentile(50);
+    }
+
+    @Override
+    public long getP95() {
+        return this.getPercentile(95);
+    }
+
+    @Override
+    public long getP99() {
+        return this.getPercentile(99);
+    }
+}
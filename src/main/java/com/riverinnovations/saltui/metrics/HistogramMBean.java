@@ -0,0 +1,21 @@
+package com.riverinnovations.saltui.metrics;
+
+/**
+ * JMX view of a Histogram.
+ */
+public interface HistogramMBean {
+
+    long getCount();
+
+    long getSum();
+
+    long getMax();
+
+    double getMean();
+
+    long getP50();
+
+    long getP95();
+
+    long getP99();
+}
@@ -0,0 +1,194 @@
+package com.riverinnovations.saltui.metrics;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Holds the counters, gauges, histograms and timers of the application by name,
+ * and publishes each to JMX as com.riverinnovations.saltui:type=Timer,name=userstate.save etc.
+ *
+ * Names are dot separated and lower case, e.g. userstate.save.write.
+ * Metrics are created on first use and live as long as the registry.
+ *
+ * Thread safe.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class Metrics {
+
+    /** JMX domain of the metrics */
+    public static final String JMX_DOMAIN = "com.riverinnovations.saltui";
+
+    /** Prefix of names in the text format */
+    private static final String TEXT_PREFIX = "saltui_";
+
+    /** Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(Metrics.class);
+
+    /** The registry used by the application */
+    private static final Metrics INSTANCE = new Metrics(ManagementFactory.getPlatformMBeanServer());
+
+    /** The metrics by name */
+    private final Map<String, Object> metrics = new ConcurrentHashMap<>();
+
+    /** Where metrics are published, if anywhere */
+    private final @Nullable MBeanServer mbeanServer;
+
+    /**
+     * Constructor.
+     * @param mbeanServer Where to publish the metrics, or null not to publish them.
+     */
+    public Metrics(@Nullable MBeanServer mbeanServer) {
+        this.mbeanServer = mbeanServer;
+    }
+
+    /**
+     * @return The registry used by the application, published to the platform MBean server.
+     */
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    public Counter counter(String name) {
+        return this.getOrCreate(name, Counter.class, Counter::new);
+    }
+
+    public Histogram histogram(String name) {
+        return this.getOrCreate(name, Histogram.class, Histogram::new);
+    }
+
+    public Timer timer(String name) {
+        return this.getOrCreate(name, Timer.class, Timer::new);
+    }
+
+    /**
+     * Registers a gauge, replacing any existing gauge of the same name.
+     * @param name The name of the gauge.
+     * @param supplier Reads the value; must be thread safe and cheap.
+     * @return The gauge.
+     */
+    public Gauge gauge(String name, LongSupplier supplier) {
+        Gauge gauge = new Gauge(supplier);
+        @Nullable Object old = this.metrics.put(name, gauge);
+        if (old != null && !(old instanceof Gauge)) {
+            this.metrics.put(name, old);
+            throw new IllegalArgumentException("Metric '" + name + "' is a " + old.getClass().getSimpleName());
+        }
+        this.publish(name, gauge);
+        return gauge;
+    }
+
+    private <T> T getOrCreate(String name, Class<T> type, Supplier<T> factory) {
+        @Nullable Object metric = this.metrics.get(name);
+        if (metric == null) {
+            // Publish only the metric that wins a race to create it
+            boolean[] created = new boolean[1];
+            metric = this.metrics.computeIfAbsent(name, n -> {
+                created[0] = true;
+                return factory.get();
+            });
+            if (created[0]) {
+                this.publish(name, metric);
+            }
+        }
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException("Metric '" + name + "' is a " + metric.getClass().getSimpleName());
+        }
+        return type.cast(metric);
+    }
+
+    /**
+     * Publishes a metric to JMX, replacing any earlier MBean of the same name,
+     * e.g. from an earlier deployment of the webapp.
+     */
+    private void publish(String name, Object metric) {
+        @Nullable MBeanServer server = this.mbeanServer;
+        if (server == null) {
+            return;
+        }
+        try {
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=" + metric.getClass().getSimpleName()
+                                                   + ",name=" + ObjectName.quote(name));
+            try {
+                server.registerMBean(metric, objectName);
+            }
+            catch (InstanceAlreadyExistsException e) {
+                server.unregisterMBean(objectName);
+                server.registerMBean(metric, objectName);
+            }
+        }
+        catch (JMException e) {
+            LOGGER.warn("Cannot publish metric '" + name + "' to JMX: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return The metrics, ordered by name.
+     */
+    public Map<String, Object> getMetrics() {
+        return new TreeMap<>(this.metrics);
+    }
+
+    /**
+     * Writes all the metrics in the Prometheus text format. Histograms and timers are
+     * written as summaries with 0.5, 0.95 and 0.99 quantiles; times are in seconds.
+     * @param out Where to write the metrics.
+     */
+    public void writeText(Appendable out) throws IOException {
+        for (Map.Entry<String, Object> entry : this.getMetrics().entrySet()) {
+            String name = TEXT_PREFIX + entry.getKey().replaceAll("[^A-Za-z0-9_]", "_");
+            Object metric = entry.getValue();
+            if (metric instanceof Counter) {
+                out.append("# TYPE ").append(name).append("_total counter\n");
+                line(out, name + "_total", ((Counter) metric).getCount());
+            }
+            else if (metric instanceof Gauge) {
+                out.append("# TYPE ").append(name).append(" gauge\n");
+                line(out, name, ((Gauge) metric).getValue());
+            }
+            else if (metric instanceof Timer) {
+                writeSummary(out, name + "_seconds", ((Timer) metric).getHistogram(), 1e-9);
+            }
+            else if (metric instanceof Histogram) {
+                writeSummary(out, name, (Histogram) metric, 1.0);
+            }
+        }
+    }
+
+    private static void writeSummary(Appendable out, String name, Histogram histogram, double scale)
+            throws IOException {
+        out.append("# TYPE ").append(name).append(" summary\n");
+        line(out, name + "{quantile=\"0.5\"}", histogram.getP50() * scale);
+        line(out, name + "{quantile=\"0.95\"}", histogram.getP95() * scale);
+        line(out, name + "{quantile=\"0.99\"}", histogram.getP99() * scale);
+        line(out, name + "_max", histogram.getMax() * scale);
+        line(out, name + "_sum", histogram.getSum() * scale);
+        line(out, name + "_count", histogram.getCount());
+    }
+
+    private static void line(Appendable out, String name, long value) throws IOException {
+        out.append(name).append(' ').append(Long.toString(value)).append('\n');
+    }
+
+    private static void line(Appendable out, String name, double value) throws IOException {
+        out.append(name).append(' ').append(String.format(Locale.ROOT, "%.9g", value)).append('\n');
+    }
+}
@@ -0,0 +1,108 @@
+package com.riverinnovations.saltui.metrics;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+/**
+ * The distribution of the durations of an operation. Use as:
+ * <pre>
+ * Timer.Context timing = TIMER.time();
+ * try {
+ *     ...
+ * }
+ * finally {
+ *     timing.stop();
+ * }
+ * </pre>
+ * Thread safe.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class Timer implements TimerMBean {
+
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    /** Durations in nanoseconds */
+    private final Histogram histogram = new Histogram();
+
+    /**
+     * Starts timing.
+     * @return The context, which records the duration when stopped.
+     */
+    public Context time() {
+        return new Context(this, System.nanoTime());
+    }
+
+    /**
+     * Records a duration.
+     * @param nanos The duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        this.histogram.record(nanos);
+    }
+
+    /**
+     * @return The durations in nanoseconds.
+     */
+    public Histogram getHistogram() {
+        return histogram;
+    }
+
+    @Override
+    public long getCount() {
+        return this.histogram.getCount();
+    }
+
+    @Override
+    public double getTotalMillis() {
+        return this.histogram.getSum() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return this.histogram.getMax() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return this.histogram.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return this.histogram.getP50() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getP95Millis() {
+        return this.histogram.getP95() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getP99Millis() {
+        return this.histogram.getP99() / NANOS_PER_MILLI;
+    }
+
+    /**
+     * One timing, recorded when stopped.
+     */
+    public static final class Context {
+
+        private final Timer timer;
+
+        private final long start;
+
+        private Context(Timer timer, long start) {
+            this.timer = timer;
+            this.start = start;
+        }
+
+        /**
+         * Records the time since the context was created.
+         */
+        public void stop() {
+            this.timer.record(System.nanoTime() - this.start);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.riverinnovations.saltui.metrics;
+
+/**
+ * JMX view of a Timer. Times are in milliseconds.
+ */
+public interface TimerMBean {
+
+    long getCount();
+
+    double getTotalMillis();
+
+    double getMaxMillis();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP95Millis();
+
+    double getP99Millis();
+}
@@ -0,0 +1,16 @@
+package com.riverinnovations.saltui.model.audit;
+
+/**
+ * What happened to a user.
+ */
+public enum AuditAction {
+
+    /** The user was added */
+    ADDED,
+
+    /** The user was deleted */
+    DELETED,
+
+    /** A field of the user was changed */
+    CHANGED
+}
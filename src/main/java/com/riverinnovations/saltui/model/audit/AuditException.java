@@ -0,0 +1,18 @@
+package com.riverinnovations.saltui.model.audit;
+
+import com.riverinnovations.saltui.model.ModelException;
+
+/**
+ * Thrown when the audit log cannot be read or written.
+ */
+public class AuditException extends ModelException {
+
+    public AuditException(String s) {
+        super(s);
+    }
+
+    public AuditException(String s, Throwable throwable) {
+        super(s, throwable);
+    }
+
+}
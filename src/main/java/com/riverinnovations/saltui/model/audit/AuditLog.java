@@ -0,0 +1,376 @@
+package com.riverinnovations.saltui.model.audit;
+
+import com.riverinnovations.saltui.metrics.Counter;
+import com.riverinnovations.saltui.metrics.Histogram;
+import com.riverinnovations.saltui.metrics.Metrics;
+import com.riverinnovations.saltui.metrics.Timer;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Append-only log of changes to users, kept in a directory of segment files.
+ *
+ * Appending never blocks on I/O: records go into a lock-free ring buffer and a single
+ * writer thread drains them in batches, appending each batch to the current segment with
+ * one fsync. Only if the writer falls a whole buffer behind do callers wait for it.
+ * Use flush() to wait until everything appended so far is on disk.
+ *
+ * Segments are rotated when they reach a size limit, and each keeps an index of the
+ * offsets of every user's records and the times it covers, so a query for one user over
+ * a time range only reads that user's records in the segments covering the range.
+ *
+ * Thread safe.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class AuditLog implements AutoCloseable {
+
+    /** Default size at which segments are rotated */
+    public static final long DEFAULT_SEGMENT_BYTES = 16L * 1024 * 1024;
+
+    /** Default capacity of the ring buffer */
+    public static final int DEFAULT_BUFFER_CAPACITY = 16384;
+
+    /** Most records written in one batch */
+    private static final int MAX_BATCH = 4096;
+
+    /** How long the writer sleeps when there is nothing to write, unless woken */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** How long a producer waits when the buffer is full before trying again */
+    private static final long FULL_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /** Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(AuditLog.class);
+
+    /** Records written, times the buffer was full, fsync time and batch sizes */
+    private static final Counter RECORDS = Metrics.get().counter("audit.records");
+    private static final Counter FULL = Metrics.get().counter("audit.full");
+    private static final Timer FSYNC_TIMER = Metrics.get().timer("audit.fsync");
+    private static final Histogram BATCH = Metrics.get().histogram("audit.batch");
+
+    /** The directory holding the segments */
+    private final Path directory;
+
+    /** Records waiting to be written */
+    private final AuditRingBuffer buffer;
+
+    /** Sealed segments, oldest first, then the segment being written */
+    private final List<AuditSegment> segments = new ArrayList<>();
+
+    /** Size at which segments are rotated */
+    private volatile long segmentBytes = DEFAULT_SEGMENT_BYTES;
+
+    /** Sealed segments entirely older than this are deleted; 0 to keep them all */
+    private volatile long retentionMillis;
+
+    /** Number of records, from the ring buffer's sequence, that are on disk */
+    private volatile long durable;
+
+    /** The last error writing, if the writer has stopped */
+    private volatile @Nullable IOException failure;
+
+    /** True while the writer is sleeping and should be woken by producers */
+    private volatile boolean writerIdle;
+
+    /** True once closed */
+    private volatile boolean closed;
+
+    /** Drains the buffer */
+    private final Thread writer;
+
+    /**
+     * Opens the log, creating the directory if necessary.
+     */
+    public AuditLog(Path directory) throws IOException, AuditException {
+        this(directory, DEFAULT_BUFFER_CAPACITY);
+    }
+
+    /**
+     * Opens the log, creating the directory if necessary.
+     * @param bufferCapacity Number of records that can wait to be written before callers wait.
+     */
+    public AuditLog(Path directory, int bufferCapacity) throws IOException, AuditException {
+        this.directory = directory;
+        this.buffer = new AuditRingBuffer(bufferCapacity);
+        Files.createDirectories(directory);
+
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                                                                     AuditSegment.PREFIX + "*"
+                                                                     + AuditSegment.LOG_SUFFIX)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        paths.sort(Comparator.comparing(Path::toString));
+        for (int i = 0; i < paths.size(); i++) {
+            this.segments.add(AuditSegment.open(paths.get(i), i == paths.size() - 1));
+        }
+        if (this.segments.isEmpty()) {
+            this.segments.add(AuditSegment.create(directory, 0));
+        }
+
+        this.writer = new Thread(this::writeLoop, "saltui-audit-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public void setSegmentBytes(long segmentBytes) {
+        this.segmentBytes = Math.max(1, segmentBytes);
+    }
+
+    /**
+     * Sets how long sealed segments are kept. Segments are only deleted when rotating.
+     * @param retentionMillis The time, or 0 to keep every segment.
+     */
+    public void setRetentionMillis(long retentionMillis) {
+        this.retentionMillis = Math.max(0, retentionMillis);
+    }
+
+    /**
+     * Appends a record. Returns once the record is queued, before it is written,
+     * unless the writer is a whole buffer behind.
+     * @throws AuditException If the log is closed or the writer has failed.
+     */
+    public void append(AuditRecord record) throws AuditException {
+        while (true) {
+            this.checkOpen();
+            if (this.buffer.offer(record) >= 0) {
+                if (this.writerIdle) {
+                    LockSupport.unpark(this.writer);
+                }
+                return;
+            }
+            FULL.inc();
+            LockSupport.unpark(this.writer);
+            LockSupport.parkNanos(FULL_NANOS);
+        }
+    }
+
+    /**
+     * Waits until every record appended before the call is on disk.
+     * @throws AuditException If the log is closed or the writer has failed.
+     */
+    public void flush() throws AuditException {
+        long target = this.buffer.claimed();
+        synchronized (this) {
+            while (this.durable < target) {
+                this.checkOpen();
+                LockSupport.unpark(this.writer);
+                try {
+                    this.wait(10);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new AuditException("Interrupted waiting for the audit log", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the changes to a user in a time range, reading only the segments covering
+     * the range that hold records for the user. Flushes first, so the changes include
+     * everything appended before the call.
+     * @param user The user name.
+     * @param fromMillis The start of the range, inclusive.
+     * @param toMillis The end of the range, inclusive.
+     * @return The changes, oldest first.
+     */
+    public List<AuditRecord> query(String user, long fromMillis, long toMillis)
+    throws IOException, AuditException {
+        this.flush();
+        List<AuditRecord> records = new ArrayList<>();
+        for (AuditSegment segment : this.snapshotSegments()) {
+            for (AuditRecord record : segment.read(segment.offsets(user, fromMillis, toMillis))) {
+                if (record.getTimestamp() >= fromMillis && record.getTimestamp() <= toMillis) {
+                    records.add(record);
+                }
+            }
+        }
+        records.sort(Comparator.comparingLong(AuditRecord::getTimestamp));
+        return records;
+    }
+
+    /**
+     * Finds the changes to every user in a time range, reading only the segments covering it.
+     * @return The changes, oldest first.
+     */
+    public List<AuditRecord> query(long fromMillis, long toMillis) throws IOException, AuditException {
+        this.flush();
+        List<AuditRecord> records = new ArrayList<>();
+        for (AuditSegment segment : this.snapshotSegments()) {
+            if (segment.overlaps(fromMillis, toMillis)) {
+                for (AuditRecord record : segment.readAll()) {
+                    if (record.getTimestamp() >= fromMillis && record.getTimestamp() <= toMillis) {
+                        records.add(record);
+                    }
+                }
+            }
+        }
+        records.sort(Comparator.comparingLong(AuditRecord::getTimestamp));
+        return records;
+    }
+
+    /**
+     * @return The number of segment files.
+     */
+    public int getSegmentCount() {
+        return this.snapshotSegments().size();
+    }
+
+    /**
+     * @return The number of records waiting to be written.
+     */
+    public int getBacklog() {
+        return this.buffer.size();
+    }
+
+    private List<AuditSegment> snapshotSegments() {
+        synchronized (this.segments) {
+            return new ArrayList<>(this.segments);
+        }
+    }
+
+    private void checkOpen() throws AuditException {
+        @Nullable IOException f = this.failure;
+        if (f != null) {
+            throw new AuditException("Audit log writer failed: " + f.getMessage(), f);
+        }
+        if (this.closed) {
+            throw new AuditException("Audit log " + this.directory + " is closed");
+        }
+    }
+
+    /**
+     * Writes batches until closed and drained. Runs on the writer thread.
+     */
+    private void writeLoop() {
+        List<AuditRecord> batch = new ArrayList<>(MAX_BATCH);
+        List<byte[]> lines = new ArrayList<>(MAX_BATCH);
+        try {
+            while (true) {
+                batch.clear();
+                int n = this.buffer.drain(batch, MAX_BATCH);
+                if (n == 0) {
+                    if (this.closed && this.buffer.size() == 0) {
+                        break;
+                    }
+                    this.writerIdle = true;
+                    // Check again so that a record published just before going idle is not missed
+                    if (this.buffer.size() == 0 || this.closed) {
+                        LockSupport.parkNanos(this, this.closed ? FULL_NANOS : IDLE_NANOS);
+                    }
+                    this.writerIdle = false;
+                    continue;
+                }
+                this.write(batch, lines);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            LOGGER.error("Audit log writer failed, no more changes will be audited: " + e.getMessage(), e);
+            this.failure = e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+        finally {
+            synchronized (this) {
+                this.notifyAll();
+            }
+        }
+    }
+
+    private void write(List<AuditRecord> batch, List<byte[]> lines) throws IOException {
+        lines.clear();
+        for (AuditRecord record : batch) {
+            lines.add((record.toLine() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        AuditSegment current = this.current();
+        current.append(batch, lines);
+        Timer.Context fsyncTiming = FSYNC_TIMER.time();
+        try {
+            current.force();
+        }
+        finally {
+            fsyncTiming.stop();
+        }
+        RECORDS.add(batch.size());
+        BATCH.record(batch.size());
+        synchronized (this) {
+            this.durable = this.buffer.taken();
+            this.notifyAll();
+        }
+        if (current.getSize() >= this.segmentBytes) {
+            this.rotate(current);
+        }
+    }
+
+    private AuditSegment current() {
+        synchronized (this.segments) {
+            return this.segments.get(this.segments.size() - 1);
+        }
+    }
+
+    /**
+     * Seals the current segment, starts a new one and deletes expired segments.
+     */
+    private void rotate(AuditSegment current) throws IOException {
+        current.seal();
+        AuditSegment next = AuditSegment.create(this.directory, current.getFirstRecord() + current.getCount());
+        List<AuditSegment> expired = new ArrayList<>();
+        synchronized (this.segments) {
+            this.segments.add(next);
+            long retention = this.retentionMillis;
+            if (retention > 0) {
+                long cutoff = System.currentTimeMillis() - retention;
+                for (AuditSegment segment : this.segments) {
+                    if (segment != next && segment.getTo() < cutoff) {
+                        expired.add(segment);
+                    }
+                }
+                this.segments.removeAll(expired);
+            }
+        }
+        for (AuditSegment segment : expired) {
+            LOGGER.info("Deleting expired audit segment " + segment.getPath());
+            segment.delete();
+        }
+    }
+
+    /**
+     * Writes everything appended so far and stops the writer. The current segment is
+     * left unsealed, to be written to when the log is next opened.
+     */
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+        LockSupport.unpark(this.writer);
+        try {
+            this.writer.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.current().close();
+    }
+}
@@ -0,0 +1,230 @@
+package com.riverinnovations.saltui.model.audit;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * One entry in the audit log: a user added or deleted, or one field of a user changed.
+ * Values of sensitive fields are never recorded, only that they changed.
+ * Immutable.
+ *
+ * Written as a line of tab separated columns, with tabs, newlines and backslashes
+ * escaped by a backslash and null written as \N.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class AuditRecord {
+
+    /** Written for null values */
+    private static final String NULL = "\\N";
+
+    /** Number of columns in a line */
+    private static final int COLUMNS = 7;
+
+    /** When the change was made, in milliseconds since the epoch */
+    private final long timestamp;
+
+    /** Who made the change */
+    private final String actor;
+
+    /** The name of the user changed */
+    private final String user;
+
+    private final AuditAction action;
+
+    /** The pillar key of the field changed, or null if the user was added or deleted */
+    private final @Nullable String field;
+
+    private final @Nullable String oldValue;
+
+    private final @Nullable String newValue;
+
+    public AuditRecord(long timestamp,
+                       String actor,
+                       String user,
+                       AuditAction action,
+                       @Nullable String field,
+                       @Nullable String oldValue,
+                       @Nullable String newValue) {
+        this.timestamp = timestamp;
+        this.actor = actor;
+        this.user = user;
+        this.action = action;
+        this.field = field;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getActor() {
+        return actor;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public AuditAction getAction() {
+        return action;
+    }
+
+    public @Nullable String getField() {
+        return field;
+    }
+
+    public @Nullable String getOldValue() {
+        return oldValue;
+    }
+
+    public @Nullable String getNewValue() {
+        return newValue;
+    }
+
+    /**
+     * @return The record as a line, without the line end.
+     */
+    public String toLine() {
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(this.timestamp).append('\t');
+        escape(sb, this.actor).append('\t');
+        escape(sb, this.user).append('\t');
+        sb.append(this.action.name()).append('\t');
+        escape(sb, this.field).append('\t');
+        escape(sb, this.oldValue).append('\t');
+        escape(sb, this.newValue);
+        return sb.toString();
+    }
+
+    /**
+     * Parses a line written by toLine().
+     * @throws AuditException If the line is not a record.
+     */
+    public static AuditRecord parse(String line) throws AuditException {
+        List<@Nullable String> columns = splitColumns(line);
+        if (columns.size() != COLUMNS) {
+            throw new AuditException("Expected " + COLUMNS + " columns but found " + columns.size() + ": " + line);
+        }
+        try {
+            return new AuditRecord(Long.parseLong(required(columns.get(0))),
+                                   required(columns.get(1)),
+                                   required(columns.get(2)),
+                                   AuditAction.valueOf(required(columns.get(3))),
+                                   columns.get(4),
+                                   columns.get(5),
+                                   columns.get(6));
+        }
+        catch (IllegalArgumentException e) {
+            throw new AuditException("Bad audit record: " + line, e);
+        }
+    }
+
+    /**
+     * Splits a line into its columns, removing the escapes.
+     */
+    static List<@Nullable String> splitColumns(String line) {
+        List<@Nullable String> columns = new ArrayList<>(COLUMNS);
+        StringBuilder sb = new StringBuilder();
+        boolean isNull = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\t') {
+                columns.add(isNull ? null : sb.toString());
+                sb.setLength(0);
+                isNull = false;
+            }
+            else if (c == '\\' && i + 1 < line.length()) {
+                char e = line.charAt(++i);
+                switch (e) {
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 'N':
+                        isNull = true;
+                        break;
+                    default:
+                        sb.append(e);
+                }
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        columns.add(isNull ? null : sb.toString());
+        return columns;
+    }
+
+    private static String required(@Nullable String column) {
+        if (column == null) {
+            throw new IllegalArgumentException("Missing column");
+        }
+        return column;
+    }
+
+    /**
+     * Appends a column, escaped.
+     */
+    static StringBuilder escape(StringBuilder sb, @Nullable String s) {
+        if (s == null) {
+            return sb.append(NULL);
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb;
+    }
+
+    @Override
+    public boolean equals(@Nullable Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        AuditRecord that = (AuditRecord) o;
+        return timestamp == that.timestamp &&
+                Objects.equals(actor, that.actor) &&
+                Objects.equals(user, that.user) &&
+                action == that.action &&
+                Objects.equals(field, that.field) &&
+                Objects.equals(oldValue, that.oldValue) &&
+                Objects.equals(newValue, that.newValue);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(timestamp, actor, user, action, field, oldValue, newValue);
+    }
+
+    @Override
+    public String toString() {
+        return this.toLine();
+    }
+}
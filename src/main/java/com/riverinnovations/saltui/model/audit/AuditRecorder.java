@@ -0,0 +1,157 @@
+package com.riverinnovations.saltui.model.audit;
+
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.UserField;
+import com.riverinnovations.saltui.model.user.Users;
+import com.riverinnovations.saltui.model.user.UsersChangeEvent;
+import com.riverinnovations.saltui.model.user.UsersListener;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Records changes to users in an audit log: which fields changed, from and to what, and who by.
+ *
+ * Keeps the values of each user's fields as last seen, so that the fields changed can be
+ * found when a user is changed. Sensitive fields are kept only as hash codes and their
+ * values never recorded.
+ *
+ * Changes are recorded on the thread that made them, which only queues the records.
+ * The actor is the one the change was made on behalf of, if any, or else is supplied
+ * on that thread.
+ * A user deleted and added in the same change, as when the users are reloaded, is
+ * recorded as changed.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class AuditRecorder implements UsersListener, AutoCloseable {
+
+    /** Actor recorded when no actor is known */
+    public static final String SYSTEM = "system";
+
+    /** Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(AuditRecorder.class);
+
+    /** The users being audited */
+    private final Users users;
+
+    /** Where changes are recorded */
+    private final AuditLog log;
+
+    /** Who is making the current change */
+    private final Supplier<@Nullable String> actor;
+
+    /** Field values of each user as last seen, in the order of UserField.all() */
+    private final Map<String, @Nullable Object[]> snapshots = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor. Starts recording changes to the users.
+     * @param users The users to audit.
+     * @param log Where to record changes.
+     * @param actor Supplies who is making a change, on the thread making it; null if not known.
+     */
+    public AuditRecorder(Users users, AuditLog log, Supplier<@Nullable String> actor) {
+        this.users = users;
+        this.log = log;
+        this.actor = actor;
+        for (User user : users.getUsers()) {
+            this.snapshots.put(user.getName(), snapshot(user));
+        }
+        users.addListener(this);
+    }
+
+    @Override
+    public void usersChanged(UsersChangeEvent event) {
+        long now = System.currentTimeMillis();
+        @Nullable String who = event.getActor() != null ? event.getActor() : this.actor.get();
+        String actorName = who == null ? SYSTEM : who;
+        try {
+            Set<String> added = new HashSet<>();
+            for (User user : event.getAdded()) {
+                added.add(user.getName());
+            }
+            for (User user : event.getDeleted()) {
+                if (!added.contains(user.getName())) {
+                    this.snapshots.remove(user.getName());
+                    this.log.append(new AuditRecord(now, actorName, user.getName(), AuditAction.DELETED,
+                                                    null, null, null));
+                }
+            }
+            for (User user : event.getAdded()) {
+                if (this.snapshots.containsKey(user.getName())) {
+                    // Replaced, e.g. by a reload
+                    this.recordChanges(now, actorName, user);
+                }
+                else {
+                    this.snapshots.put(user.getName(), snapshot(user));
+                    this.log.append(new AuditRecord(now, actorName, user.getName(), AuditAction.ADDED,
+                                                    null, null, null));
+                }
+            }
+            for (User user : event.getChanged()) {
+                this.recordChanges(now, actorName, user);
+            }
+        }
+        catch (AuditException e) {
+            LOGGER.error("Cannot audit change to users: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Records each field that differs from the snapshot, and updates the snapshot.
+     */
+    private void recordChanges(long now, String actorName, User user) throws AuditException {
+        @Nullable Object[] current = snapshot(user);
+        @Nullable Object @Nullable [] previous = this.snapshots.put(user.getName(), current);
+        if (previous == null) {
+            this.log.append(new AuditRecord(now, actorName, user.getName(), AuditAction.ADDED, null, null, null));
+            return;
+        }
+        List<UserField> fields = UserField.all();
+        for (int i = 0; i < fields.size(); i++) {
+            if (!Objects.equals(previous[i], current[i])) {
+                UserField field = fields.get(i);
+                boolean hidden = field.isSensitive();
+                this.log.append(new AuditRecord(now, actorName, user.getName(), AuditAction.CHANGED, field.getKey(),
+                                                hidden ? null : toText(previous[i]),
+                                                hidden ? null : toText(current[i])));
+            }
+        }
+    }
+
+    private static @Nullable Object[] snapshot(User user) {
+        List<UserField> fields = UserField.all();
+        @Nullable Object[] values = new Object[fields.size()];
+        for (int i = 0; i < fields.size(); i++) {
+            UserField field = fields.get(i);
+            @Nullable Object value = field.get(user);
+            values[i] = field.isSensitive() ? (Object) Objects.hashCode(value) : value;
+        }
+        return values;
+    }
+
+    private static @Nullable String toText(@Nullable Object value) {
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * Stops recording changes. The log is not closed.
+     */
+    @Override
+    public void close() {
+        this.users.removeListener(this);
+    }
+}
@@ -0,0 +1,106 @@
+package com.riverinnovations.saltui.model.audit;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue of records with many producers and a single consumer.
+ *
+ * Producers claim a sequence number by compare and swap, then publish the record in its
+ * slot; the consumer takes records in sequence order, waiting at a slot that has been
+ * claimed but not yet published.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+final class AuditRingBuffer {
+
+    /** The slots; null when empty */
+    private final AtomicReferenceArray<@Nullable AuditRecord> slots;
+
+    /** Capacity - 1, for finding the slot of a sequence number */
+    private final int mask;
+
+    /** Next sequence number to be claimed by a producer */
+    private final AtomicLong head = new AtomicLong();
+
+    /** Next sequence number to be taken by the consumer */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param capacity The capacity, rounded up to a power of two.
+     */
+    AuditRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds a record if there is room.
+     * @return The sequence number of the record, or -1 if the buffer is full.
+     */
+    long offer(AuditRecord record) {
+        while (true) {
+            long seq = this.head.get();
+            if (seq - this.tail.get() > this.mask) {
+                return -1;
+            }
+            if (this.head.compareAndSet(seq, seq + 1)) {
+                this.slots.set((int) (seq & this.mask), record);
+                return seq;
+            }
+        }
+    }
+
+    /**
+     * Takes the published records, in order. Only called by the consumer.
+     * @param into Receives the records.
+     * @param max The most records to take.
+     * @return The number taken.
+     */
+    int drain(List<AuditRecord> into, int max) {
+        long seq = this.tail.get();
+        int n = 0;
+        while (n < max) {
+            int slot = (int) (seq & this.mask);
+            @Nullable AuditRecord record = this.slots.get(slot);
+            if (record == null) {
+                break;
+            }
+            this.slots.lazySet(slot, null);
+            into.add(record);
+            seq++;
+            n++;
+        }
+        this.tail.lazySet(seq);
+        return n;
+    }
+
+    /**
+     * @return The number of sequence numbers claimed so far.
+     */
+    long claimed() {
+        return this.head.get();
+    }
+
+    /**
+     * @return The number of records taken by the consumer so far.
+     */
+    long taken() {
+        return this.tail.get();
+    }
+
+    /**
+     * @return The number of records waiting for the consumer, including any being published.
+     */
+    int size() {
+        return (int) (this.head.get() - this.tail.get());
+    }
+}
@@ -0,0 +1,391 @@
+package com.riverinnovations.saltui.model.audit;
+
+import com.riverinnovations.saltui.model.yaml.AtomicFile;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One file of the audit log, with an index of where each user's records are in it
+ * and the range of times it covers.
+ *
+ * The segment being written is indexed in memory. When it is full it is sealed: the
+ * index is written to a file next to it, so that opening the log only reads the
+ * indexes of sealed segments, not the records.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+final class AuditSegment {
+
+    /** Suffixes of the log and index files */
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".idx";
+
+    /** Prefix of the log and index files */
+    static final String PREFIX = "audit-";
+
+    /** First line of an index file */
+    private static final String INDEX_HEADER = "audit-index";
+
+    /** Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(AuditSegment.class);
+
+    /** The log file */
+    private final Path path;
+
+    /** The number of the first record in the segment, counting from the start of the log */
+    private final long firstRecord;
+
+    /** Offsets of the records of each user */
+    private final Map<String, LongList> offsets = new HashMap<>();
+
+    /** Number of records */
+    private long count;
+
+    /** Times of the first and last records */
+    private long from = Long.MAX_VALUE;
+    private long to = Long.MIN_VALUE;
+
+    /** Size of the file */
+    private long size;
+
+    /** Open for appending, if this is the segment being written */
+    private @Nullable FileChannel channel;
+
+    private AuditSegment(Path path, long firstRecord) {
+        this.path = path;
+        this.firstRecord = firstRecord;
+    }
+
+    /**
+     * Creates an empty segment to write to.
+     */
+    static AuditSegment create(Path directory, long firstRecord) throws IOException {
+        AuditSegment segment = new AuditSegment(directory.resolve(String.format("%s%020d%s", PREFIX, firstRecord,
+                                                                                LOG_SUFFIX)), firstRecord);
+        segment.channel = FileChannel.open(segment.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        return segment;
+    }
+
+    /**
+     * Opens an existing segment. Sealed segments are read from their index; otherwise
+     * the records are read to rebuild it.
+     * @param path The log file.
+     * @param writable True to continue writing to the segment. Any partly written
+     *                 record at the end, from a crash, is removed.
+     */
+    static AuditSegment open(Path path, boolean writable) throws IOException, AuditException {
+        String name = path.getFileName().toString();
+        long firstRecord;
+        try {
+            firstRecord = Long.parseLong(name.substring(PREFIX.length(), name.length() - LOG_SUFFIX.length()));
+        }
+        catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new AuditException("Not an audit log file: " + path, e);
+        }
+        AuditSegment segment = new AuditSegment(path, firstRecord);
+        Path indexPath = segment.indexPath();
+        if (!writable && Files.exists(indexPath)) {
+            segment.readIndex(indexPath);
+        }
+        else {
+            segment.rebuildIndex();
+            if (writable) {
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+                channel.truncate(segment.size);
+                channel.position(segment.size);
+                segment.channel = channel;
+            }
+            else {
+                segment.writeIndex();
+            }
+        }
+        return segment;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long getFirstRecord() {
+        return firstRecord;
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    synchronized long getSize() {
+        return size;
+    }
+
+    synchronized long getTo() {
+        return to;
+    }
+
+    /**
+     * Appends records. Only called by the writer thread.
+     * @param records The records.
+     * @param lines The records as lines, with line ends.
+     */
+    void append(List<AuditRecord> records, List<byte[]> lines) throws IOException {
+        FileChannel c = this.channel;
+        if (c == null) {
+            throw new IOException("Audit segment " + this.path + " is sealed");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(lines.size() * 96);
+        for (byte[] line : lines) {
+            bytes.write(line, 0, line.length);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            c.write(buffer);
+        }
+        synchronized (this) {
+            for (int i = 0; i < records.size(); i++) {
+                this.index(records.get(i), this.size);
+                this.size += lines.get(i).length;
+            }
+        }
+    }
+
+    /**
+     * Forces the records written to disk.
+     */
+    void force() throws IOException {
+        FileChannel c = this.channel;
+        if (c != null) {
+            c.force(false);
+        }
+    }
+
+    /**
+     * Stops writing to the segment and writes its index.
+     */
+    void seal() throws IOException {
+        FileChannel c = this.channel;
+        if (c != null) {
+            c.force(false);
+            c.close();
+            this.channel = null;
+        }
+        this.writeIndex();
+    }
+
+    /**
+     * Closes the segment without sealing it, so it is written to again when next opened.
+     */
+    void close() throws IOException {
+        FileChannel c = this.channel;
+        if (c != null) {
+            c.force(false);
+            c.close();
+            this.channel = null;
+        }
+    }
+
+    /**
+     * Deletes the log and index files.
+     */
+    void delete() throws IOException {
+        Files.deleteIfExists(this.path);
+        Files.deleteIfExists(this.indexPath());
+    }
+
+    /**
+     * Finds the offsets of a user's records, unless the segment cannot hold any in the time range.
+     * @return The offsets, or an empty array.
+     */
+    synchronized long[] offsets(String user, long fromMillis, long toMillis) {
+        @Nullable LongList list = this.offsets.get(user);
+        if (list == null || this.to < fromMillis || this.from > toMillis) {
+            return new long[0];
+        }
+        return list.toArray();
+    }
+
+    /**
+     * @return True if records in the time range may be in the segment.
+     */
+    synchronized boolean overlaps(long fromMillis, long toMillis) {
+        return this.count > 0 && this.to >= fromMillis && this.from <= toMillis;
+    }
+
+    /**
+     * Reads the records at the offsets.
+     */
+    List<AuditRecord> read(long[] recordOffsets) throws IOException, AuditException {
+        if (recordOffsets.length == 0) {
+            return Collections.emptyList();
+        }
+        List<AuditRecord> records = new ArrayList<>(recordOffsets.length);
+        try (FileChannel c = FileChannel.open(this.path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            for (long offset : recordOffsets) {
+                records.add(AuditRecord.parse(readLine(c, offset, buffer)));
+            }
+        }
+        catch (NoSuchFileException e) {
+            // Deleted by retention since the offsets were found
+            LOGGER.debug("Audit segment deleted while reading: " + this.path);
+        }
+        return records;
+    }
+
+    /**
+     * Reads every record.
+     */
+    List<AuditRecord> readAll() throws IOException, AuditException {
+        List<AuditRecord> records = new ArrayList<>();
+        try (BufferedReader r = Files.newBufferedReader(this.path, StandardCharsets.UTF_8)) {
+            @Nullable String line;
+            while ((line = r.readLine()) != null) {
+                records.add(AuditRecord.parse(line));
+            }
+        }
+        return records;
+    }
+
+    private static String readLine(FileChannel c, long offset, ByteBuffer buffer) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        long position = offset;
+        while (true) {
+            buffer.clear();
+            int n = c.read(buffer, position);
+            if (n <= 0) {
+                break;
+            }
+            byte[] array = buffer.array();
+            for (int i = 0; i < n; i++) {
+                if (array[i] == '\n') {
+                    line.write(array, 0, i);
+                    return new String(line.toByteArray(), StandardCharsets.UTF_8);
+                }
+            }
+            line.write(array, 0, n);
+            position += n;
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private void index(AuditRecord record, long offset) {
+        this.offsets.computeIfAbsent(record.getUser(), u -> new LongList()).add(offset);
+        this.from = Math.min(this.from, record.getTimestamp());
+        this.to = Math.max(this.to, record.getTimestamp());
+        this.count++;
+    }
+
+    private Path indexPath() {
+        String name = this.path.getFileName().toString();
+        return this.path.resolveSibling(name.substring(0, name.length() - LOG_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    /**
+     * Reads the records to build the index, ignoring a partly written record at the end.
+     */
+    private void rebuildIndex() throws IOException, AuditException {
+        byte[] bytes = Files.readAllBytes(this.path);
+        int start = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == '\n') {
+                String line = new String(bytes, start, i - start, StandardCharsets.UTF_8);
+                this.index(AuditRecord.parse(line), start);
+                start = i + 1;
+            }
+        }
+        if (start < bytes.length) {
+            LOGGER.warn("Ignoring partly written audit record at the end of " + this.path);
+        }
+        this.size = start;
+    }
+
+    /**
+     * Index file: a header line with the count and time range, then a line for each user
+     * with the offsets of their records.
+     */
+    private synchronized void writeIndex() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(INDEX_HEADER).append('\t').append(this.count).append('\t').append(this.from).append('\t')
+          .append(this.to).append('\t').append(this.size).append('\n');
+        for (Map.Entry<String, LongList> entry : this.offsets.entrySet()) {
+            AuditRecord.escape(sb, entry.getKey());
+            LongList list = entry.getValue();
+            for (int i = 0; i < list.size; i++) {
+                sb.append('\t').append(list.values[i]);
+            }
+            sb.append('\n');
+        }
+        String text = sb.toString();
+        AtomicFile.write(this.indexPath(), w -> w.write(text));
+    }
+
+    private void readIndex(Path indexPath) throws IOException, AuditException {
+        List<String> lines = Files.readAllLines(indexPath, StandardCharsets.UTF_8);
+        if (lines.isEmpty()) {
+            throw new AuditException("Empty audit index " + indexPath);
+        }
+        List<@Nullable String> header = AuditRecord.splitColumns(lines.get(0));
+        if (header.size() != 5 || !INDEX_HEADER.equals(header.get(0))) {
+            throw new AuditException("Bad audit index header in " + indexPath);
+        }
+        try {
+            this.count = Long.parseLong(String.valueOf(header.get(1)));
+            this.from = Long.parseLong(String.valueOf(header.get(2)));
+            this.to = Long.parseLong(String.valueOf(header.get(3)));
+            this.size = Long.parseLong(String.valueOf(header.get(4)));
+            for (String line : lines.subList(1, lines.size())) {
+                List<@Nullable String> columns = AuditRecord.splitColumns(line);
+                LongList list = new LongList();
+                for (int i = 1; i < columns.size(); i++) {
+                    list.add(Long.parseLong(String.valueOf(columns.get(i))));
+                }
+                this.offsets.put(String.valueOf(columns.get(0)), list);
+            }
+        }
+        catch (NumberFormatException e) {
+            throw new AuditException("Bad audit index " + indexPath, e);
+        }
+    }
+
+    /** Growable array of longs, to avoid boxing an offset for every record */
+    private static final class LongList {
+        private long[] values = new long[4];
+        private int size;
+
+        void add(long value) {
+            if (this.size == this.values.length) {
+                long[] grown = new long[this.size * 2];
+                System.arraycopy(this.values, 0, grown, 0, this.size);
+                this.values = grown;
+            }
+            this.values[this.size++] = value;
+        }
+
+        long[] toArray() {
+            long[] copy = new long[this.size];
+            System.arraycopy(this.values, 0, copy, 0, this.size);
+            return copy;
+        }
+    }
+}
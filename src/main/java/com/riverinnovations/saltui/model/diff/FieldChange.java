@@ -0,0 +1,59 @@
+package com.riverinnovations.saltui.model.diff;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+/**
+ * A change to one field of a user. Immutable.
+ *
+ * Values of sensitive fields such as passwords are not kept: both values are null.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class FieldChange {
+
+    /** The pillar key of the field */
+    private final String field;
+
+    private final @Nullable Object oldValue;
+
+    private final @Nullable Object newValue;
+
+    /** True if the values are hidden */
+    private final boolean sensitive;
+
+    public FieldChange(String field, @Nullable Object oldValue, @Nullable Object newValue, boolean sensitive) {
+        this.field = field;
+        this.oldValue = sensitive ? null : oldValue;
+        this.newValue = sensitive ? null : newValue;
+        this.sensitive = sensitive;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public @Nullable Object getOldValue() {
+        return oldValue;
+    }
+
+    public @Nullable Object getNewValue() {
+        return newValue;
+    }
+
+    public boolean isSensitive() {
+        return sensitive;
+    }
+
+    @Override
+    public String toString() {
+        if (this.sensitive) {
+            return this.field + " changed";
+        }
+        else {
+            return this.field + ": " + this.oldValue + " -> " + this.newValue;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.riverinnovations.saltui.model.diff;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * How one user will change on the minions. Immutable.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class UserChange {
+
+    /** The kinds of change */
+    public enum Kind {
+        /** The user will be created */
+        ADDED,
+        /** The user will be removed */
+        REMOVED,
+        /** Fields of the user will change */
+        CHANGED
+    }
+
+    private final String name;
+
+    private final Kind kind;
+
+    /** The fields that differ, for changed users; empty otherwise */
+    private final List<FieldChange> fields;
+
+    public UserChange(String name, Kind kind, List<FieldChange> fields) {
+        this.name = name;
+        this.kind = kind;
+        this.fields = Collections.unmodifiableList(fields);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public List<FieldChange> getFields() {
+        return fields;
+    }
+
+    /**
+     * @return The field changes as a single line for display.
+     */
+    public String describeFields() {
+        return this.fields.stream().map(FieldChange::toString).collect(Collectors.joining("; "));
+    }
+}
@@ -0,0 +1,101 @@
+package com.riverinnovations.saltui.model.diff;
+
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.UserField;
+import com.riverinnovations.saltui.model.user.Users;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Compares two sets of users, e.g. the users being edited against the users last
+ * saved, to show which accounts will be created, changed or removed.
+ *
+ * Users are matched by name using the Users maps, so comparison is linear in the number
+ * of users. The fingerprints held by Users are compared first, and only users whose
+ * fingerprints differ are compared field by field. Changes made by calling User setters
+ * directly, rather than through Users, are not seen.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class UsersDiff {
+
+    /** Whether to compare plain text passwords */
+    private boolean comparePlainPasswords = true;
+
+    /**
+     * Users loaded from the pillar hold only the encrypted password, not the plain
+     * text one, so plain text passwords cannot be compared against a loaded copy.
+     * @param comparePlainPasswords False to ignore plain text passwords.
+     */
+    public void setComparePlainPasswords(boolean comparePlainPasswords) {
+        this.comparePlainPasswords = comparePlainPasswords;
+    }
+
+    /**
+     * Compares two sets of users.
+     * @param before The users as they are, e.g. as last saved.
+     * @param after The users as they will be.
+     * @return The changes, ordered by user name.
+     */
+    public List<UserChange> compare(Users before, Users after) {
+        List<UserChange> changes = new ArrayList<>();
+        for (User user : after.getUsers()) {
+            @Nullable User old = before.getUser(user.getName());
+            if (old == null) {
+                changes.add(new UserChange(user.getName(), UserChange.Kind.ADDED, new ArrayList<>()));
+            }
+            else if (this.mayDiffer(before, after, old, user)) {
+                List<FieldChange> fields = this.compareFields(old, user);
+                if (!fields.isEmpty()) {
+                    changes.add(new UserChange(user.getName(), UserChange.Kind.CHANGED, fields));
+                }
+            }
+        }
+        for (User old : before.getUsers()) {
+            if (after.getUser(old.getName()) == null) {
+                changes.add(new UserChange(old.getName(), UserChange.Kind.REMOVED, new ArrayList<>()));
+            }
+        }
+        changes.sort(Comparator.comparing(UserChange::getName));
+        return changes;
+    }
+
+    private List<FieldChange> compareFields(User old, User user) {
+        List<FieldChange> fields = new ArrayList<>();
+        for (UserField field : UserField.all()) {
+            if (this.isCompared(field)) {
+                @Nullable Object oldValue = field.get(old);
+                @Nullable Object newValue = field.get(user);
+                if (!Objects.equals(oldValue, newValue)) {
+                    fields.add(new FieldChange(field.getKey(), oldValue, newValue, field.isSensitive()));
+                }
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * @return False if the users are known to be the same from their fingerprints.
+     */
+    private boolean mayDiffer(Users before, Users after, User old, User user) {
+        @Nullable Long oldFingerprint = before.getFingerprint(old.getName());
+        @Nullable Long newFingerprint = after.getFingerprint(user.getName());
+        if (oldFingerprint == null || newFingerprint == null || !oldFingerprint.equals(newFingerprint)) {
+            return true;
+        }
+        // Fingerprints leave out the plain text password
+        return this.comparePlainPasswords && !Objects.equals(old.getPasswordPlain(), user.getPasswordPlain());
+    }
+
+    private boolean isCompared(UserField field) {
+        return field != UserField.NAME && (this.comparePlainPasswords || field != UserField.PASSWORD);
+    }
+}
@@ -0,0 +1,57 @@
+package com.riverinnovations.saltui.model.drift;
+
+import com.riverinnovations.saltui.model.diff.FieldChange;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An account on a minion that differs from the model. Immutable.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class AccountDrift {
+
+    public enum Kind {
+        /** The user should be present but there is no account */
+        MISSING,
+        /** The user should be absent but the account is still there */
+        NOT_REMOVED,
+        /** The account's fields differ from the user's */
+        CHANGED
+    }
+
+    private final String name;
+
+    private final Kind kind;
+
+    /** For CHANGED, each field that differs: the old value is the model's, the new value the minion's */
+    private final List<FieldChange> changes;
+
+    public AccountDrift(String name, Kind kind, List<FieldChange> changes) {
+        this.name = name;
+        this.kind = kind;
+        this.changes = Collections.unmodifiableList(changes);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public List<FieldChange> getChanges() {
+        return changes;
+    }
+
+    @Override
+    public String toString() {
+        return this.name + " " + this.kind + (this.changes.isEmpty() ? "" : " " + this.changes);
+    }
+}
@@ -0,0 +1,321 @@
+package com.riverinnovations.saltui.model.drift;
+
+import com.riverinnovations.saltui.model.importer.ImportRecord;
+import com.riverinnovations.saltui.model.importer.PasswdUserReader;
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.UserField;
+import com.riverinnovations.saltui.salt.JsonException;
+import com.riverinnovations.saltui.salt.JsonParser;
+import com.riverinnovations.saltui.salt.JsonStreamSplitter;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the accounts on minions, either from the JSON output of Salt or from copies of
+ * each minion's passwd, shadow and group files.
+ *
+ * From Salt, "salt --out=json '*' user.getent" gives every account in full, and
+ * "salt --out=json '*' user.list_users" just the names. The output of user.info, and of
+ * shadow.info for the ageing fields, can also be combined into an object of accounts by
+ * name for each minion. user.info lists the primary group among the groups, so groups on
+ * the minion but not in the model are not reported for these dumps.
+ *
+ * As files, each minion is a directory named by its ID holding passwd and optionally
+ * shadow and group.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class AccountDumps {
+
+    /** Names of the files for each minion */
+    public static final String PASSWD_FILE = "passwd";
+    public static final String SHADOW_FILE = "shadow";
+    public static final String GROUP_FILE = "group";
+
+    /** 64 bit FNV-1a offset basis */
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    /** Fields of user.info and shadow.info, by their keys */
+    private static final Map<String, UserField> INFO_FIELDS = new HashMap<>();
+
+    /** Fields read from passwd and group, and from shadow */
+    private static final List<UserField> PASSWD_FIELDS = Collections.unmodifiableList(Arrays.asList(
+            UserField.UID, UserField.GID, UserField.HOME, UserField.SHELL, UserField.FULLNAME,
+            UserField.ROOMNUMBER, UserField.WORKPHONE, UserField.HOMEPHONE, UserField.OTHER));
+    private static final List<UserField> SHADOW_FIELDS = Collections.unmodifiableList(Arrays.asList(
+            UserField.DATE, UserField.MINDAYS, UserField.MAXDAYS, UserField.WARNDAYS, UserField.INACTDAYS,
+            UserField.EXPIRE));
+
+    static {
+        for (UserField field : PASSWD_FIELDS) {
+            INFO_FIELDS.put(field.getKey(), field);
+        }
+        INFO_FIELDS.put(UserField.GROUPS.getKey(), UserField.GROUPS);
+        INFO_FIELDS.put("lstchg", UserField.DATE);
+        INFO_FIELDS.put("min", UserField.MINDAYS);
+        INFO_FIELDS.put("max", UserField.MAXDAYS);
+        INFO_FIELDS.put("warn", UserField.WARNDAYS);
+        INFO_FIELDS.put("inact", UserField.INACTDAYS);
+        INFO_FIELDS.put("expire", UserField.EXPIRE);
+    }
+
+    private AccountDumps() {
+        // Utility class
+    }
+
+    /**
+     * @return Every field a dump can report.
+     */
+    static Set<UserField> dumpedFields() {
+        return EnumSet.copyOf(INFO_FIELDS.values());
+    }
+
+    /**
+     * Reads the output of a Salt command run with --out=json, with or without --out-indent=-1.
+     * @param json The output; not closed.
+     * @return The dump of each minion that returned, in the order they appear.
+     * @throws DriftException If the output is not JSON objects of minions.
+     */
+    public static List<MinionDump> fromSaltJson(Reader json) throws IOException, DriftException {
+        List<String> values = new ArrayList<>();
+        JsonStreamSplitter splitter = new JsonStreamSplitter(new JsonStreamSplitter.Handler() {
+            @Override
+            public void value(CharSequence text) {
+                values.add(text.toString());
+            }
+
+            @Override
+            public void noise(String line) {
+                // Warnings from salt
+            }
+        });
+        char[] buffer = new char[8192];
+        int read;
+        while ((read = json.read(buffer)) >= 0) {
+            splitter.feed(CharBuffer.wrap(buffer, 0, read));
+        }
+        splitter.finish();
+
+        Map<String, MinionDump> dumps = new LinkedHashMap<>();
+        for (String value : values) {
+            @Nullable Map<String, @Nullable Object> minions;
+            try {
+                minions = JsonParser.asObject(JsonParser.parse(value));
+            }
+            catch (JsonException e) {
+                throw new DriftException("Bad JSON from salt: " + e.getMessage(), e);
+            }
+            if (minions == null) {
+                throw new DriftException("Expected an object of minions from salt");
+            }
+            for (Map.Entry<String, @Nullable Object> minion : minions.entrySet()) {
+                String id = minion.getKey();
+                @Nullable Object returned = minion.getValue();
+                long hash = hash(FNV_OFFSET, String.valueOf(returned).getBytes(StandardCharsets.UTF_8));
+                dumps.put(id, new MinionDump(id, hash, () -> fromReturn(id, returned)));
+            }
+        }
+        return new ArrayList<>(dumps.values());
+    }
+
+    /**
+     * Reads the dump of every minion in a directory: each subdirectory is a minion.
+     * @param root The directory.
+     * @return The dumps, sorted by minion ID.
+     */
+    public static List<MinionDump> fromDirectory(Path root) throws IOException {
+        List<Path> dirs = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path dir : stream) {
+                dirs.add(dir);
+            }
+        }
+        Collections.sort(dirs);
+        List<MinionDump> dumps = new ArrayList<>(dirs.size());
+        for (Path dir : dirs) {
+            dumps.add(fromFiles(dir));
+        }
+        return dumps;
+    }
+
+    /**
+     * Reads the dump of a minion from its directory. The files are hashed now, and only
+     * parsed if the accounts are loaded.
+     * @param dir The directory, named by the minion ID, holding passwd and optionally shadow and group.
+     */
+    public static MinionDump fromFiles(Path dir) throws IOException {
+        Path passwd = dir.resolve(PASSWD_FILE);
+        Path shadow = dir.resolve(SHADOW_FILE);
+        Path group = dir.resolve(GROUP_FILE);
+        long hash = FNV_OFFSET;
+        for (Path file : Arrays.asList(passwd, shadow, group)) {
+            // Separates the files, so that moving lines between them changes the hash
+            hash = hash(hash, new byte[] {0});
+            if (Files.exists(file)) {
+                hash = hash(hash, Files.readAllBytes(file));
+            }
+        }
+        String id = dir.getFileName().toString();
+        return new MinionDump(id, hash, () -> readFiles(id, passwd, shadow, group));
+    }
+
+    private static Map<String, MinionAccount> readFiles(String minion, Path passwd, Path shadow, Path group)
+            throws IOException, DriftException {
+        boolean hasShadow = Files.exists(shadow);
+        Map<String, MinionAccount> accounts = new HashMap<>();
+        try (PasswdUserReader reader = new PasswdUserReader(
+                Files.newBufferedReader(passwd, StandardCharsets.UTF_8),
+                hasShadow ? Files.newBufferedReader(shadow, StandardCharsets.UTF_8) : null,
+                Files.exists(group) ? Files.newBufferedReader(group, StandardCharsets.UTF_8) : null,
+                passwd.toString())) {
+            @Nullable ImportRecord record;
+            while ((record = reader.next()) != null) {
+                @Nullable User user = record.getUser();
+                if (user == null) {
+                    throw new DriftException("Bad account on " + minion + " at line " + record.getLine() + " of "
+                                             + passwd + ": " + record.getError());
+                }
+                Map<UserField, @Nullable Object> fields = new EnumMap<>(UserField.class);
+                for (UserField field : PASSWD_FIELDS) {
+                    fields.put(field, field.get(user));
+                }
+                fields.put(UserField.GROUPS, user.getGroups());
+                if (hasShadow) {
+                    for (UserField field : SHADOW_FIELDS) {
+                        fields.put(field, field.get(user));
+                    }
+                }
+                accounts.put(user.getName(), new MinionAccount(user.getName(), fields, false));
+            }
+        }
+        return accounts;
+    }
+
+    /**
+     * Reads a minion's return: a list of names, a list of accounts, an account, or an object
+     * of accounts by name.
+     */
+    private static Map<String, MinionAccount> fromReturn(String minion, @Nullable Object returned)
+            throws DriftException {
+        Map<String, MinionAccount> accounts = new HashMap<>();
+        @Nullable List<@Nullable Object> list = JsonParser.asArray(returned);
+        @Nullable Map<String, @Nullable Object> object = JsonParser.asObject(returned);
+        if (list != null) {
+            for (@Nullable Object item : list) {
+                if (item instanceof String) {
+                    accounts.put((String) item, new MinionAccount((String) item, Collections.emptyMap(), true));
+                }
+                else {
+                    addInfo(minion, accounts, null, item);
+                }
+            }
+        }
+        else if (object != null && object.get("name") instanceof String) {
+            addInfo(minion, accounts, null, object);
+        }
+        else if (object != null) {
+            for (Map.Entry<String, @Nullable Object> entry : object.entrySet()) {
+                addInfo(minion, accounts, entry.getKey(), entry.getValue());
+            }
+        }
+        else {
+            // Salt returns a message when the minion or the function fails
+            throw new DriftException("Minion " + minion + " returned " + returned);
+        }
+        return accounts;
+    }
+
+    /**
+     * Adds an account from the output of user.info, optionally merged with shadow.info.
+     * An empty object, as user.info returns for an unknown user, is ignored.
+     */
+    private static void addInfo(String minion, Map<String, MinionAccount> accounts, @Nullable String key,
+                                @Nullable Object value) throws DriftException {
+        @Nullable Map<String, @Nullable Object> info = JsonParser.asObject(value);
+        if (info == null) {
+            throw new DriftException("Minion " + minion + " returned " + value + " for an account");
+        }
+        if (info.isEmpty()) {
+            return;
+        }
+        @Nullable Object name = info.get("name");
+        if (name == null) {
+            name = key;
+        }
+        if (name == null) {
+            throw new DriftException("Account without a name from minion " + minion);
+        }
+        Map<UserField, @Nullable Object> fields = new EnumMap<>(UserField.class);
+        for (Map.Entry<String, @Nullable Object> entry : info.entrySet()) {
+            @Nullable UserField field = INFO_FIELDS.get(entry.getKey());
+            if (field != null) {
+                fields.put(field, infoValue(minion, field, entry.getValue()));
+            }
+        }
+        accounts.put(name.toString(), new MinionAccount(name.toString(), fields, true));
+    }
+
+    private static @Nullable Object infoValue(String minion, UserField field, @Nullable Object value)
+            throws DriftException {
+        if (value == null || "".equals(value)) {
+            return null;
+        }
+        switch (field.getType()) {
+            case INTEGER:
+                long number;
+                try {
+                    number = value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+                }
+                catch (NumberFormatException e) {
+                    throw new DriftException("Bad " + field.getKey() + " '" + value + "' from minion " + minion, e);
+                }
+                // shadow.info reports unset ageing fields as -1
+                return number < 0 && SHADOW_FIELDS.contains(field) ? null : Integer.valueOf((int) number);
+            case STRING_LIST:
+                List<String> items = new ArrayList<>();
+                @Nullable List<@Nullable Object> list = JsonParser.asArray(value);
+                if (list != null) {
+                    for (@Nullable Object item : list) {
+                        if (item != null) {
+                            items.add(item.toString());
+                        }
+                    }
+                }
+                return items;
+            default:
+                return value.toString();
+        }
+    }
+
+    /**
+     * Continues a 64 bit FNV-1a hash over some bytes.
+     */
+    private static long hash(long h, byte[] bytes) {
+        long result = h;
+        for (byte b : bytes) {
+            result = (result ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,18 @@
+package com.riverinnovations.saltui.model.drift;
+
+import com.riverinnovations.saltui.model.ModelException;
+
+/**
+ * Thrown when a minion's account dump cannot be read.
+ */
+public class DriftException extends ModelException {
+
+    public DriftException(String s) {
+        super(s);
+    }
+
+    public DriftException(String s, Throwable throwable) {
+        super(s, throwable);
+    }
+
+}
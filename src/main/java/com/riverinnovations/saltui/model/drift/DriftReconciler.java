@@ -0,0 +1,320 @@
+package com.riverinnovations.saltui.model.drift;
+
+import com.riverinnovations.saltui.metrics.Counter;
+import com.riverinnovations.saltui.metrics.Metrics;
+import com.riverinnovations.saltui.metrics.Timer;
+import com.riverinnovations.saltui.model.diff.FieldChange;
+import com.riverinnovations.saltui.model.target.Target;
+import com.riverinnovations.saltui.model.target.TargetSet;
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.UserField;
+import com.riverinnovations.saltui.model.user.Users;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the accounts on minions against the users, reporting users missing from a minion,
+ * accounts that should have been removed and fields that differ.
+ *
+ * Only glob targets can be matched against a minion ID, so users only in grain or nodegroup
+ * targets are not checked. Fields the model leaves unset are not checked either, as Salt
+ * leaves them as they are. Accounts not in the model are ignored.
+ *
+ * Each minion is remembered with the hashes of its dump and of the users expected on it,
+ * so a minion where neither changed is not read again: its last result is returned.
+ * Minions are checked in parallel.
+ *
+ * Thread safe.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class DriftReconciler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DriftReconciler.class);
+
+    private static final Timer RECONCILE_TIMER = Metrics.get().timer("drift.reconcile");
+
+    /** Minions whose dump was read, and those skipped as unchanged */
+    private static final Counter CHECKED = Metrics.get().counter("drift.minions.checked");
+    private static final Counter UNCHANGED = Metrics.get().counter("drift.minions.unchanged");
+
+    /** Fields compared, when the dump reports them */
+    private static final Set<UserField> COMPARED = AccountDumps.dumpedFields();
+
+    private final Users users;
+
+    private volatile TargetSet targets;
+
+    private volatile int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /** The last result for each minion */
+    private final Map<String, MinionDrift> lastResults = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     * @param users The users the minions should have.
+     * @param targets The targets the users are assigned to.
+     */
+    public DriftReconciler(Users users, TargetSet targets) {
+        this.users = users;
+        this.targets = targets;
+    }
+
+    public void setTargets(TargetSet targets) {
+        this.targets = targets;
+    }
+
+    /**
+     * @param threads The number of minions checked at once.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Checks the minions.
+     * @param dumps The accounts on each minion.
+     * @return The result for each minion, in the order of the dumps. A dump that cannot be
+     *         read gives a result with an error rather than failing the others.
+     * @throws DriftException If interrupted.
+     */
+    public List<MinionDrift> reconcile(Collection<MinionDump> dumps) throws DriftException {
+        Timer.Context reconcileTiming = RECONCILE_TIMER.time();
+        try {
+            Map<String, List<Expected>> byTarget = this.users.read(this::snapshot);
+            Collection<Target> allTargets = this.targets.getTargets();
+
+            List<Callable<MinionDrift>> tasks = new ArrayList<>(dumps.size());
+            for (MinionDump dump : dumps) {
+                tasks.add(() -> this.check(dump, expectedOn(dump.getMinion(), allTargets, byTarget)));
+            }
+            return this.run(tasks);
+        }
+        finally {
+            reconcileTiming.stop();
+        }
+    }
+
+    /**
+     * Forgets the last results, so every minion is read at the next check.
+     */
+    public void clear() {
+        this.lastResults.clear();
+    }
+
+    /**
+     * Copies what is compared from the users, grouped by target name. Called under the read lock.
+     */
+    private Map<String, List<Expected>> snapshot() {
+        Map<String, List<Expected>> byTarget = new HashMap<>();
+        for (User user : this.users.getUsers()) {
+            Expected expected = new Expected(user, this.users.getFingerprint(user.getName()));
+            List<String> userTargets = user.getTargets().isEmpty()
+                    ? Collections.singletonList(TargetSet.DEFAULT_NAME) : user.getTargets();
+            for (String target : userTargets) {
+                byTarget.computeIfAbsent(target, t -> new ArrayList<>()).add(expected);
+            }
+        }
+        return byTarget;
+    }
+
+    /**
+     * @return The users targeted at the minion, by name.
+     */
+    private static Map<String, Expected> expectedOn(String minion,
+                                                    Collection<Target> targets,
+                                                    Map<String, List<Expected>> byTarget) {
+        Map<String, Expected> expected = new LinkedHashMap<>();
+        for (Target target : targets) {
+            if (target.matchesMinion(minion)) {
+                for (Expected user : byTarget.getOrDefault(target.getName(), Collections.emptyList())) {
+                    expected.put(user.name, user);
+                }
+            }
+        }
+        return expected;
+    }
+
+    /**
+     * Checks one minion, or returns its last result if nothing changed.
+     */
+    private MinionDrift check(MinionDump dump, Map<String, Expected> expected) {
+        // Order independent, as the users are in target order
+        long modelHash = expected.size();
+        for (Expected user : expected.values()) {
+            modelHash += mix(user.fingerprint);
+        }
+
+        String minion = dump.getMinion();
+        @Nullable MinionDrift last = this.lastResults.get(minion);
+        if (last != null && last.getError() == null
+            && last.getDumpHash() == dump.getHash() && last.getModelHash() == modelHash) {
+            UNCHANGED.inc();
+            return last.asUnchanged();
+        }
+
+        CHECKED.inc();
+        MinionDrift result;
+        try {
+            Map<String, MinionAccount> accounts = dump.load();
+            List<AccountDrift> drifts = new ArrayList<>();
+            for (Expected user : expected.values()) {
+                @Nullable MinionAccount account = accounts.get(user.name);
+                @Nullable AccountDrift drift = compare(user, account);
+                if (drift != null) {
+                    drifts.add(drift);
+                }
+            }
+            drifts.sort((a, b) -> a.getName().compareTo(b.getName()));
+            result = new MinionDrift(minion, dump.getHash(), modelHash, drifts, expected.size(), false, null);
+        }
+        catch (IOException | DriftException e) {
+            LOGGER.warn("Could not read the accounts on " + minion + ": " + e.getMessage());
+            result = new MinionDrift(minion, dump.getHash(), modelHash, Collections.emptyList(), 0, false,
+                                     e.getMessage());
+        }
+        this.lastResults.put(minion, result);
+        return result;
+    }
+
+    private static @Nullable AccountDrift compare(Expected user, @Nullable MinionAccount account) {
+        if (!user.present) {
+            return account == null
+                    ? null : new AccountDrift(user.name, AccountDrift.Kind.NOT_REMOVED, Collections.emptyList());
+        }
+        else if (account == null) {
+            return new AccountDrift(user.name, AccountDrift.Kind.MISSING, Collections.emptyList());
+        }
+
+        List<FieldChange> changes = new ArrayList<>();
+        for (Map.Entry<UserField, @Nullable Object> entry : account.getFields().entrySet()) {
+            UserField field = entry.getKey();
+            @Nullable Object modelValue = user.values.get(field);
+            @Nullable Object minionValue = entry.getValue();
+            if (modelValue == null) {
+                continue;
+            }
+            if (field == UserField.GROUPS) {
+                Set<String> modelGroups = new TreeSet<>(castToStrings(modelValue));
+                Set<String> minionGroups = new TreeSet<>(castToStrings(minionValue));
+                // The minion may list the primary group as well
+                boolean differs = account.isPrimaryGroupListed()
+                        ? !minionGroups.containsAll(modelGroups) : !minionGroups.equals(modelGroups);
+                if (differs) {
+                    changes.add(new FieldChange(field.getKey(), new ArrayList<>(modelGroups),
+                                                new ArrayList<>(minionGroups), false));
+                }
+            }
+            else if (!modelValue.equals(minionValue)) {
+                changes.add(new FieldChange(field.getKey(), modelValue, minionValue, field.isSensitive()));
+            }
+        }
+        return changes.isEmpty() ? null : new AccountDrift(user.name, AccountDrift.Kind.CHANGED, changes);
+    }
+
+    private static List<String> castToStrings(@Nullable Object value) {
+        List<String> strings = new ArrayList<>();
+        if (value instanceof Collection) {
+            for (Object item : (Collection<?>) value) {
+                strings.add(String.valueOf(item));
+            }
+        }
+        return strings;
+    }
+
+    private List<MinionDrift> run(List<Callable<MinionDrift>> tasks) throws DriftException {
+        AtomicInteger count = new AtomicInteger();
+        int poolSize = Math.min(this.threads, Math.max(1, tasks.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(poolSize, r -> {
+            Thread t = new Thread(r, "saltui-drift-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<MinionDrift> results = new ArrayList<>(tasks.size());
+            for (Future<MinionDrift> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+            return results;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DriftException("Interrupted while checking minions", e);
+        }
+        catch (ExecutionException e) {
+            throw new DriftException("Error checking minions: " + e.getCause(), e);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Spreads the bits of a fingerprint, so that adding fingerprints does not cancel out.
+     */
+    private static long mix(long h) {
+        long z = h + 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * What a user should be on a minion, copied from the model.
+     */
+    private static final class Expected {
+
+        private final String name;
+
+        private final boolean present;
+
+        /** The compared fields that the model sets */
+        private final Map<UserField, Object> values = new EnumMap<>(UserField.class);
+
+        private final long fingerprint;
+
+        private Expected(User user, @Nullable Long indexedFingerprint) {
+            this.name = user.getName();
+            this.present = user.isPresent();
+            for (UserField field : COMPARED) {
+                @Nullable Object value = field.get(user);
+                if (value instanceof Collection) {
+                    if (!((Collection<?>) value).isEmpty()) {
+                        this.values.put(field, new ArrayList<>((Collection<?>) value));
+                    }
+                }
+                else if (value != null) {
+                    this.values.put(field, value);
+                }
+            }
+            this.fingerprint = indexedFingerprint != null ? indexedFingerprint : user.fingerprint();
+        }
+    }
+}
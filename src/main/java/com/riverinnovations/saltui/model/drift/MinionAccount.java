@@ -0,0 +1,54 @@
+package com.riverinnovations.saltui.model.drift;
+
+import com.riverinnovations.saltui.model.user.UserField;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * An account as found on a minion. Only the fields the dump reported are held, so a dump
+ * of just the account names is only checked for which accounts exist.
+ * Immutable.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class MinionAccount {
+
+    private final String name;
+
+    /** The fields reported, with empty strings as null */
+    private final Map<UserField, @Nullable Object> fields;
+
+    /** True if the groups include the primary group, as user.info lists them */
+    private final boolean primaryGroupListed;
+
+    public MinionAccount(String name, Map<UserField, @Nullable Object> fields, boolean primaryGroupListed) {
+        this.name = name;
+        this.fields = fields.isEmpty()
+                ? Collections.emptyMap() : Collections.unmodifiableMap(new EnumMap<>(fields));
+        this.primaryGroupListed = primaryGroupListed;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Map<UserField, @Nullable Object> getFields() {
+        return fields;
+    }
+
+    public boolean isPrimaryGroupListed() {
+        return primaryGroupListed;
+    }
+
+    @Override
+    public String toString() {
+        return this.name + " " + this.fields;
+    }
+}
@@ -0,0 +1,99 @@
+package com.riverinnovations.saltui.model.drift;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of checking the accounts on one minion. Immutable.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class MinionDrift {
+
+    private final String minion;
+
+    /** The hashes of the dump and of the users it was checked against */
+    private final long dumpHash;
+    private final long modelHash;
+
+    /** The accounts that differ, by name */
+    private final List<AccountDrift> drifts;
+
+    /** The number of users expected on the minion */
+    private final int checked;
+
+    /** True if neither the dump nor the users changed since the last check, so this is its result */
+    private final boolean unchanged;
+
+    /** Why the dump could not be read, if it could not */
+    private final @Nullable String error;
+
+    MinionDrift(String minion, long dumpHash, long modelHash, List<AccountDrift> drifts, int checked,
+                boolean unchanged, @Nullable String error) {
+        this.minion = minion;
+        this.dumpHash = dumpHash;
+        this.modelHash = modelHash;
+        this.drifts = Collections.unmodifiableList(drifts);
+        this.checked = checked;
+        this.unchanged = unchanged;
+        this.error = error;
+    }
+
+    /**
+     * @return This result, marked as repeated for an unchanged minion.
+     */
+    MinionDrift asUnchanged() {
+        return new MinionDrift(this.minion, this.dumpHash, this.modelHash, this.drifts, this.checked, true, null);
+    }
+
+    public String getMinion() {
+        return minion;
+    }
+
+    long getDumpHash() {
+        return dumpHash;
+    }
+
+    long getModelHash() {
+        return modelHash;
+    }
+
+    public List<AccountDrift> getDrifts() {
+        return drifts;
+    }
+
+    public int getChecked() {
+        return checked;
+    }
+
+    public boolean isUnchanged() {
+        return unchanged;
+    }
+
+    public @Nullable String getError() {
+        return error;
+    }
+
+    /**
+     * @return True if the dump was read and every account matches the model.
+     */
+    public boolean isClean() {
+        return this.error == null && this.drifts.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        if (this.error != null) {
+            return this.minion + ": " + this.error;
+        }
+        else {
+            return this.minion + ": " + this.drifts.size() + " of " + this.checked + " drifted"
+                   + (this.unchanged ? " (unchanged)" : "");
+        }
+    }
+}
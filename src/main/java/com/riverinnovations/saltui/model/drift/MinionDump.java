@@ -0,0 +1,60 @@
+package com.riverinnovations.saltui.model.drift;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The accounts on one minion, with a hash of the dump they are read from so that an
+ * unchanged dump can be recognised without reading its accounts.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class MinionDump {
+
+    /** Reads the accounts, when they are needed */
+    public interface Loader {
+        Map<String, MinionAccount> load() throws IOException, DriftException;
+    }
+
+    private final String minion;
+
+    private final long hash;
+
+    private final Loader loader;
+
+    /**
+     * Constructor.
+     * @param minion The minion ID.
+     * @param hash Hash of the dump, which changes whenever the accounts do.
+     * @param loader Reads the accounts by name.
+     */
+    public MinionDump(String minion, long hash, Loader loader) {
+        this.minion = minion;
+        this.hash = hash;
+        this.loader = loader;
+    }
+
+    public String getMinion() {
+        return minion;
+    }
+
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * @return The accounts by name.
+     */
+    public Map<String, MinionAccount> load() throws IOException, DriftException {
+        return this.loader.load();
+    }
+
+    @Override
+    public String toString() {
+        return this.minion;
+    }
+}
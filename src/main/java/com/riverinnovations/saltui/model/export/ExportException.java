@@ -0,0 +1,18 @@
+package com.riverinnovations.saltui.model.export;
+
+import com.riverinnovations.saltui.model.ModelException;
+
+/**
+ * Thrown when an export is badly specified, for example with an unknown or sensitive field.
+ */
+public class ExportException extends ModelException {
+
+    public ExportException(String s) {
+        super(s);
+    }
+
+    public ExportException(String s, Throwable throwable) {
+        super(s, throwable);
+    }
+
+}
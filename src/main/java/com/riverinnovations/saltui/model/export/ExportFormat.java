@@ -0,0 +1,51 @@
+package com.riverinnovations.saltui.model.export;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+/**
+ * The formats users can be exported in.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public enum ExportFormat {
+
+    /** One JSON object per line */
+    JSON_LINES("jsonl", "application/x-ndjson"),
+
+    /** CSV with a header, as read by CsvUserReader */
+    CSV("csv", "text/csv");
+
+    /** The name used to ask for the format */
+    private final String key;
+
+    /** The media type, without charset */
+    private final String contentType;
+
+    ExportFormat(String key, String contentType) {
+        this.key = key;
+        this.contentType = contentType;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return The format with the name, or null if there is none.
+     */
+    public static @Nullable ExportFormat forKey(String key) {
+        for (ExportFormat format : values()) {
+            if (format.key.equalsIgnoreCase(key)) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
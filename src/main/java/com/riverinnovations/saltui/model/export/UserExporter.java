@@ -0,0 +1,295 @@
+package com.riverinnovations.saltui.model.export;
+
+import com.riverinnovations.saltui.metrics.Counter;
+import com.riverinnovations.saltui.metrics.Metrics;
+import com.riverinnovations.saltui.metrics.Timer;
+import com.riverinnovations.saltui.model.query.UserQuery;
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.UserField;
+import com.riverinnovations.saltui.model.user.Users;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes users as JSON lines or CSV, a page at a time, so that the whole export is
+ * never held in memory.
+ *
+ * The users to export are chosen when the export starts, and found with the query's
+ * index if there is one. Each page is then written from the users as they are under the
+ * Users read lock, so no user is written half changed; a user deleted before its page is
+ * written is left out. Memory use is a reference to each chosen user plus one page.
+ *
+ * Sensitive fields, the password and its hash, can never be exported.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class UserExporter {
+
+    /** Users written under each read lock, and between flushes */
+    public static final int PAGE_SIZE = 256;
+
+    /** Separator of list items in CSV, as read by CsvUserReader */
+    private static final String CSV_LIST_SEPARATOR = ";";
+
+    /** Time for each export */
+    private static final Timer EXPORT_TIMER = Metrics.get().timer("export.run");
+
+    /** Number of users exported */
+    private static final Counter EXPORTED = Metrics.get().counter("export.users");
+
+    private final Users users;
+
+    private final ExportFormat format;
+
+    private final List<UserField> fields;
+
+    private final @Nullable UserQuery query;
+
+    /**
+     * Constructor.
+     * @param users The users to export.
+     * @param format The format to write.
+     * @param fields The fields to write, in order.
+     * @param query Selects the users to export, or null for all of them.
+     * @throws ExportException If no fields are given, or any is sensitive.
+     */
+    public UserExporter(Users users, ExportFormat format, List<UserField> fields, @Nullable UserQuery query)
+            throws ExportException {
+        if (fields.isEmpty()) {
+            throw new ExportException("No fields to export");
+        }
+        for (UserField field : fields) {
+            if (field.isSensitive()) {
+                throw new ExportException("Cannot export " + field.getKey());
+            }
+        }
+        this.users = users;
+        this.format = format;
+        this.fields = Collections.unmodifiableList(new ArrayList<>(fields));
+        this.query = query;
+    }
+
+    /**
+     * @return Every field that can be exported, in the order of UserField.
+     */
+    public static List<UserField> exportableFields() {
+        List<UserField> fields = new ArrayList<>();
+        for (UserField field : UserField.all()) {
+            if (!field.isSensitive()) {
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Parses a comma separated list of field keys.
+     * @throws ExportException If a field is unknown or sensitive.
+     */
+    public static List<UserField> parseFields(String keys) throws ExportException {
+        List<UserField> fields = new ArrayList<>();
+        for (String key : keys.split(",")) {
+            String trimmed = key.trim().toLowerCase(Locale.ROOT);
+            if (!trimmed.isEmpty()) {
+                @Nullable UserField field = UserField.forKey(trimmed);
+                if (field == null) {
+                    throw new ExportException("Unknown field '" + trimmed + "'");
+                }
+                if (field.isSensitive()) {
+                    throw new ExportException("Cannot export " + field.getKey());
+                }
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Writes the users, sorted by name, flushing the writer after each page so that
+     * the output is sent as it is written.
+     * @param out Where to write; not closed.
+     * @return The number of users written.
+     */
+    public long write(Writer out) throws IOException {
+        Timer.Context exportTiming = EXPORT_TIMER.time();
+        try {
+            @Nullable UserQuery q = this.query;
+            List<User> chosen = q == null ? new ArrayList<>(this.users.getUsers()) : this.users.find(q);
+            chosen.sort(Comparator.comparing(User::getName));
+
+            if (this.format == ExportFormat.CSV) {
+                StringBuilder header = new StringBuilder();
+                for (UserField field : this.fields) {
+                    if (header.length() > 0) {
+                        header.append(',');
+                    }
+                    csv(header, field.getKey());
+                }
+                out.write(header.append("\r\n").toString());
+            }
+
+            long written = 0;
+            StringBuilder page = new StringBuilder(PAGE_SIZE * 128);
+            for (int start = 0; start < chosen.size(); start += PAGE_SIZE) {
+                List<User> pageUsers = chosen.subList(start, Math.min(chosen.size(), start + PAGE_SIZE));
+                page.setLength(0);
+                written += this.users.read(() -> this.render(pageUsers, page));
+                out.write(page.toString());
+                out.flush();
+            }
+            out.flush();
+            EXPORTED.add(written);
+            return written;
+        }
+        finally {
+            exportTiming.stop();
+        }
+    }
+
+    /**
+     * Renders the users still present. Called under the read lock.
+     * @return The number rendered.
+     */
+    private int render(Collection<User> pageUsers, StringBuilder page) {
+        int count = 0;
+        for (User user : pageUsers) {
+            if (this.users.getUser(user.getName()) != user) {
+                // Deleted or replaced since the export started
+                continue;
+            }
+            if (this.format == ExportFormat.CSV) {
+                this.csvLine(page, user);
+            }
+            else {
+                this.jsonLine(page, user);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private void jsonLine(StringBuilder sb, User user) {
+        sb.append('{');
+        boolean first = true;
+        for (UserField field : this.fields) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            json(sb, field.getKey());
+            sb.append(':');
+            @Nullable Object value = field.get(user);
+            if (value instanceof Collection) {
+                sb.append('[');
+                boolean firstItem = true;
+                for (Object item : (Collection<?>) value) {
+                    if (!firstItem) {
+                        sb.append(',');
+                    }
+                    firstItem = false;
+                    json(sb, item.toString());
+                }
+                sb.append(']');
+            }
+            else if (value instanceof Number || value instanceof Boolean) {
+                sb.append(value);
+            }
+            else if (value == null) {
+                sb.append("null");
+            }
+            else {
+                json(sb, value.toString());
+            }
+        }
+        sb.append("}\n");
+    }
+
+    private void csvLine(StringBuilder sb, User user) {
+        boolean first = true;
+        for (UserField field : this.fields) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            @Nullable Object value = field.get(user);
+            if (value instanceof Collection) {
+                List<String> items = new ArrayList<>();
+                for (Object item : (Collection<?>) value) {
+                    items.add(item.toString());
+                }
+                csv(sb, String.join(CSV_LIST_SEPARATOR, items));
+            }
+            else if (value != null) {
+                csv(sb, value.toString());
+            }
+        }
+        sb.append("\r\n");
+    }
+
+    /**
+     * Appends a JSON string.
+     */
+    static void json(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Appends a CSV field, quoted if necessary (RFC 4180).
+     */
+    static void csv(StringBuilder sb, String s) {
+        boolean quote = false;
+        for (int i = 0; i < s.length() && !quote; i++) {
+            char c = s.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote && !s.isEmpty() && (s.charAt(0) == ' ' || s.charAt(s.length() - 1) == ' ')) {
+            quote = true;
+        }
+        if (quote) {
+            sb.append('"').append(s.replace("\"", "\"\"")).append('"');
+        }
+        else {
+            sb.append(s);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.riverinnovations.saltui.model.gpg;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.c02e.jpgpj.Decryptor;
+import org.c02e.jpgpj.Key;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Class to decrypt data previously encrypted by GpgEncryptor, using the secret key
+ * that Salt uses to decrypt the pillar.
+ * Single threaded.
+ */
+public class GpgDecryptor {
+
+    /** The decryptor for revealing data */
+    private final Decryptor decryptor;
+
+    /**
+     * Constructs the Decryptor.
+     * @param gpgSecretKeyPath The path to the secret key that we will use for the decryption.
+     * @param passphrase The passphrase for the secret key, or null if the key has no passphrase.
+     */
+    public GpgDecryptor(Path gpgSecretKeyPath, @Nullable String passphrase) throws GpgEncryptionException {
+        try {
+            Key key;
+            if (passphrase == null) {
+                key = new Key(gpgSecretKeyPath.toFile());
+                key.setNoPassphrase(true);
+            }
+            else {
+                key = new Key(gpgSecretKeyPath.toFile(), passphrase);
+            }
+            this.decryptor = new Decryptor(key);
+            this.decryptor.setVerificationRequired(false);
+        }
+        catch (IOException | PGPException e) {
+            throw new GpgEncryptionException("Error creating decryptor from key " + gpgSecretKeyPath, e);
+        }
+    }
+
+    /**
+     * Utility method to decrypt the parameter.
+     * If the parameter is null then returns null.
+     */
+    public @Nullable String decrypt(@Nullable String armored) throws GpgEncryptionException {
+        if (armored == null) {
+            return null;
+        }
+        else {
+            try {
+                ByteArrayOutputStream ostr = new ByteArrayOutputStream();
+                this.decryptor.decrypt(new ByteArrayInputStream(armored.getBytes(StandardCharsets.UTF_8)), ostr);
+                return new String(ostr.toByteArray(), StandardCharsets.UTF_8);
+            }
+            catch (IOException | PGPException e) {
+                throw new GpgEncryptionException("Error decrypting data: " + e.getMessage(), e);
+            }
+            catch (RuntimeException e) {
+                // Thrown by the PGP library for some corrupt data
+                throw new GpgEncryptionException("Corrupt encrypted data: " + e.getMessage(), e);
+            }
+        }
+    }
+
+}
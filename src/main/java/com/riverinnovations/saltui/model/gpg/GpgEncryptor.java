@@ -1,5 +1,8 @@
 package com.riverinnovations.saltui.model.gpg;
 
+import com.riverinnovations.saltui.metrics.Metrics;
+import com.riverinnovations.saltui.metrics.Timer;
+
 import org.bouncycastle.openpgp.PGPException;
 import org.c02e.jpgpj.Encryptor;
 import org.c02e.jpgpj.HashingAlgorithm;
@@ -9,15 +12,23 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Class to perform GPG encryption of sensitive data such as passwords.
- * Single threaded.
+ * Thread safe, but calls are serialised; use one instance per thread for parallel encryption.
  */
-public class GpgEncryptor {
+public class GpgEncryptor implements SecretEncryptor {
+
+    /** Initial size of the output buffer; an armored password is around 600 bytes */
+    private static final int BUFFER_SIZE = 1024;
+
+    /** Time to encrypt each value, and each batch */
+    private static final Timer ENCRYPT_TIMER = Metrics.get().timer("gpg.encrypt");
+    private static final Timer ENCRYPT_ALL_TIMER = Metrics.get().timer("gpg.encrypt.batch");
 
     /** The encryptor for hiding data */
     private final Encryptor encryptor;
@@ -41,21 +52,51 @@ public class GpgEncryptor {
      * Utility method to encrypt the parameter.
      * If the parameter is null then returns null.
      */
-    public @Nullable String encrypt(@Nullable String plain) throws GpgEncryptionException {
+    @Override
+    public synchronized @Nullable String encrypt(@Nullable String plain) throws GpgEncryptionException {
+        return this.encrypt(plain, new ByteArrayOutputStream(BUFFER_SIZE));
+    }
+
+    /**
+     * Encrypts each of the parameters, reusing the output buffer and encryptor across the batch.
+     * Null entries are returned as null.
+     */
+    @Override
+    public synchronized List<@Nullable String> encryptAll(List<@Nullable String> plain) throws GpgEncryptionException {
+        Timer.Context encryptAllTiming = ENCRYPT_ALL_TIMER.time();
+        try {
+            List<@Nullable String> encrypted = new ArrayList<>(plain.size());
+            ByteArrayOutputStream ostr = new ByteArrayOutputStream(BUFFER_SIZE);
+            for (@Nullable String p : plain) {
+                encrypted.add(this.encrypt(p, ostr));
+                ostr.reset();
+            }
+            return encrypted;
+        }
+        finally {
+            encryptAllTiming.stop();
+        }
+    }
+
+    /**
+     * Encrypts the parameter using the given output buffer, which must be empty.
+     */
+    private @Nullable String encrypt(@Nullable String plain, ByteArrayOutputStream ostr) throws GpgEncryptionException {
         if (plain == null) {
             return null;
         }
         else {
+            Timer.Context encryptTiming = ENCRYPT_TIMER.time();
             try {
-                InputStream istr = new ByteArrayInputStream(plain.getBytes(StandardCharsets.UTF_8));
-                ByteArrayOutputStream ostr = new ByteArrayOutputStream();
-                encryptor.encrypt(istr, ostr);
-                ostr.flush();
-                return new String(ostr.toByteArray(), StandardCharsets.UTF_8);
+                encryptor.encrypt(new ByteArrayInputStream(plain.getBytes(StandardCharsets.UTF_8)), ostr);
+                return ostr.toString(StandardCharsets.UTF_8.name());
             }
             catch (IOException | PGPException e) {
                 throw new GpgEncryptionException("Error encrypting data: " + e.getMessage(), e);
             }
+            finally {
+                encryptTiming.stop();
+            }
         }
     }
 
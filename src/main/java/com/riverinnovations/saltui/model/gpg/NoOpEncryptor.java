@@ -0,0 +1,30 @@
+package com.riverinnovations.saltui.model.gpg;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encryptor that returns its input unchanged.
+ * For tests and benchmarks only, to separate the cost of writing YAML from the cost of PGP.
+ * Never use this for a real pillar as passwords would be stored in plain text.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class NoOpEncryptor implements SecretEncryptor {
+
+    @Override
+    public @Nullable String encrypt(@Nullable String plain) {
+        return plain;
+    }
+
+    @Override
+    public List<@Nullable String> encryptAll(List<@Nullable String> plain) {
+        return new ArrayList<>(plain);
+    }
+
+}
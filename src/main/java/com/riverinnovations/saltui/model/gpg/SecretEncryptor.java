@@ -0,0 +1,32 @@
+package com.riverinnovations.saltui.model.gpg;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.List;
+
+/**
+ * Encrypts sensitive data such as passwords before it is written to the pillar.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public interface SecretEncryptor {
+
+    /**
+     * Encrypts a single value.
+     * @param plain The value to encrypt. If null then returns null.
+     * @return The encrypted value.
+     */
+    @Nullable String encrypt(@Nullable String plain) throws GpgEncryptionException;
+
+    /**
+     * Encrypts a batch of values. Implementations should reuse buffers and keys across
+     * the batch, so this is preferred to repeated calls to encrypt().
+     * @param plain The values to encrypt. Null entries are returned as null.
+     * @return The encrypted values, in the same order as the parameter.
+     */
+    List<@Nullable String> encryptAll(List<@Nullable String> plain) throws GpgEncryptionException;
+
+}
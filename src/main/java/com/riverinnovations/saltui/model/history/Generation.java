@@ -0,0 +1,56 @@
+package com.riverinnovations.saltui.model.history;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+/**
+ * Summary of one saved generation of the users. Immutable.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class Generation {
+
+    /** The generation number, starting at 1 */
+    private final long number;
+
+    /** When it was saved, in milliseconds since the epoch */
+    private final long timestamp;
+
+    /** True if the generation is stored in full rather than as a delta */
+    private final boolean checkpoint;
+
+    /** The number of users added or changed since the previous generation */
+    private final int changed;
+
+    /** The number of users deleted since the previous generation */
+    private final int deleted;
+
+    public Generation(long number, long timestamp, boolean checkpoint, int changed, int deleted) {
+        this.number = number;
+        this.timestamp = timestamp;
+        this.checkpoint = checkpoint;
+        this.changed = changed;
+        this.deleted = deleted;
+    }
+
+    public long getNumber() {
+        return number;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public boolean isCheckpoint() {
+        return checkpoint;
+    }
+
+    public int getChanged() {
+        return changed;
+    }
+
+    public int getDeleted() {
+        return deleted;
+    }
+}
@@ -0,0 +1,67 @@
+package com.riverinnovations.saltui.model.history;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The differences between two generations: the users added and deleted, and the
+ * fields of each changed user that differ. Immutable.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class GenerationDiff {
+
+    private final long from;
+
+    private final long to;
+
+    /** Users in the later generation only */
+    private final List<String> added;
+
+    /** Users in the earlier generation only */
+    private final List<String> deleted;
+
+    /** Names of the fields that differ, by user */
+    private final Map<String, List<String>> changed;
+
+    public GenerationDiff(long from,
+                          long to,
+                          List<String> added,
+                          List<String> deleted,
+                          Map<String, List<String>> changed) {
+        this.from = from;
+        this.to = to;
+        this.added = Collections.unmodifiableList(added);
+        this.deleted = Collections.unmodifiableList(deleted);
+        this.changed = Collections.unmodifiableMap(changed);
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    public List<String> getAdded() {
+        return added;
+    }
+
+    public List<String> getDeleted() {
+        return deleted;
+    }
+
+    public Map<String, List<String>> getChanged() {
+        return changed;
+    }
+
+    public boolean isEmpty() {
+        return this.added.isEmpty() && this.deleted.isEmpty() && this.changed.isEmpty();
+    }
+}
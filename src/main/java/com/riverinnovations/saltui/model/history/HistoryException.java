@@ -0,0 +1,16 @@
+package com.riverinnovations.saltui.model.history;
+
+import com.riverinnovations.saltui.model.ModelException;
+
+/**
+ * Thrown when the history cannot be read or does not hold the requested generation.
+ */
+public class HistoryException extends ModelException {
+    public HistoryException(String s) {
+        super(s);
+    }
+
+    public HistoryException(String s, Throwable throwable) {
+        super(s, throwable);
+    }
+}
@@ -0,0 +1,421 @@
+package com.riverinnovations.saltui.model.history;
+
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+import org.yaml.snakeyaml.error.YAMLException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * History of the users saved to the pillar, kept in a directory next to the pillar.
+ *
+ * Each save that changes anything becomes a new generation. Most generations are stored
+ * as a delta holding only the users added, changed or deleted since the previous generation;
+ * every few generations the whole directory is stored as a checkpoint. Reading a generation
+ * therefore costs one checkpoint plus at most checkpointInterval - 1 deltas. Files are gzipped
+ * YAML, and an index file lists the generations so that listing does not read them.
+ *
+ * Passwords are stored encrypted, as in the pillar. A password is encrypted once, when it is
+ * set, and saved as that ciphertext until it changes, so comparing the stored ciphertexts
+ * finds the passwords that changed, including across restarts.
+ *
+ * Several instances may share the history, provided each records under the pillar lock:
+ * the index is read again whenever another instance has added to it.
+ *
+ * Thread safe.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class PillarHistory {
+
+    /** Default number of generations between checkpoints */
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 16;
+
+    /** Name of the index file */
+    private static final String INDEX = "history.idx";
+
+    /** Keys in the generation files */
+    private static final String GENERATION = "generation";
+    private static final String TIMESTAMP = "timestamp";
+    private static final String USERS = "users";
+    private static final String CHANGED = "changed";
+    private static final String DELETED = "deleted";
+
+    /** Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(PillarHistory.class);
+
+    /** The directory holding the history */
+    private final Path directory;
+
+    /** Number of generations between checkpoints */
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+    /** The generations, oldest first; read from the index when first needed, and again when it changes */
+    private @MonotonicNonNull List<Generation> generations;
+
+    /** The size of the index when the generations were read from it */
+    private long indexSize;
+
+    /** The users of the latest generation; read when first needed */
+    private @Nullable Map<String, Map<String, @Nullable Object>> latest;
+
+    /** The number of the generation the latest users are for */
+    private long latestNumber;
+
+    /**
+     * Constructor.
+     * @param directory The directory for the history; created when first saved to.
+     */
+    public PillarHistory(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return The conventional history directory for a pillar file: the pillar path plus ".history".
+     */
+    public static Path defaultDirectory(Path pillarFilePath) {
+        return pillarFilePath.resolveSibling(pillarFilePath.getFileName() + ".history");
+    }
+
+    public synchronized void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = Math.max(1, checkpointInterval);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return The generations, oldest first.
+     */
+    public synchronized List<Generation> list() throws IOException {
+        return Collections.unmodifiableList(new ArrayList<>(this.generations()));
+    }
+
+    /**
+     * @return The number of the latest generation, or 0 if there is none.
+     */
+    public synchronized long getLatestGeneration() throws IOException {
+        List<Generation> list = this.generations();
+        return list.isEmpty() ? 0 : list.get(list.size() - 1).getNumber();
+    }
+
+    /**
+     * Records the users that were just saved as a new generation, unless nothing changed.
+     * Called with the pillar lock held, so that instances sharing the history take turns.
+     * @param pillarUsers The user maps written to the pillar, by name.
+     * @return The number of the new generation, or of the latest one if nothing changed.
+     */
+    public synchronized long record(Map<String, Map<String, @Nullable Object>> pillarUsers)
+            throws IOException, HistoryException {
+        Map<String, Map<String, @Nullable Object>> previous = this.latest();
+        Map<String, Map<String, @Nullable Object>> next = new HashMap<>(pillarUsers.size() * 2);
+        Map<String, Map<String, @Nullable Object>> changed = new TreeMap<>();
+
+        for (Map.Entry<String, Map<String, @Nullable Object>> entry : pillarUsers.entrySet()) {
+            String name = entry.getKey();
+            Map<String, @Nullable Object> stored = new HashMap<>(entry.getValue());
+            next.put(name, stored);
+            if (!stored.equals(previous.get(name))) {
+                changed.put(name, stored);
+            }
+        }
+        List<String> deleted = new ArrayList<>(new TreeSet<>(previous.keySet()));
+        deleted.removeAll(next.keySet());
+
+        long number = this.latestNumber;
+        if (number > 0 && changed.isEmpty() && deleted.isEmpty()) {
+            this.latest = next;
+            return number;
+        }
+        this.write(number + 1, next, changed, deleted);
+        this.latest = next;
+        this.latestNumber = number + 1;
+        return number + 1;
+    }
+
+    /**
+     * Reads the users of a generation.
+     * @param generation The generation number.
+     * @return The pillar user maps, by name.
+     * @throws HistoryException If the generation does not exist or cannot be read.
+     */
+    public synchronized Map<String, Map<String, @Nullable Object>> load(long generation)
+            throws IOException, HistoryException {
+        @Nullable Map<String, Map<String, @Nullable Object>> l = this.latest;
+        if (l != null && generation == this.latestNumber && generation == this.getLatestGeneration()) {
+            return copy(l);
+        }
+        return this.reconstruct(generation);
+    }
+
+    /**
+     * Compares two generations.
+     * @param from The earlier generation.
+     * @param to The later generation.
+     */
+    public synchronized GenerationDiff diff(long from, long to) throws IOException, HistoryException {
+        Map<String, Map<String, @Nullable Object>> before = this.load(from);
+        Map<String, Map<String, @Nullable Object>> after = this.load(to);
+        List<String> added = new ArrayList<>();
+        List<String> deleted = new ArrayList<>();
+        Map<String, List<String>> changed = new TreeMap<>();
+        for (Map.Entry<String, Map<String, @Nullable Object>> entry : new TreeMap<>(after).entrySet()) {
+            @Nullable Map<String, @Nullable Object> old = before.get(entry.getKey());
+            if (old == null) {
+                added.add(entry.getKey());
+            }
+            else if (!old.equals(entry.getValue())) {
+                TreeSet<String> keys = new TreeSet<>(old.keySet());
+                keys.addAll(entry.getValue().keySet());
+                List<String> fields = new ArrayList<>();
+                for (String key : keys) {
+                    if (!Objects.equals(old.get(key), entry.getValue().get(key))) {
+                        fields.add(key);
+                    }
+                }
+                changed.put(entry.getKey(), fields);
+            }
+        }
+        for (String name : new TreeSet<>(before.keySet())) {
+            if (!after.containsKey(name)) {
+                deleted.add(name);
+            }
+        }
+        return new GenerationDiff(from, to, added, deleted, changed);
+    }
+
+    /**
+     * @return The users of the latest generation, reading them if necessary, as when
+     *         another instance has recorded a generation since.
+     */
+    private Map<String, Map<String, @Nullable Object>> latest() throws IOException, HistoryException {
+        @Nullable Map<String, Map<String, @Nullable Object>> l = this.latest;
+        long number = this.getLatestGeneration();
+        if (l == null || number != this.latestNumber) {
+            l = number == 0 ? new HashMap<>() : this.reconstruct(number);
+            this.latest = l;
+            this.latestNumber = number;
+        }
+        return l;
+    }
+
+    /**
+     * Reads a generation from its checkpoint and the deltas after it.
+     */
+    private Map<String, Map<String, @Nullable Object>> reconstruct(long generation)
+            throws IOException, HistoryException {
+        List<Generation> list = this.generations();
+        int index = -1;
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i).getNumber() == generation) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            throw new HistoryException("No generation " + generation + " in " + this.directory);
+        }
+        int start = index;
+        while (!list.get(start).isCheckpoint()) {
+            start--;
+            if (start < 0) {
+                throw new HistoryException("No checkpoint before generation " + generation + " in " + this.directory);
+            }
+        }
+
+        Map<String, @Nullable Object> checkpoint = this.read(list.get(start));
+        Map<String, Map<String, @Nullable Object>> users = usersOf(checkpoint, USERS);
+        for (int i = start + 1; i <= index; i++) {
+            Map<String, @Nullable Object> delta = this.read(list.get(i));
+            users.putAll(usersOf(delta, CHANGED));
+            @Nullable Object deleted = delta.get(DELETED);
+            if (deleted instanceof List) {
+                for (@Nullable Object name : (List<?>) deleted) {
+                    users.remove(String.valueOf(name));
+                }
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Writes a generation file and adds it to the index.
+     */
+    private void write(long number,
+                       Map<String, Map<String, @Nullable Object>> all,
+                       Map<String, Map<String, @Nullable Object>> changed,
+                       List<String> deleted) throws IOException {
+        List<Generation> list = this.generations();
+        int sinceCheckpoint = 0;
+        for (int i = list.size() - 1; i >= 0 && !list.get(i).isCheckpoint(); i--) {
+            sinceCheckpoint++;
+        }
+        boolean checkpoint = list.isEmpty() || sinceCheckpoint + 1 >= this.checkpointInterval;
+        Generation generation = new Generation(number, System.currentTimeMillis(), checkpoint,
+                                               changed.size(), deleted.size());
+
+        Map<String, Object> content = new LinkedHashMap<>();
+        content.put(GENERATION, number);
+        content.put(TIMESTAMP, generation.getTimestamp());
+        if (checkpoint) {
+            content.put(USERS, new TreeMap<>(all));
+        }
+        else {
+            content.put(CHANGED, changed);
+            content.put(DELETED, deleted);
+        }
+
+        Files.createDirectories(this.directory);
+        Path path = this.pathOf(generation);
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        DumperOptions options = new DumperOptions();
+        options.setDefaultFlowStyle(DumperOptions.FlowStyle.FLOW);
+        options.setSplitLines(false);
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp));
+             Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            new Yaml(options).dump(content, w);
+        }
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        String line = number + "\t" + generation.getTimestamp() + "\t" + (checkpoint ? "full" : "delta")
+                + "\t" + changed.size() + "\t" + deleted.size() + "\n";
+        try (FileChannel channel = FileChannel.open(this.directory.resolve(INDEX),
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE,
+                                                    StandardOpenOption.APPEND)) {
+            channel.write(StandardCharsets.UTF_8.encode(line));
+            channel.force(true);
+            this.indexSize = channel.size();
+        }
+        list.add(generation);
+        LOGGER.info("Recorded generation " + number + (checkpoint ? " (checkpoint)" : "") + " with "
+                    + changed.size() + " changed and " + deleted.size() + " deleted users");
+    }
+
+    /**
+     * Reads a generation file.
+     */
+    private Map<String, @Nullable Object> read(Generation generation) throws IOException, HistoryException {
+        Path path = this.pathOf(generation);
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(path))) {
+            @Nullable Object content = new Yaml(new SafeConstructor()).load(in);
+            if (!(content instanceof Map)) {
+                throw new HistoryException("Bad history file " + path);
+            }
+            return castToMap(content);
+        }
+        catch (YAMLException e) {
+            throw new HistoryException("Bad history file " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return The generations, reading the index if necessary. The index is only appended to,
+     *         so it has changed if its size has.
+     */
+    private List<Generation> generations() throws IOException {
+        @Nullable List<Generation> list = this.generations;
+        Path index = this.directory.resolve(INDEX);
+        long size = Files.exists(index) ? Files.size(index) : 0;
+        if (list == null || size != this.indexSize) {
+            list = new ArrayList<>();
+            if (Files.exists(index)) {
+                try (BufferedReader reader = Files.newBufferedReader(index, StandardCharsets.UTF_8)) {
+                    @Nullable String line;
+                    while ((line = reader.readLine()) != null) {
+                        String[] parts = line.split("\t");
+                        if (parts.length != 5) {
+                            // A partly written last line
+                            LOGGER.warn("Ignoring bad history index line '" + line + "'");
+                            continue;
+                        }
+                        Generation generation = new Generation(Long.parseLong(parts[0]),
+                                                               Long.parseLong(parts[1]),
+                                                               "full".equals(parts[2]),
+                                                               Integer.parseInt(parts[3]),
+                                                               Integer.parseInt(parts[4]));
+                        if (Files.exists(this.pathOf(generation))) {
+                            list.add(generation);
+                        }
+                    }
+                }
+                catch (NumberFormatException e) {
+                    throw new IOException("Bad history index " + index + ": " + e.getMessage(), e);
+                }
+            }
+            this.generations = list;
+            this.indexSize = size;
+        }
+        return list;
+    }
+
+    private Path pathOf(Generation generation) {
+        return this.directory.resolve(String.format("%010d.%s.yaml.gz",
+                                                    generation.getNumber(),
+                                                    generation.isCheckpoint() ? "full" : "delta"));
+    }
+
+    private static Map<String, Map<String, @Nullable Object>> usersOf(Map<String, @Nullable Object> content, String key)
+            throws HistoryException {
+        Map<String, Map<String, @Nullable Object>> users = new HashMap<>();
+        @Nullable Object value = content.get(key);
+        if (value instanceof Map) {
+            for (Map.Entry<String, @Nullable Object> entry : castToMap(value).entrySet()) {
+                if (!(entry.getValue() instanceof Map)) {
+                    throw new HistoryException("Bad history entry for user " + entry.getKey());
+                }
+                users.put(String.valueOf(entry.getKey()), castToMap(entry.getValue()));
+            }
+        }
+        return users;
+    }
+
+    private static Map<String, Map<String, @Nullable Object>> copy(Map<String, Map<String, @Nullable Object>> users) {
+        Map<String, Map<String, @Nullable Object>> copy = new HashMap<>(users.size() * 2);
+        for (Map.Entry<String, Map<String, @Nullable Object>> entry : users.entrySet()) {
+            copy.put(entry.getKey(), new HashMap<>(entry.getValue()));
+        }
+        return copy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, @Nullable Object> castToMap(Object o) {
+        return (Map<String, @Nullable Object>) o;
+    }
+}
@@ -0,0 +1,197 @@
+package com.riverinnovations.saltui.model.importer;
+
+import com.riverinnovations.saltui.model.user.User;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads users from CSV (RFC 4180: quoted fields may contain commas, quotes
+ * doubled, and line breaks). The first record is a header naming the columns
+ * with the pillar keys, e.g. name,uid,gid,fullname,shell,groups.
+ * Groups are separated by spaces or semicolons. Empty fields leave the default.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class CsvUserReader implements UserRecordReader {
+
+    /** The input */
+    private final BufferedReader reader;
+
+    /** Name of the input */
+    private final String sourceName;
+
+    /** Setters for each column, or null for unknown columns */
+    private final List<ImportFields.@Nullable FieldSetter> setters = new ArrayList<>();
+
+    /** Index of the name column */
+    private int nameColumn = -1;
+
+    /** Problem with the header, reported as the first record */
+    private @Nullable String headerError;
+
+    /** The current line number */
+    private long line = 1;
+
+    /** Reused for each field */
+    private final StringBuilder field = new StringBuilder();
+
+    /**
+     * Constructor. Reads the header.
+     * @param reader The input, closed by close().
+     * @param sourceName Name of the input, for error messages.
+     */
+    public CsvUserReader(Reader reader, String sourceName) throws IOException {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        this.sourceName = sourceName;
+        @Nullable List<String> header = this.readRecord();
+        if (header == null) {
+            this.headerError = "Empty file";
+            return;
+        }
+        List<String> unknown = new ArrayList<>();
+        for (int i = 0; i < header.size(); i++) {
+            String column = header.get(i).trim().toLowerCase(Locale.ROOT);
+            ImportFields.@Nullable FieldSetter setter = ImportFields.COLUMNS.get(column);
+            if (setter == null) {
+                unknown.add(column);
+            }
+            else if ("name".equals(column)) {
+                this.nameColumn = i;
+            }
+            this.setters.add(setter);
+        }
+        if (this.nameColumn < 0) {
+            this.headerError = "No name column in header";
+        }
+        else if (!unknown.isEmpty()) {
+            this.headerError = "Unknown columns in header: " + String.join(", ", unknown);
+        }
+    }
+
+    @Override
+    public @Nullable ImportRecord next() throws IOException {
+        if (this.headerError != null) {
+            String error = this.headerError;
+            // Nothing else can be read without a valid header
+            this.headerError = null;
+            this.nameColumn = -1;
+            return ImportRecord.error(1, error);
+        }
+        if (this.nameColumn < 0) {
+            return null;
+        }
+        @Nullable List<String> fields;
+        long start;
+        do {
+            start = this.line;
+            fields = this.readRecord();
+            if (fields == null) {
+                return null;
+            }
+        } while (fields.size() == 1 && fields.get(0).isEmpty());
+
+        if (fields.size() != this.setters.size()) {
+            return ImportRecord.error(start, "Expected " + this.setters.size() + " fields but found " + fields.size());
+        }
+        String name = fields.get(this.nameColumn).trim();
+        if (name.isEmpty()) {
+            return ImportRecord.error(start, "Empty name");
+        }
+        User user = new User(name);
+        try {
+            for (int i = 0; i < fields.size(); i++) {
+                ImportFields.@Nullable FieldSetter setter = this.setters.get(i);
+                if (setter != null) {
+                    setter.set(user, fields.get(i));
+                }
+            }
+        }
+        catch (IllegalArgumentException e) {
+            return ImportRecord.error(start, e.getMessage() == null ? e.toString() : e.getMessage());
+        }
+        return ImportRecord.of(start, user);
+    }
+
+    /**
+     * Reads one record.
+     * @return The fields, or null at the end of the input.
+     */
+    private @Nullable List<String> readRecord() throws IOException {
+        int c = this.reader.read();
+        if (c < 0) {
+            return null;
+        }
+        List<String> fields = new ArrayList<>();
+        this.field.setLength(0);
+        boolean quoted = false;
+        while (true) {
+            if (c < 0) {
+                fields.add(this.field.toString());
+                return fields;
+            }
+            else if (quoted) {
+                if (c == '"') {
+                    this.reader.mark(1);
+                    int d = this.reader.read();
+                    if (d == '"') {
+                        this.field.append('"');
+                    }
+                    else {
+                        quoted = false;
+                        if (d >= 0) {
+                            this.reader.reset();
+                        }
+                    }
+                }
+                else {
+                    if (c == '\n') {
+                        this.line++;
+                    }
+                    this.field.append((char) c);
+                }
+            }
+            else if (c == '"' && this.field.length() == 0) {
+                quoted = true;
+            }
+            else if (c == ',') {
+                fields.add(this.field.toString());
+                this.field.setLength(0);
+            }
+            else if (c == '\n' || c == '\r') {
+                if (c == '\r') {
+                    this.reader.mark(1);
+                    if (this.reader.read() != '\n') {
+                        this.reader.reset();
+                    }
+                }
+                this.line++;
+                fields.add(this.field.toString());
+                return fields;
+            }
+            else {
+                this.field.append((char) c);
+            }
+            c = this.reader.read();
+        }
+    }
+
+    @Override
+    public String getSourceName() {
+        return sourceName;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.reader.close();
+    }
+}
@@ -0,0 +1,45 @@
+package com.riverinnovations.saltui.model.importer;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+/**
+ * A problem with one record of an import. Immutable.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class ImportError {
+
+    /** The file or stream being imported */
+    private final String source;
+
+    /** The line the record starts on, counting from 1 */
+    private final long line;
+
+    /** What is wrong */
+    private final String message;
+
+    public ImportError(String source, long line, String message) {
+        this.source = source;
+        this.line = line;
+        this.message = message;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public long getLine() {
+        return line;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return this.source + ":" + this.line + ": " + this.message;
+    }
+}
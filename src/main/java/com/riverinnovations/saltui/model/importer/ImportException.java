@@ -0,0 +1,17 @@
+package com.riverinnovations.saltui.model.importer;
+
+import com.riverinnovations.saltui.model.ModelException;
+
+/**
+ * Thrown when an import cannot be carried out at all, as opposed to
+ * errors in individual records, which are reported in the ImportResult.
+ */
+public class ImportException extends ModelException {
+    public ImportException(String s) {
+        super(s);
+    }
+
+    public ImportException(String s, Throwable throwable) {
+        super(s, throwable);
+    }
+}
@@ -0,0 +1,151 @@
+package com.riverinnovations.saltui.model.importer;
+
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.UserField;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Conversions from the text of import files to User fields.
+ * Conversion failures throw IllegalArgumentException with a message suitable for the user.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+final class ImportFields {
+
+    /**
+     * Sets a field of a user from text.
+     */
+    interface FieldSetter {
+        void set(User user, String value);
+    }
+
+    /**
+     * Setters for the named columns of a CSV file, one for each user field, named
+     * by the pillar keys. The password column is the plain text password, and
+     * password_hash a crypt hash.
+     */
+    static final Map<String, FieldSetter> COLUMNS;
+
+    static {
+        Map<String, FieldSetter> columns = new LinkedHashMap<>();
+        for (UserField field : UserField.all()) {
+            if (field == UserField.NAME) {
+                // Read separately to construct the user
+                columns.put(field.getKey(), (user, value) -> { });
+            }
+            else {
+                columns.put(field.getKey(), (user, value) -> field.set(user, parse(field, value)));
+            }
+        }
+        COLUMNS = Collections.unmodifiableMap(columns);
+    }
+
+    private ImportFields() {
+        // Utility class
+    }
+
+    /**
+     * Converts text to a value of the field's type. Empty text is null, or the default.
+     */
+    static @Nullable Object parse(UserField field, String value) {
+        switch (field.getType()) {
+            case INTEGER:
+                return parseInt(field.getKey(), value);
+            case BOOLEAN:
+                @Nullable Boolean defaultValue = field.getDefaultValue();
+                return parseBoolean(field.getKey(), value, defaultValue != null && defaultValue);
+            case STRING_LIST:
+                return splitList(value);
+            default:
+                return emptyToNull(value);
+        }
+    }
+
+    static @Nullable String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    /**
+     * Parses an integer; empty text is null.
+     */
+    static @Nullable Integer parseInt(String field, String value) {
+        String trimmed = value.trim();
+        if (trimmed.isEmpty()) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(trimmed);
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad number for " + field + ": '" + value + "'");
+        }
+    }
+
+    /**
+     * Parses true/false, yes/no or 1/0; empty text is the default.
+     */
+    static boolean parseBoolean(String field, String value, boolean defaultValue) {
+        switch (value.trim().toLowerCase(Locale.ROOT)) {
+            case "":
+                return defaultValue;
+            case "true":
+            case "yes":
+            case "1":
+                return true;
+            case "false":
+            case "no":
+            case "0":
+                return false;
+            default:
+                throw new IllegalArgumentException("Bad boolean for " + field + ": '" + value + "'");
+        }
+    }
+
+    /**
+     * Splits a list separated by commas, semicolons or white space.
+     */
+    static List<String> splitList(String value) {
+        List<String> list = new ArrayList<>();
+        for (String item : value.split("[,;\\s]+")) {
+            if (!item.isEmpty()) {
+                list.add(item);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Sets the GECOS fields from a passwd GECOS entry: fullname,room,workphone,homephone,other
+     */
+    static void setGecos(User user, String gecos) {
+        String[] parts = gecos.split(",", 5);
+        user.setGecosFullname(emptyToNull(parts[0]));
+        user.setGecosRoomNumber(parts.length > 1 ? emptyToNull(parts[1]) : null);
+        user.setGecosWorkphone(parts.length > 2 ? emptyToNull(parts[2]) : null);
+        user.setGecosHomephone(parts.length > 3 ? emptyToNull(parts[3]) : null);
+        user.setGecosOther(parts.length > 4 ? emptyToNull(parts[4]) : null);
+    }
+
+    /**
+     * Sets the password hash from a shadow or LDAP crypt password. Locked or
+     * disabled accounts ("!", "*", "!!") have no hash.
+     * The hash is only used to check the current password when users change their own;
+     * until then there is no password in the pillar, so the state leaves the one on the minions alone.
+     */
+    static void setCryptPassword(User user, String password) {
+        if (!password.isEmpty() && password.charAt(0) != '!' && password.charAt(0) != '*') {
+            user.setPasswordHash(password);
+        }
+    }
+}
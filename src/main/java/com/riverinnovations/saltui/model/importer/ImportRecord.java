@@ -0,0 +1,52 @@
+package com.riverinnovations.saltui.model.importer;
+
+import com.riverinnovations.saltui.model.user.User;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+/**
+ * One record read from an import file: either a user or the reason the record
+ * could not be read. Immutable.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class ImportRecord {
+
+    /** The line the record starts on, counting from 1 */
+    private final long line;
+
+    /** The user, if the record was read */
+    private final @Nullable User user;
+
+    /** Why the record could not be read, if it couldn't */
+    private final @Nullable String error;
+
+    private ImportRecord(long line, @Nullable User user, @Nullable String error) {
+        this.line = line;
+        this.user = user;
+        this.error = error;
+    }
+
+    public static ImportRecord of(long line, User user) {
+        return new ImportRecord(line, user, null);
+    }
+
+    public static ImportRecord error(long line, String error) {
+        return new ImportRecord(line, null, error);
+    }
+
+    public long getLine() {
+        return line;
+    }
+
+    public @Nullable User getUser() {
+        return user;
+    }
+
+    public @Nullable String getError() {
+        return error;
+    }
+}
@@ -0,0 +1,55 @@
+package com.riverinnovations.saltui.model.importer;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of an import. Immutable.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class ImportResult {
+
+    /** The number of records read */
+    private final long records;
+
+    /** The number of users added */
+    private final long imported;
+
+    /** The number of records rejected */
+    private final long errorCount;
+
+    /** The first errors found, up to the importer's limit */
+    private final List<ImportError> errors;
+
+    public ImportResult(long records, long imported, long errorCount, List<ImportError> errors) {
+        this.records = records;
+        this.imported = imported;
+        this.errorCount = errorCount;
+        this.errors = Collections.unmodifiableList(new ArrayList<>(errors));
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public long getImported() {
+        return imported;
+    }
+
+    /**
+     * @return The number of rejected records, which may be more than getErrors().size().
+     */
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    public List<ImportError> getErrors() {
+        return errors;
+    }
+}
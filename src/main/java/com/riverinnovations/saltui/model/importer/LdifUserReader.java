@@ -0,0 +1,260 @@
+package com.riverinnovations.saltui.model.importer;
+
+import com.riverinnovations.saltui.model.user.User;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads users from the posixAccount and shadowAccount entries of an LDIF export.
+ * Other entries, such as organisational units and groups, are skipped.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class LdifUserReader implements UserRecordReader {
+
+    /** Prefix of crypt passwords in userPassword */
+    private static final String CRYPT_PREFIX = "{crypt}";
+
+    /** The input */
+    private final BufferedReader reader;
+
+    /** Name of the input */
+    private final String sourceName;
+
+    /** The number of the last physical line read */
+    private long line;
+
+    /** The number of the first physical line of the last logical line read */
+    private long logicalLine;
+
+    /** A line read ahead while looking for continuation lines */
+    private @Nullable String pending;
+
+    /**
+     * Constructor.
+     * @param reader The input, closed by close().
+     * @param sourceName Name of the input, for error messages.
+     */
+    public LdifUserReader(Reader reader, String sourceName) {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        this.sourceName = sourceName;
+    }
+
+    @Override
+    public @Nullable ImportRecord next() throws IOException {
+        while (true) {
+            Map<String, List<String>> entry = new HashMap<>();
+            long start = this.readEntry(entry);
+            if (start < 0) {
+                return null;
+            }
+            @Nullable String error = entry.containsKey("") ? entry.get("").get(0) : null;
+            if (error != null) {
+                return ImportRecord.error(start, error);
+            }
+            if (hasValue(entry, "objectclass", "posixaccount")) {
+                return this.toRecord(start, entry);
+            }
+        }
+    }
+
+    /**
+     * Converts a posixAccount entry to a user.
+     */
+    private ImportRecord toRecord(long start, Map<String, List<String>> entry) {
+        @Nullable String name = first(entry, "uid");
+        if (name == null || name.isEmpty()) {
+            return ImportRecord.error(start, "No uid attribute");
+        }
+        User user = new User(name);
+        try {
+            user.setUid(ImportFields.parseInt("uidNumber", orEmpty(first(entry, "uidnumber"))));
+            user.setGid(ImportFields.parseInt("gidNumber", orEmpty(first(entry, "gidnumber"))));
+            @Nullable String gecos = first(entry, "gecos");
+            if (gecos != null) {
+                ImportFields.setGecos(user, gecos);
+            }
+            else {
+                user.setGecosFullname(first(entry, "cn"));
+                user.setGecosRoomNumber(first(entry, "roomnumber"));
+                user.setGecosWorkphone(first(entry, "telephonenumber"));
+                user.setGecosHomephone(first(entry, "homephone"));
+            }
+            user.setHome(first(entry, "homedirectory"));
+            user.setShell(first(entry, "loginshell"));
+            @Nullable String password = first(entry, "userpassword");
+            if (password != null && password.toLowerCase(Locale.ROOT).startsWith(CRYPT_PREFIX)) {
+                ImportFields.setCryptPassword(user, password.substring(CRYPT_PREFIX.length()));
+            }
+            user.setDateLastPasswordChange(ImportFields.parseInt("shadowLastChange",
+                                                                 orEmpty(first(entry, "shadowlastchange"))));
+            user.setMinDaysBetweenPasswordChanges(ImportFields.parseInt("shadowMin",
+                                                                        orEmpty(first(entry, "shadowmin"))));
+            user.setMaxDaysBetweenPasswordChanges(ImportFields.parseInt("shadowMax",
+                                                                        orEmpty(first(entry, "shadowmax"))));
+            user.setWarnDaysBeforeMaxDaysBetweenPasswordChanges(
+                    ImportFields.parseInt("shadowWarning", orEmpty(first(entry, "shadowwarning"))));
+            user.setInactDaysBeforeLocked(ImportFields.parseInt("shadowInactive",
+                                                                orEmpty(first(entry, "shadowinactive"))));
+            user.setDateExpire(ImportFields.parseInt("shadowExpire", orEmpty(first(entry, "shadowexpire"))));
+        }
+        catch (IllegalArgumentException e) {
+            return ImportRecord.error(start, e.getMessage() == null ? e.toString() : e.getMessage());
+        }
+        return ImportRecord.of(start, user);
+    }
+
+    /**
+     * Reads the attributes of one entry, unfolding continuation lines and decoding base64 values.
+     * A problem with the entry is stored under the empty attribute name.
+     * @return The line the entry starts on, or -1 at the end of the input.
+     */
+    private long readEntry(Map<String, List<String>> entry) throws IOException {
+        long start = -1;
+        @Nullable String attrLine;
+        while ((attrLine = this.readUnfolded()) != null) {
+            if (attrLine.isEmpty()) {
+                if (start >= 0) {
+                    break;
+                }
+                continue;
+            }
+            if (start < 0) {
+                start = this.logicalLine;
+            }
+            int colon = attrLine.indexOf(':');
+            if (colon <= 0) {
+                entry.putIfAbsent("", singleton("Bad attribute line '" + attrLine + "'"));
+                continue;
+            }
+            String attr = attrLine.substring(0, colon).toLowerCase(Locale.ROOT);
+            // Options such as ;lang-en are ignored
+            int semicolon = attr.indexOf(';');
+            if (semicolon > 0) {
+                attr = attr.substring(0, semicolon);
+            }
+            String value;
+            if (attrLine.startsWith("::", colon)) {
+                try {
+                    value = new String(Base64.getMimeDecoder().decode(attrLine.substring(colon + 2).trim()),
+                                       StandardCharsets.UTF_8);
+                }
+                catch (IllegalArgumentException e) {
+                    entry.putIfAbsent("", singleton("Bad base64 value for " + attr));
+                    continue;
+                }
+            }
+            else if (attrLine.startsWith(":<", colon)) {
+                entry.putIfAbsent("", singleton("URL values are not supported for " + attr));
+                continue;
+            }
+            else {
+                value = attrLine.substring(colon + 1).trim();
+            }
+            if ("version".equals(attr) && entry.isEmpty()) {
+                // The file's version line, not part of an entry
+                start = -1;
+                continue;
+            }
+            entry.computeIfAbsent(attr, a -> new ArrayList<>(1)).add(value);
+        }
+        return start;
+    }
+
+    /**
+     * Reads a logical line, joining continuation lines (which start with a space)
+     * and skipping comments.
+     * @return The line, or null at the end of the input.
+     */
+    private @Nullable String readUnfolded() throws IOException {
+        @Nullable String first;
+        if (this.pending != null) {
+            first = this.pending;
+            this.pending = null;
+            this.line++;
+        }
+        else {
+            first = this.readPhysical();
+        }
+        while (first != null && first.startsWith("#")) {
+            first = this.readPhysical();
+        }
+        this.logicalLine = this.line;
+        if (first == null || first.isEmpty()) {
+            return first;
+        }
+        StringBuilder sb = null;
+        @Nullable String next;
+        while ((next = this.readPhysical()) != null && next.startsWith(" ")) {
+            if (sb == null) {
+                sb = new StringBuilder(first);
+            }
+            sb.append(next, 1, next.length());
+        }
+        this.pending = next;
+        if (next != null) {
+            // The read-ahead line is counted when it is used
+            this.line--;
+        }
+        return sb == null ? first : sb.toString();
+    }
+
+    private @Nullable String readPhysical() throws IOException {
+        @Nullable String physical = this.reader.readLine();
+        if (physical != null) {
+            this.line++;
+        }
+        return physical;
+    }
+
+    private static @Nullable String first(Map<String, List<String>> entry, String attr) {
+        @Nullable List<String> values = entry.get(attr);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    private static boolean hasValue(Map<String, List<String>> entry, String attr, String value) {
+        @Nullable List<String> values = entry.get(attr);
+        if (values != null) {
+            for (String v : values) {
+                if (v.equalsIgnoreCase(value)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String orEmpty(@Nullable String value) {
+        return value == null ? "" : value;
+    }
+
+    private static List<String> singleton(String value) {
+        List<String> list = new ArrayList<>(1);
+        list.add(value);
+        return list;
+    }
+
+    @Override
+    public String getSourceName() {
+        return sourceName;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.reader.close();
+    }
+}
@@ -0,0 +1,223 @@
+package com.riverinnovations.saltui.model.importer;
+
+import com.riverinnovations.saltui.model.user.User;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads users from files in the format of /etc/passwd, optionally joined with
+ * /etc/shadow for the password hash and ageing fields and /etc/group for
+ * supplementary group membership.
+ *
+ * The shadow file is read in step with the passwd file. Shadow files are normally
+ * in the same order as the passwd file, in which case only one shadow line is held
+ * at a time; entries that are out of order are held until their passwd line is read.
+ * At most getMaxShadowAhead() entries are held, so the shadow file must be in nearly
+ * the same order as the passwd file: a user whose entry is not found within that many
+ * entries is reported as an error. The group file is read up front, holding just the
+ * memberships.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class PasswdUserReader implements UserRecordReader {
+
+    /** Default maximum number of shadow entries read ahead of their passwd entries */
+    public static final int DEFAULT_MAX_SHADOW_AHEAD = 1000;
+
+    /** The passwd file */
+    private final BufferedReader passwd;
+
+    /** The shadow file, if any */
+    private final @Nullable BufferedReader shadow;
+
+    /** Name of the input */
+    private final String sourceName;
+
+    /** Shadow entries read ahead of their passwd entries, by name */
+    private final Map<String, String[]> shadowAhead = new HashMap<>();
+
+    /** Supplementary groups, by user name */
+    private final Map<String, List<String>> groups = new HashMap<>();
+
+    /** Maximum number of shadow entries read ahead */
+    private int maxShadowAhead = DEFAULT_MAX_SHADOW_AHEAD;
+
+    /** The current line number of the passwd file */
+    private long line;
+
+    /**
+     * Constructor.
+     * @param passwd The passwd file, closed by close().
+     * @param shadow The shadow file, or null. Closed by close().
+     * @param group The group file, or null. Read and closed by the constructor.
+     * @param sourceName Name of the passwd file, for error messages.
+     */
+    public PasswdUserReader(Reader passwd,
+                            @Nullable Reader shadow,
+                            @Nullable Reader group,
+                            String sourceName) throws IOException {
+        this.passwd = new BufferedReader(passwd);
+        this.shadow = shadow == null ? null : new BufferedReader(shadow);
+        this.sourceName = sourceName;
+        if (group != null) {
+            try (BufferedReader groupReader = new BufferedReader(group)) {
+                this.readGroups(groupReader);
+            }
+        }
+    }
+
+    public void setMaxShadowAhead(int maxShadowAhead) {
+        this.maxShadowAhead = Math.max(0, maxShadowAhead);
+    }
+
+    public int getMaxShadowAhead() {
+        return maxShadowAhead;
+    }
+
+    /**
+     * Reads group lines: name:password:gid:member,member
+     */
+    private void readGroups(BufferedReader groupReader) throws IOException {
+        @Nullable String groupLine;
+        while ((groupLine = groupReader.readLine()) != null) {
+            if (isIgnored(groupLine)) {
+                continue;
+            }
+            String[] parts = groupLine.split(":", -1);
+            if (parts.length >= 4 && !parts[3].isEmpty()) {
+                String group = parts[0].intern();
+                for (String member : parts[3].split(",")) {
+                    if (!member.isEmpty()) {
+                        this.groups.computeIfAbsent(member, m -> new ArrayList<>(4)).add(group);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public @Nullable ImportRecord next() throws IOException {
+        @Nullable String passwdLine;
+        do {
+            passwdLine = this.passwd.readLine();
+            if (passwdLine == null) {
+                return null;
+            }
+            this.line++;
+        } while (isIgnored(passwdLine));
+
+        // name:password:uid:gid:gecos:home:shell
+        String[] parts = passwdLine.split(":", -1);
+        if (parts.length != 7) {
+            return ImportRecord.error(this.line, "Expected 7 fields but found " + parts.length);
+        }
+        if (parts[0].isEmpty()) {
+            return ImportRecord.error(this.line, "Empty name");
+        }
+        User user = new User(parts[0]);
+        try {
+            user.setUid(ImportFields.parseInt("uid", parts[2]));
+            user.setGid(ImportFields.parseInt("gid", parts[3]));
+            ImportFields.setGecos(user, parts[4]);
+            user.setHome(ImportFields.emptyToNull(parts[5]));
+            user.setShell(ImportFields.emptyToNull(parts[6]));
+            if (!"x".equals(parts[1])) {
+                ImportFields.setCryptPassword(user, parts[1]);
+            }
+
+            String @Nullable [] shadowParts = this.findShadow(user.getName());
+            if (shadowParts != null) {
+                this.setShadow(user, shadowParts);
+            }
+        }
+        catch (IllegalArgumentException e) {
+            return ImportRecord.error(this.line, e.getMessage() == null ? e.toString() : e.getMessage());
+        }
+
+        @Nullable List<String> userGroups = this.groups.remove(user.getName());
+        if (userGroups != null) {
+            user.setGroups(userGroups);
+        }
+        return ImportRecord.of(this.line, user);
+    }
+
+    /**
+     * Finds the shadow entry for a user, reading ahead in the shadow file if necessary.
+     * @return The shadow fields, or null if there is no entry.
+     * @throws IllegalArgumentException If the entry is not within getMaxShadowAhead() entries.
+     */
+    private String @Nullable [] findShadow(String name) throws IOException {
+        String @Nullable [] ahead = this.shadowAhead.remove(name);
+        if (ahead != null || this.shadow == null) {
+            return ahead;
+        }
+        @Nullable String shadowLine;
+        while (this.shadowAhead.size() < this.maxShadowAhead && (shadowLine = this.shadow.readLine()) != null) {
+            if (isIgnored(shadowLine)) {
+                continue;
+            }
+            String[] parts = shadowLine.split(":", -1);
+            if (parts[0].equals(name)) {
+                return parts;
+            }
+            this.shadowAhead.put(parts[0], parts);
+        }
+        if (this.shadowAhead.size() >= this.maxShadowAhead) {
+            throw new IllegalArgumentException("No shadow entry within the next " + this.maxShadowAhead
+                                               + " entries; the shadow file must be in about the same order"
+                                               + " as the passwd file");
+        }
+        return null;
+    }
+
+    /**
+     * Sets the shadow fields: name:password:lastchange:min:max:warn:inactive:expire:reserved
+     */
+    private void setShadow(User user, String[] parts) {
+        if (parts.length < 8) {
+            throw new IllegalArgumentException("Expected 9 shadow fields but found " + parts.length);
+        }
+        ImportFields.setCryptPassword(user, parts[1]);
+        user.setDateLastPasswordChange(ImportFields.parseInt("shadow lastchange", parts[2]));
+        user.setMinDaysBetweenPasswordChanges(ImportFields.parseInt("shadow min", parts[3]));
+        user.setMaxDaysBetweenPasswordChanges(ImportFields.parseInt("shadow max", parts[4]));
+        user.setWarnDaysBeforeMaxDaysBetweenPasswordChanges(ImportFields.parseInt("shadow warn", parts[5]));
+        user.setInactDaysBeforeLocked(ImportFields.parseInt("shadow inactive", parts[6]));
+        user.setDateExpire(ImportFields.parseInt("shadow expire", parts[7]));
+    }
+
+    /**
+     * @return True for blank lines, comments and NIS entries.
+     */
+    private static boolean isIgnored(String line) {
+        return line.isEmpty() || line.startsWith("#") || line.startsWith("+") || line.startsWith("-");
+    }
+
+    @Override
+    public String getSourceName() {
+        return sourceName;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.passwd.close();
+        }
+        finally {
+            if (this.shadow != null) {
+                this.shadow.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.riverinnovations.saltui.model.importer;
+
+import com.riverinnovations.saltui.model.DuplicateNameException;
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.Users;
+import com.riverinnovations.saltui.model.validation.StandardRules;
+import com.riverinnovations.saltui.model.validation.ValidationRule;
+import com.riverinnovations.saltui.model.validation.Violation;
+import com.riverinnovations.saltui.model.yaml.UserStore;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Imports users in bulk from a UserRecordReader.
+ *
+ * Records are read and validated a batch at a time, each batch being validated in
+ * parallel, so that only the users themselves are held in memory rather than the file.
+ * Records with errors are reported by line and skipped. The valid users are added
+ * to the Users in a single call at the end, so listeners see one change.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class UserImporter {
+
+    /** Default number of records validated together */
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+
+    /** Default number of errors kept in the result */
+    public static final int DEFAULT_MAX_ERRORS = 1000;
+
+    /** POSIX portable user names, as accepted by useradd */
+    private static final Pattern NAME_PATTERN = Pattern.compile("[a-z_][a-z0-9_.-]{0,30}\\$?");
+
+    /** Rules each imported user must pass */
+    private static final List<ValidationRule> FIELD_RULES = StandardRules.fieldRules();
+
+    /** Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserImporter.class);
+
+    /** Number of records validated together */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /** Number of errors kept in the result */
+    private int maxErrors = DEFAULT_MAX_ERRORS;
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public void setMaxErrors(int maxErrors) {
+        this.maxErrors = Math.max(0, maxErrors);
+    }
+
+    /**
+     * Imports users and then saves them once.
+     * @param reader The records to import; not closed.
+     * @param users The users to add to.
+     * @param userStore Where to save the users after importing, if any were imported.
+     * @return The number of users imported and the errors.
+     */
+    public ImportResult importAndSave(UserRecordReader reader, Users users, UserStore userStore)
+            throws IOException, ImportException {
+        ImportResult result = this.importUsers(reader, users);
+        if (result.getImported() > 0) {
+            try {
+                userStore.save(users);
+            }
+            catch (Exception e) {
+                throw new ImportException("Imported users but could not save: " + e.getMessage(), e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Imports users.
+     * @param reader The records to import; not closed.
+     * @param users The users to add to. Users whose names are already present are rejected.
+     * @return The number of users imported and the errors.
+     * @throws IOException If the input cannot be read.
+     * @throws ImportException If the users cannot be added because another user of the
+     *                         same name was added while importing.
+     */
+    public ImportResult importUsers(UserRecordReader reader, Users users) throws IOException, ImportException {
+        Batch batch = new Batch(reader.getSourceName(), users);
+        List<ImportRecord> records = new ArrayList<>(this.batchSize);
+        @Nullable ImportRecord record;
+        while ((record = reader.next()) != null) {
+            records.add(record);
+            if (records.size() >= this.batchSize) {
+                batch.process(records);
+                records.clear();
+            }
+        }
+        batch.process(records);
+
+        try {
+            users.addUsers(batch.accepted);
+        }
+        catch (DuplicateNameException e) {
+            throw new ImportException("Users changed during import: " + e.getMessage(), e);
+        }
+        LOGGER.info("Imported " + batch.accepted.size() + " of " + batch.records + " users from "
+                    + reader.getSourceName() + " with " + batch.errorCount + " errors");
+        return new ImportResult(batch.records, batch.accepted.size(), batch.errorCount, batch.errors);
+    }
+
+    /**
+     * Checks a user read from a file against the field rules. Site policies such as
+     * UID ranges are not applied, as imported users may come from other systems.
+     * Thread safe.
+     * @return The problem, or null if the user is valid.
+     */
+    static @Nullable String validate(User user) {
+        if (!NAME_PATTERN.matcher(user.getName()).matches()) {
+            return "Invalid user name '" + user.getName() + "'";
+        }
+        List<Violation> violations = new ArrayList<>();
+        for (ValidationRule rule : FIELD_RULES) {
+            rule.check(user, violations);
+        }
+        for (Violation violation : violations) {
+            if (violation.isError()) {
+                return violation.getField() + ": " + violation.getMessage();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The state of one import.
+     */
+    private class Batch {
+
+        private final String source;
+
+        private final Users users;
+
+        /** Names accepted so far, to find duplicates within the file */
+        private final Set<String> names = new HashSet<>();
+
+        /** The users to add */
+        private final List<User> accepted = new ArrayList<>();
+
+        /** The first errors */
+        private final List<ImportError> errors = new ArrayList<>();
+
+        private long records;
+
+        private long errorCount;
+
+        Batch(String source, Users users) {
+            this.source = source;
+            this.users = users;
+        }
+
+        /**
+         * Validates the records in parallel, then accepts the valid ones in file order.
+         */
+        void process(List<ImportRecord> batch) {
+            List<@Nullable String> problems = batch.parallelStream()
+                    .map(r -> {
+                        @Nullable User user = r.getUser();
+                        return user == null ? r.getError() : validate(user);
+                    })
+                    .collect(Collectors.toList());
+            for (int i = 0; i < batch.size(); i++) {
+                ImportRecord record = batch.get(i);
+                @Nullable User user = record.getUser();
+                @Nullable String problem = problems.get(i);
+                this.records++;
+                if (problem == null && user != null) {
+                    if (!this.names.add(user.getName())) {
+                        problem = "Duplicate user '" + user.getName() + "' in file";
+                    }
+                    else if (this.users.getUser(user.getName()) != null) {
+                        problem = "User '" + user.getName() + "' already exists";
+                    }
+                    else {
+                        this.accepted.add(user);
+                    }
+                }
+                if (problem != null) {
+                    this.errorCount++;
+                    if (this.errors.size() < UserImporter.this.maxErrors) {
+                        this.errors.add(new ImportError(this.source, record.getLine(), problem));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.riverinnovations.saltui.model.importer;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads users one record at a time from an import file, so that files of any
+ * size can be imported without holding the file in memory.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public interface UserRecordReader extends Closeable {
+
+    /**
+     * Reads the next record. Records that cannot be converted to a user are
+     * returned as errors rather than thrown, so that reading can continue.
+     * @return The next record, or null at the end of the input.
+     * @throws IOException If the input cannot be read.
+     */
+    @Nullable ImportRecord next() throws IOException;
+
+    /**
+     * @return The name of the input, for error messages.
+     */
+    String getSourceName();
+}
@@ -0,0 +1,28 @@
+package com.riverinnovations.saltui.model.password;
+
+/**
+ * The outcome of a self-service password change.
+ */
+public enum PasswordChangeResult {
+    /** The password has been changed and will be saved shortly */
+    ACCEPTED("Your password has been changed"),
+    /** The user does not exist, has no password hash, or the current password is wrong */
+    REJECTED("User name or current password is incorrect"),
+    /** The new password does not meet the policy */
+    TOO_WEAK("The new password must be at least " + PasswordChangeService.MIN_LENGTH + " characters"),
+    /** Too many attempts for the user, or for everyone */
+    RATE_LIMITED("Too many attempts, please try again later"),
+    /** The hashing workers are overloaded */
+    BUSY("The service is busy, please try again later");
+
+    /** Message for the person changing their password */
+    private final String message;
+
+    PasswordChangeResult(String message) {
+        this.message = message;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+}
@@ -0,0 +1,353 @@
+package com.riverinnovations.saltui.model.password;
+
+import com.riverinnovations.saltui.model.UnknownUserException;
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.Users;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Lets account holders change their own passwords.
+ *
+ * Attempts are rate limited per user and overall by token buckets, so that a rush of
+ * changes cannot starve the hashing workers. The current password is checked and the new
+ * one hashed on the PasswordHasher workers, and the change is made to the users at once,
+ * on behalf of whoever asked for it on the request thread.
+ * Saving is deferred: changes arriving within the save delay are saved together, so the
+ * passwords are encrypted in one batch and the pillar written once, off the request thread.
+ * The save is incremental: only the new passwords are encrypted and only the changed users
+ * serialised, as the other users are saved with their passwords as already encrypted.
+ *
+ * Thread safe.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class PasswordChangeService implements AutoCloseable {
+
+    /**
+     * Saves the users.
+     */
+    public interface Saver {
+        /**
+         * @return True if saved, or false if the users were reloaded instead because
+         *         another instance had saved, in which case the changes are made again.
+         */
+        boolean save() throws Exception;
+    }
+
+    /** Shortest password allowed */
+    public static final int MIN_LENGTH = 8;
+
+    /** Default attempts a user can make in a burst, and per second after that */
+    public static final double DEFAULT_USER_BURST = 5;
+    public static final double DEFAULT_USER_RATE = 1.0 / 60;
+
+    /** Default attempts everyone together can make in a burst, and per second after that */
+    public static final double DEFAULT_GLOBAL_BURST = 100;
+    public static final double DEFAULT_GLOBAL_RATE = 20;
+
+    /** Default time to gather changes before saving them */
+    public static final long DEFAULT_SAVE_DELAY_MILLIS = 2000;
+
+    /** Most users whose attempts are tracked; beyond this new names share one bucket */
+    private static final int MAX_TRACKED_USERS = 100000;
+
+    /** Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(PasswordChangeService.class);
+
+    private final Users users;
+
+    private final PasswordHasher hasher;
+
+    private final Saver saver;
+
+    /** Attempts by everyone */
+    private final TokenBucket globalBucket;
+
+    /** Attempts by user name */
+    private final Map<String, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+
+    /** Shared by names beyond MAX_TRACKED_USERS */
+    private final TokenBucket overflowBucket;
+
+    private final double userBurst;
+
+    private final double userRate;
+
+    /** Checked for unknown users, so the response time doesn't reveal which names exist */
+    private final String dummyHash;
+
+    /** Changes not yet saved, by user name */
+    private final Map<String, PendingChange> pending = new ConcurrentHashMap<>();
+
+    /** Runs the saves, one at a time */
+    private final ScheduledExecutorService saveExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "saltui-password-save");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Whether a save has been scheduled and not yet started */
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+
+    private volatile long saveDelayMillis = DEFAULT_SAVE_DELAY_MILLIS;
+
+    /** Who is asking for a change, on the thread asking; null if not known */
+    private volatile Supplier<@Nullable String> actor = () -> null;
+
+    /**
+     * Constructor using the default rate limits.
+     */
+    public PasswordChangeService(Users users, PasswordHasher hasher, Saver saver) {
+        this(users, hasher, saver, DEFAULT_USER_BURST, DEFAULT_USER_RATE, DEFAULT_GLOBAL_BURST, DEFAULT_GLOBAL_RATE);
+    }
+
+    /**
+     * Constructor.
+     * @param users The users whose passwords are changed.
+     * @param hasher Checks and hashes the passwords.
+     * @param saver Saves the users after changes.
+     * @param userBurst Attempts each user can make in a burst.
+     * @param userRate Attempts per second each user can make after a burst.
+     * @param globalBurst Attempts everyone together can make in a burst.
+     * @param globalRate Attempts per second everyone together can make after a burst.
+     */
+    public PasswordChangeService(Users users,
+                                 PasswordHasher hasher,
+                                 Saver saver,
+                                 double userBurst,
+                                 double userRate,
+                                 double globalBurst,
+                                 double globalRate) {
+        this.users = users;
+        this.hasher = hasher;
+        this.saver = saver;
+        this.userBurst = userBurst;
+        this.userRate = userRate;
+        this.globalBucket = new TokenBucket(globalBurst, globalRate);
+        this.overflowBucket = new TokenBucket(userBurst, userRate);
+        this.dummyHash = Sha512Crypt.hash(UUID.randomUUID().toString(), hasher.getRounds());
+        this.saveExecutor.scheduleWithFixedDelay(this::evictIdleBuckets, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public void setSaveDelayMillis(long saveDelayMillis) {
+        this.saveDelayMillis = Math.max(0, saveDelayMillis);
+    }
+
+    /**
+     * @param actor Supplies who is asking for a change, on the thread asking. The changes are
+     *              made on other threads, so this is called first and passed with the change.
+     */
+    public void setActor(Supplier<@Nullable String> actor) {
+        this.actor = actor;
+    }
+
+    /**
+     * Changes a user's password, if the current password is correct.
+     * Returns without waiting for the passwords to be checked and hashed.
+     * @param name The user name.
+     * @param currentPassword The user's current password, checked against the password hash.
+     * @param newPassword The new password.
+     * @return Future holding the outcome; completes once the users have been changed,
+     *         but before the change is saved.
+     */
+    public CompletableFuture<PasswordChangeResult> changePassword(String name,
+                                                                  String currentPassword,
+                                                                  String newPassword) {
+        if (newPassword.length() < MIN_LENGTH) {
+            return CompletableFuture.completedFuture(PasswordChangeResult.TOO_WEAK);
+        }
+        TokenBucket userBucket = this.userBucket(name);
+        if (!userBucket.tryAcquire()) {
+            return CompletableFuture.completedFuture(PasswordChangeResult.RATE_LIMITED);
+        }
+        if (!this.globalBucket.tryAcquire()) {
+            // The user's attempt didn't happen
+            userBucket.release();
+            return CompletableFuture.completedFuture(PasswordChangeResult.RATE_LIMITED);
+        }
+
+        @Nullable String who = this.actor.get();
+        @Nullable User user = this.users.getUser(name);
+        @Nullable String hash = user == null ? null : user.getPasswordHash();
+        return this.hasher.verifyAsync(currentPassword, hash == null ? this.dummyHash : hash)
+                .thenCompose(ok -> {
+                    if (!ok || hash == null) {
+                        return CompletableFuture.completedFuture(PasswordChangeResult.REJECTED);
+                    }
+                    return this.hasher.hashAsync(newPassword)
+                            .thenApply(newHash -> this.apply(name, new PendingChange(newPassword, newHash, who)));
+                })
+                .exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    if (!(cause instanceof PasswordHashingException)) {
+                        LOGGER.error("Error changing password for '" + name + "': " + cause.getMessage(), cause);
+                    }
+                    return PasswordChangeResult.BUSY;
+                });
+    }
+
+    /**
+     * Changes the user and queues the change to be saved.
+     */
+    private PasswordChangeResult apply(String name, PendingChange change) {
+        try {
+            this.users.modifyUser(name, change::applyTo, change.actor);
+        }
+        catch (UnknownUserException e) {
+            // Deleted while the password was being hashed
+            return PasswordChangeResult.REJECTED;
+        }
+        this.pending.put(name, change);
+        this.scheduleSave();
+        return PasswordChangeResult.ACCEPTED;
+    }
+
+    /**
+     * @return The number of changes not yet saved.
+     */
+    public int getPendingCount() {
+        return this.pending.size();
+    }
+
+    private void scheduleSave() {
+        if (this.saveScheduled.compareAndSet(false, true)) {
+            this.saveExecutor.schedule(this::save, this.saveDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Saves the pending changes. Runs on the save thread.
+     */
+    private void save() {
+        // Changes from now on schedule another save
+        this.saveScheduled.set(false);
+        Map<String, PendingChange> batch = new HashMap<>(this.pending);
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            if (this.saver.save()) {
+                for (Map.Entry<String, PendingChange> entry : batch.entrySet()) {
+                    // Keep any later change to the same user
+                    this.pending.remove(entry.getKey(), entry.getValue());
+                }
+                LOGGER.info("Saved " + batch.size() + " password changes");
+            }
+            else {
+                this.reapply();
+            }
+        }
+        catch (Exception e) {
+            LOGGER.warn("Cannot save " + batch.size() + " password changes, will retry: " + e.getMessage(), e);
+            this.scheduleSave();
+        }
+    }
+
+    /**
+     * Makes the pending changes again after the users were reloaded, and saves them.
+     */
+    private void reapply() {
+        for (Map.Entry<String, PendingChange> entry : this.pending.entrySet()) {
+            try {
+                this.users.modifyUser(entry.getKey(), entry.getValue()::applyTo, entry.getValue().actor);
+            }
+            catch (UnknownUserException e) {
+                LOGGER.warn("User '" + entry.getKey() + "' was deleted by another instance; password change dropped");
+                this.pending.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        if (!this.pending.isEmpty()) {
+            this.scheduleSave();
+        }
+    }
+
+    /**
+     * Saves any pending changes now, waiting for the save to finish.
+     */
+    public void flush() throws InterruptedException {
+        try {
+            this.saveExecutor.submit(this::save).get();
+        }
+        catch (ExecutionException e) {
+            LOGGER.warn("Error saving password changes: " + e.getMessage(), e);
+        }
+    }
+
+    private TokenBucket userBucket(String name) {
+        @Nullable TokenBucket bucket = this.userBuckets.get(name);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (this.userBuckets.size() >= MAX_TRACKED_USERS) {
+            this.evictIdleBuckets();
+            if (this.userBuckets.size() >= MAX_TRACKED_USERS) {
+                return this.overflowBucket;
+            }
+        }
+        return this.userBuckets.computeIfAbsent(name, n -> new TokenBucket(this.userBurst, this.userRate));
+    }
+
+    /**
+     * Forgets the buckets of users who have not made attempts recently.
+     */
+    private void evictIdleBuckets() {
+        this.userBuckets.values().removeIf(TokenBucket::isFull);
+    }
+
+    /**
+     * Saves any pending changes and stops the save thread. If interrupted while waiting
+     * for the save, stops without waiting and leaves the thread's interrupt flag set.
+     */
+    @Override
+    public void close() {
+        try {
+            this.flush();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            this.saveExecutor.shutdown();
+        }
+    }
+
+    /**
+     * A password change waiting to be saved. Compared by identity.
+     */
+    private static final class PendingChange {
+        private final String plain;
+        private final String hash;
+        private final @Nullable String actor;
+
+        PendingChange(String plain, String hash, @Nullable String actor) {
+            this.plain = plain;
+            this.hash = hash;
+            this.actor = actor;
+        }
+
+        void applyTo(User user) {
+            user.setPasswordPlain(this.plain);
+            user.setPasswordHash(this.hash);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.riverinnovations.saltui.model.password;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Service that generates SHA-512 crypt password hashes on a bounded pool of worker threads,
+ * so that expensive hashing never runs on a UI or request thread.
+ *
+ * The number of outstanding requests (running plus queued) is bounded. Interactive callers
+ * use hashAsync(), which fails fast when the queue is full; bulk callers use hashAll(),
+ * which waits for space so that it keeps every worker busy without flooding the queue.
+ *
+ * Thread safe.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class PasswordHasher implements AutoCloseable {
+
+    /** Default number of queued requests allowed in addition to those being worked on */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /** Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(PasswordHasher.class);
+
+    /** The number of SHA-512 crypt rounds to use for new hashes */
+    private final int rounds;
+
+    /** Workers that do the hashing */
+    private final ExecutorService executor;
+
+    /** Permits for outstanding requests - provides the back pressure */
+    private final Semaphore permits;
+
+    /**
+     * Constructor using one worker per available processor and the default queue capacity.
+     * @param rounds The number of rounds for new hashes.
+     */
+    public PasswordHasher(int rounds) {
+        this(rounds, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     * @param rounds The number of rounds for new hashes; clamped to the range allowed by Sha512Crypt.
+     * @param threads The number of worker threads. Must be at least 1.
+     * @param queueCapacity The number of requests that may wait for a worker. Must be at least 0.
+     */
+    public PasswordHasher(int rounds, int threads, int queueCapacity) {
+        if (threads < 1 || queueCapacity < 0) {
+            throw new IllegalArgumentException("Bad thread count " + threads + " or queue capacity " + queueCapacity);
+        }
+        this.rounds = Math.max(Sha512Crypt.MIN_ROUNDS, Math.min(Sha512Crypt.MAX_ROUNDS, rounds));
+        this.permits = new Semaphore(threads + queueCapacity);
+        this.executor = new ThreadPoolExecutor(threads, threads,
+                                               0L, TimeUnit.MILLISECONDS,
+                                               new LinkedBlockingQueue<>(),
+                                               new WorkerThreadFactory());
+    }
+
+    /**
+     * @return The number of rounds used for new hashes.
+     */
+    public int getRounds() {
+        return rounds;
+    }
+
+    /**
+     * Hashes a password without waiting for the result.
+     * If the queue is full then the returned future completes exceptionally with a
+     * PasswordHashingException rather than blocking the caller.
+     * @param password The plain text password.
+     * @return Future holding the hash.
+     */
+    public CompletableFuture<String> hashAsync(String password) {
+        if (!this.permits.tryAcquire()) {
+            CompletableFuture<String> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new PasswordHashingException("Password hashing queue is full"));
+            return rejected;
+        }
+        return this.submit(() -> Sha512Crypt.hash(password, this.rounds));
+    }
+
+    /**
+     * Checks a password against a hash without waiting for the result, failing fast
+     * like hashAsync() when the queue is full.
+     * @param password The plain text password.
+     * @param hash The hash to compare with; null never matches.
+     * @return Future holding true if the password matches.
+     */
+    public CompletableFuture<Boolean> verifyAsync(String password, @Nullable String hash) {
+        if (!this.permits.tryAcquire()) {
+            CompletableFuture<Boolean> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new PasswordHashingException("Password hashing queue is full"));
+            return rejected;
+        }
+        return this.submit(() -> Sha512Crypt.verify(password, hash));
+    }
+
+    /**
+     * Hashes many passwords, using every worker.
+     * Waits for queue space rather than failing, so may block the caller; do not call from a UI thread.
+     * The hashes are returned rather than set on users, so that callers store them through
+     * Users.modifyUser() and other sessions see the change.
+     * @param passwords The plain text passwords.
+     * @return Future holding the hashes, in the same order as the passwords.
+     * @throws InterruptedException If interrupted while waiting for queue space.
+     */
+    public CompletableFuture<List<String>> hashAll(List<String> passwords) throws InterruptedException {
+        List<CompletableFuture<String>> futures = new ArrayList<>(passwords.size());
+        for (String password : passwords) {
+            this.permits.acquire();
+            futures.add(this.submit(() -> Sha512Crypt.hash(password, this.rounds)));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            List<String> hashes = new ArrayList<>(futures.size());
+            for (CompletableFuture<String> future : futures) {
+                hashes.add(future.join());
+            }
+            return hashes;
+        });
+    }
+
+    /**
+     * Submits a hashing task; caller must already hold a permit.
+     */
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            this.executor.execute(() -> {
+                try {
+                    future.complete(task.get());
+                }
+                catch (RuntimeException e) {
+                    future.completeExceptionally(new PasswordHashingException("Error hashing password", e));
+                }
+                finally {
+                    this.permits.release();
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            this.permits.release();
+            future.completeExceptionally(new PasswordHashingException("Password hasher has been shut down", e));
+        }
+        return future;
+    }
+
+    /**
+     * Stops accepting work. Queued requests are still completed.
+     */
+    @Override
+    public void close() {
+        this.executor.shutdown();
+        LOGGER.debug("Password hasher shut down");
+    }
+
+    /**
+     * Creates low priority daemon worker threads so hashing never holds up shutdown or the UI.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "saltui-password-hasher-" + this.count.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.riverinnovations.saltui.model.password;
+
+import com.riverinnovations.saltui.model.ModelException;
+
+/**
+ * Thrown when a password cannot be hashed, for example because the hashing queue is full.
+ */
+public class PasswordHashingException extends ModelException {
+    public PasswordHashingException(String s) {
+        super(s);
+    }
+
+    public PasswordHashingException(String s, Throwable throwable) {
+        super(s, throwable);
+    }
+}
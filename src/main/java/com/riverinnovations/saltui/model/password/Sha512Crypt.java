@@ -0,0 +1,255 @@
+package com.riverinnovations.saltui.model.password;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Implementation of the SHA-512 based UNIX crypt ("$6$") as described at
+ * https://www.akkadia.org/drepper/SHA-crypt.txt
+ *
+ * The output is compatible with glibc crypt(3), so it can be placed directly in
+ * /etc/shadow via the Salt user state with hash_password: false.
+ *
+ * Thread safe - holds no state.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class Sha512Crypt {
+
+    /** Prefix identifying a SHA-512 crypt hash */
+    public static final String PREFIX = "$6$";
+
+    /** Number of rounds used when none is specified */
+    public static final int DEFAULT_ROUNDS = 5000;
+
+    /** Minimum number of rounds permitted by the specification */
+    public static final int MIN_ROUNDS = 1000;
+
+    /** Maximum number of rounds permitted by the specification */
+    public static final int MAX_ROUNDS = 999999999;
+
+    /** Maximum number of salt characters used */
+    private static final int MAX_SALT_LENGTH = 16;
+
+    /** Prefix for the rounds specification in the salt string */
+    private static final String ROUNDS_PREFIX = "rounds=";
+
+    /** Alphabet used for the crypt base 64 encoding */
+    private static final String B64 = "./0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+    /** Order in which digest bytes are written to the output, in groups of three */
+    private static final int[] ENCODING_ORDER = {
+            0, 21, 42,   22, 43, 1,   44, 2, 23,   3, 24, 45,   25, 46, 4,
+            47, 5, 26,   6, 27, 48,   28, 49, 7,   50, 8, 29,   9, 30, 51,
+            31, 52, 10,  53, 11, 32,  12, 33, 54,  34, 55, 13,  56, 14, 35,
+            15, 36, 57,  37, 58, 16,  59, 17, 38,  18, 39, 60,  40, 61, 19,
+            62, 20, 41
+    };
+
+    /** Source of salt */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private Sha512Crypt() {
+        // Utility class
+    }
+
+    /**
+     * Hashes the password with a freshly generated random salt.
+     * @param password The plain text password.
+     * @param rounds The number of rounds; clamped to the range MIN_ROUNDS to MAX_ROUNDS.
+     * @return The hash in the form $6$rounds=N$salt$hash
+     */
+    public static String hash(String password, int rounds) {
+        StringBuilder salt = new StringBuilder(MAX_SALT_LENGTH);
+        for (int i = 0; i < MAX_SALT_LENGTH; i++) {
+            salt.append(B64.charAt(RANDOM.nextInt(B64.length())));
+        }
+        return crypt(password, salt.toString(), rounds);
+    }
+
+    /**
+     * Checks a plain text password against an existing hash.
+     * @param password The plain text password.
+     * @param hash The hash to compare with. May be null, in which case the result is false.
+     * @return True if the password matches the hash.
+     */
+    public static boolean verify(String password, @Nullable String hash) {
+        if (hash == null || !hash.startsWith(PREFIX)) {
+            return false;
+        }
+        else {
+            return MessageDigest.isEqual(crypt(password, hash).getBytes(StandardCharsets.UTF_8),
+                                         hash.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Hashes the password using the salt and rounds held in a salt specification,
+     * for example "$6$rounds=10000$saltstring" or an existing full hash.
+     * @param password The plain text password.
+     * @param saltSpec The salt specification.
+     * @return The full hash.
+     */
+    public static String crypt(String password, String saltSpec) {
+        String spec = saltSpec.startsWith(PREFIX) ? saltSpec.substring(PREFIX.length()) : saltSpec;
+        int rounds = DEFAULT_ROUNDS;
+        boolean roundsSpecified = spec.startsWith(ROUNDS_PREFIX);
+        if (roundsSpecified) {
+            int end = spec.indexOf('$');
+            if (end < 0) {
+                throw new IllegalArgumentException("Bad rounds specification in salt");
+            }
+            try {
+                rounds = Integer.parseInt(spec.substring(ROUNDS_PREFIX.length(), end));
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad rounds specification in salt: " + e.getMessage(), e);
+            }
+            spec = spec.substring(end + 1);
+        }
+        int saltEnd = spec.indexOf('$');
+        String salt = saltEnd < 0 ? spec : spec.substring(0, saltEnd);
+        return crypt(password, salt, rounds, roundsSpecified);
+    }
+
+    /**
+     * Hashes the password.
+     * @param password The plain text password.
+     * @param salt The salt; only the first 16 characters are used.
+     * @param rounds The number of rounds; clamped to the range MIN_ROUNDS to MAX_ROUNDS.
+     * @return The full hash.
+     */
+    public static String crypt(String password, String salt, int rounds) {
+        return crypt(password, salt, rounds, rounds != DEFAULT_ROUNDS);
+    }
+
+    /**
+     * Hashes the password, optionally recording the number of rounds in the output.
+     */
+    private static String crypt(String password, String salt, int rounds, boolean includeRounds) {
+        int clampedRounds = Math.max(MIN_ROUNDS, Math.min(MAX_ROUNDS, rounds));
+        String saltString = salt.length() > MAX_SALT_LENGTH ? salt.substring(0, MAX_SALT_LENGTH) : salt;
+        byte[] p = password.getBytes(StandardCharsets.UTF_8);
+        byte[] s = saltString.getBytes(StandardCharsets.UTF_8);
+
+        MessageDigest digest = newDigest();
+
+        // Digest B: password, salt, password
+        digest.update(p);
+        digest.update(s);
+        digest.update(p);
+        byte[] b = digest.digest();
+
+        // Digest A
+        digest.update(p);
+        digest.update(s);
+        int cnt;
+        for (cnt = p.length; cnt > 64; cnt -= 64) {
+            digest.update(b, 0, 64);
+        }
+        digest.update(b, 0, cnt);
+        for (cnt = p.length; cnt > 0; cnt >>= 1) {
+            if ((cnt & 1) != 0) {
+                digest.update(b);
+            }
+            else {
+                digest.update(p);
+            }
+        }
+        byte[] a = digest.digest();
+
+        // Byte sequence P
+        for (int i = 0; i < p.length; i++) {
+            digest.update(p);
+        }
+        byte[] pSeq = fill(digest.digest(), p.length);
+
+        // Byte sequence S
+        for (int i = 0; i < 16 + (a[0] & 0xff); i++) {
+            digest.update(s);
+        }
+        byte[] sSeq = fill(digest.digest(), s.length);
+
+        // The expensive part
+        for (int i = 0; i < clampedRounds; i++) {
+            if ((i & 1) != 0) {
+                digest.update(pSeq);
+            }
+            else {
+                digest.update(a);
+            }
+            if (i % 3 != 0) {
+                digest.update(sSeq);
+            }
+            if (i % 7 != 0) {
+                digest.update(pSeq);
+            }
+            if ((i & 1) != 0) {
+                digest.update(a);
+            }
+            else {
+                digest.update(pSeq);
+            }
+            a = digest.digest();
+        }
+
+        StringBuilder out = new StringBuilder(PREFIX.length() + 32 + saltString.length() + 86);
+        out.append(PREFIX);
+        if (includeRounds) {
+            out.append(ROUNDS_PREFIX).append(clampedRounds).append('$');
+        }
+        out.append(saltString).append('$');
+        for (int i = 0; i < ENCODING_ORDER.length; i += 3) {
+            encode(out,
+                   a[ENCODING_ORDER[i]] & 0xff,
+                   a[ENCODING_ORDER[i + 1]] & 0xff,
+                   a[ENCODING_ORDER[i + 2]] & 0xff,
+                   4);
+        }
+        encode(out, 0, 0, a[63] & 0xff, 2);
+        return out.toString();
+    }
+
+    /**
+     * Repeats the digest to fill an array of the given length.
+     */
+    private static byte[] fill(byte[] digestBytes, int length) {
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i += digestBytes.length) {
+            System.arraycopy(digestBytes, 0, result, i, Math.min(digestBytes.length, length - i));
+        }
+        Arrays.fill(digestBytes, (byte) 0);
+        return result;
+    }
+
+    /**
+     * Appends n characters of crypt base 64 encoding for the three bytes.
+     */
+    private static void encode(StringBuilder out, int b2, int b1, int b0, int n) {
+        int w = (b2 << 16) | (b1 << 8) | b0;
+        for (int i = 0; i < n; i++) {
+            out.append(B64.charAt(w & 0x3f));
+            w >>= 6;
+        }
+    }
+
+    /**
+     * Creates a SHA-512 digest, which every JRE is required to support.
+     */
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-512");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-512 not available", e);
+        }
+    }
+}
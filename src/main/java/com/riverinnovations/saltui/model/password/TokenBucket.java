@@ -0,0 +1,89 @@
+package com.riverinnovations.saltui.model.password;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket rate limiter: allows bursts of up to the capacity, refilled at a steady rate.
+ *
+ * Thread safe.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class TokenBucket {
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    /** Most tokens the bucket holds */
+    private final double capacity;
+
+    /** Tokens added per nanosecond */
+    private final double refillPerNano;
+
+    /** Source of System.nanoTime(), replaceable for testing */
+    private final LongSupplier clock;
+
+    /** Tokens in the bucket at the last refill */
+    private double tokens;
+
+    /** When the bucket was last refilled */
+    private long lastRefill;
+
+    /**
+     * Constructor. The bucket starts full.
+     * @param capacity Most requests allowed in a burst. Must be at least 1.
+     * @param refillPerSecond Requests allowed per second in the long run. Must be positive.
+     */
+    public TokenBucket(double capacity, double refillPerSecond) {
+        this(capacity, refillPerSecond, System::nanoTime);
+    }
+
+    TokenBucket(double capacity, double refillPerSecond, LongSupplier clock) {
+        if (capacity < 1 || refillPerSecond <= 0) {
+            throw new IllegalArgumentException("Bad capacity " + capacity + " or rate " + refillPerSecond);
+        }
+        this.capacity = capacity;
+        this.refillPerNano = refillPerSecond / NANOS_PER_SECOND;
+        this.clock = clock;
+        this.tokens = capacity;
+        this.lastRefill = clock.getAsLong();
+    }
+
+    /**
+     * Takes a token if one is available.
+     * @return True if a token was taken and the request may proceed.
+     */
+    public synchronized boolean tryAcquire() {
+        this.refill();
+        if (this.tokens >= 1) {
+            this.tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns a token taken by tryAcquire() for a request that did not go ahead.
+     */
+    public synchronized void release() {
+        this.refill();
+        this.tokens = Math.min(this.capacity, this.tokens + 1);
+    }
+
+    /**
+     * @return True if the bucket is full, so forgetting it would make no difference.
+     */
+    public synchronized boolean isFull() {
+        this.refill();
+        return this.tokens >= this.capacity;
+    }
+
+    private void refill() {
+        long now = this.clock.getAsLong();
+        this.tokens = Math.min(this.capacity, this.tokens + (now - this.lastRefill) * this.refillPerNano);
+        this.lastRefill = now;
+    }
+}
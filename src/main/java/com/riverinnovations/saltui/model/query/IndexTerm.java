@@ -0,0 +1,121 @@
+package com.riverinnovations.saltui.model.query;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+/**
+ * A condition of a query that can be looked up in an index rather than tested against
+ * every user. Every user matching the query matches each of its index terms, so any one
+ * of them can be used to find the candidates.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class IndexTerm {
+
+    /** The index to use */
+    public enum Kind {
+        /** Names starting with the text */
+        NAME_PREFIX,
+
+        /** UID equal to from */
+        UID,
+
+        /** Primary GID equal to from */
+        GID,
+
+        /** Members of the supplementary group named by the text */
+        GROUP,
+
+        /** Shell equal to the text */
+        SHELL,
+
+        /** Expiry date, in days since epoch, from (inclusive) to (exclusive) */
+        EXPIRE
+    }
+
+    private final Kind kind;
+
+    private final String text;
+
+    private final long from;
+
+    private final long to;
+
+    private IndexTerm(Kind kind, String text, long from, long to) {
+        this.kind = kind;
+        this.text = text;
+        this.from = from;
+        this.to = to;
+    }
+
+    static IndexTerm text(Kind kind, String text) {
+        return new IndexTerm(kind, text, 0, 0);
+    }
+
+    static IndexTerm value(Kind kind, long value) {
+        return new IndexTerm(kind, "", value, value + 1);
+    }
+
+    static IndexTerm range(Kind kind, long from, long to) {
+        return new IndexTerm(kind, "", from, to);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return The name prefix, group or shell; empty for numeric terms.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return The UID, GID or first expiry date.
+     */
+    public long getFrom() {
+        return from;
+    }
+
+    /**
+     * @return The expiry date after the last one matched.
+     */
+    public long getTo() {
+        return to;
+    }
+
+    @Override
+    public boolean equals(@Nullable Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        IndexTerm that = (IndexTerm) o;
+        return from == that.from && to == that.to && kind == that.kind && text.equals(that.text);
+    }
+
+    @Override
+    public int hashCode() {
+        return (kind.hashCode() * 31 + text.hashCode()) * 31 + Long.hashCode(from) * 17 + Long.hashCode(to);
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case NAME_PREFIX:
+                return "name=" + text + "*";
+            case UID:
+                return "uid=" + from;
+            case GID:
+                return "gid=" + from;
+            case GROUP:
+                return "group=" + text;
+            case SHELL:
+                return "shell=" + text;
+            default:
+                return "expire in [" + (from == Long.MIN_VALUE ? "" : String.valueOf(from)) + ","
+                        + (to == Long.MAX_VALUE ? "" : String.valueOf(to)) + ")";
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.riverinnovations.saltui.model.query;
+
+import com.riverinnovations.saltui.model.ModelException;
+
+/**
+ * Thrown when a user query cannot be parsed.
+ */
+public class QueryException extends ModelException {
+
+    public QueryException(String s) {
+        super(s);
+    }
+
+    public QueryException(String s, Throwable throwable) {
+        super(s, throwable);
+    }
+
+}
@@ -0,0 +1,499 @@
+package com.riverinnovations.saltui.model.query;
+
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.UserField;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Parses the text of a user query into predicates.
+ *
+ * <pre>
+ *     query := and ( OR and )*
+ *     and   := unary ( AND unary )*
+ *     unary := NOT unary | ( query ) | term
+ *     term  := field [ op value ]
+ *     op    := = | != | &lt; | &lt;= | &gt; | &gt;=
+ * </pre>
+ *
+ * Fields are the keys of UserField, plus group and target for groups and targets, and
+ * absent for not present. A field without a value is true if it is a boolean field that
+ * is true, or any other field that is set. Values are words or double quoted strings;
+ * string values may contain * wildcards. The date and expire fields also take dates as
+ * yyyy-mm-dd, today, or a number of days from today such as 30d or -7d.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+final class QueryParser {
+
+    private enum Op {
+        EQ("="), NE("!="), LT("<"), LE("<="), GT(">"), GE(">=");
+
+        private final String text;
+
+        Op(String text) {
+            this.text = text;
+        }
+    }
+
+    /** Tokens, with quoted strings kept in their quotes so they aren't taken as keywords */
+    private final List<String> tokens;
+
+    /** Today, in days since epoch, for relative dates */
+    private final long today;
+
+    private int position;
+
+    QueryParser(String text, LocalDate today) throws QueryException {
+        this.tokens = tokenize(text);
+        this.today = today.toEpochDay();
+    }
+
+    /**
+     * Parses the whole query.
+     */
+    Predicate<User> parse() throws QueryException {
+        if (this.tokens.isEmpty()) {
+            throw new QueryException("Empty query");
+        }
+        Predicate<User> query = this.parseOr();
+        if (this.position < this.tokens.size()) {
+            throw new QueryException("Unexpected '" + this.tokens.get(this.position) + "'");
+        }
+        return query;
+    }
+
+    /**
+     * Finds the conditions that every matching user meets and that can be looked up in an index.
+     */
+    static List<IndexTerm> indexTerms(Predicate<User> query) {
+        List<IndexTerm> terms = new ArrayList<>();
+        Collection<Predicate<User>> conjuncts = query instanceof And
+                ? ((And) query).children : Collections.singletonList(query);
+        for (Predicate<User> conjunct : conjuncts) {
+            if (conjunct instanceof Term) {
+                @Nullable IndexTerm term = ((Term) conjunct).indexTerm();
+                if (term != null) {
+                    terms.add(term);
+                }
+            }
+        }
+        return terms;
+    }
+
+    private Predicate<User> parseOr() throws QueryException {
+        List<Predicate<User>> children = new ArrayList<>();
+        children.add(this.parseAnd());
+        while (this.acceptKeyword("OR")) {
+            children.add(this.parseAnd());
+        }
+        return children.size() == 1 ? children.get(0) : new Or(children);
+    }
+
+    private Predicate<User> parseAnd() throws QueryException {
+        List<Predicate<User>> children = new ArrayList<>();
+        do {
+            Predicate<User> child = this.parseUnary();
+            if (child instanceof And) {
+                // Flatten parenthesised conjunctions so their terms can be used by the planner
+                children.addAll(((And) child).children);
+            }
+            else {
+                children.add(child);
+            }
+        } while (this.acceptKeyword("AND"));
+        return children.size() == 1 ? children.get(0) : new And(children);
+    }
+
+    private Predicate<User> parseUnary() throws QueryException {
+        if (this.acceptKeyword("NOT")) {
+            return this.parseUnary().negate();
+        }
+        if (this.accept("(")) {
+            Predicate<User> inner = this.parseOr();
+            if (!this.accept(")")) {
+                throw new QueryException("Missing ')'");
+            }
+            return inner;
+        }
+        return this.parseTerm();
+    }
+
+    private Predicate<User> parseTerm() throws QueryException {
+        String name = this.next("field name");
+        if (name.startsWith("\"") || isSymbol(name)) {
+            throw new QueryException("Expected a field name but found '" + name + "'");
+        }
+        String key = name.toLowerCase(Locale.ROOT);
+        if (key.equals("absent")) {
+            return new Term(UserField.PRESENT, null, null, null).negate();
+        }
+        @Nullable UserField field = key.equals("group") ? UserField.GROUPS
+                : key.equals("target") ? UserField.TARGETS
+                : UserField.forKey(key);
+        if (field == null) {
+            throw new QueryException("Unknown field '" + name + "'");
+        }
+        if (field.isSensitive()) {
+            throw new QueryException("Cannot query " + field.getKey());
+        }
+        @Nullable Op op = this.acceptOp();
+        if (op == null) {
+            return new Term(field, null, null, null);
+        }
+        String token = this.next("value for " + name);
+        if (isSymbol(token)) {
+            throw new QueryException("Expected a value for " + name + " but found '" + token + "'");
+        }
+        String text = token.startsWith("\"") ? token.substring(1) : token;
+        switch (field.getType()) {
+            case BOOLEAN:
+                if (op != Op.EQ && op != Op.NE) {
+                    throw new QueryException("Cannot compare " + field.getKey() + " with " + op.text);
+                }
+                return new Term(field, op, text, this.parseBoolean(text));
+            case INTEGER:
+                return new Term(field, op, text, this.parseInteger(field, text));
+            case STRING_LIST:
+                if (op != Op.EQ && op != Op.NE) {
+                    throw new QueryException("Cannot compare " + field.getKey() + " with " + op.text);
+                }
+                return new Term(field, op, text, glob(text));
+            default:
+                return new Term(field, op, text, op == Op.EQ || op == Op.NE ? glob(text) : text);
+        }
+    }
+
+    private boolean parseBoolean(String text) throws QueryException {
+        switch (text.toLowerCase(Locale.ROOT)) {
+            case "true":
+            case "yes":
+                return true;
+            case "false":
+            case "no":
+                return false;
+            default:
+                throw new QueryException("Expected true or false but found '" + text + "'");
+        }
+    }
+
+    private long parseInteger(UserField field, String text) throws QueryException {
+        boolean date = field == UserField.EXPIRE || field == UserField.DATE;
+        try {
+            if (date && text.equalsIgnoreCase("today")) {
+                return this.today;
+            }
+            if (date && text.endsWith("d")) {
+                return this.today + Long.parseLong(text.substring(0, text.length() - 1));
+            }
+            if (date && text.indexOf('-', 1) > 0) {
+                return LocalDate.parse(text).toEpochDay();
+            }
+            return Long.parseLong(text);
+        }
+        catch (NumberFormatException | DateTimeParseException e) {
+            throw new QueryException("Bad value for " + field.getKey() + ": '" + text + "'", e);
+        }
+    }
+
+    /**
+     * @return A pattern for a value containing wildcards, else the value.
+     */
+    private static Object glob(String text) {
+        if (text.indexOf('*') < 0) {
+            return text;
+        }
+        StringBuilder regex = new StringBuilder();
+        for (String part : text.split("\\*", -1)) {
+            if (regex.length() > 0) {
+                regex.append(".*");
+            }
+            if (!part.isEmpty()) {
+                regex.append(Pattern.quote(part));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private String next(String expected) throws QueryException {
+        if (this.position >= this.tokens.size()) {
+            throw new QueryException("Expected " + expected + " at end of query");
+        }
+        return this.tokens.get(this.position++);
+    }
+
+    private boolean accept(String symbol) {
+        if (this.position < this.tokens.size() && this.tokens.get(this.position).equals(symbol)) {
+            this.position++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean acceptKeyword(String keyword) {
+        if (this.position < this.tokens.size() && this.tokens.get(this.position).equalsIgnoreCase(keyword)) {
+            this.position++;
+            return true;
+        }
+        return false;
+    }
+
+    private @Nullable Op acceptOp() {
+        if (this.position < this.tokens.size()) {
+            String token = this.tokens.get(this.position);
+            for (Op op : Op.values()) {
+                if (op.text.equals(token)) {
+                    this.position++;
+                    return op;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isSymbol(String token) {
+        return token.equals("(") || token.equals(")") || isOpChar(token.charAt(0));
+    }
+
+    private static boolean isOpChar(char c) {
+        return c == '=' || c == '!' || c == '<' || c == '>';
+    }
+
+    private static List<String> tokenize(String text) throws QueryException {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            }
+            else if (c == '(' || c == ')') {
+                tokens.add(String.valueOf(c));
+                i++;
+            }
+            else if (isOpChar(c)) {
+                int end = i + 1;
+                if (end < text.length() && text.charAt(end) == '=') {
+                    end++;
+                }
+                String op = text.substring(i, end);
+                if (op.equals("!")) {
+                    throw new QueryException("Unexpected '!' at position " + i);
+                }
+                tokens.add(op);
+                i = end;
+            }
+            else if (c == '"') {
+                StringBuilder value = new StringBuilder("\"");
+                i++;
+                while (true) {
+                    if (i >= text.length()) {
+                        throw new QueryException("Unterminated string");
+                    }
+                    char q = text.charAt(i++);
+                    if (q == '"') {
+                        break;
+                    }
+                    if (q == '\\' && i < text.length()) {
+                        q = text.charAt(i++);
+                    }
+                    value.append(q);
+                }
+                tokens.add(value.toString());
+            }
+            else {
+                int start = i;
+                while (i < text.length() && !Character.isWhitespace(text.charAt(i))
+                        && text.charAt(i) != '(' && text.charAt(i) != ')' && !isOpChar(text.charAt(i))) {
+                    i++;
+                }
+                tokens.add(text.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+    /** All children match */
+    private static final class And implements Predicate<User> {
+        private final List<Predicate<User>> children;
+
+        And(List<Predicate<User>> children) {
+            this.children = children;
+        }
+
+        @Override
+        public boolean test(User user) {
+            for (Predicate<User> child : this.children) {
+                if (!child.test(user)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** Any child matches */
+    private static final class Or implements Predicate<User> {
+        private final List<Predicate<User>> children;
+
+        Or(List<Predicate<User>> children) {
+            this.children = children;
+        }
+
+        @Override
+        public boolean test(User user) {
+            for (Predicate<User> child : this.children) {
+                if (child.test(user)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /** Compares a field with a value */
+    private static final class Term implements Predicate<User> {
+        private final UserField field;
+
+        /** Null to test that the field is true or set */
+        private final @Nullable Op op;
+
+        /** The value as written */
+        private final @Nullable String text;
+
+        /** The value: a Boolean, Long, String or Pattern */
+        private final @Nullable Object value;
+
+        Term(UserField field, @Nullable Op op, @Nullable String text, @Nullable Object value) {
+            this.field = field;
+            this.op = op;
+            this.text = text;
+            this.value = value;
+        }
+
+        @Override
+        public boolean test(User user) {
+            @Nullable Object actual = this.field.get(user);
+            Op o = this.op;
+            if (o == null) {
+                if (actual instanceof Boolean) {
+                    return (Boolean) actual;
+                }
+                if (actual instanceof Collection) {
+                    return !((Collection<?>) actual).isEmpty();
+                }
+                return actual != null && !actual.toString().isEmpty();
+            }
+            if (actual == null) {
+                return o == Op.NE;
+            }
+            if (actual instanceof Collection) {
+                boolean any = false;
+                for (Object element : (Collection<?>) actual) {
+                    if (this.matches(element.toString())) {
+                        any = true;
+                        break;
+                    }
+                }
+                return any == (o == Op.EQ);
+            }
+            if (actual instanceof Boolean) {
+                return actual.equals(this.value) == (o == Op.EQ);
+            }
+            int compared;
+            if (actual instanceof Integer) {
+                if (this.field == UserField.EXPIRE && (Integer) actual < 0 && o != Op.EQ && o != Op.NE) {
+                    // Never expires, so is before or after no date
+                    return false;
+                }
+                compared = Long.compare((Integer) actual, (Long) this.value);
+            }
+            else if (o == Op.EQ || o == Op.NE) {
+                return this.matches(actual.toString()) == (o == Op.EQ);
+            }
+            else {
+                compared = actual.toString().compareTo(String.valueOf(this.value));
+            }
+            switch (o) {
+                case EQ:
+                    return compared == 0;
+                case NE:
+                    return compared != 0;
+                case LT:
+                    return compared < 0;
+                case LE:
+                    return compared <= 0;
+                case GT:
+                    return compared > 0;
+                default:
+                    return compared >= 0;
+            }
+        }
+
+        private boolean matches(String actual) {
+            @Nullable Object v = this.value;
+            return v instanceof Pattern ? ((Pattern) v).matcher(actual).matches() : actual.equals(v);
+        }
+
+        /**
+         * @return The index lookup that finds every user matching this term, or null if none does.
+         */
+        @Nullable IndexTerm indexTerm() {
+            @Nullable Op o = this.op;
+            @Nullable String t = this.text;
+            @Nullable Object v = this.value;
+            if (o == null || t == null || v == null) {
+                return null;
+            }
+            switch (this.field) {
+                case NAME:
+                    if (o == Op.EQ) {
+                        int star = t.indexOf('*');
+                        String prefix = star < 0 ? t : t.substring(0, star);
+                        return prefix.isEmpty() ? null : IndexTerm.text(IndexTerm.Kind.NAME_PREFIX, prefix);
+                    }
+                    return null;
+                case UID:
+                    return o == Op.EQ ? IndexTerm.value(IndexTerm.Kind.UID, (Long) v) : null;
+                case GID:
+                    return o == Op.EQ ? IndexTerm.value(IndexTerm.Kind.GID, (Long) v) : null;
+                case GROUPS:
+                    return o == Op.EQ && v instanceof String ? IndexTerm.text(IndexTerm.Kind.GROUP, t) : null;
+                case SHELL:
+                    return o == Op.EQ && v instanceof String ? IndexTerm.text(IndexTerm.Kind.SHELL, t) : null;
+                case EXPIRE:
+                    // Negative dates mean never expires, so ranges start at the epoch
+                    long day = (Long) v;
+                    switch (o) {
+                        case EQ:
+                            return IndexTerm.value(IndexTerm.Kind.EXPIRE, day);
+                        case LT:
+                            return IndexTerm.range(IndexTerm.Kind.EXPIRE, 0, day);
+                        case LE:
+                            return IndexTerm.range(IndexTerm.Kind.EXPIRE, 0, day + 1);
+                        case GT:
+                            return IndexTerm.range(IndexTerm.Kind.EXPIRE, Math.max(0, day + 1), Long.MAX_VALUE);
+                        case GE:
+                            return IndexTerm.range(IndexTerm.Kind.EXPIRE, Math.max(0, day), Long.MAX_VALUE);
+                        default:
+                            return null;
+                    }
+                default:
+                    return null;
+            }
+        }
+    }
+}
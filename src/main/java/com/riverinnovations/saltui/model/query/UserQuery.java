@@ -0,0 +1,83 @@
+package com.riverinnovations.saltui.model.query;
+
+import com.riverinnovations.saltui.model.user.User;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * A filter over users written as text, for example
+ * <pre>
+ *     shell=/bin/bash AND group=wheel AND expire&lt;30d AND present
+ *     name=dev* OR (uid&gt;=2000 AND NOT system)
+ * </pre>
+ * See QueryParser for the syntax.
+ *
+ * Users.find() and UsersBatch.where() use the query's index terms to look up candidates
+ * in the most selective index, and test only those.
+ *
+ * Immutable and thread safe.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class UserQuery implements Predicate<User> {
+
+    /** The query as written */
+    private final String text;
+
+    /** The parsed query */
+    private final Predicate<User> predicate;
+
+    /** Conditions every matching user meets, which can be looked up in indexes */
+    private final List<IndexTerm> indexTerms;
+
+    private UserQuery(String text, Predicate<User> predicate) {
+        this.text = text;
+        this.predicate = predicate;
+        this.indexTerms = Collections.unmodifiableList(QueryParser.indexTerms(predicate));
+    }
+
+    /**
+     * Parses a query, taking relative dates from today.
+     * @param text The query.
+     * @return The query.
+     * @throws QueryException If the query is empty or not valid.
+     */
+    public static UserQuery parse(String text) throws QueryException {
+        return parse(text, LocalDate.now());
+    }
+
+    /**
+     * Parses a query.
+     * @param text The query.
+     * @param today The date relative dates such as 30d are from.
+     * @return The query.
+     * @throws QueryException If the query is empty or not valid.
+     */
+    public static UserQuery parse(String text, LocalDate today) throws QueryException {
+        return new UserQuery(text.trim(), new QueryParser(text, today).parse());
+    }
+
+    @Override
+    public boolean test(User user) {
+        return this.predicate.test(user);
+    }
+
+    /**
+     * @return Conditions that every matching user meets and that can be looked up in an index.
+     */
+    public List<IndexTerm> getIndexTerms() {
+        return indexTerms;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,140 @@
+package com.riverinnovations.saltui.model.ssh;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An SSH public key, as a line of an authorized_keys file without options:
+ * type, base64 key and optional comment. Immutable.
+ *
+ * Keys are identified by their fingerprint, the SHA256 of the key in the form
+ * ssh-keygen -l prints it, so two lines with the same key but different comments
+ * are the same key.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class SshKey {
+
+    /** Prefix of fingerprints */
+    public static final String FINGERPRINT_PREFIX = "SHA256:";
+
+    /** Key types Salt's ssh_auth accepts */
+    private static final Set<String> TYPES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "ssh-rsa", "ssh-dss", "ssh-ed25519",
+            "ecdsa-sha2-nistp256", "ecdsa-sha2-nistp384", "ecdsa-sha2-nistp521",
+            "sk-ssh-ed25519@openssh.com", "sk-ecdsa-sha2-nistp256@openssh.com")));
+
+    private final String type;
+
+    /** The key, base64 encoded */
+    private final String key;
+
+    private final @Nullable String comment;
+
+    private final String fingerprint;
+
+    private SshKey(String type, String key, @Nullable String comment, String fingerprint) {
+        this.type = type;
+        this.key = key;
+        this.comment = comment;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Parses a public key, as in an id_*.pub or authorized_keys file.
+     * @param line The key: type, base64 key and optional comment.
+     * @throws SshKeyException If the line is not a public key, or has options before it.
+     */
+    public static SshKey parse(String line) throws SshKeyException {
+        String[] parts = line.trim().split("\\s+", 3);
+        if (!TYPES.contains(parts[0])) {
+            throw new SshKeyException("Not an SSH public key, or has options: "
+                                      + (parts[0].length() > 20 ? parts[0].substring(0, 20) + "..." : parts[0]));
+        }
+        if (parts.length < 2) {
+            throw new SshKeyException("No key after " + parts[0]);
+        }
+        byte[] blob;
+        try {
+            blob = Base64.getDecoder().decode(parts[1]);
+        }
+        catch (IllegalArgumentException e) {
+            throw new SshKeyException("Bad base64 in " + parts[0] + " key: " + e.getMessage(), e);
+        }
+        // The key starts with its type, as a length prefixed string
+        ByteBuffer buffer = ByteBuffer.wrap(blob);
+        int length = blob.length >= 4 ? buffer.getInt() : -1;
+        if (length < 0 || length > buffer.remaining()
+            || !parts[0].equals(new String(blob, 4, length, StandardCharsets.US_ASCII))) {
+            throw new SshKeyException("Key is not of type " + parts[0]);
+        }
+        @Nullable String comment = parts.length > 2 ? parts[2].trim() : null;
+        return new SshKey(parts[0], parts[1], comment, fingerprint(blob));
+    }
+
+    private static String fingerprint(byte[] blob) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(blob);
+            return FINGERPRINT_PREFIX + Base64.getEncoder().withoutPadding().encodeToString(digest);
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every JRE has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public @Nullable String getComment() {
+        return comment;
+    }
+
+    /**
+     * @return The fingerprint, e.g. SHA256:nThbg6kXUpJWGl7E1IGOCspRomTxdCARLviKw6E5SY8
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return The key as a line of an authorized_keys file.
+     */
+    public String toLine() {
+        return this.type + " " + this.key + (this.comment == null ? "" : " " + this.comment);
+    }
+
+    @Override
+    public boolean equals(@Nullable Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return fingerprint.equals(((SshKey) o).fingerprint);
+    }
+
+    @Override
+    public int hashCode() {
+        return fingerprint.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return this.type + " " + this.fingerprint + (this.comment == null ? "" : " " + this.comment);
+    }
+}
@@ -0,0 +1,18 @@
+package com.riverinnovations.saltui.model.ssh;
+
+import com.riverinnovations.saltui.model.ModelException;
+
+/**
+ * Thrown when an SSH public key cannot be parsed, or a stored key is unknown or corrupt.
+ */
+public class SshKeyException extends ModelException {
+
+    public SshKeyException(String s) {
+        super(s);
+    }
+
+    public SshKeyException(String s, Throwable throwable) {
+        super(s, throwable);
+    }
+
+}
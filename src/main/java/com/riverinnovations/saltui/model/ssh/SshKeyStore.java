@@ -0,0 +1,160 @@
+package com.riverinnovations.saltui.model.ssh;
+
+import com.riverinnovations.saltui.model.yaml.AtomicFile;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds SSH public keys by their fingerprints, so that users refer to keys by fingerprint
+ * and a key trusted by many accounts is held once.
+ *
+ * Each key is a file in the directory named by the hex of its fingerprint, written once
+ * and never changed, so stores in several instances can share the directory without
+ * locking. Keys are never deleted, so users restored from the history still find theirs.
+ * Keys read are kept in memory.
+ *
+ * Thread safe.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class SshKeyStore {
+
+    /** Key of the keys by fingerprint in the pillar, which the states refer to */
+    public static final String PILLAR_KEY = "ssh_keys";
+
+    /** Suffix of the key files */
+    private static final String SUFFIX = ".pub";
+
+    private final Path directory;
+
+    /** Keys read or stored, by fingerprint */
+    private final Map<String, SshKey> keys = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     * @param directory The directory of keys, created when the first key is stored.
+     */
+    public SshKeyStore(Path directory) {
+        this.directory = directory;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Stores a key, unless a key with its fingerprint is already stored.
+     * @return The key as stored, which has the comment of whichever line was stored first.
+     */
+    public SshKey put(SshKey key) throws IOException, SshKeyException {
+        @Nullable SshKey stored = this.keys.get(key.getFingerprint());
+        if (stored != null) {
+            return stored;
+        }
+        Path file = this.fileOf(key.getFingerprint());
+        if (Files.exists(file)) {
+            stored = read(file, key.getFingerprint());
+        }
+        else {
+            Files.createDirectories(this.directory);
+            AtomicFile.write(file, w -> w.write(key.toLine() + "\n"));
+            stored = key;
+        }
+        @Nullable SshKey raced = this.keys.putIfAbsent(key.getFingerprint(), stored);
+        return raced == null ? stored : raced;
+    }
+
+    /**
+     * @return The key with the fingerprint.
+     * @throws SshKeyException If there is no such key, or its file is corrupt.
+     */
+    public SshKey get(String fingerprint) throws IOException, SshKeyException {
+        @Nullable SshKey key = this.keys.get(fingerprint);
+        if (key == null) {
+            Path file = this.fileOf(fingerprint);
+            if (!Files.exists(file)) {
+                throw new SshKeyException("Unknown SSH key " + fingerprint);
+            }
+            key = read(file, fingerprint);
+            @Nullable SshKey raced = this.keys.putIfAbsent(fingerprint, key);
+            if (raced != null) {
+                key = raced;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * @return True if a key with the fingerprint is stored.
+     */
+    public boolean contains(String fingerprint) {
+        try {
+            return this.keys.containsKey(fingerprint) || Files.exists(this.fileOf(fingerprint));
+        }
+        catch (SshKeyException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Looks up keys for the pillar.
+     * @param fingerprints The fingerprints; duplicates are fine.
+     * @return The authorized_keys line of each key, sorted by fingerprint.
+     * @throws SshKeyException If any key is unknown.
+     */
+    public Map<String, String> lines(Collection<String> fingerprints) throws IOException, SshKeyException {
+        Map<String, String> lines = new TreeMap<>();
+        for (String fingerprint : fingerprints) {
+            if (!lines.containsKey(fingerprint)) {
+                lines.put(fingerprint, this.get(fingerprint).toLine());
+            }
+        }
+        return lines;
+    }
+
+    private static SshKey read(Path file, String fingerprint) throws IOException, SshKeyException {
+        SshKey key = SshKey.parse(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        if (!key.getFingerprint().equals(fingerprint)) {
+            throw new SshKeyException("SSH key file " + file + " holds " + key.getFingerprint()
+                                      + " not " + fingerprint);
+        }
+        return key;
+    }
+
+    /**
+     * @return The file of the key with the fingerprint.
+     * @throws SshKeyException If the fingerprint is not a SHA256 fingerprint.
+     */
+    private Path fileOf(String fingerprint) throws SshKeyException {
+        byte[] digest;
+        try {
+            digest = fingerprint.startsWith(SshKey.FINGERPRINT_PREFIX)
+                    ? Base64.getDecoder().decode(fingerprint.substring(SshKey.FINGERPRINT_PREFIX.length()))
+                    : new byte[0];
+        }
+        catch (IllegalArgumentException e) {
+            digest = new byte[0];
+        }
+        if (digest.length != 32) {
+            throw new SshKeyException("Not a SHA256 SSH key fingerprint: " + fingerprint);
+        }
+        StringBuilder name = new StringBuilder(digest.length * 2 + SUFFIX.length());
+        for (byte b : digest) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return this.directory.resolve(name.append(SUFFIX).toString());
+    }
+}
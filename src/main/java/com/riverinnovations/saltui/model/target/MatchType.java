@@ -0,0 +1,46 @@
+package com.riverinnovations.saltui.model.target;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+/**
+ * How a target expression selects minions, as written in a Salt top file.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public enum MatchType {
+
+    /** Minion ID glob, e.g. web* */
+    GLOB("glob"),
+
+    /** Grain value, e.g. os:Ubuntu */
+    GRAIN("grain"),
+
+    /** Nodegroup defined in the master configuration */
+    NODEGROUP("nodegroup");
+
+    /** The name used in top files */
+    private final String key;
+
+    MatchType(String key) {
+        this.key = key;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return The match type with the key, or null if there is none.
+     */
+    public static @Nullable MatchType forKey(String key) {
+        for (MatchType type : values()) {
+            if (type.key.equals(key)) {
+                return type;
+            }
+        }
+        return null;
+    }
+}
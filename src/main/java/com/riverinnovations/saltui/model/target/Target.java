@@ -0,0 +1,136 @@
+package com.riverinnovations.saltui.model.target;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+/**
+ * A named group of minions that users can be assigned to.
+ * Immutable.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class Target {
+
+    /** Names become file names and SLS names, so are kept simple */
+    private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z0-9_-]+");
+
+    /** The name users are assigned by */
+    private final String name;
+
+    /** How the expression selects minions */
+    private final MatchType matchType;
+
+    /** The expression, e.g. web* */
+    private final String expression;
+
+    /** The expression as a pattern over minion IDs, for glob targets */
+    private final @Nullable Pattern minionPattern;
+
+    /**
+     * Constructor.
+     * @throws TargetException If the name or expression is not valid.
+     */
+    public Target(String name, MatchType matchType, String expression) throws TargetException {
+        if (!NAME_PATTERN.matcher(name).matches()) {
+            throw new TargetException("Invalid target name '" + name + "'");
+        }
+        if (expression.trim().isEmpty()) {
+            throw new TargetException("Target '" + name + "' has no expression");
+        }
+        this.name = name;
+        this.matchType = matchType;
+        this.expression = expression;
+        this.minionPattern = matchType == MatchType.GLOB ? globPattern(expression) : null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public MatchType getMatchType() {
+        return matchType;
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * @return The name of the SLS file for this target, e.g. saltui.users.web
+     */
+    public String getSlsName() {
+        return "saltui.users." + this.name;
+    }
+
+    /**
+     * Matches a minion ID against the target as the master would. Only glob targets can be
+     * matched by ID alone; grain and nodegroup targets need the master, so never match.
+     * @return True if this is a glob target and it matches the minion.
+     */
+    public boolean matchesMinion(String minionId) {
+        @Nullable Pattern p = this.minionPattern;
+        return p != null && p.matcher(minionId).matches();
+    }
+
+    /**
+     * Converts a shell style glob, as Salt matches minion IDs with, to a pattern:
+     * * and ? match any characters, [abc] and [!abc] a set.
+     */
+    private static Pattern globPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int i = 0;
+        while (i < glob.length()) {
+            char c = glob.charAt(i);
+            int close = c == '[' ? glob.indexOf(']', i + 2) : -1;
+            if (c == '*') {
+                regex.append(".*");
+            }
+            else if (c == '?') {
+                regex.append('.');
+            }
+            else if (close > 0) {
+                String set = glob.substring(i + 1, close);
+                boolean negate = set.startsWith("!");
+                regex.append(negate ? "[^" : "[");
+                for (char m : (negate ? set.substring(1) : set).toCharArray()) {
+                    if ("\\^[]&".indexOf(m) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(m);
+                }
+                regex.append(']');
+                i = close;
+            }
+            else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+            i++;
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    @Override
+    public boolean equals(@Nullable Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Target target = (Target) o;
+        return Objects.equals(name, target.name) &&
+                matchType == target.matchType &&
+                Objects.equals(expression, target.expression);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, matchType, expression);
+    }
+
+    @Override
+    public String toString() {
+        return this.name + " (" + this.matchType.getKey() + " " + this.expression + ")";
+    }
+}
@@ -0,0 +1,18 @@
+package com.riverinnovations.saltui.model.target;
+
+import com.riverinnovations.saltui.model.ModelException;
+
+/**
+ * Thrown when targets are badly defined, or a user is assigned to a target that doesn't exist.
+ */
+public class TargetException extends ModelException {
+
+    public TargetException(String s) {
+        super(s);
+    }
+
+    public TargetException(String s, Throwable throwable) {
+        super(s, throwable);
+    }
+
+}
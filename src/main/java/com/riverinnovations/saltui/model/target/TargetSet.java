@@ -0,0 +1,152 @@
+package com.riverinnovations.saltui.model.target;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+import org.yaml.snakeyaml.error.YAMLException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The targets users can be assigned to, in the order they are written to top files.
+ * Always contains the default target, which has every user not assigned to a target.
+ * Immutable.
+ *
+ * The YAML form maps each name to its match type and expression:
+ * <pre>
+ * web:
+ *   match: glob
+ *   tgt: "web*"
+ * </pre>
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class TargetSet {
+
+    /** Name of the default target */
+    public static final String DEFAULT_NAME = "all";
+
+    /** Keys in the YAML form */
+    private static final String MATCH_KEY = "match";
+    private static final String TGT_KEY = "tgt";
+
+    /** Targets by name */
+    private final Map<String, Target> targets = new LinkedHashMap<>();
+
+    /**
+     * Constructor. The default target, matching every minion, is added first unless
+     * one named "all" is given.
+     * @throws TargetException If two targets have the same name or the same expression, even with
+     *                         different match types, as top files are keyed by the expression alone.
+     */
+    public TargetSet(Collection<Target> targets) throws TargetException {
+        boolean hasDefault = false;
+        for (Target target : targets) {
+            hasDefault |= target.getName().equals(DEFAULT_NAME);
+        }
+        List<Target> all = new ArrayList<>(targets.size() + 1);
+        if (!hasDefault) {
+            all.add(new Target(DEFAULT_NAME, MatchType.GLOB, "*"));
+        }
+        all.addAll(targets);
+
+        Set<String> expressions = new HashSet<>();
+        for (Target target : all) {
+            if (this.targets.put(target.getName(), target) != null) {
+                throw new TargetException("Duplicate target '" + target.getName() + "'");
+            }
+            if (!expressions.add(target.getExpression())) {
+                throw new TargetException("Target '" + target.getName() + "' has the same expression as another: "
+                                          + target.getExpression());
+            }
+        }
+    }
+
+    /**
+     * @return A set holding just the default target.
+     */
+    public static TargetSet defaultOnly() {
+        try {
+            return new TargetSet(Collections.emptyList());
+        }
+        catch (TargetException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Loads targets from a YAML file.
+     * @throws TargetException If the file is not in the form described above.
+     */
+    public static TargetSet load(Path path) throws IOException, TargetException {
+        @Nullable Object parsed;
+        try (InputStream istr = Files.newInputStream(path)) {
+            parsed = new Yaml(new SafeConstructor()).load(istr);
+        }
+        catch (YAMLException e) {
+            throw new TargetException("Cannot parse targets in " + path + ": " + e.getMessage(), e);
+        }
+        if (parsed == null) {
+            return defaultOnly();
+        }
+        if (!(parsed instanceof Map)) {
+            throw new TargetException("Targets in " + path + " are not a map");
+        }
+        List<Target> targets = new ArrayList<>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) parsed).entrySet()) {
+            String name = String.valueOf(entry.getKey());
+            if (!(entry.getValue() instanceof Map)) {
+                throw new TargetException("Target '" + name + "' is not a map");
+            }
+            Map<?, ?> map = (Map<?, ?>) entry.getValue();
+            @Nullable Object match = map.get(MATCH_KEY);
+            @Nullable MatchType matchType = match == null ? MatchType.GLOB : MatchType.forKey(match.toString());
+            if (matchType == null) {
+                throw new TargetException("Target '" + name + "' has unknown match type '" + match + "'");
+            }
+            @Nullable Object tgt = map.get(TGT_KEY);
+            if (tgt == null) {
+                throw new TargetException("Target '" + name + "' has no " + TGT_KEY);
+            }
+            targets.add(new Target(name, matchType, tgt.toString()));
+        }
+        return new TargetSet(targets);
+    }
+
+    /**
+     * @return The target with the name, or null if there is none.
+     */
+    public @Nullable Target get(String name) {
+        return this.targets.get(name);
+    }
+
+    public Target getDefault() {
+        Target target = this.targets.get(DEFAULT_NAME);
+        if (target == null) {
+            throw new IllegalStateException("No default target");
+        }
+        return target;
+    }
+
+    /**
+     * @return The targets, default first unless defined explicitly.
+     */
+    public Collection<Target> getTargets() {
+        return Collections.unmodifiableCollection(this.targets.values());
+    }
+}
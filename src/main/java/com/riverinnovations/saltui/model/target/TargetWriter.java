@@ -0,0 +1,356 @@
+package com.riverinnovations.saltui.model.target;
+
+import com.riverinnovations.saltui.metrics.Metrics;
+import com.riverinnovations.saltui.metrics.Timer;
+import com.riverinnovations.saltui.model.ssh.SshKeyStore;
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.Users;
+import com.riverinnovations.saltui.model.yaml.AtomicFile;
+import com.riverinnovations.saltui.model.yaml.UserState;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes a state file and a pillar file for each target, and top files assigning them
+ * to minions, so that each minion only receives the users assigned to it.
+ *
+ * For state root S and pillar root P, target web is written to S/saltui/users/web.sls
+ * and P/saltui/users/web.sls, and the top files to S/top.sls and P/top.sls. The roots
+ * should be dedicated to this application, as the top files are replaced on every save.
+ *
+ * A user assigned to several targets is rendered once and the text shared between
+ * the targets. The state for each user is also kept between saves until the user
+ * changes, so a save only renders the users that have changed.
+ *
+ * Thread safe, though saves should be serialised so that files are not written out of order.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class TargetWriter {
+
+    /** Prefix of state IDs, followed by the target and user name */
+    public static final String STATE_ID_PREFIX = "saltui-users-";
+
+    /** Environment in the top files */
+    public static final String ENVIRONMENT = "base";
+
+    /** Name of the top files */
+    public static final String TOP_FILE = "top.sls";
+
+    /** Directory under each root holding the files for the targets */
+    private static final List<String> DIRECTORY = Collections.unmodifiableList(Arrays.asList("saltui", "users"));
+
+    /** Suffix of SLS files */
+    private static final String SLS_SUFFIX = ".sls";
+
+    /** Each line of a user's state or pillar is indented by this under its key */
+    private static final String INDENT = "  ";
+
+    /** Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(TargetWriter.class);
+
+    /** Time to render and write the target files */
+    private static final Timer RENDER_TIMER = Metrics.get().timer("targets.render");
+    private static final Timer WRITE_TIMER = Metrics.get().timer("targets.write");
+
+    /** Root of the state tree */
+    private final Path stateRoot;
+
+    /** Root of the pillar tree */
+    private final Path pillarRoot;
+
+    /** The targets */
+    private volatile TargetSet targets;
+
+    /** Rendered state for each user, kept until the user changes */
+    private final Map<String, RenderedState> stateCache = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     * @param stateRoot Root of the state tree, e.g. /srv/salt/saltui
+     * @param pillarRoot Root of the pillar tree, e.g. /srv/pillar/saltui
+     * @param targets The targets users can be assigned to.
+     */
+    public TargetWriter(Path stateRoot, Path pillarRoot, TargetSet targets) {
+        this.stateRoot = stateRoot;
+        this.pillarRoot = pillarRoot;
+        this.targets = targets;
+    }
+
+    public TargetSet getTargets() {
+        return targets;
+    }
+
+    public void setTargets(TargetSet targets) {
+        this.targets = targets;
+    }
+
+    public Path getStateRoot() {
+        return stateRoot;
+    }
+
+    public Path getPillarRoot() {
+        return pillarRoot;
+    }
+
+    /**
+     * @return The state or pillar file for the target under the root.
+     */
+    public static Path slsFile(Path root, Target target) {
+        return directory(root).resolve(target.getName() + SLS_SUFFIX);
+    }
+
+    private static Path directory(Path root) {
+        Path dir = root;
+        for (String part : DIRECTORY) {
+            dir = dir.resolve(part);
+        }
+        return dir;
+    }
+
+    /**
+     * Renders every file without writing anything, so that a bad assignment is found
+     * before any file is changed.
+     * @param users The users.
+     * @param pillarUsers The pillar entry of each user by name, with the passwords encrypted.
+     * @param sshKeys The authorized_keys line of each SSH key the users refer to, by fingerprint.
+     * @return The contents of each file.
+     * @throws TargetException If a user is assigned to a target that doesn't exist.
+     */
+    public Map<Path, String> render(Users users,
+                                    Map<String, Map<String, @Nullable Object>> pillarUsers,
+                                    Map<String, String> sshKeys)
+    throws TargetException {
+        Timer.Context renderTiming = RENDER_TIMER.time();
+        try {
+            TargetSet set = this.targets;
+            Yaml yaml = new Yaml(UserState.createDumperOptions());
+
+            // Share out the users once, sorted so that the files only change when the users do
+            List<User> sorted = new ArrayList<>(users.getUsers());
+            sorted.sort(Comparator.comparing(User::getName));
+            Map<String, List<User>> byTarget = new HashMap<>();
+            for (Target target : set.getTargets()) {
+                byTarget.put(target.getName(), new ArrayList<>());
+            }
+            for (User user : sorted) {
+                List<String> names = user.getTargets().isEmpty()
+                        ? Collections.singletonList(TargetSet.DEFAULT_NAME)
+                        : user.getTargets();
+                for (String name : names) {
+                    @Nullable List<User> targetUsers = byTarget.get(name);
+                    if (targetUsers == null) {
+                        throw new TargetException("User '" + user.getName() + "' is assigned to unknown target '"
+                                                  + name + "'");
+                    }
+                    targetUsers.add(user);
+                }
+            }
+
+            // Pillars hold encrypted passwords, which change on every save, so are only shared within it
+            Map<String, String> pillarCache = new HashMap<>();
+            Map<Path, String> files = new LinkedHashMap<>();
+            for (Target target : set.getTargets()) {
+                List<User> targetUsers = byTarget.get(target.getName());
+                StringBuilder state = new StringBuilder();
+                StringBuilder pillar = new StringBuilder();
+                Map<String, String> targetKeys = new TreeMap<>();
+                for (User user : targetUsers) {
+                    String id = STATE_ID_PREFIX + target.getName() + "-" + user.getName();
+                    RenderedState rendered = this.stateBody(users, user, yaml);
+                    state.append(yaml.dump(id).trim()).append(":\n");
+                    state.append(rendered.text);
+                    if (rendered.revoked != null) {
+                        state.append(yaml.dump(id + User.REVOKED_SSH_STATE_SUFFIX).trim()).append(":\n");
+                        state.append(rendered.revoked);
+                    }
+
+                    @Nullable String fragment = pillarCache.get(user.getName());
+                    if (fragment == null) {
+                        @Nullable Map<String, @Nullable Object> pillarUser = pillarUsers.get(user.getName());
+                        if (pillarUser == null) {
+                            throw new TargetException("No pillar entry for user '" + user.getName() + "'");
+                        }
+                        fragment = indent(yaml.dump(Collections.singletonMap(user.getName(), pillarUser)));
+                        pillarCache.put(user.getName(), fragment);
+                    }
+                    pillar.append(fragment);
+                    addSshKeys(user, sshKeys, targetKeys);
+                }
+                files.put(slsFile(this.stateRoot, target), state.length() == 0 ? "{}\n" : state.toString());
+                String pillarText = pillar.length() == 0 ? "users: {}\n" : "users:\n" + pillar;
+                if (!targetKeys.isEmpty()) {
+                    // Another block mapping, forming a single mapping with the users
+                    pillarText += yaml.dump(Collections.singletonMap(SshKeyStore.PILLAR_KEY, targetKeys));
+                }
+                files.put(slsFile(this.pillarRoot, target), pillarText);
+            }
+
+            String top = this.renderTop(set, yaml);
+            files.put(this.stateRoot.resolve(TOP_FILE), top);
+            files.put(this.pillarRoot.resolve(TOP_FILE), top);
+
+            // Forget users that have gone
+            Set<String> names = new HashSet<>();
+            for (User user : sorted) {
+                names.add(user.getName());
+            }
+            this.stateCache.keySet().retainAll(names);
+            return files;
+        }
+        finally {
+            renderTiming.stop();
+        }
+    }
+
+    /**
+     * @return The user's states, indented to go under their IDs, rendering them only if the user has changed.
+     *         The fingerprint leaves out the password, so whether there is one is checked as well.
+     */
+    private RenderedState stateBody(Users users, User user, Yaml yaml) {
+        @Nullable Long fingerprint = users.getFingerprint(user.getName());
+        boolean managedPassword = user.hasManagedPassword();
+        @Nullable RenderedState cached = this.stateCache.get(user.getName());
+        if (fingerprint != null && cached != null && cached.fingerprint == fingerprint
+            && cached.managedPassword == managedPassword) {
+            return cached;
+        }
+        @Nullable Map<String, List<Map<String, @Nullable Object>>> revoked = user.toRevokedSshStateMap();
+        RenderedState rendered = new RenderedState(fingerprint == null ? 0 : fingerprint,
+                                                   managedPassword,
+                                                   indent(yaml.dump(user.toStateMap())),
+                                                   revoked == null ? null : indent(yaml.dump(revoked)));
+        if (fingerprint != null) {
+            this.stateCache.put(user.getName(), rendered);
+        }
+        return rendered;
+    }
+
+    /**
+     * Adds the SSH keys the user's state refers to, so that each target's pillar holds just its own keys.
+     */
+    private static void addSshKeys(User user, Map<String, String> sshKeys, Map<String, String> targetKeys)
+    throws TargetException {
+        List<String> fingerprints = new ArrayList<>(user.getSshKeys());
+        fingerprints.addAll(user.getRevokedSshKeys());
+        for (String fingerprint : fingerprints) {
+            @Nullable String line = sshKeys.get(fingerprint);
+            if (line == null) {
+                throw new TargetException("User '" + user.getName() + "' has unknown SSH key " + fingerprint);
+            }
+            targetKeys.put(fingerprint, line);
+        }
+    }
+
+    /**
+     * @return The top file assigning each target's SLS to its minions.
+     */
+    private String renderTop(TargetSet set, Yaml yaml) {
+        Map<String, List<Object>> environment = new LinkedHashMap<>();
+        for (Target target : set.getTargets()) {
+            List<Object> entries = new ArrayList<>(2);
+            if (target.getMatchType() != MatchType.GLOB) {
+                entries.add(Collections.singletonMap("match", target.getMatchType().getKey()));
+            }
+            entries.add(target.getSlsName());
+            environment.put(target.getExpression(), entries);
+        }
+        return yaml.dump(Collections.singletonMap(ENVIRONMENT, environment));
+    }
+
+    /**
+     * Writes the rendered files, each atomically, and deletes the files of targets
+     * that no longer exist.
+     * @param files The files from render().
+     */
+    public void write(Map<Path, String> files) throws IOException {
+        Timer.Context writeTiming = WRITE_TIMER.time();
+        try {
+            for (Map.Entry<Path, String> entry : files.entrySet()) {
+                Path parent = entry.getKey().getParent();
+                if (parent != null) {
+                    Files.createDirectories(parent);
+                }
+                String text = entry.getValue();
+                AtomicFile.write(entry.getKey(), w -> w.write(text));
+            }
+            this.deleteStale(directory(this.stateRoot), files);
+            this.deleteStale(directory(this.pillarRoot), files);
+        }
+        finally {
+            writeTiming.stop();
+        }
+    }
+
+    private void deleteStale(Path dir, Map<Path, String> files) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SLS_SUFFIX)) {
+            for (Path path : stream) {
+                if (!files.containsKey(path)) {
+                    LOGGER.info("Deleting file of removed target: " + path);
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Indents every line.
+     */
+    private static String indent(String text) {
+        StringBuilder sb = new StringBuilder(text.length() + 64);
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            end = end < 0 ? text.length() : end + 1;
+            sb.append(INDENT).append(text, start, end);
+            start = end;
+        }
+        if (sb.length() > 0 && sb.charAt(sb.length() - 1) != '\n') {
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /** A user's rendered states, and the fingerprint of the user and whether it had a password when rendered */
+    private static final class RenderedState {
+        private final long fingerprint;
+        private final boolean managedPassword;
+        private final String text;
+        private final @Nullable String revoked;
+
+        private RenderedState(long fingerprint, boolean managedPassword, String text, @Nullable String revoked) {
+            this.fingerprint = fingerprint;
+            this.managedPassword = managedPassword;
+            this.text = text;
+            this.revoked = revoked;
+        }
+    }
+}
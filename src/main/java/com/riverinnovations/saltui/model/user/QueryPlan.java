@@ -0,0 +1,77 @@
+package com.riverinnovations.saltui.model.user;
+
+import com.riverinnovations.saltui.model.query.IndexTerm;
+import com.riverinnovations.saltui.model.query.UserQuery;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.Set;
+
+/**
+ * How a query finds its candidates: from the most selective of its index terms, or by
+ * testing every user when none is selective enough.
+ *
+ * Not thread safe: planned and used under the lock in Users.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+final class QueryPlan {
+
+    /** An index matching more than this fraction of the users is no cheaper than testing them all */
+    private static final int SCAN_DIVISOR = 4;
+
+    /** The index term used, or null to test every user */
+    private final @Nullable IndexTerm index;
+
+    /** The candidates found in the index, or null to test every user */
+    private final @Nullable Set<String> names;
+
+    /** The number of users indexed */
+    private final int total;
+
+    private QueryPlan(@Nullable IndexTerm index, @Nullable Set<String> names, int total) {
+        this.index = index;
+        this.names = names;
+        this.total = total;
+    }
+
+    /**
+     * Picks the index term with the fewest matching users. Counting stops at the best so
+     * far, so a poor index is never counted in full.
+     */
+    static QueryPlan plan(UserQuery query, UsersIndexes indexes) {
+        int total = indexes.size();
+        int limit = total / SCAN_DIVISOR;
+        @Nullable IndexTerm best = null;
+        for (IndexTerm term : query.getIndexTerms()) {
+            int count = indexes.count(term, limit);
+            if (count < limit || (count == 0 && best == null)) {
+                best = term;
+                limit = count;
+            }
+        }
+        if (best == null) {
+            return new QueryPlan(null, null, total);
+        }
+        return new QueryPlan(best, indexes.names(best), total);
+    }
+
+    /**
+     * @return The names of the candidates, or null if every user must be tested.
+     */
+    @Nullable Set<String> getNames() {
+        return names;
+    }
+
+    @Override
+    public String toString() {
+        Set<String> n = this.names;
+        if (this.index == null || n == null) {
+            return "scan of " + this.total + " users";
+        }
+        return "index " + this.index + " (" + n.size() + " of " + this.total + " users)";
+    }
+}
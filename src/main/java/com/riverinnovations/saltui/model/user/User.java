@@ -2,9 +2,9 @@ package com.riverinnovations.saltui.model.user;
 
 import com.riverinnovations.saltui.model.BadYamlException;
 import com.riverinnovations.saltui.model.gpg.GpgEncryptionException;
-import com.riverinnovations.saltui.model.gpg.GpgEncryptor;
+import com.riverinnovations.saltui.model.gpg.SecretEncryptor;
+import com.riverinnovations.saltui.model.ssh.SshKeyStore;
 
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.framework.qual.DefaultQualifier;
@@ -12,10 +12,15 @@ import org.checkerframework.framework.qual.DefaultQualifier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -36,51 +41,40 @@ public class User {
     /** Logger */
     private static final Logger LOGGER = LoggerFactory.getLogger(User.class);
 
-    // Names for SaltStack user state parameters
-    private static final String UID = "uid";
-    private static final String GID = "gid";
-    private static final String GID_FROM_NAME = "gid_from_name";
-    private static final String SYSTEM = "system";
-    private static final String HOME = "home";
-    private static final String CREATEHOME = "createhome";
-    private static final String HASH_PASSWORD = "hash_password";
-    private static final String ENFORCE_PASSWORD = "enforce_password";
-    private static final String PASSWORD = "password";
+    /** The state password refers to the encrypted password in the pillar */
     private static final String PASSWORD_PILLAR_REF = "{{ pillar['users']['%s']['password'] }}";
-    private static final String SHELL = "shell";
-    private static final String FULLNAME = "fullname";
-    private static final String ROOMNUMBER = "roomnumber";
-    private static final String WORKPHONE = "workphone";
-    private static final String HOMEPHONE = "homephone";
-    private static final String OTHER = "other";
-    private static final String DATE = "date";
-    private static final String MINDAYS = "mindays";
-    private static final String MAXDAYS = "maxdays";
-    private static final String INACTDAYS = "inactdays";
-    private static final String WARNDAYS = "warndays";
-    private static final String EXPIRE = "expire";
-    private static final String WIN_HOMEDRIVE = "win_homedrive";
-    private static final String WIN_PROFILE = "win_profile";
-    private static final String WIN_LOGONSCRIPT = "win_logonscript";
-    private static final String WIN_DESCRIPTION = "win_description";
-    private static final String PURGE = "purge";
-    private static final String FORCE = "force";
+
+    /** The states refer to SSH keys in the pillar by fingerprint */
+    private static final String SSH_KEY_PILLAR_REF = "{{ pillar['" + SshKeyStore.PILLAR_KEY + "']['%s'] }}";
 
     // States
     private static final String STATE_USER_PRESENT = "user.present";
     private static final String STATE_USER_ABSENT = "user.absent";
+    private static final String STATE_SSH_AUTH_PRESENT = "ssh_auth.present";
+    private static final String STATE_SSH_AUTH_ABSENT = "ssh_auth.absent";
 
-    // Groups to be a member of
-    private static final String GROUPS = "groups";
+    /**
+     * Added to a user's state ID for the ID revoking their SSH keys, as Salt allows
+     * each state module only once under an ID.
+     */
+    public static final String REVOKED_SSH_STATE_SUFFIX = "-ssh-revoked";
 
     // Default values
-    private static final boolean DEFAULT_GID_FROM_NAME = false;
-    private static final boolean DEFAULT_CREATEHOME = true;
-    private static final boolean DEFAULT_SYSTEM = false;
-    private static final boolean DEFAULT_HASH_PASSWORD = false;
-    private static final boolean DEFAULT_ENFORCE_PASSWORD = true;
-    private static final boolean DEFAULT_ABSENT_PURGE = false;
-    private static final boolean DEFAULT_ABSENT_FORCE = false;
+    static final boolean DEFAULT_GID_FROM_NAME = false;
+    static final boolean DEFAULT_CREATEHOME = true;
+    static final boolean DEFAULT_SYSTEM = false;
+    static final boolean DEFAULT_HASH_PASSWORD = false;
+    static final boolean DEFAULT_ENFORCE_PASSWORD = true;
+    static final boolean DEFAULT_ABSENT_PURGE = false;
+    static final boolean DEFAULT_ABSENT_FORCE = false;
+
+    // Type tags for values in the fingerprint digest
+    private static final byte DIGEST_NULL = 0;
+    private static final byte DIGEST_STRING = 1;
+    private static final byte DIGEST_INTEGER = 2;
+    private static final byte DIGEST_BOOLEAN = 3;
+    private static final byte DIGEST_LIST = 4;
+    private static final byte DIGEST_OTHER = 5;
 
     /** The name of the user - must be unique */
     private final String name;
@@ -94,6 +88,12 @@ public class User {
     /** The plain-text password for use on Windows machines, or to hash for UNIX machines */
     private @Nullable String passwordPlain;
 
+    /**
+     * The password encrypted for the pillar, as loaded or as last encrypted, so that it is
+     * never encrypted again; null if there is no password or the plain text one is new.
+     */
+    private @Nullable String passwordEncrypted;
+
     /** Whether to hash the plaintext password for UNIX machines */
     private boolean hashPassword = DEFAULT_HASH_PASSWORD;
 
@@ -175,10 +175,61 @@ public class User {
     /** Groups that this user is a member of */
     private final List<String> groups = new ArrayList<>();
 
+    /** Names of the targets whose minions have this user; empty for the default target */
+    private final List<String> targets = new ArrayList<>();
+
+    /** Fingerprints of the SSH keys that can log in as this user */
+    private final List<String> sshKeys = new ArrayList<>();
+
+    /** Fingerprints of SSH keys to remove from this user's authorized keys */
+    private final List<String> revokedSshKeys = new ArrayList<>();
+
     public User(String name) {
         this.name = name;
     }
 
+    /**
+     * @return A copy of this user, including the encrypted password, sharing no lists with it.
+     */
+    public User copy() {
+        User copy = new User(this.name);
+        copy.present = this.present;
+        copy.passwordHash = this.passwordHash;
+        copy.passwordPlain = this.passwordPlain;
+        copy.passwordEncrypted = this.passwordEncrypted;
+        copy.hashPassword = this.hashPassword;
+        copy.enforcePassword = this.enforcePassword;
+        copy.shell = this.shell;
+        copy.home = this.home;
+        copy.createHome = this.createHome;
+        copy.uid = this.uid;
+        copy.system = this.system;
+        copy.gid = this.gid;
+        copy.gidFromName = this.gidFromName;
+        copy.gecosFullname = this.gecosFullname;
+        copy.gecosRoomNumber = this.gecosRoomNumber;
+        copy.gecosWorkphone = this.gecosWorkphone;
+        copy.gecosHomephone = this.gecosHomephone;
+        copy.gecosOther = this.gecosOther;
+        copy.dateLastPasswordChange = this.dateLastPasswordChange;
+        copy.minDaysBetweenPasswordChanges = this.minDaysBetweenPasswordChanges;
+        copy.maxDaysBetweenPasswordChanges = this.maxDaysBetweenPasswordChanges;
+        copy.inactDaysBeforeLocked = this.inactDaysBeforeLocked;
+        copy.warnDaysBeforeMaxDaysBetweenPasswordChanges = this.warnDaysBeforeMaxDaysBetweenPasswordChanges;
+        copy.dateExpire = this.dateExpire;
+        copy.winHomedrive = this.winHomedrive;
+        copy.winProfile = this.winProfile;
+        copy.winLogonscript = this.winLogonscript;
+        copy.winDescription = this.winDescription;
+        copy.absentPurge = this.absentPurge;
+        copy.absentForce = this.absentForce;
+        copy.groups.addAll(this.groups);
+        copy.targets.addAll(this.targets);
+        copy.sshKeys.addAll(this.sshKeys);
+        copy.revokedSshKeys.addAll(this.revokedSshKeys);
+        return copy;
+    }
+
     public String getName() {
         return name;
     }
@@ -203,8 +254,56 @@ public class User {
         return passwordPlain;
     }
 
-    public void setPasswordPlain(String passwordPlain) {
+    /**
+     * Sets a new password, which is encrypted when next saved.
+     * @param passwordPlain The plain text password, or null for none.
+     */
+    public void setPasswordPlain(@Nullable String passwordPlain) {
         this.passwordPlain = passwordPlain;
+        this.passwordEncrypted = null;
+    }
+
+    /**
+     * @return The password encrypted for the pillar, or null if there is none or it is
+     *         set in plain text and not yet encrypted.
+     */
+    public @Nullable String getPasswordEncrypted() {
+        return passwordEncrypted;
+    }
+
+    /**
+     * Sets the password as encrypted in the pillar, for which there is no plain text.
+     * @param passwordEncrypted The encrypted password, or null for none.
+     */
+    public void setPasswordEncrypted(@Nullable String passwordEncrypted) {
+        this.passwordEncrypted = passwordEncrypted;
+        this.passwordPlain = null;
+    }
+
+    /**
+     * @return True if the password is managed by the pillar, either in plain text or encrypted.
+     */
+    public boolean hasManagedPassword() {
+        return this.passwordPlain != null || this.passwordEncrypted != null;
+    }
+
+    /**
+     * @return True if the password is set in plain text and not yet encrypted.
+     */
+    public boolean isPasswordEncryptionNeeded() {
+        return this.passwordPlain != null && this.passwordEncrypted == null;
+    }
+
+    /**
+     * Remembers the encryption of the plain text password, so that it is not encrypted again.
+     * Ignored if the password has been changed since it was encrypted.
+     * @param plain The plain text password that was encrypted.
+     * @param encrypted The encrypted password.
+     */
+    public void recordEncryptedPassword(String plain, String encrypted) {
+        if (plain.equals(this.passwordPlain) && this.passwordEncrypted == null) {
+            this.passwordEncrypted = encrypted;
+        }
     }
 
     public boolean isHashPassword() {
@@ -426,6 +525,69 @@ public class User {
         }
     }
 
+    public List<String> getTargets() {
+        return Collections.unmodifiableList(targets);
+    }
+
+    public void setTargets(@Nullable Collection<String> targets) {
+        this.targets.clear();
+        if (targets != null) {
+            this.targets.addAll(targets);
+        }
+    }
+
+    /**
+     * @return Fingerprints of the SSH keys that can log in as this user.
+     */
+    public List<String> getSshKeys() {
+        return Collections.unmodifiableList(sshKeys);
+    }
+
+    public void setSshKeys(@Nullable Collection<String> sshKeys) {
+        this.sshKeys.clear();
+        if (sshKeys != null) {
+            this.sshKeys.addAll(sshKeys);
+        }
+    }
+
+    /**
+     * @return Fingerprints of the SSH keys removed from this user's authorized keys on the minions.
+     */
+    public List<String> getRevokedSshKeys() {
+        return Collections.unmodifiableList(revokedSshKeys);
+    }
+
+    public void setRevokedSshKeys(@Nullable Collection<String> revokedSshKeys) {
+        this.revokedSshKeys.clear();
+        if (revokedSshKeys != null) {
+            this.revokedSshKeys.addAll(revokedSshKeys);
+        }
+    }
+
+    /**
+     * Lets an SSH key log in as this user, undoing any revocation.
+     * @param fingerprint The key's fingerprint.
+     */
+    public void authorizeSshKey(String fingerprint) {
+        this.revokedSshKeys.remove(fingerprint);
+        if (!this.sshKeys.contains(fingerprint)) {
+            this.sshKeys.add(fingerprint);
+        }
+    }
+
+    /**
+     * Stops an SSH key logging in as this user: it is removed from the minions, not just left alone.
+     * @param fingerprint The key's fingerprint.
+     * @return True if the key was authorized.
+     */
+    public boolean revokeSshKey(String fingerprint) {
+        boolean authorized = this.sshKeys.remove(fingerprint);
+        if (authorized && !this.revokedSshKeys.contains(fingerprint)) {
+            this.revokedSshKeys.add(fingerprint);
+        }
+        return authorized;
+    }
+
     /**
      * Equals method generated by IntelliJ
      * @param o Object to compare
@@ -445,6 +607,7 @@ public class User {
                 Objects.equals(present, user.present) &&
                 Objects.equals(passwordHash, user.passwordHash) &&
                 Objects.equals(passwordPlain, user.passwordPlain) &&
+                Objects.equals(passwordEncrypted, user.passwordEncrypted) &&
                 Objects.equals(shell, user.shell) &&
                 Objects.equals(home, user.home) &&
                 Objects.equals(uid, user.uid) &&
@@ -466,7 +629,10 @@ public class User {
                 Objects.equals(winDescription, user.winDescription) &&
                 Objects.equals(absentPurge, user.absentPurge) &&
                 Objects.equals(absentForce, user.absentForce) &&
-                Objects.equals(groups, user.groups);
+                Objects.equals(groups, user.groups) &&
+                Objects.equals(targets, user.targets) &&
+                Objects.equals(sshKeys, user.sshKeys) &&
+                Objects.equals(revokedSshKeys, user.revokedSshKeys);
     }
 
     /**
@@ -481,6 +647,7 @@ public class User {
                             present,
                             passwordHash,
                             passwordPlain,
+                            passwordEncrypted,
                             hashPassword,
                             enforcePassword,
                             shell,
@@ -507,127 +674,123 @@ public class User {
                             winDescription,
                             absentPurge,
                             absentForce,
-                            groups);
+                            groups,
+                            targets,
+                            sshKeys,
+                            revokedSshKeys);
     }
 
     /**
-     * Adds a property to a sequence as required by Salt State structure.
+     * Generates a 64 bit fingerprint of every field except the plain text password,
+     * for cheaply finding which users differ between two copies.
+     * The fingerprint is taken from a SHA-256 digest of the fields, each tagged with its
+     * type and length, so two users with different fields collide only by chance.
+     * @return The fingerprint.
      */
-    private void addProperty(final List<Map<String, @Nullable Object>> seq,
-                             final String key,
-                             @Nullable final Object value) {
-        final Map<String, @Nullable Object> map = new HashMap<>(1);
-        map.put(key, value);
-        seq.add(map);
+    public long fingerprint() {
+        MessageDigest digest = newDigest();
+        for (UserField field : UserField.all()) {
+            if (field != UserField.PASSWORD) {
+                digestValue(digest, field.get(this));
+            }
+        }
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
     }
 
     /**
-     * Utility method to add a value to a map if the value isn't null.
-     * Used to filter out items that shouldn't be specified in the
-     * YAML SLS file.
-     * @param seq List to add property to.
-     * @param key Key for value
-     * @param value Value to add if it isn't null
+     * Adds a field value to the digest, so that no two different values add the same bytes:
+     * null, "" and 0 are all distinct.
      */
-    private void addIfNotNullOrEmpty(final List<Map<String, @Nullable Object>> seq,
-                                     final String key,
-                                     @Nullable final Object value) {
-        if (value != null) {
-            if (value instanceof Collection) {
-                if (!((Collection)value).isEmpty()) {
-                    this.addProperty(seq, key, value);
-                }
-            }
-            else {
-                this.addProperty(seq, key, value);
+    private static void digestValue(MessageDigest digest, @Nullable Object value) {
+        if (value == null) {
+            digest.update(DIGEST_NULL);
+        }
+        else if (value instanceof Collection) {
+            Collection<?> items = (Collection<?>) value;
+            digest.update(DIGEST_LIST);
+            digestLength(digest, items.size());
+            for (@Nullable Object item : items) {
+                digestValue(digest, item);
             }
         }
+        else {
+            byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+            digest.update(value instanceof String ? DIGEST_STRING
+                          : value instanceof Integer ? DIGEST_INTEGER
+                          : value instanceof Boolean ? DIGEST_BOOLEAN
+                          : DIGEST_OTHER);
+            digestLength(digest, bytes.length);
+            digest.update(bytes);
+        }
+    }
+
+    private static void digestLength(MessageDigest digest, int length) {
+        digest.update((byte) (length >>> 24));
+        digest.update((byte) (length >>> 16));
+        digest.update((byte) (length >>> 8));
+        digest.update((byte) length);
     }
 
     /**
-     * Utility method to add a boolean value to a map if it isn't the default value.
-     * Reduces the number of entries we make in the YAML SLS file.
-     * @param seq Sequence to add to
-     * @param key Key for value
-     * @param value Value to add if it isn't the default value
-     * @param defaultValue Default value to check against
+     * Adds a property to a sequence as required by Salt State structure.
      */
-    private void addIfNotDefault(final List<Map<String, @Nullable Object>> seq,
-                                 final String key,
-                                 final boolean value,
-                                 final boolean defaultValue) {
-        if (value != defaultValue) {
-            this.addProperty(seq, key, value);
-        }
+    private void addProperty(final List<Map<String, @Nullable Object>> seq,
+                             final String key,
+                             @Nullable final Object value) {
+        final Map<String, @Nullable Object> map = new HashMap<>(1);
+        map.put(key, value);
+        seq.add(map);
     }
 
     /**
      * Converts the contents into a map suitable for a Salt State entry.
+     * Fields that are null, empty or the default are left out to keep the SLS file small.
+     * Users without a password in the pillar, such as imported ones, keep the password they
+     * have on the minions rather than having it replaced by an empty one.
      * @return The map of bean properties to create the entry for one user in a Salt State file (.sls)
      */
-    public Map<String, List<Map<String, @Nullable Object>>> toStateMap() throws Exception {
+    public Map<String, List<Map<String, @Nullable Object>>> toStateMap() {
 
         // Map of properties of this object, with the correct salt name as per
         // https://docs.saltstack.com/en/latest/ref/states/all/salt.states.user.html
-        // Store extra properties in a test.nop map in the same userStateMap
         List<Map<String, @Nullable Object>> state = new ArrayList<>();
         this.addProperty(state, NAME, this.name);
 
-        if (this.present) {
-
-            // UID and GID handling
-            this.addIfNotNullOrEmpty(state, UID, this.uid);
-            this.addIfNotNullOrEmpty(state, GID, this.gid);
-            this.addIfNotDefault(state, GID_FROM_NAME, this.gidFromName, DEFAULT_GID_FROM_NAME);
-            this.addIfNotDefault(state, SYSTEM, this.system, DEFAULT_SYSTEM);
-
-            // Home directory. Note parent of home directory must always exist.
-            this.addIfNotNullOrEmpty(state, HOME, this.home);
-            this.addIfNotDefault(state,
-                    CREATEHOME, this.createHome, DEFAULT_CREATEHOME);
-
-            // Password handling - reference value in pillar
-            this.addIfNotDefault(state, HASH_PASSWORD, this.hashPassword, DEFAULT_HASH_PASSWORD);
-            this.addIfNotDefault(state, ENFORCE_PASSWORD, this.enforcePassword, DEFAULT_ENFORCE_PASSWORD);
-            this.addIfNotNullOrEmpty(state, PASSWORD, String.format(PASSWORD_PILLAR_REF, this.name));
-
-            // User's shell
-            this.addIfNotNullOrEmpty(state, SHELL, this.shell);
-
-            // GECOS fields
-            this.addIfNotNullOrEmpty(state, FULLNAME, this.gecosFullname);
-            this.addIfNotNullOrEmpty(state, ROOMNUMBER, this.gecosRoomNumber);
-            this.addIfNotNullOrEmpty(state, WORKPHONE, this.gecosWorkphone);
-            this.addIfNotNullOrEmpty(state, HOMEPHONE, this.gecosHomephone);
-            this.addIfNotNullOrEmpty(state, OTHER, this.gecosOther);
-
-            // Shadow attributes
-            this.addIfNotNullOrEmpty(state, DATE, this.dateLastPasswordChange);
-            this.addIfNotNullOrEmpty(state, MINDAYS, this.minDaysBetweenPasswordChanges);
-            this.addIfNotNullOrEmpty(state, MAXDAYS, this.maxDaysBetweenPasswordChanges);
-            this.addIfNotNullOrEmpty(state, INACTDAYS, this.inactDaysBeforeLocked);
-            this.addIfNotNullOrEmpty(state, WARNDAYS, this.warnDaysBeforeMaxDaysBetweenPasswordChanges);
-            this.addIfNotNullOrEmpty(state, EXPIRE, this.dateExpire);
-
-            // Windows
-            this.addIfNotNullOrEmpty(state, WIN_HOMEDRIVE, this.winHomedrive);
-            this.addIfNotNullOrEmpty(state, WIN_PROFILE, this.winProfile);
-            this.addIfNotNullOrEmpty(state, WIN_LOGONSCRIPT, this.winLogonscript);
-            this.addIfNotNullOrEmpty(state, WIN_DESCRIPTION, this.winDescription);
-
-            // Groups
-            this.addIfNotNullOrEmpty(state, GROUPS, this.groups);
-        }
-        else {
-            // user.absent properties
-            this.addIfNotDefault(state, PURGE, this.absentPurge, DEFAULT_ABSENT_PURGE);
-            this.addIfNotDefault(state, FORCE, this.absentForce, DEFAULT_ABSENT_FORCE);
+        UserField.State emit = this.present ? UserField.State.PRESENT : UserField.State.ABSENT;
+        for (UserField field : UserField.all()) {
+            if (field.getState() == emit) {
+                @Nullable Object value;
+                if (field == UserField.PASSWORD) {
+                    value = this.hasManagedPassword() ? String.format(PASSWORD_PILLAR_REF, this.name) : null;
+                }
+                else if (field == UserField.ENFORCE_PASSWORD && !this.hasManagedPassword()) {
+                    value = false;
+                }
+                else {
+                    value = field.get(this);
+                }
+                if (field.isEmitted(value)) {
+                    this.addProperty(state, field.getKey(), value);
+                }
+            }
         }
 
         // Wrap the object properties in present/absent commands
         Map<String, List<Map<String, @Nullable Object>>> stateMap = new HashMap<>();
         if (this.present) {
             stateMap.put(User.STATE_USER_PRESENT, state);
+            if (!this.sshKeys.isEmpty()) {
+                stateMap.put(User.STATE_SSH_AUTH_PRESENT, this.sshAuthState(this.sshKeys, true));
+            }
         }
         else {
             stateMap.put(User.STATE_USER_ABSENT, state);
@@ -635,179 +798,127 @@ public class User {
         return stateMap;
     }
 
+    /**
+     * Converts the revoked SSH keys into a map suitable for a Salt State entry of its own,
+     * as its ssh_auth state cannot go under the same ID as the authorised keys.
+     * @return The map, or null if the user is absent or has no revoked keys.
+     */
+    public @Nullable Map<String, List<Map<String, @Nullable Object>>> toRevokedSshStateMap() {
+        if (!this.present || this.revokedSshKeys.isEmpty()) {
+            return null;
+        }
+        return Collections.singletonMap(User.STATE_SSH_AUTH_ABSENT, this.sshAuthState(this.revokedSshKeys, false));
+    }
+
+    /**
+     * Returns the Salt State entries for this user: toStateMap() under the ID,
+     * and toRevokedSshStateMap(), if any, under the ID with REVOKED_SSH_STATE_SUFFIX.
+     * @param id The state ID of the user.
+     * @return The entries by state ID, in that order.
+     */
+    public Map<String, Map<String, List<Map<String, @Nullable Object>>>> toStateEntries(String id) {
+        Map<String, Map<String, List<Map<String, @Nullable Object>>>> entries = new LinkedHashMap<>(4);
+        entries.put(id, this.toStateMap());
+        @Nullable Map<String, List<Map<String, @Nullable Object>>> revoked = this.toRevokedSshStateMap();
+        if (revoked != null) {
+            entries.put(id + REVOKED_SSH_STATE_SUFFIX, revoked);
+        }
+        return entries;
+    }
+
+    /**
+     * @return An ssh_auth state for the keys, which are looked up in the pillar by fingerprint.
+     */
+    private List<Map<String, @Nullable Object>> sshAuthState(List<String> fingerprints, boolean requireUser) {
+        List<String> names = new ArrayList<>(fingerprints.size());
+        for (String fingerprint : fingerprints) {
+            names.add(String.format(SSH_KEY_PILLAR_REF, fingerprint));
+        }
+        List<Map<String, @Nullable Object>> state = new ArrayList<>();
+        this.addProperty(state, "user", this.name);
+        this.addProperty(state, "names", names);
+        if (requireUser) {
+            // The account must exist before its keys can be added
+            List<Map<String, String>> require = Collections.singletonList(Collections.singletonMap("user", this.name));
+            this.addProperty(state, "require", require);
+        }
+        return state;
+    }
+
     /**
      * Returns the data for this object for putting in a pillar.
      * Includes all the properties of this object, not necessarily in a 
      * format compatible with SaltStack. Used to serialize the User
-     * to disk.
+     * to disk. The password is only encrypted if it has not been already.
      * @return A map containing all the data to be used when serializing
      *         to disk.
      */
-    public Map<String, @Nullable Object>  toPillarMap(GpgEncryptor gpgEncryptor)
+    public Map<String, @Nullable Object> toPillarMap(SecretEncryptor encryptor)
     throws GpgEncryptionException {
+        return this.toPillarMap(this.isPasswordEncryptionNeeded()
+                                ? encryptor.encrypt(this.passwordPlain)
+                                : this.passwordEncrypted);
+    }
 
-        final Map<String, @Nullable Object> pillarMap = new HashMap<>();
-
-        pillarMap.put(NAME, this.name);
-
-        // UID and GID handling
-        pillarMap.put(UID, this.uid);
-        pillarMap.put(GID, this.gid);
-        pillarMap.put(GID_FROM_NAME, this.gidFromName);
-        pillarMap.put(SYSTEM, this.system);
-
-        // Home directory. Note parent of home directory must always exist.
-        pillarMap.put(HOME, this.home);
-        pillarMap.put(CREATEHOME, this.createHome);
-
-        // Password handling
-        pillarMap.put(HASH_PASSWORD, this.hashPassword);
-        pillarMap.put(ENFORCE_PASSWORD, this.enforcePassword);
-        pillarMap.put(PASSWORD, gpgEncryptor.encrypt(this.passwordPlain));
-
-        // User's shell
-        pillarMap.put(SHELL, this.shell);
-
-        // GECOS fields
-        pillarMap.put(FULLNAME, this.gecosFullname);
-        pillarMap.put(ROOMNUMBER, this.gecosRoomNumber);
-        pillarMap.put(WORKPHONE, this.gecosWorkphone);
-        pillarMap.put(HOMEPHONE, this.gecosHomephone);
-        pillarMap.put(OTHER, this.gecosOther);
-
-        // Shadow attributes
-        pillarMap.put(DATE, this.dateLastPasswordChange);
-        pillarMap.put(MINDAYS, this.minDaysBetweenPasswordChanges);
-        pillarMap.put(MAXDAYS, this.maxDaysBetweenPasswordChanges);
-        pillarMap.put(INACTDAYS, this.inactDaysBeforeLocked);
-        pillarMap.put(WARNDAYS, this.warnDaysBeforeMaxDaysBetweenPasswordChanges);
-        pillarMap.put(EXPIRE, this.dateExpire);
-
-        // Windows
-        pillarMap.put(WIN_HOMEDRIVE, this.winHomedrive);
-        pillarMap.put(WIN_PROFILE, this.winProfile);
-        pillarMap.put(WIN_LOGONSCRIPT, this.winLogonscript);
-        pillarMap.put(WIN_DESCRIPTION, this.winDescription);
-
-        // user.absent properties
-        pillarMap.put(PURGE, this.absentPurge);
-        pillarMap.put(FORCE, this.absentForce);
-
+    /**
+     * Returns the data for this object for putting in a pillar, using a password
+     * that has already been encrypted. Used when encrypting passwords in bulk.
+     * @param encryptedPassword The encrypted password, or null if there is none.
+     * @return A map containing all the data to be used when serializing
+     *         to disk.
+     */
+    public Map<String, @Nullable Object> toPillarMap(@Nullable String encryptedPassword) {
+        final Map<String, @Nullable Object> pillarMap = new HashMap<>(UserField.all().size() * 2);
+        for (UserField field : UserField.all()) {
+            if (field == UserField.PASSWORD) {
+                pillarMap.put(field.getKey(), encryptedPassword);
+            }
+            else if (field == UserField.PASSWORD_HASH) {
+                // The pillar is sent to minions, so the hash is kept in a file of its own
+                continue;
+            }
+            else if (field.getType() == UserField.Type.STRING_LIST) {
+                // A copy, as the pillar may be written after the user changes
+                pillarMap.put(field.getKey(), new ArrayList<>((List<?>) field.get(this)));
+            }
+            else {
+                pillarMap.put(field.getKey(), field.get(this));
+            }
+        }
         return pillarMap;
     }
     
     /**
      * Utility function called from fromPillarMap() to set properties on a User from a Map.
+     * The password read is the encrypted password from the pillar, which is kept apart
+     * from the plain text password.
      */
     private static void setProperties(User user, Map<@Nullable Object, @Nullable Object> map) throws BadYamlException {
-        if (map != null) {
-            for (Map.Entry<@Nullable Object, @Nullable Object> entry : map.entrySet()) {
-                @Nullable Object oKey = entry.getKey();
-                if (oKey == null) {
-                    throw new BadYamlException("key is null");
-                }
+        for (Map.Entry<@Nullable Object, @Nullable Object> entry : map.entrySet()) {
+            @Nullable Object oKey = entry.getKey();
+            if (oKey == null) {
+                throw new BadYamlException("key is null");
+            }
 
-                String key = oKey.toString();
+            String key = oKey.toString();
+            @Nullable UserField field = UserField.forKey(key);
+            if (field == null) {
+                throw new BadYamlException("Unknown user key: " + key);
+            }
+            else if (field == UserField.PASSWORD) {
                 @Nullable Object value = entry.getValue();
-
+                if (!field.getType().accepts(value)) {
+                    throw new BadYamlException("Encrypted password for " + user.getName() + " is not a string");
+                }
+                user.setPasswordEncrypted((String) value);
+            }
+            else if (field.isSettable()) {
+                // The name is already set by the constructor
                 try {
-                    switch (key) {
-                        case NAME:
-                            // Ignore - already set in constructor
-                            break;
-                        case UID:
-                            user.uid = (Integer) value;
-                            break;
-                        case GID:
-                            user.gid = (Integer) value;
-                            break;
-                        case GID_FROM_NAME:
-                            user.gidFromName = (value == null ? DEFAULT_GID_FROM_NAME : (Boolean) value);
-                            break;
-                        case SYSTEM:
-                            user.system = (value == null ? DEFAULT_SYSTEM : (Boolean) value);
-                            break;
-                        case HOME:
-                            user.home = (String) value;
-                            break;
-                        case CREATEHOME:
-                            user.createHome = (value == null ? DEFAULT_CREATEHOME : (Boolean) value);
-                            break;
-                        case HASH_PASSWORD:
-                            user.hashPassword = (value == null ? DEFAULT_HASH_PASSWORD : (Boolean) value);
-                            break;
-                        case ENFORCE_PASSWORD:
-                            user.enforcePassword = (value == null ? DEFAULT_ENFORCE_PASSWORD : (Boolean) value);
-                            break;
-                        case PASSWORD:
-                            // TODO decide how to handle reading password in
-                            user.passwordPlain = (String) value;
-                        case SHELL:
-                            user.shell = (String) value;
-                            break;
-                        case FULLNAME:
-                            user.gecosFullname = (String) value;
-                            break;
-                        case ROOMNUMBER:
-                            user.gecosRoomNumber = (String) value;
-                            break;
-                        case WORKPHONE:
-                            user.gecosWorkphone = (String) value;
-                            break;
-                        case HOMEPHONE:
-                            user.gecosHomephone = (String) value;
-                            break;
-                        case OTHER:
-                            user.gecosOther = (String) value;
-                            break;
-                        case DATE:
-                            user.dateLastPasswordChange = (Integer) value;
-                            break;
-                        case MINDAYS:
-                            user.minDaysBetweenPasswordChanges = (Integer) value;
-                            break;
-                        case MAXDAYS:
-                            user.maxDaysBetweenPasswordChanges = (Integer) value;
-                            break;
-                        case INACTDAYS:
-                            user.inactDaysBeforeLocked = (Integer) value;
-                            break;
-                        case WARNDAYS:
-                            user.warnDaysBeforeMaxDaysBetweenPasswordChanges = (Integer) value;
-                            break;
-                        case EXPIRE:
-                            user.dateExpire = (Integer) value;
-                            break;
-                        case WIN_HOMEDRIVE:
-                            user.winHomedrive = (String) value;
-                            break;
-                        case WIN_PROFILE:
-                            user.winProfile = (String) value;
-                            break;
-                        case WIN_LOGONSCRIPT:
-                            user.winLogonscript = (String) value;
-                            break;
-                        case WIN_DESCRIPTION:
-                            user.winDescription = (String) value;
-                            break;
-                        case PURGE:
-                            user.absentPurge = (value == null ? DEFAULT_ABSENT_PURGE : (Boolean) value);
-                            break;
-                        case FORCE:
-                            user.absentForce = (value == null ? DEFAULT_ABSENT_FORCE : (Boolean) value);
-                            break;
-                        default:
-                            throw new BadYamlException("Unknown user key: " + key);
-                    }
+                    field.set(user, entry.getValue());
                 }
-                catch (ClassCastException e) {
-                    @MonotonicNonNull String type = null;
-                    if (value != null) {
-                        type = value.getClass().getName();
-                    }
-                    throw new BadYamlException("Bad type for key " + key + " with value " + value
-                            + ": cannot convert from type " + type
-                            + ": " + e.getMessage(), e);
+                catch (IllegalArgumentException e) {
+                    throw new BadYamlException(e.getMessage() == null ? e.toString() : e.getMessage(), e);
                 }
             }
         }
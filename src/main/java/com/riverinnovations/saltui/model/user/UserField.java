@@ -0,0 +1,290 @@
+package com.riverinnovations.saltui.model.user;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * The fields of a User: the single table that drives writing the state, writing the
+ * pillar and reading the pillar, so that the three cannot drift apart.
+ *
+ * Keys are the SaltStack user state parameter names, which are also used in the pillar.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public enum UserField {
+
+    NAME("name", Type.STRING, State.NONE, false, null, User::getName, null),
+    PRESENT("present", Type.BOOLEAN, State.NONE, false, true, User::isPresent,
+            (u, v) -> u.setPresent((Boolean) v)),
+
+    // UID and GID handling
+    UID("uid", Type.INTEGER, State.PRESENT, false, null, User::getUid, (u, v) -> u.setUid((Integer) v)),
+    GID("gid", Type.INTEGER, State.PRESENT, false, null, User::getGid, (u, v) -> u.setGid((Integer) v)),
+    GID_FROM_NAME("gid_from_name", Type.BOOLEAN, State.PRESENT, false, User.DEFAULT_GID_FROM_NAME,
+                  User::isGidFromName, (u, v) -> u.setGidFromName((Boolean) v)),
+    SYSTEM("system", Type.BOOLEAN, State.PRESENT, false, User.DEFAULT_SYSTEM, User::isSystem,
+           (u, v) -> u.setSystem((Boolean) v)),
+
+    // Home directory. Note parent of home directory must always exist.
+    HOME("home", Type.STRING, State.PRESENT, false, null, User::getHome, (u, v) -> u.setHome((String) v)),
+    CREATEHOME("createhome", Type.BOOLEAN, State.PRESENT, false, User.DEFAULT_CREATEHOME, User::isCreateHome,
+               (u, v) -> u.setCreateHome((Boolean) v)),
+
+    // Password handling. The state refers to the encrypted password in the pillar.
+    // The password field is the plain text; User reads and writes the encrypted password itself.
+    // The hash is not written to the pillar, but to a file only the owner can read.
+    HASH_PASSWORD("hash_password", Type.BOOLEAN, State.PRESENT, false, User.DEFAULT_HASH_PASSWORD,
+                  User::isHashPassword, (u, v) -> u.setHashPassword((Boolean) v)),
+    ENFORCE_PASSWORD("enforce_password", Type.BOOLEAN, State.PRESENT, false, User.DEFAULT_ENFORCE_PASSWORD,
+                     User::isEnforcePassword, (u, v) -> u.setEnforcePassword((Boolean) v)),
+    PASSWORD("password", Type.STRING, State.PRESENT, true, null, User::getPasswordPlain,
+             (u, v) -> u.setPasswordPlain((String) v)),
+    PASSWORD_HASH("password_hash", Type.STRING, State.NONE, true, null, User::getPasswordHash,
+                  (u, v) -> u.setPasswordHash((String) v)),
+
+    // User's shell
+    SHELL("shell", Type.STRING, State.PRESENT, false, null, User::getShell, (u, v) -> u.setShell((String) v)),
+
+    // GECOS fields
+    FULLNAME("fullname", Type.STRING, State.PRESENT, false, null, User::getGecosFullname,
+             (u, v) -> u.setGecosFullname((String) v)),
+    ROOMNUMBER("roomnumber", Type.STRING, State.PRESENT, false, null, User::getGecosRoomNumber,
+               (u, v) -> u.setGecosRoomNumber((String) v)),
+    WORKPHONE("workphone", Type.STRING, State.PRESENT, false, null, User::getGecosWorkphone,
+              (u, v) -> u.setGecosWorkphone((String) v)),
+    HOMEPHONE("homephone", Type.STRING, State.PRESENT, false, null, User::getGecosHomephone,
+              (u, v) -> u.setGecosHomephone((String) v)),
+    OTHER("other", Type.STRING, State.PRESENT, false, null, User::getGecosOther,
+          (u, v) -> u.setGecosOther((String) v)),
+
+    // Shadow attributes
+    DATE("date", Type.INTEGER, State.PRESENT, false, null, User::getDateLastPasswordChange,
+         (u, v) -> u.setDateLastPasswordChange((Integer) v)),
+    MINDAYS("mindays", Type.INTEGER, State.PRESENT, false, null, User::getMinDaysBetweenPasswordChanges,
+            (u, v) -> u.setMinDaysBetweenPasswordChanges((Integer) v)),
+    MAXDAYS("maxdays", Type.INTEGER, State.PRESENT, false, null, User::getMaxDaysBetweenPasswordChanges,
+            (u, v) -> u.setMaxDaysBetweenPasswordChanges((Integer) v)),
+    INACTDAYS("inactdays", Type.INTEGER, State.PRESENT, false, null, User::getInactDaysBeforeLocked,
+              (u, v) -> u.setInactDaysBeforeLocked((Integer) v)),
+    WARNDAYS("warndays", Type.INTEGER, State.PRESENT, false, null,
+             User::getWarnDaysBeforeMaxDaysBetweenPasswordChanges,
+             (u, v) -> u.setWarnDaysBeforeMaxDaysBetweenPasswordChanges((Integer) v)),
+    EXPIRE("expire", Type.INTEGER, State.PRESENT, false, null, User::getDateExpire,
+           (u, v) -> u.setDateExpire((Integer) v)),
+
+    // Windows
+    WIN_HOMEDRIVE("win_homedrive", Type.STRING, State.PRESENT, false, null, User::getWinHomedrive,
+                  (u, v) -> u.setWinHomedrive((String) v)),
+    WIN_PROFILE("win_profile", Type.STRING, State.PRESENT, false, null, User::getWinProfile,
+                (u, v) -> u.setWinProfile((String) v)),
+    WIN_LOGONSCRIPT("win_logonscript", Type.STRING, State.PRESENT, false, null, User::getWinLogonscript,
+                    (u, v) -> u.setWinLogonscript((String) v)),
+    WIN_DESCRIPTION("win_description", Type.STRING, State.PRESENT, false, null, User::getWinDescription,
+                    (u, v) -> u.setWinDescription((String) v)),
+
+    // Groups to be a member of
+    GROUPS("groups", Type.STRING_LIST, State.PRESENT, false, null, User::getGroups,
+           (u, v) -> u.setGroups(castToStrings(v))),
+
+    // Targets whose minions have the user; pillar only
+    TARGETS("targets", Type.STRING_LIST, State.NONE, false, null, User::getTargets,
+            (u, v) -> u.setTargets(castToStrings(v))),
+
+    // SSH keys by fingerprint, authorized and to be removed; written to the state as ssh_auth
+    SSH_KEYS("ssh_keys", Type.STRING_LIST, State.NONE, false, null, User::getSshKeys,
+             (u, v) -> u.setSshKeys(castToStrings(v))),
+    REVOKED_SSH_KEYS("revoked_ssh_keys", Type.STRING_LIST, State.NONE, false, null, User::getRevokedSshKeys,
+                     (u, v) -> u.setRevokedSshKeys(castToStrings(v))),
+
+    // user.absent properties
+    PURGE("purge", Type.BOOLEAN, State.ABSENT, false, User.DEFAULT_ABSENT_PURGE, User::isAbsentPurge,
+          (u, v) -> u.setAbsentPurge((Boolean) v)),
+    FORCE("force", Type.BOOLEAN, State.ABSENT, false, User.DEFAULT_ABSENT_FORCE, User::isAbsentForce,
+          (u, v) -> u.setAbsentForce((Boolean) v));
+
+    /**
+     * The type of a field's values.
+     */
+    public enum Type {
+        STRING(String.class),
+        INTEGER(Integer.class),
+        BOOLEAN(Boolean.class),
+        STRING_LIST(List.class);
+
+        private final Class<?> valueClass;
+
+        Type(Class<?> valueClass) {
+            this.valueClass = valueClass;
+        }
+
+        /**
+         * @return True if the value, which may be null, can be set on a field of this type.
+         */
+        public boolean accepts(@Nullable Object value) {
+            return value == null || this.valueClass.isInstance(value);
+        }
+    }
+
+    /**
+     * Where a field appears in the state file.
+     */
+    public enum State {
+        /** Not in the state; pillar only */
+        NONE,
+        /** In user.present, if not null, empty or the default */
+        PRESENT,
+        /** In user.absent, if not the default */
+        ABSENT
+    }
+
+    /** All the fields, in order, without the copy made by values() */
+    private static final List<UserField> FIELDS = Collections.unmodifiableList(Arrays.asList(values()));
+
+    /** Fields by key */
+    private static final Map<String, UserField> BY_KEY = new HashMap<>();
+
+    static {
+        for (UserField field : FIELDS) {
+            BY_KEY.put(field.key, field);
+        }
+    }
+
+    /** The state and pillar key */
+    private final String key;
+
+    private final Type type;
+
+    private final State state;
+
+    /** True for secrets that must not be displayed */
+    private final boolean sensitive;
+
+    /** The default for boolean fields, which are never null */
+    private final @Nullable Boolean defaultValue;
+
+    private final Function<User, @Nullable Object> getter;
+
+    /** Null for the name, which is set by the constructor */
+    private final @Nullable BiConsumer<User, @Nullable Object> setter;
+
+    UserField(String key,
+              Type type,
+              State state,
+              boolean sensitive,
+              @Nullable Boolean defaultValue,
+              Function<User, @Nullable Object> getter,
+              @Nullable BiConsumer<User, @Nullable Object> setter) {
+        this.key = key;
+        this.type = type;
+        this.state = state;
+        this.sensitive = sensitive;
+        this.defaultValue = defaultValue;
+        this.getter = getter;
+        this.setter = setter;
+    }
+
+    /**
+     * @return All the fields, in order. Unmodifiable.
+     */
+    public static List<UserField> all() {
+        return FIELDS;
+    }
+
+    /**
+     * @return The field with the key, or null if there is none.
+     */
+    public static @Nullable UserField forKey(String key) {
+        return BY_KEY.get(key);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isSensitive() {
+        return sensitive;
+    }
+
+    public @Nullable Boolean getDefaultValue() {
+        return defaultValue;
+    }
+
+    /**
+     * @return True if the field can be set; false for the name.
+     */
+    public boolean isSettable() {
+        return this.setter != null;
+    }
+
+    /**
+     * @return The value of the field.
+     */
+    public @Nullable Object get(User user) {
+        return this.getter.apply(user);
+    }
+
+    /**
+     * Sets the field. A null boolean is set to the default.
+     * @param user The user to change.
+     * @param value The value, of the field's type.
+     * @throws IllegalArgumentException If the value has the wrong type or the field cannot be set.
+     */
+    public void set(User user, @Nullable Object value) {
+        @Nullable BiConsumer<User, @Nullable Object> s = this.setter;
+        if (s == null) {
+            throw new IllegalArgumentException("Field " + this.key + " cannot be set");
+        }
+        if (!this.type.accepts(value)) {
+            throw new IllegalArgumentException("Bad type for key " + this.key + " with value " + value
+                                               + ": cannot convert from type " + value.getClass().getName());
+        }
+        s.accept(user, value == null && this.defaultValue != null ? this.defaultValue : value);
+    }
+
+    /**
+     * @return True if the value is written to the state: not null, not empty and not the default.
+     */
+    boolean isEmitted(@Nullable Object value) {
+        if (value == null) {
+            return false;
+        }
+        else if (value instanceof Collection) {
+            return !((Collection<?>) value).isEmpty();
+        }
+        else {
+            return !value.equals(this.defaultValue);
+        }
+    }
+
+    private static List<String> castToStrings(@Nullable Object value) {
+        List<String> strings = new ArrayList<>();
+        if (value != null) {
+            for (@Nullable Object item : (List<?>) value) {
+                if (item != null) {
+                    strings.add(item.toString());
+                }
+            }
+        }
+        return strings;
+    }
+}
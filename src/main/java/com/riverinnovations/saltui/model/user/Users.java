@@ -1,9 +1,13 @@
 package com.riverinnovations.saltui.model.user;
 
+import com.riverinnovations.saltui.metrics.Counter;
+import com.riverinnovations.saltui.metrics.Metrics;
+import com.riverinnovations.saltui.metrics.Timer;
 import com.riverinnovations.saltui.model.DuplicateNameException;
 import com.riverinnovations.saltui.model.UnknownUserException;
 import com.riverinnovations.saltui.model.gpg.GpgEncryptionException;
-import com.riverinnovations.saltui.model.gpg.GpgEncryptor;
+import com.riverinnovations.saltui.model.gpg.SecretEncryptor;
+import com.riverinnovations.saltui.model.query.UserQuery;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.framework.qual.DefaultQualifier;
@@ -13,26 +17,108 @@ import org.yaml.snakeyaml.DumperOptions;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * Represents the users managed by the system.
  *
+ * Changes are made under a write lock, which keeps the indexes consistent with the users;
+ * listeners are notified after the lock is released. Change fields of users through
+ * modifyUser() or batch() rather than the User setters, so that the indexes are updated
+ * and listeners notified.
+ *
  * Items without annotation are assumed to be NonNull (default)
  */
 @DefaultQualifier(value = NonNull.class)
 public class Users {
 
+    /** Prefix of the state ID of each user */
+    public static final String STATE_ID_PREFIX = "saltui-users-";
+
     /** Maps name to user */
     private final Map<String, User> userMap = new ConcurrentHashMap<>();
 
+    /** Receive notification of changes */
+    private final List<UsersListener> listeners = new CopyOnWriteArrayList<>();
+
+    /** Guards changes and the indexes */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** Indexes by UID, GID, group, shell and SSH key */
+    private final UsersIndexes indexes = new UsersIndexes();
+
+    /** Fingerprint of each user when last added or changed, by name */
+    private final Map<String, Long> fingerprints = new ConcurrentHashMap<>();
+
+    /** The pillar generation these users were loaded from or last saved as, or 0 if none */
+    private volatile long generation;
+
+    /** The users this is a snapshot of, which also keep any passwords encrypted here, or null if none */
+    private final @Nullable Users source;
+
     /** Logger */
     private static final Logger LOGGER = LoggerFactory.getLogger(Users.class);
 
+    /** Time spent holding the write lock, which blocks every other change */
+    private static final Timer WRITE_LOCK_TIMER = Metrics.get().timer("users.writelock");
+
+    /** Time spent waiting for the write lock, showing contention between changes */
+    private static final Timer WRITE_LOCK_WAIT_TIMER = Metrics.get().timer("users.writelock.wait");
+
+    /** Time to find the users matching a query */
+    private static final Timer QUERY_TIMER = Metrics.get().timer("users.query");
+
+    /** Time to notify the listeners of each change */
+    private static final Timer NOTIFY_TIMER = Metrics.get().timer("users.notify");
+
+    /** Number of users added, deleted and changed */
+    private static final Counter ADDED = Metrics.get().counter("users.added");
+    private static final Counter DELETED = Metrics.get().counter("users.deleted");
+    private static final Counter CHANGED = Metrics.get().counter("users.changed");
+
     /**
      * Default constructor.
      */
     public Users() {
-        // No code
+        this.source = null;
+    }
+
+    /**
+     * Constructs an empty snapshot of the source users.
+     * @param source The users the snapshot is taken from.
+     */
+    private Users(Users source) {
+        this.source = source;
+    }
+
+    /**
+     * Copies the users under the read lock, so that they can be rendered and saved while
+     * they are being changed: changes replace lists such as the groups in place.
+     * The snapshot keeps the fingerprints and generation of these users, but no listeners.
+     * Passwords encrypted on the snapshot are also recorded on these users.
+     * @return The snapshot.
+     */
+    public Users snapshot() {
+        Users snapshot = new Users(this);
+        this.lock.readLock().lock();
+        try {
+            for (User user : this.userMap.values()) {
+                User copy = user.copy();
+                snapshot.userMap.put(copy.getName(), copy);
+                snapshot.indexes.index(copy);
+                @Nullable Long fingerprint = this.fingerprints.get(copy.getName());
+                snapshot.fingerprints.put(copy.getName(), fingerprint != null ? fingerprint : copy.fingerprint());
+            }
+            snapshot.generation = this.generation;
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+        return snapshot;
     }
 
     /**
@@ -40,21 +126,450 @@ public class Users {
      * @param user The user to add. Must not be null (IllegalArgumentException).
      */
     public void addUser(User user) throws DuplicateNameException {
-        if (this.userMap.containsKey(user.getName())) {
-            throw new DuplicateNameException("User '" + user.getName() + "' already exists!");
+        long locked = this.lockForWrite();
+        try {
+            if (this.userMap.putIfAbsent(user.getName(), user) != null) {
+                throw new DuplicateNameException("User '" + user.getName() + "' already exists!");
+            }
+            this.reindex(user);
         }
-        else {
-            this.userMap.put(user.getName(), user);
+        finally {
+            this.lock.writeLock().unlock();
+            WRITE_LOCK_TIMER.record(System.nanoTime() - locked);
         }
+        this.fireUsersChanged(Collections.singletonList(user),
+                              Collections.emptyList(),
+                              Collections.emptyList());
+    }
+
+    /**
+     * Adds many users at once, with a single change notification.
+     * Either all the users are added or, if any name is already in use, none are.
+     * @param users The users to add. Names must be distinct.
+     */
+    public void addUsers(Collection<User> users) throws DuplicateNameException {
+        List<User> added = new ArrayList<>(users.size());
+        long locked = this.lockForWrite();
+        try {
+            for (User user : users) {
+                if (this.userMap.putIfAbsent(user.getName(), user) != null) {
+                    for (User undo : added) {
+                        this.userMap.remove(undo.getName(), undo);
+                    }
+                    throw new DuplicateNameException("User '" + user.getName() + "' already exists!");
+                }
+                added.add(user);
+            }
+            for (User user : added) {
+                this.reindex(user);
+            }
+        }
+        finally {
+            this.lock.writeLock().unlock();
+            WRITE_LOCK_TIMER.record(System.nanoTime() - locked);
+        }
+        this.fireUsersChanged(added, Collections.emptyList(), Collections.emptyList());
     }
 
     /**
      * Deletes the user from the set of users.
      */
     public void deleteUser(String username) throws UnknownUserException {
-        if (this.userMap.remove(username) == null) {
-            throw new UnknownUserException("Cannot find user with name '" + username + "' to delete.");
+        @Nullable User removed;
+        long locked = this.lockForWrite();
+        try {
+            removed = this.userMap.remove(username);
+            if (removed == null) {
+                throw new UnknownUserException("Cannot find user with name '" + username + "' to delete.");
+            }
+            this.indexes.unindex(username);
+            this.fingerprints.remove(username);
+        }
+        finally {
+            this.lock.writeLock().unlock();
+            WRITE_LOCK_TIMER.record(System.nanoTime() - locked);
+        }
+        this.fireUsersChanged(Collections.emptyList(),
+                              Collections.singletonList(removed),
+                              Collections.emptyList());
+    }
+
+    /**
+     * Changes the fields of a user and notifies listeners of the change.
+     * User fields should be changed through this method, rather than by calling
+     * setters directly, so that other sessions see the change.
+     * @param username The name of the user to change.
+     * @param modifier Makes the changes to the user.
+     * @return The changed user.
+     */
+    public User modifyUser(String username, Consumer<User> modifier) throws UnknownUserException {
+        return this.modifyUser(username, modifier, null);
+    }
+
+    /**
+     * Changes the fields of a user on behalf of someone, and notifies listeners of the change.
+     * Used when the change is made on another thread than the one that asked for it.
+     * If the modifier throws, the changes it made before throwing are kept, indexed and
+     * notified, and the exception is then rethrown.
+     * @param username The name of the user to change.
+     * @param modifier Makes the changes to the user.
+     * @param actor Who asked for the change; null if not known.
+     * @return The changed user.
+     */
+    public User modifyUser(String username, Consumer<User> modifier, @Nullable String actor)
+    throws UnknownUserException {
+        @Nullable User user;
+        @Nullable RuntimeException failure = null;
+        boolean changed = true;
+        long locked = this.lockForWrite();
+        try {
+            user = this.userMap.get(username);
+            if (user == null) {
+                throw new UnknownUserException("Cannot find user with name '" + username + "' to modify.");
+            }
+            try {
+                modifier.accept(user);
+            }
+            catch (RuntimeException e) {
+                failure = e;
+                changed = this.isChanged(user);
+            }
+            if (changed) {
+                this.reindex(user);
+            }
+        }
+        finally {
+            this.lock.writeLock().unlock();
+            WRITE_LOCK_TIMER.record(System.nanoTime() - locked);
+        }
+        if (changed) {
+            this.fireUsersChanged(Collections.emptyList(),
+                                  Collections.emptyList(),
+                                  Collections.singletonList(user),
+                                  actor);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return user;
+    }
+
+    /**
+     * Starts a batch of changes to many users, committed with a single index
+     * update and a single change notification.
+     * @return The batch; nothing happens until UsersBatch.commit() is called.
+     */
+    public UsersBatch batch() {
+        return new UsersBatch(this);
+    }
+
+    /**
+     * Applies a batch. Called by UsersBatch.commit(). If an update throws, the users
+     * changed before it threw are kept, indexed and notified, and the exception is then rethrown.
+     * @param batch The batch to apply.
+     * @return The users that were changed.
+     */
+    List<User> commit(UsersBatch batch) {
+        List<User> changed;
+        @Nullable RuntimeException failure = null;
+        long locked = this.lockForWrite();
+        try {
+            List<User> selected = batch.select(this.userMap, this.indexes);
+            changed = selected;
+            try {
+                batch.apply(selected);
+            }
+            catch (RuntimeException e) {
+                failure = e;
+                changed = new ArrayList<>();
+                for (User user : selected) {
+                    if (this.isChanged(user)) {
+                        changed.add(user);
+                    }
+                }
+            }
+            for (User user : changed) {
+                this.reindex(user);
+            }
+        }
+        finally {
+            this.lock.writeLock().unlock();
+            WRITE_LOCK_TIMER.record(System.nanoTime() - locked);
         }
+        this.fireUsersChanged(Collections.emptyList(), Collections.emptyList(), changed);
+        if (failure != null) {
+            throw failure;
+        }
+        return changed;
+    }
+
+    /**
+     * Takes the write lock, recording the time waited.
+     * @return The time the lock was taken, from System.nanoTime().
+     */
+    private long lockForWrite() {
+        long start = System.nanoTime();
+        this.lock.writeLock().lock();
+        long locked = System.nanoTime();
+        WRITE_LOCK_WAIT_TIMER.record(locked - start);
+        return locked;
+    }
+
+    /**
+     * @return True if the user differs from when it was last indexed. Called with the write lock held.
+     */
+    private boolean isChanged(User user) {
+        @Nullable Long indexed = this.fingerprints.get(user.getName());
+        return indexed == null || indexed != user.fingerprint();
+    }
+
+    /**
+     * Updates the indexes and fingerprint of a user. Called with the write lock held.
+     */
+    private void reindex(User user) {
+        this.indexes.index(user);
+        this.fingerprints.put(user.getName(), user.fingerprint());
+    }
+
+    /**
+     * Returns the fingerprint of a user as it was when last added or changed through
+     * this class, which is much cheaper than User.fingerprint() for comparing many users.
+     * @param name The user name.
+     * @return The fingerprint, or null if there is no such user.
+     */
+    public @Nullable Long getFingerprint(String name) {
+        return this.fingerprints.get(name);
+    }
+
+    /**
+     * @return The users with the given UID.
+     */
+    public List<User> findByUid(int uid) {
+        this.lock.readLock().lock();
+        try {
+            return this.toUsers(this.indexes.namesByUid(uid));
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The users with the given primary GID.
+     */
+    public List<User> findByGid(int gid) {
+        this.lock.readLock().lock();
+        try {
+            return this.toUsers(this.indexes.namesByGid(gid));
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The users that are members of the given supplementary group.
+     */
+    public List<User> findByGroup(String group) {
+        this.lock.readLock().lock();
+        try {
+            return this.toUsers(this.indexes.namesByGroup(group));
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The users with the given shell.
+     */
+    public List<User> findByShell(String shell) {
+        this.lock.readLock().lock();
+        try {
+            return this.toUsers(this.indexes.namesByShell(shell));
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The users that trust the SSH key with the given fingerprint.
+     */
+    public List<User> findBySshKey(String fingerprint) {
+        this.lock.readLock().lock();
+        try {
+            return this.toUsers(this.indexes.namesBySshKey(fingerprint));
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Revokes an SSH key from every user that trusts it, with a single change notification.
+     * The users are found in the index, so this does not look at the other users.
+     * The key is then removed from their authorized keys on the minions when the users are saved.
+     * @param fingerprint The key's fingerprint.
+     * @return The users the key was revoked from.
+     */
+    public List<User> revokeSshKey(String fingerprint) {
+        List<User> changed;
+        long locked = this.lockForWrite();
+        try {
+            changed = this.toUsers(new ArrayList<>(this.indexes.namesBySshKey(fingerprint)));
+            for (User user : changed) {
+                user.revokeSshKey(fingerprint);
+                this.reindex(user);
+            }
+        }
+        finally {
+            this.lock.writeLock().unlock();
+            WRITE_LOCK_TIMER.record(System.nanoTime() - locked);
+        }
+        this.fireUsersChanged(Collections.emptyList(), Collections.emptyList(), changed);
+        return changed;
+    }
+
+    /**
+     * Finds the users matching a query. Candidates are looked up in the most selective
+     * index the query can use; if there is none, every user is tested, in parallel when
+     * there are many.
+     * @return The matching users, in no particular order.
+     */
+    public List<User> find(UserQuery query) {
+        Timer.Context queryTiming = QUERY_TIMER.time();
+        try {
+            this.lock.readLock().lock();
+            try {
+                @Nullable Set<String> names = QueryPlan.plan(query, this.indexes).getNames();
+                Collection<User> candidates = names == null ? this.userMap.values() : this.toUsers(names);
+                List<User> found = new ArrayList<>();
+                if (candidates.size() >= UsersBatch.PARALLEL_THRESHOLD) {
+                    candidates.parallelStream().filter(query).forEachOrdered(found::add);
+                }
+                else {
+                    for (User user : candidates) {
+                        if (query.test(user)) {
+                            found.add(user);
+                        }
+                    }
+                }
+                return found;
+            }
+            finally {
+                this.lock.readLock().unlock();
+            }
+        }
+        finally {
+            queryTiming.stop();
+        }
+    }
+
+    /**
+     * Reads the users under the read lock, so that no user changes while the reader runs.
+     * Changes wait for the reader, so it should be quick: a page of users, not all of them.
+     * @param reader Reads the users.
+     * @return The result of the reader.
+     */
+    public <T> T read(Supplier<T> reader) {
+        this.lock.readLock().lock();
+        try {
+            return reader.get();
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Describes how find() would look up the users matching a query.
+     */
+    public String explain(UserQuery query) {
+        this.lock.readLock().lock();
+        try {
+            return QueryPlan.plan(query, this.indexes).toString();
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    private List<User> toUsers(Collection<String> names) {
+        List<User> users = new ArrayList<>(names.size());
+        for (String name : names) {
+            @Nullable User user = this.userMap.get(name);
+            if (user != null) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Adds a listener to be notified of changes.
+     */
+    public void addListener(UsersListener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener added by addListener().
+     */
+    public void removeListener(UsersListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Notifies the listeners of a change, if anything changed.
+     */
+    protected void fireUsersChanged(Collection<User> added, Collection<User> deleted, Collection<User> changed) {
+        this.fireUsersChanged(added, deleted, changed, null);
+    }
+
+    /**
+     * Notifies the listeners of a change made on behalf of someone, if anything changed.
+     */
+    private void fireUsersChanged(Collection<User> added,
+                                  Collection<User> deleted,
+                                  Collection<User> changed,
+                                  @Nullable String actor) {
+        ADDED.add(added.size());
+        DELETED.add(deleted.size());
+        CHANGED.add(changed.size());
+        if (!this.listeners.isEmpty()) {
+            UsersChangeEvent event = new UsersChangeEvent(added, deleted, changed, actor);
+            if (!event.isEmpty()) {
+                Timer.Context notifyTiming = NOTIFY_TIMER.time();
+                try {
+                    for (UsersListener listener : this.listeners) {
+                        try {
+                            listener.usersChanged(event);
+                        }
+                        catch (RuntimeException e) {
+                            LOGGER.warn("Users listener failed: " + e.getMessage(), e);
+                        }
+                    }
+                }
+                finally {
+                    notifyTiming.stop();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The pillar generation these users were loaded from or last saved as, or 0 if none.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Set by UserState when the users are loaded or saved.
+     */
+    public void setGeneration(long generation) {
+        this.generation = generation;
     }
 
     /**
@@ -81,22 +596,50 @@ public class Users {
         Map<String, Map<String, List<Map<String, @Nullable Object>>>> usersMap = new HashMap<>();
 
         for (User u: this.userMap.values()) {
-            usersMap.put("saltui-users-" + u.getName(), u.toStateMap());
+            usersMap.putAll(getYamlState(u));
         }
         return usersMap;
     }
 
+    /**
+     * Returns the state entries of one user, by state ID.
+     * @param user The user.
+     * @return The entries as a structure of maps.
+     */
+    public static Map<String, Map<String, List<Map<String, @Nullable Object>>>> getYamlState(User user) {
+        return user.toStateEntries(STATE_ID_PREFIX + user.getName());
+    }
+
     /**
      * Returns all the users in a structure suitable for conversion to YAML for a Salt Pillar.
+     * New plain text passwords are encrypted in a single batch, and the encryption kept on
+     * the users; passwords already encrypted are used as they are.
      * @return All the users as a structure of maps.
      */
-    public Map<String, Map<String, Map<String, @Nullable Object>>> getYamlPillar(GpgEncryptor encryptor)
+    public Map<String, Map<String, Map<String, @Nullable Object>>> getYamlPillar(SecretEncryptor encryptor)
     throws GpgEncryptionException {
 
-        Map<String, Map<String, @Nullable Object>> usersMap = new HashMap<>();
+        List<User> users = new ArrayList<>(this.userMap.values());
+        List<User> toEncrypt = new ArrayList<>();
+        List<@Nullable String> passwords = new ArrayList<>();
+        for (User u: users) {
+            if (u.isPasswordEncryptionNeeded()) {
+                toEncrypt.add(u);
+                passwords.add(u.getPasswordPlain());
+            }
+        }
+        List<@Nullable String> encrypted = encryptor.encryptAll(passwords);
+        this.recordEncryptedPasswords(toEncrypt, passwords, encrypted);
 
-        for (User u: this.userMap.values()) {
-            usersMap.put(u.getName(), u.toPillarMap(encryptor));
+        Map<String, @Nullable String> encryptedByName = new HashMap<>(toEncrypt.size() * 2);
+        for (int i = 0; i < toEncrypt.size(); i++) {
+            encryptedByName.put(toEncrypt.get(i).getName(), encrypted.get(i));
+        }
+        Map<String, Map<String, @Nullable Object>> usersMap = new HashMap<>();
+        for (User u: users) {
+            usersMap.put(u.getName(), u.toPillarMap(encryptedByName.containsKey(u.getName())
+                                                    ? encryptedByName.get(u.getName())
+                                                    : u.getPasswordEncrypted()));
         }
 
         Map<String, Map<String, Map<String, @Nullable Object>>> pillarMap = new HashMap<>();
@@ -104,16 +647,68 @@ public class Users {
         return pillarMap;
     }
 
+    /**
+     * Keeps the encryption of new passwords on the users, so they are not encrypted again
+     * by the next save. Users whose password has changed since are left alone.
+     * Not a change to the users, so listeners are not notified.
+     * @param users The users whose passwords were encrypted, looked up here by name.
+     * @param plain The plain text passwords encrypted, in the same order.
+     * @param encrypted The encrypted passwords, in the same order.
+     */
+    public void recordEncryptedPasswords(List<User> users,
+                                         List<@Nullable String> plain,
+                                         List<@Nullable String> encrypted) {
+        long locked = this.lockForWrite();
+        try {
+            for (int i = 0; i < users.size(); i++) {
+                @Nullable String p = plain.get(i);
+                @Nullable String e = encrypted.get(i);
+                @Nullable User user = this.userMap.get(users.get(i).getName());
+                if (user != null && p != null && e != null) {
+                    user.recordEncryptedPassword(p, e);
+                }
+            }
+        }
+        finally {
+            this.lock.writeLock().unlock();
+            WRITE_LOCK_TIMER.record(System.nanoTime() - locked);
+        }
+        @Nullable Users s = this.source;
+        if (s != null) {
+            s.recordEncryptedPasswords(users, plain, encrypted);
+        }
+    }
+
     /**
      * Used to construct the users map from YAML.
      * Clears the existing contents of the map.
+     * Listeners receive a single event for the whole replacement.
      * @param users The users to add to the map.
      */
     public void setUsers(Collection<User> users) throws DuplicateNameException {
-        this.userMap.clear();
+        Map<String, User> replacement = new HashMap<>();
         for (User u: users) {
-            this.addUser(u);
+            if (replacement.put(u.getName(), u) != null) {
+                throw new DuplicateNameException("User '" + u.getName() + "' already exists!");
+            }
+        }
+        List<User> deleted;
+        long locked = this.lockForWrite();
+        try {
+            deleted = new ArrayList<>(this.userMap.values());
+            this.userMap.clear();
+            this.userMap.putAll(replacement);
+            this.indexes.clear();
+            this.fingerprints.clear();
+            for (User u : replacement.values()) {
+                this.reindex(u);
+            }
+        }
+        finally {
+            this.lock.writeLock().unlock();
+            WRITE_LOCK_TIMER.record(System.nanoTime() - locked);
         }
+        this.fireUsersChanged(replacement.values(), deleted, Collections.emptyList());
     }
 
 }
@@ -0,0 +1,215 @@
+package com.riverinnovations.saltui.model.user;
+
+import com.riverinnovations.saltui.model.query.UserQuery;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A change applied to every user matching a selection, committed once.
+ *
+ * For example, to change the shell of every member of a group:
+ * <pre>
+ *     users.batch()
+ *          .whereGroup("developers")
+ *          .update(user -&gt; user.setShell("/bin/zsh"))
+ *          .commit();
+ * </pre>
+ *
+ * Index selections (whereUid, whereGid, whereGroup, whereShell, and the index a query
+ * plans to use) are combined by intersection and looked up in the indexes; predicates
+ * are then applied to the remaining users. With no index selection every user is
+ * tested by the predicates.
+ *
+ * commit() selects and updates the users under the Users write lock, updates the
+ * indexes once, and notifies listeners with a single event.
+ *
+ * Not thread safe: build and commit a batch on one thread.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class UsersBatch {
+
+    /** Selections smaller than this are always processed on the calling thread */
+    static final int PARALLEL_THRESHOLD = 1024;
+
+    /** The users to change */
+    private final Users users;
+
+    /** Index lookups, intersected; null for no restriction */
+    private final List<Function<UsersIndexes, @Nullable Set<String>>> indexSelections = new ArrayList<>();
+
+    /** Predicates, all of which must match */
+    private final List<Predicate<User>> predicates = new ArrayList<>();
+
+    /** The changes to make, in order */
+    private final List<Consumer<User>> updates = new ArrayList<>();
+
+    /** Whether to process large selections in parallel */
+    private boolean parallel;
+
+    UsersBatch(Users users) {
+        this.users = users;
+    }
+
+    /**
+     * Selects users for which the predicate is true.
+     */
+    public UsersBatch where(Predicate<User> predicate) {
+        this.predicates.add(predicate);
+        return this;
+    }
+
+    /**
+     * Selects users matching a query, using the most selective index it can.
+     */
+    public UsersBatch where(UserQuery query) {
+        this.indexSelections.add(indexes -> QueryPlan.plan(query, indexes).getNames());
+        this.predicates.add(query);
+        return this;
+    }
+
+    /**
+     * Selects users with the UID, using the index.
+     */
+    public UsersBatch whereUid(int uid) {
+        this.indexSelections.add(indexes -> indexes.namesByUid(uid));
+        return this;
+    }
+
+    /**
+     * Selects users with the primary GID, using the index.
+     */
+    public UsersBatch whereGid(int gid) {
+        this.indexSelections.add(indexes -> indexes.namesByGid(gid));
+        return this;
+    }
+
+    /**
+     * Selects members of the supplementary group, using the index.
+     */
+    public UsersBatch whereGroup(String group) {
+        this.indexSelections.add(indexes -> indexes.namesByGroup(group));
+        return this;
+    }
+
+    /**
+     * Selects users with the shell, using the index.
+     */
+    public UsersBatch whereShell(String shell) {
+        this.indexSelections.add(indexes -> indexes.namesByShell(shell));
+        return this;
+    }
+
+    /**
+     * Adds a change to make to each selected user. Changes are made in the order added.
+     * Updates must not change the user's name, and must be thread safe if parallel() is used.
+     */
+    public UsersBatch update(Consumer<User> update) {
+        this.updates.add(update);
+        return this;
+    }
+
+    /**
+     * Tests and updates large selections in parallel.
+     */
+    public UsersBatch parallel() {
+        this.parallel = true;
+        return this;
+    }
+
+    /**
+     * Makes the changes.
+     * @return The users that were selected and changed.
+     */
+    public List<User> commit() {
+        return this.users.commit(this);
+    }
+
+    /**
+     * Finds the selected users. Called with the Users write lock held.
+     */
+    List<User> select(Map<String, User> userMap, UsersIndexes indexes) {
+        Collection<User> candidates;
+        @Nullable Set<String> names = null;
+        for (Function<UsersIndexes, @Nullable Set<String>> selection : this.indexSelections) {
+            @Nullable Set<String> selected = selection.apply(indexes);
+            if (selected != null) {
+                if (names == null) {
+                    names = new HashSet<>(selected);
+                }
+                else {
+                    names.retainAll(selected);
+                }
+            }
+        }
+        if (names == null) {
+            candidates = userMap.values();
+        }
+        else {
+            candidates = new ArrayList<>();
+            for (String name : names) {
+                @Nullable User user = userMap.get(name);
+                if (user != null) {
+                    candidates.add(user);
+                }
+            }
+        }
+        if (this.predicates.isEmpty()) {
+            return new ArrayList<>(candidates);
+        }
+        Predicate<User> all = user -> {
+            for (Predicate<User> predicate : this.predicates) {
+                if (!predicate.test(user)) {
+                    return false;
+                }
+            }
+            return true;
+        };
+        List<User> selected = new ArrayList<>();
+        if (this.isParallel(candidates.size())) {
+            candidates.parallelStream().filter(all).forEachOrdered(selected::add);
+        }
+        else {
+            for (User user : candidates) {
+                if (all.test(user)) {
+                    selected.add(user);
+                }
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Updates the selected users. Called with the Users write lock held.
+     */
+    void apply(List<User> selected) {
+        Consumer<User> all = user -> {
+            for (Consumer<User> update : this.updates) {
+                update.accept(user);
+            }
+        };
+        if (this.isParallel(selected.size())) {
+            selected.parallelStream().forEach(all);
+        }
+        else {
+            selected.forEach(all);
+        }
+    }
+
+    private boolean isParallel(int size) {
+        return this.parallel && size >= PARALLEL_THRESHOLD;
+    }
+}
@@ -0,0 +1,81 @@
+package com.riverinnovations.saltui.model.user;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes a change to a Users: the users added, deleted and modified.
+ * A single event may describe many changes, for example a bulk import.
+ * Immutable.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class UsersChangeEvent {
+
+    /** The users that were added */
+    private final List<User> added;
+
+    /** The users that were deleted */
+    private final List<User> deleted;
+
+    /** The users whose fields were changed */
+    private final List<User> changed;
+
+    /** Who made the change, if made on behalf of someone other than the current thread */
+    private final @Nullable String actor;
+
+    public UsersChangeEvent(Collection<User> added, Collection<User> deleted, Collection<User> changed) {
+        this(added, deleted, changed, null);
+    }
+
+    /**
+     * Constructor.
+     * @param actor Who made the change, when it is made off the thread that asked for it; null if not known.
+     */
+    public UsersChangeEvent(Collection<User> added,
+                            Collection<User> deleted,
+                            Collection<User> changed,
+                            @Nullable String actor) {
+        this.added = Collections.unmodifiableList(new ArrayList<>(added));
+        this.deleted = Collections.unmodifiableList(new ArrayList<>(deleted));
+        this.changed = Collections.unmodifiableList(new ArrayList<>(changed));
+        this.actor = actor;
+    }
+
+    public List<User> getAdded() {
+        return added;
+    }
+
+    public List<User> getDeleted() {
+        return deleted;
+    }
+
+    public List<User> getChanged() {
+        return changed;
+    }
+
+    public @Nullable String getActor() {
+        return actor;
+    }
+
+    /**
+     * @return True if users were added or deleted, as opposed to just changed.
+     */
+    public boolean isStructural() {
+        return !this.added.isEmpty() || !this.deleted.isEmpty();
+    }
+
+    /**
+     * @return True if nothing changed.
+     */
+    public boolean isEmpty() {
+        return this.added.isEmpty() && this.deleted.isEmpty() && this.changed.isEmpty();
+    }
+}
@@ -0,0 +1,277 @@
+package com.riverinnovations.saltui.model.user;
+
+import com.riverinnovations.saltui.model.query.IndexTerm;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Secondary indexes over Users: user names by UID, GID, supplementary group, shell and
+ * authorized SSH key, names in order for prefix lookups, and names by expiry date for
+ * range lookups.
+ *
+ * Users are mutable, so the indexed values of each user are remembered; reindexing
+ * a user removes it from the entries for its old values before adding the new ones.
+ *
+ * Not thread safe: guarded by the lock in Users.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+class UsersIndexes {
+
+    /** The values each user is indexed under, by name */
+    private final Map<String, Keys> indexed = new HashMap<>();
+
+    private final Map<Integer, Set<String>> byUid = new HashMap<>();
+
+    private final Map<Integer, Set<String>> byGid = new HashMap<>();
+
+    private final Map<String, Set<String>> byGroup = new HashMap<>();
+
+    private final Map<String, Set<String>> byShell = new HashMap<>();
+
+    private final Map<String, Set<String>> bySshKey = new HashMap<>();
+
+    private final NavigableSet<String> sortedNames = new TreeSet<>();
+
+    private final NavigableMap<Integer, Set<String>> byExpire = new TreeMap<>();
+
+    /**
+     * Adds a user, or updates the entries of a user already indexed.
+     */
+    void index(User user) {
+        Keys keys = new Keys(user);
+        @Nullable Keys old = this.indexed.put(user.getName(), keys);
+        if (old != null) {
+            if (old.equals(keys)) {
+                return;
+            }
+            this.remove(user.getName(), old);
+        }
+        else {
+            this.sortedNames.add(user.getName());
+        }
+        add(this.byUid, keys.uid, user.getName());
+        add(this.byGid, keys.gid, user.getName());
+        add(this.byShell, keys.shell, user.getName());
+        add(this.byExpire, keys.expire, user.getName());
+        for (String group : keys.groups) {
+            add(this.byGroup, group, user.getName());
+        }
+        for (String sshKey : keys.sshKeys) {
+            add(this.bySshKey, sshKey, user.getName());
+        }
+    }
+
+    /**
+     * Removes a user.
+     */
+    void unindex(String name) {
+        @Nullable Keys old = this.indexed.remove(name);
+        if (old != null) {
+            this.remove(name, old);
+            this.sortedNames.remove(name);
+        }
+    }
+
+    void clear() {
+        this.indexed.clear();
+        this.byUid.clear();
+        this.byGid.clear();
+        this.byGroup.clear();
+        this.byShell.clear();
+        this.bySshKey.clear();
+        this.sortedNames.clear();
+        this.byExpire.clear();
+    }
+
+    /**
+     * @return The number of users indexed.
+     */
+    int size() {
+        return this.indexed.size();
+    }
+
+    Set<String> namesByUid(int uid) {
+        return get(this.byUid, uid);
+    }
+
+    Set<String> namesByGid(int gid) {
+        return get(this.byGid, gid);
+    }
+
+    Set<String> namesByGroup(String group) {
+        return get(this.byGroup, group);
+    }
+
+    Set<String> namesByShell(String shell) {
+        return get(this.byShell, shell);
+    }
+
+    Set<String> namesBySshKey(String fingerprint) {
+        return get(this.bySshKey, fingerprint);
+    }
+
+    /**
+     * Counts the users matching an index term, stopping early once the count passes a limit.
+     * @return The count, or a number greater than the limit.
+     */
+    int count(IndexTerm term, int limit) {
+        switch (term.getKind()) {
+            case NAME_PREFIX:
+                return countUpTo(this.withPrefix(term.getText()), limit);
+            case EXPIRE:
+                int count = 0;
+                for (Set<String> names : this.expiring(term.getFrom(), term.getTo()).values()) {
+                    count += names.size();
+                    if (count > limit) {
+                        break;
+                    }
+                }
+                return count;
+            default:
+                return this.names(term).size();
+        }
+    }
+
+    /**
+     * @return The names of the users matching an index term.
+     */
+    Set<String> names(IndexTerm term) {
+        switch (term.getKind()) {
+            case NAME_PREFIX:
+                return new HashSet<>(this.withPrefix(term.getText()));
+            case UID:
+                return isInt(term.getFrom()) ? this.namesByUid((int) term.getFrom()) : Collections.emptySet();
+            case GID:
+                return isInt(term.getFrom()) ? this.namesByGid((int) term.getFrom()) : Collections.emptySet();
+            case GROUP:
+                return this.namesByGroup(term.getText());
+            case SHELL:
+                return this.namesByShell(term.getText());
+            default:
+                Set<String> names = new HashSet<>();
+                for (Set<String> day : this.expiring(term.getFrom(), term.getTo()).values()) {
+                    names.addAll(day);
+                }
+                return names;
+        }
+    }
+
+    private NavigableSet<String> withPrefix(String prefix) {
+        return this.sortedNames.subSet(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    private NavigableMap<Integer, Set<String>> expiring(long from, long to) {
+        int lo = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, from));
+        int hi = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, to));
+        boolean hiInclusive = to > Integer.MAX_VALUE;
+        if (lo > hi || (lo == hi && !hiInclusive)) {
+            return Collections.emptyNavigableMap();
+        }
+        return this.byExpire.subMap(lo, true, hi, hiInclusive);
+    }
+
+    private static boolean isInt(long value) {
+        return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+    }
+
+    private static int countUpTo(Set<String> names, int limit) {
+        int count = 0;
+        for (Iterator<String> i = names.iterator(); i.hasNext() && count <= limit; i.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    private void remove(String name, Keys old) {
+        remove(this.byUid, old.uid, name);
+        remove(this.byGid, old.gid, name);
+        remove(this.byShell, old.shell, name);
+        remove(this.byExpire, old.expire, name);
+        for (String group : old.groups) {
+            remove(this.byGroup, group, name);
+        }
+        for (String sshKey : old.sshKeys) {
+            remove(this.bySshKey, sshKey, name);
+        }
+    }
+
+    private static <K> void add(Map<K, Set<String>> index, @Nullable K key, String name) {
+        if (key != null) {
+            index.computeIfAbsent(key, k -> new HashSet<>(2)).add(name);
+        }
+    }
+
+    private static <K> void remove(Map<K, Set<String>> index, @Nullable K key, String name) {
+        if (key != null) {
+            @Nullable Set<String> names = index.get(key);
+            if (names != null) {
+                names.remove(name);
+                if (names.isEmpty()) {
+                    index.remove(key);
+                }
+            }
+        }
+    }
+
+    private static <K> Set<String> get(Map<K, Set<String>> index, K key) {
+        @Nullable Set<String> names = index.get(key);
+        return names == null ? Collections.emptySet() : names;
+    }
+
+    /**
+     * The indexed values of a user when it was last indexed.
+     */
+    private static final class Keys {
+        private final @Nullable Integer uid;
+        private final @Nullable Integer gid;
+        private final @Nullable String shell;
+        private final @Nullable Integer expire;
+        private final List<String> groups;
+        private final List<String> sshKeys;
+
+        Keys(User user) {
+            this.uid = user.getUid();
+            this.gid = user.getGid();
+            this.shell = user.getShell();
+            this.expire = user.getDateExpire();
+            this.groups = new ArrayList<>(user.getGroups());
+            this.sshKeys = new ArrayList<>(user.getSshKeys());
+        }
+
+        @Override
+        public boolean equals(@Nullable Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Keys keys = (Keys) o;
+            return Objects.equals(uid, keys.uid) &&
+                    Objects.equals(gid, keys.gid) &&
+                    Objects.equals(shell, keys.shell) &&
+                    Objects.equals(expire, keys.expire) &&
+                    groups.equals(keys.groups) &&
+                    sshKeys.equals(keys.sshKeys);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(uid, gid, shell, expire, groups, sshKeys);
+        }
+    }
+}
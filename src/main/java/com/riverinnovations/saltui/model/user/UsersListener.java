@@ -0,0 +1,21 @@
+package com.riverinnovations.saltui.model.user;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+/**
+ * Receives notification of changes to a Users.
+ * Called on the thread that made the change, so implementations should return quickly.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public interface UsersListener {
+
+    /**
+     * Called after users have been added, deleted or changed.
+     * @param event Description of the change.
+     */
+    void usersChanged(UsersChangeEvent event);
+
+}
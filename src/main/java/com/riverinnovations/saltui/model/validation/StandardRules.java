@@ -0,0 +1,271 @@
+package com.riverinnovations.saltui.model.validation;
+
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.UserField;
+import com.riverinnovations.saltui.model.validation.Violation.Severity;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * The standard rules for users managed by Salt on Linux/UNIX minions.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class StandardRules {
+
+    /** Default lowest UID for system users, as SYS_UID_MIN in login.defs */
+    public static final int DEFAULT_SYS_UID_MIN = 1;
+
+    /** Default highest UID for system users, as SYS_UID_MAX in login.defs */
+    public static final int DEFAULT_SYS_UID_MAX = 999;
+
+    /** Default lowest UID for other users, as UID_MIN in login.defs */
+    public static final int DEFAULT_UID_MIN = 1000;
+
+    /** Default highest UID for other users, as UID_MAX in login.defs */
+    public static final int DEFAULT_UID_MAX = 60000;
+
+    /** Maximum length of a user name on Linux */
+    private static final int MAX_NAME_LENGTH = 32;
+
+    /** Names useradd accepts with --badnames; upper case letters are only warned about */
+    private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_.-]*\\$?");
+
+    /** Crypt hashes: $id$salt$hash or $id$rounds=N$salt$hash */
+    private static final Pattern CRYPT_PATTERN = Pattern.compile("\\$[0-9a-z]+\\$[^$:]*(\\$[^$:]*)?\\$[./0-9A-Za-z]+");
+
+    /** SSH key fingerprints, which the states put in a Jinja expression */
+    private static final Pattern SSH_KEY_FINGERPRINT_PATTERN = Pattern.compile("SHA256:[A-Za-z0-9+/]{43}");
+
+    /** Characters that are never valid in a path */
+    private static final Pattern BAD_PATH_CHARS = Pattern.compile("[\\s:\\p{Cntrl}]");
+
+    private StandardRules() {
+        // Utility class
+    }
+
+    /**
+     * @return The standard rules with the default UID ranges.
+     */
+    public static List<ValidationRule> all() {
+        return all(DEFAULT_SYS_UID_MIN, DEFAULT_SYS_UID_MAX, DEFAULT_UID_MIN, DEFAULT_UID_MAX);
+    }
+
+    /**
+     * @return The standard rules with the given UID ranges.
+     */
+    public static List<ValidationRule> all(int sysUidMin, int sysUidMax, int uidMin, int uidMax) {
+        List<ValidationRule> rules = new ArrayList<>(fieldRules());
+        rules.add(uidRange(sysUidMin, sysUidMax, uidMin, uidMax));
+        return Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * @return The rules that check each field is well formed, without any site policy
+     *         such as UID ranges. Suitable for users imported from existing systems.
+     */
+    public static List<ValidationRule> fieldRules() {
+        return Collections.unmodifiableList(Arrays.asList(
+                StandardRules::checkName,
+                StandardRules::checkHome,
+                StandardRules::checkShell,
+                StandardRules::checkUid,
+                StandardRules::checkGid,
+                StandardRules::checkAgeing,
+                StandardRules::checkPasswordHash,
+                StandardRules::checkSshKeys));
+    }
+
+    /**
+     * User names must be valid for useradd.
+     */
+    static void checkName(User user, List<Violation> violations) {
+        String name = user.getName();
+        if (name.length() > MAX_NAME_LENGTH) {
+            violations.add(error(user, UserField.NAME, "Longer than " + MAX_NAME_LENGTH + " characters"));
+        }
+        if (!NAME_PATTERN.matcher(name).matches()) {
+            violations.add(error(user, UserField.NAME, "Not a valid POSIX user name"));
+        }
+        else if (!name.equals(name.toLowerCase(Locale.ROOT))) {
+            violations.add(warning(user, UserField.NAME, "Upper case letters are rejected by useradd by default"));
+        }
+    }
+
+    /**
+     * Home directories must be absolute, normalised paths.
+     */
+    static void checkHome(User user, List<Violation> violations) {
+        @Nullable String home = user.getHome();
+        if (home != null) {
+            checkPath(user, UserField.HOME, home, violations);
+            if ("/".equals(home)) {
+                violations.add(warning(user, UserField.HOME, "Home directory is the root directory"));
+            }
+        }
+    }
+
+    /**
+     * Shells must be absolute paths.
+     */
+    static void checkShell(User user, List<Violation> violations) {
+        @Nullable String shell = user.getShell();
+        if (shell != null) {
+            checkPath(user, UserField.SHELL, shell, violations);
+        }
+    }
+
+    private static void checkPath(User user, UserField field, String path, List<Violation> violations) {
+        if (!path.startsWith("/")) {
+            violations.add(error(user, field, "'" + path + "' is not an absolute path"));
+        }
+        else if (BAD_PATH_CHARS.matcher(path).find()) {
+            violations.add(error(user, field, "'" + path + "' contains white space, ':' or control characters"));
+        }
+        else if (path.contains("/../") || path.endsWith("/..") || path.contains("/./") || path.contains("//")) {
+            violations.add(warning(user, field, "'" + path + "' is not normalised"));
+        }
+    }
+
+    /**
+     * UIDs should be in the system range for system users and the normal range otherwise.
+     * The ranges are site policy, and existing accounts are often outside them, so they
+     * are only warned about and never stop a save.
+     */
+    static ValidationRule uidRange(int sysUidMin, int sysUidMax, int uidMin, int uidMax) {
+        return (user, violations) -> {
+            @Nullable Integer uid = user.getUid();
+            if (uid == null || uid < 0) {
+                // Negative UIDs are reported by checkUid()
+                return;
+            }
+            if (uid == 0) {
+                if (!"root".equals(user.getName())) {
+                    violations.add(warning(user, UserField.UID, "UID 0 gives root privileges"));
+                }
+            }
+            else if (user.isSystem() && (uid < sysUidMin || uid > sysUidMax)) {
+                violations.add(warning(user, UserField.UID, "System user UID " + uid + " is outside "
+                                                            + sysUidMin + "-" + sysUidMax));
+            }
+            else if (!user.isSystem() && uid < uidMin) {
+                violations.add(warning(user, UserField.UID, "UID " + uid + " is in the system range but the user "
+                                                            + "is not a system user"));
+            }
+            else if (!user.isSystem() && uid > uidMax) {
+                violations.add(warning(user, UserField.UID, "UID " + uid + " is above " + uidMax));
+            }
+        };
+    }
+
+    /**
+     * UIDs must not be negative.
+     */
+    static void checkUid(User user, List<Violation> violations) {
+        @Nullable Integer uid = user.getUid();
+        if (uid != null && uid < 0) {
+            violations.add(error(user, UserField.UID, "Negative UID " + uid));
+        }
+    }
+
+    /**
+     * GIDs must not be negative, and must not be given with gid_from_name.
+     */
+    static void checkGid(User user, List<Violation> violations) {
+        @Nullable Integer gid = user.getGid();
+        if (gid != null && gid < 0) {
+            violations.add(error(user, UserField.GID, "Negative GID " + gid));
+        }
+        if (gid != null && user.isGidFromName()) {
+            violations.add(warning(user, UserField.GID, "GID is ignored as gid_from_name is set"));
+        }
+    }
+
+    /**
+     * The shadow ageing fields must be consistent.
+     */
+    static void checkAgeing(User user, List<Violation> violations) {
+        checkNotNegative(user, UserField.DATE, user.getDateLastPasswordChange(), violations);
+        checkNotNegative(user, UserField.MINDAYS, user.getMinDaysBetweenPasswordChanges(), violations);
+        checkNotNegative(user, UserField.MAXDAYS, user.getMaxDaysBetweenPasswordChanges(), violations);
+        checkNotNegative(user, UserField.WARNDAYS, user.getWarnDaysBeforeMaxDaysBetweenPasswordChanges(), violations);
+        // -1 disables these
+        checkAtLeastMinusOne(user, UserField.INACTDAYS, user.getInactDaysBeforeLocked(), violations);
+        checkAtLeastMinusOne(user, UserField.EXPIRE, user.getDateExpire(), violations);
+
+        @Nullable Integer min = user.getMinDaysBetweenPasswordChanges();
+        @Nullable Integer max = user.getMaxDaysBetweenPasswordChanges();
+        @Nullable Integer warn = user.getWarnDaysBeforeMaxDaysBetweenPasswordChanges();
+        if (min != null && max != null && max >= 0 && min > max) {
+            violations.add(error(user, UserField.MINDAYS, "mindays " + min + " is greater than maxdays " + max
+                                                          + ", so the password can never be changed"));
+        }
+        if (warn != null && max != null && max >= 0 && warn > max) {
+            violations.add(warning(user, UserField.WARNDAYS, "warndays " + warn + " is greater than maxdays " + max));
+        }
+    }
+
+    private static void checkNotNegative(User user, UserField field, @Nullable Integer value,
+                                         List<Violation> violations) {
+        if (value != null && value < 0) {
+            violations.add(error(user, field, "Negative value " + value));
+        }
+    }
+
+    private static void checkAtLeastMinusOne(User user, UserField field, @Nullable Integer value,
+                                             List<Violation> violations) {
+        if (value != null && value < -1) {
+            violations.add(error(user, field, "Value " + value + " is less than -1"));
+        }
+    }
+
+    /**
+     * Password hashes should be crypt hashes.
+     */
+    static void checkPasswordHash(User user, List<Violation> violations) {
+        @Nullable String hash = user.getPasswordHash();
+        if (hash != null && !CRYPT_PATTERN.matcher(hash).matches()) {
+            violations.add(warning(user, UserField.PASSWORD_HASH, "Not a crypt hash"));
+        }
+    }
+
+    /**
+     * SSH keys are referred to by their SHA256 fingerprints.
+     */
+    static void checkSshKeys(User user, List<Violation> violations) {
+        checkFingerprints(user, UserField.SSH_KEYS, user.getSshKeys(), violations);
+        checkFingerprints(user, UserField.REVOKED_SSH_KEYS, user.getRevokedSshKeys(), violations);
+        for (String fingerprint : user.getSshKeys()) {
+            if (user.getRevokedSshKeys().contains(fingerprint)) {
+                violations.add(error(user, UserField.SSH_KEYS, "'" + fingerprint + "' is both authorized and revoked"));
+            }
+        }
+    }
+
+    private static void checkFingerprints(User user, UserField field, List<String> fingerprints,
+                                          List<Violation> violations) {
+        for (String fingerprint : fingerprints) {
+            if (!SSH_KEY_FINGERPRINT_PATTERN.matcher(fingerprint).matches()) {
+                violations.add(error(user, field, "'" + fingerprint + "' is not a SHA256 key fingerprint"));
+            }
+        }
+    }
+
+    private static Violation error(User user, UserField field, String message) {
+        return new Violation(user.getName(), field.getKey(), Severity.ERROR, message);
+    }
+
+    private static Violation warning(User user, UserField field, String message) {
+        return new Violation(user.getName(), field.getKey(), Severity.WARNING, message);
+    }
+}
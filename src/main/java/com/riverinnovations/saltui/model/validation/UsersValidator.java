@@ -0,0 +1,168 @@
+package com.riverinnovations.saltui.model.validation;
+
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.UserField;
+import com.riverinnovations.saltui.model.user.Users;
+import com.riverinnovations.saltui.model.validation.Violation.Severity;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Validates all the users before they are saved.
+ *
+ * Each user is checked against the rules in parallel. The violations found for each user
+ * are cached with the user's fingerprint, so on the next save only users that have changed
+ * since are checked again. Checks across users, such as duplicate UIDs, are made every time
+ * from the UID index.
+ *
+ * Thread safe.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class UsersValidator {
+
+    /** Below this number of users to check, checking in parallel costs more than it saves */
+    private static final int PARALLEL_THRESHOLD = 256;
+
+    /** Orders violations by user, then field */
+    private static final Comparator<Violation> ORDER =
+            Comparator.comparing(Violation::getUser)
+                      .thenComparing(v -> v.getField() == null ? "" : v.getField());
+
+    /** The rules to apply to each user */
+    private final List<ValidationRule> rules;
+
+    /** The violations found for each user, by name */
+    private final Map<String, CachedResult> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor using the standard rules.
+     */
+    public UsersValidator() {
+        this(StandardRules.all());
+    }
+
+    /**
+     * Constructor.
+     * @param rules The rules to apply to each user.
+     */
+    public UsersValidator(List<ValidationRule> rules) {
+        this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+    }
+
+    public List<ValidationRule> getRules() {
+        return rules;
+    }
+
+    /**
+     * Validates all the users.
+     * @param users The users to validate.
+     * @return The violations found, ordered by user.
+     */
+    public ValidationResult validate(Users users) {
+        List<User> all = new ArrayList<>(users.getUsers());
+        AtomicInteger checked = new AtomicInteger();
+        Stream<User> stream = all.size() >= PARALLEL_THRESHOLD ? all.parallelStream() : all.stream();
+        List<Violation> violations = stream
+                .flatMap(user -> this.validateCached(users, user, checked).stream())
+                .collect(Collectors.toCollection(ArrayList::new));
+
+        // Forget users that have gone
+        Set<String> names = new HashSet<>(all.size() * 2);
+        for (User user : all) {
+            names.add(user.getName());
+        }
+        this.cache.keySet().retainAll(names);
+
+        this.checkDuplicateUids(users, all, violations);
+        violations.sort(ORDER);
+        return new ValidationResult(violations, checked.get());
+    }
+
+    /**
+     * Checks a single user against the rules, without caching.
+     * @param user The user to check.
+     * @return The violations found.
+     */
+    public List<Violation> validate(User user) {
+        List<Violation> violations = new ArrayList<>();
+        for (ValidationRule rule : this.rules) {
+            rule.check(user, violations);
+        }
+        return violations;
+    }
+
+    /**
+     * Returns the cached violations for a user if the user is unchanged, or checks the user.
+     */
+    private List<Violation> validateCached(Users users, User user, AtomicInteger checked) {
+        @Nullable Long indexed = users.getFingerprint(user.getName());
+        long fingerprint = indexed != null ? indexed : user.fingerprint();
+        @Nullable CachedResult cached = this.cache.get(user.getName());
+        if (cached != null && cached.fingerprint == fingerprint) {
+            return cached.violations;
+        }
+        List<Violation> violations = Collections.unmodifiableList(this.validate(user));
+        this.cache.put(user.getName(), new CachedResult(fingerprint, violations));
+        checked.incrementAndGet();
+        return violations;
+    }
+
+    /**
+     * Warns of users sharing a UID, which useradd only allows with --non-unique.
+     */
+    private void checkDuplicateUids(Users users, List<User> all, List<Violation> violations) {
+        Set<Integer> seen = new HashSet<>();
+        for (User user : all) {
+            @Nullable Integer uid = user.getUid();
+            if (uid == null || !seen.add(uid)) {
+                continue;
+            }
+            List<User> sharing = users.findByUid(uid);
+            if (sharing.size() > 1) {
+                List<String> names = new ArrayList<>(sharing.size());
+                for (User u : sharing) {
+                    names.add(u.getName());
+                }
+                Collections.sort(names);
+                for (String name : names) {
+                    violations.add(new Violation(name, UserField.UID.getKey(), Severity.WARNING,
+                                                 "UID " + uid + " is shared by " + String.join(", ", names)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets all cached results, so every user is checked on the next validation.
+     */
+    public void clearCache() {
+        this.cache.clear();
+    }
+
+    /** The violations found for a user with a given fingerprint */
+    private static final class CachedResult {
+        private final long fingerprint;
+        private final List<Violation> violations;
+
+        CachedResult(long fingerprint, List<Violation> violations) {
+            this.fingerprint = fingerprint;
+            this.violations = violations;
+        }
+    }
+}
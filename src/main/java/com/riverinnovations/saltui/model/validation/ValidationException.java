@@ -0,0 +1,21 @@
+package com.riverinnovations.saltui.model.validation;
+
+import com.riverinnovations.saltui.model.ModelException;
+
+/**
+ * Thrown when users cannot be saved because they fail validation.
+ */
+public class ValidationException extends ModelException {
+
+    /** What was found */
+    private final transient ValidationResult result;
+
+    public ValidationException(String s, ValidationResult result) {
+        super(s);
+        this.result = result;
+    }
+
+    public ValidationResult getResult() {
+        return result;
+    }
+}
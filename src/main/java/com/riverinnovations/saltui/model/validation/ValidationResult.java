@@ -0,0 +1,57 @@
+package com.riverinnovations.saltui.model.validation;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * All the violations found in a set of users. Immutable.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class ValidationResult {
+
+    private final List<Violation> violations;
+
+    /** The number of users that were checked rather than taken from the cache */
+    private final int checked;
+
+    public ValidationResult(List<Violation> violations, int checked) {
+        this.violations = Collections.unmodifiableList(new ArrayList<>(violations));
+        this.checked = checked;
+    }
+
+    public List<Violation> getViolations() {
+        return violations;
+    }
+
+    public int getChecked() {
+        return checked;
+    }
+
+    /**
+     * @return The violations that prevent saving.
+     */
+    public List<Violation> getErrors() {
+        List<Violation> errors = new ArrayList<>();
+        for (Violation violation : this.violations) {
+            if (violation.isError()) {
+                errors.add(violation);
+            }
+        }
+        return errors;
+    }
+
+    public boolean hasErrors() {
+        for (Violation violation : this.violations) {
+            if (violation.isError()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,25 @@
+package com.riverinnovations.saltui.model.validation;
+
+import com.riverinnovations.saltui.model.user.User;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.List;
+
+/**
+ * A check on a single user. Rules must be thread safe and must only depend on the
+ * fields included in User.fingerprint(), as their results are cached by fingerprint.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public interface ValidationRule {
+
+    /**
+     * Checks a user.
+     * @param user The user to check.
+     * @param violations Any problems found are added to this.
+     */
+    void check(User user, List<Violation> violations);
+}
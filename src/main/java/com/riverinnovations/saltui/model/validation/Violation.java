@@ -0,0 +1,64 @@
+package com.riverinnovations.saltui.model.validation;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+/**
+ * A problem found with a user. Immutable.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class Violation {
+
+    /** How serious a violation is */
+    public enum Severity {
+        /** Salt would probably apply the state, but the result may not be what was intended */
+        WARNING,
+        /** The users must not be saved */
+        ERROR
+    }
+
+    /** The user with the problem */
+    private final String user;
+
+    /** The pillar key of the field with the problem, if it is in one field */
+    private final @Nullable String field;
+
+    private final Severity severity;
+
+    private final String message;
+
+    public Violation(String user, @Nullable String field, Severity severity, String message) {
+        this.user = user;
+        this.field = field;
+        this.severity = severity;
+        this.message = message;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public @Nullable String getField() {
+        return field;
+    }
+
+    public Severity getSeverity() {
+        return severity;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public boolean isError() {
+        return this.severity == Severity.ERROR;
+    }
+
+    @Override
+    public String toString() {
+        return this.severity + " " + this.user + (this.field == null ? "" : "." + this.field) + ": " + this.message;
+    }
+}
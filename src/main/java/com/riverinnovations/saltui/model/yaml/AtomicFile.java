@@ -0,0 +1,63 @@
+package com.riverinnovations.saltui.model.yaml;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Replaces files so that readers see either the old or the new contents and never
+ * a partly written file.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class AtomicFile {
+
+    /** Suffix of files being written before they replace the real ones */
+    public static final String TEMP_SUFFIX = ".saving";
+
+    private AtomicFile() {
+    }
+
+    /**
+     * Writes a file next to the target, forces it to disk, then moves it over the target.
+     * @param target The file to replace. Its directory must exist.
+     * @param body Writes the contents, as UTF-8.
+     * @param attributes Attributes, such as permissions, to create the file with.
+     */
+    public static void write(Path target, Body body, FileAttribute<?>... attributes) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+        if (attributes.length > 0) {
+            // Attributes are only set when the file is created
+            Files.deleteIfExists(temp);
+        }
+        Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.CREATE,
+                                                     StandardOpenOption.WRITE,
+                                                     StandardOpenOption.TRUNCATE_EXISTING);
+        try (FileChannel channel = FileChannel.open(temp, options, attributes)) {
+            Writer w = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1));
+            body.write(w);
+            w.flush();
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** Writes the contents of a file */
+    public interface Body {
+        void write(Writer w) throws IOException;
+    }
+}
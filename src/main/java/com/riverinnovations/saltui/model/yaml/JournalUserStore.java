@@ -0,0 +1,416 @@
+package com.riverinnovations.saltui.model.yaml;
+
+import com.riverinnovations.saltui.metrics.Histogram;
+import com.riverinnovations.saltui.metrics.Metrics;
+import com.riverinnovations.saltui.metrics.Timer;
+import com.riverinnovations.saltui.model.BadYamlException;
+import com.riverinnovations.saltui.model.ModelException;
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.UserField;
+import com.riverinnovations.saltui.model.user.Users;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Saves the users as a row each in an embedded journal file, so that a save writes only
+ * the users that have changed since they were loaded or last saved, and encrypts only
+ * their passwords.
+ *
+ * The journal is the record of the users. The state, pillar and target files that Salt
+ * reads are exports, written by a UserState from the stored rows after each save without
+ * encrypting the passwords again. If there is no journal yet the users are loaded from
+ * the pillar, and the first save writes every user to the journal.
+ *
+ * Saves are serialised by a lock on a sidecar file next to the journal, and refused with
+ * StaleGenerationException if another instance has saved since the users were loaded.
+ *
+ * When the Salt master key is rotated the passwords are re-encrypted in the journal, by
+ * PillarKeyRotation, rather than in the pillar, which would be overwritten by the next save.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class JournalUserStore implements UserStore {
+
+    /**
+     * Rewrites the encrypted passwords of the stored users.
+     */
+    interface PasswordRewriter {
+        /**
+         * @param passwords The encrypted password of each user that has one, by name.
+         * @return The rewritten passwords, by name.
+         */
+        Map<String, String> rewrite(Map<String, String> passwords) throws ModelException;
+    }
+
+    /** Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(JournalUserStore.class);
+
+    /** Time to load and to save */
+    private static final Timer LOAD_TIMER = Metrics.get().timer("store.load");
+    private static final Timer SAVE_TIMER = Metrics.get().timer("store.save");
+
+    /** Time to write the exports after each save */
+    private static final Timer EXPORT_TIMER = Metrics.get().timer("store.export");
+
+    /** Number of users written by each save */
+    private static final Histogram SAVE_ROWS = Metrics.get().histogram("store.save.rows");
+
+    private final UserJournal journal;
+
+    /** Writes the exports, and validates and encrypts for the saves */
+    private final UserState exports;
+
+    /** How long to wait for the lock */
+    private volatile long lockTimeoutMillis = UserState.DEFAULT_LOCK_TIMEOUT_MILLIS;
+
+    /** Each user as last loaded or saved, to find the users that have changed */
+    private final Map<String, Stored> stored = new ConcurrentHashMap<>();
+
+    /** The pillar entry of each stored row, and the generation they are for. Used with the lock held. */
+    private final Map<String, Map<String, @Nullable Object>> pillarUsers = new HashMap<>();
+    private long pillarGeneration = -1;
+
+    /**
+     * Constructor.
+     * @param journalPath The journal file. Its directory must exist.
+     * @param exports Writes the state, pillar and target files, and provides the
+     *                encryptor and validator for saves.
+     */
+    public JournalUserStore(Path journalPath, UserState exports) {
+        this.journal = new UserJournal(journalPath);
+        this.exports = exports;
+    }
+
+    public Path getJournalFilePath() {
+        return this.journal.getPath();
+    }
+
+    public UserState getExports() {
+        return exports;
+    }
+
+    public void setLockTimeoutMillis(long lockTimeoutMillis) {
+        this.lockTimeoutMillis = Math.max(0, lockTimeoutMillis);
+    }
+
+    /**
+     * @return True if the journal or, before the first save, the pillar exists.
+     */
+    @Override
+    public boolean exists() {
+        return Files.exists(this.journal.getPath()) || this.exports.exists();
+    }
+
+    @Override
+    public Users load() throws IOException, ModelException {
+        Timer.Context loadTiming = LOAD_TIMER.time();
+        try {
+            this.journal.refresh();
+            Users users;
+            if (this.journal.isEmpty()) {
+                users = this.exports.exists() ? this.exports.load() : new Users();
+            }
+            else {
+                users = this.usersOf(this.journal.getRows());
+                users.setGeneration(this.journal.getGeneration());
+            }
+            for (User user : users.getUsers()) {
+                this.stored.put(user.getName(), new Stored(users, user));
+            }
+            return users;
+        }
+        finally {
+            loadTiming.stop();
+        }
+    }
+
+    /**
+     * @return The generation of the journal or, before the first save, of the pillar.
+     */
+    @Override
+    public long readGeneration() throws IOException {
+        this.journal.refresh();
+        return this.journal.isEmpty() ? this.exports.readGeneration() : this.journal.getGeneration();
+    }
+
+    /**
+     * Saves the users that have changed, then writes the exports.
+     * @throws ModelException If the users were saved but the exports could not be written;
+     *                        they are written again by the next save.
+     */
+    @Override
+    public void save(Users users) throws Exception {
+        Timer.Context saveTiming = SAVE_TIMER.time();
+        try {
+            this.doSave(users);
+        }
+        finally {
+            saveTiming.stop();
+        }
+    }
+
+    private void doSave(Users users) throws Exception {
+        // Rendered from a snapshot, so that users changed meanwhile are saved whole
+        Users snapshot = users.snapshot();
+        this.exports.validate(snapshot);
+
+        // Encryption is slow, so the changed users are rendered before taking the lock
+        List<User> all = new ArrayList<>(snapshot.getUsers());
+        List<User> changed = new ArrayList<>();
+        for (User user : all) {
+            @Nullable Stored previous = this.stored.get(user.getName());
+            if (previous == null || !previous.isSameAs(snapshot, user)) {
+                changed.add(user);
+            }
+        }
+        Map<String, Map<String, @Nullable Object>> puts = this.render(snapshot, changed);
+
+        PillarLock lock = PillarLock.acquire(PillarLock.forPillar(this.journal.getPath()), this.lockTimeoutMillis);
+        try {
+            this.journal.refresh();
+            boolean first = this.journal.isEmpty();
+            long current = first ? this.exports.readGeneration() : this.journal.getGeneration();
+            if (current != users.getGeneration()) {
+                throw new StaleGenerationException("Journal " + this.journal.getPath() + " is at generation "
+                                                   + current + " but the users were loaded from generation "
+                                                   + users.getGeneration(), users.getGeneration(), current);
+            }
+
+            Map<String, String> rows = this.journal.getRows();
+            List<User> missing = new ArrayList<>();
+            for (User user : all) {
+                if (!rows.containsKey(user.getName()) && !puts.containsKey(user.getName())) {
+                    missing.add(user);
+                }
+            }
+            if (!missing.isEmpty()) {
+                // Unchanged but not yet stored, as on the first save
+                puts.putAll(this.render(snapshot, missing));
+            }
+            // After rendering, so the stored passwords are the ones encrypted
+            Map<String, Stored> saving = new HashMap<>(all.size() * 2);
+            for (User user : all) {
+                saving.put(user.getName(), new Stored(snapshot, user));
+            }
+            List<String> deletes = new ArrayList<>();
+            for (String name : rows.keySet()) {
+                if (!saving.containsKey(name)) {
+                    deletes.add(name);
+                }
+            }
+
+            Yaml yaml = new Yaml(UserState.createDumperOptions());
+            Map<String, String> putRows = new HashMap<>(puts.size() * 2);
+            for (Map.Entry<String, Map<String, @Nullable Object>> put : puts.entrySet()) {
+                putRows.put(put.getKey(), yaml.dump(put.getValue()));
+            }
+            long next = current + 1;
+            this.journal.commit(next, putRows, deletes);
+            this.journal.compactIfNeeded();
+            users.setGeneration(next);
+            this.stored.keySet().retainAll(saving.keySet());
+            this.stored.putAll(saving);
+            SAVE_ROWS.record(putRows.size() + deletes.size());
+
+            if (this.pillarGeneration != current) {
+                this.pillarUsers.clear();
+                for (Map.Entry<String, String> row : rows.entrySet()) {
+                    this.pillarUsers.put(row.getKey(), stringKeys(parseRow(row.getValue())));
+                }
+            }
+            this.pillarUsers.putAll(puts);
+            this.pillarUsers.keySet().removeAll(deletes);
+            this.pillarGeneration = next;
+
+            this.export(snapshot, next);
+        }
+        finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * Rewrites the encrypted password of every stored user as a new generation, then writes
+     * the exports. Instances that loaded the old passwords must then reload rather than save
+     * them back. Used by PillarKeyRotation when the Salt master key is rotated.
+     * @param rewriter Rewrites the passwords. Called with the lock held.
+     * @return The number of users stored, or -1 if there is no journal yet.
+     * @throws ModelException If the passwords cannot be rewritten, or were saved but the
+     *                        exports could not be written.
+     */
+    long rewritePasswords(PasswordRewriter rewriter) throws IOException, ModelException {
+        PillarLock lock = PillarLock.acquire(PillarLock.forPillar(this.journal.getPath()), this.lockTimeoutMillis);
+        try {
+            this.journal.refresh();
+            if (this.journal.isEmpty()) {
+                return -1;
+            }
+            Map<String, String> rows = this.journal.getRows();
+            Map<String, Map<String, @Nullable Object>> entries = new HashMap<>(rows.size() * 2);
+            Map<String, String> passwords = new HashMap<>(rows.size() * 2);
+            for (Map.Entry<String, String> row : rows.entrySet()) {
+                Map<String, @Nullable Object> entry = stringKeys(parseRow(row.getValue()));
+                @Nullable Object password = entry.get(UserField.PASSWORD.getKey());
+                if (password != null) {
+                    passwords.put(row.getKey(), String.valueOf(password));
+                }
+                entries.put(row.getKey(), entry);
+            }
+            Map<String, String> rewritten = rewriter.rewrite(passwords);
+
+            Yaml yaml = new Yaml(UserState.createDumperOptions());
+            Map<String, String> putRows = new HashMap<>(rows.size() * 2);
+            for (Map.Entry<String, Map<String, @Nullable Object>> entry : entries.entrySet()) {
+                @Nullable String password = rewritten.get(entry.getKey());
+                if (password != null) {
+                    entry.getValue().put(UserField.PASSWORD.getKey(), password);
+                }
+                putRows.put(entry.getKey(), yaml.dump(entry.getValue()));
+            }
+            long next = this.journal.getGeneration() + 1;
+            this.journal.commit(next, putRows, Collections.emptyList());
+            this.journal.compactIfNeeded();
+            SAVE_ROWS.record(putRows.size());
+
+            this.pillarUsers.clear();
+            this.pillarUsers.putAll(entries);
+            this.pillarGeneration = next;
+            this.export(this.usersOf(putRows), next);
+            return putRows.size();
+        }
+        finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * Writes the exports from the stored rows. Called with the lock held.
+     * @param users The users stored.
+     * @param generation The generation stored.
+     * @throws ModelException If the exports could not be written; they are written again by the next save.
+     */
+    private void export(Users users, long generation) throws ModelException {
+        Timer.Context exportTiming = EXPORT_TIMER.time();
+        try {
+            this.exports.export(users, new HashMap<>(this.pillarUsers), generation);
+        }
+        catch (Exception e) {
+            LOGGER.error("Saved users to " + this.journal.getPath() + " but could not write the pillar: "
+                         + e.getMessage(), e);
+            this.pillarGeneration = -1;
+            throw new ModelException("Saved users but could not write the pillar: " + e.getMessage(), e);
+        }
+        finally {
+            exportTiming.stop();
+        }
+    }
+
+    /**
+     * @return The users stored in the rows.
+     */
+    private Users usersOf(Map<String, String> rows) throws IOException, ModelException {
+        // The rows are pillar entries, so the password hashes are only in the exports
+        Map<String, String> hashes = this.exports.readPasswordHashes();
+        List<User> loaded = new ArrayList<>(rows.size());
+        for (String row : rows.values()) {
+            User user = User.fromPillarMap(parseRow(row));
+            if (hashes.containsKey(user.getName())) {
+                user.setPasswordHash(hashes.get(user.getName()));
+            }
+            loaded.add(user);
+        }
+        Users users = new Users();
+        users.addUsers(loaded);
+        return users;
+    }
+
+    /**
+     * @return The pillar entry of each user. New passwords are encrypted in one batch and the
+     *         encryption kept on the users; passwords already encrypted are used as they are.
+     */
+    private Map<String, Map<String, @Nullable Object>> render(Users all, List<User> users) throws Exception {
+        List<User> toEncrypt = new ArrayList<>();
+        List<@Nullable String> passwords = new ArrayList<>();
+        for (User user : users) {
+            if (user.isPasswordEncryptionNeeded()) {
+                toEncrypt.add(user);
+                passwords.add(user.getPasswordPlain());
+            }
+        }
+        List<@Nullable String> encrypted = this.exports.getEncryptor().encryptAll(passwords);
+        all.recordEncryptedPasswords(toEncrypt, passwords, encrypted);
+        Map<String, @Nullable String> encryptedByName = new HashMap<>(toEncrypt.size() * 2);
+        for (int i = 0; i < toEncrypt.size(); i++) {
+            encryptedByName.put(toEncrypt.get(i).getName(), encrypted.get(i));
+        }
+        Map<String, Map<String, @Nullable Object>> rendered = new HashMap<>(users.size() * 2);
+        for (User user : users) {
+            rendered.put(user.getName(), user.toPillarMap(encryptedByName.containsKey(user.getName())
+                                                          ? encryptedByName.get(user.getName())
+                                                          : user.getPasswordEncrypted()));
+        }
+        return rendered;
+    }
+
+    private static Map<@Nullable Object, @Nullable Object> parseRow(String row) throws BadYamlException {
+        @Nullable Object map = new Yaml(new SafeConstructor()).load(row);
+        if (!(map instanceof Map)) {
+            throw new BadYamlException("Journal row is not a mapping");
+        }
+        @SuppressWarnings("unchecked")
+        Map<@Nullable Object, @Nullable Object> userMap = (Map<@Nullable Object, @Nullable Object>) map;
+        return userMap;
+    }
+
+    private static Map<String, @Nullable Object> stringKeys(Map<@Nullable Object, @Nullable Object> map) {
+        Map<String, @Nullable Object> result = new HashMap<>(map.size() * 2);
+        for (Map.Entry<@Nullable Object, @Nullable Object> entry : map.entrySet()) {
+            result.put(String.valueOf(entry.getKey()), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * A user as last loaded or saved: the fingerprint, as indexed by the users if possible,
+     * and the encrypted password, which the fingerprint leaves out.
+     */
+    private static final class Stored {
+        private final long fingerprint;
+        private final @Nullable String password;
+
+        Stored(Users users, User user) {
+            @Nullable Long indexed = users.getFingerprint(user.getName());
+            this.fingerprint = indexed != null ? indexed : user.fingerprint();
+            this.password = user.getPasswordEncrypted();
+        }
+
+        /**
+         * @return True if the user is unchanged: a new password has not been encrypted yet.
+         */
+        boolean isSameAs(Users users, User user) {
+            @Nullable Long indexed = users.getFingerprint(user.getName());
+            long current = indexed != null ? indexed : user.fingerprint();
+            return current == this.fingerprint
+                   && !user.isPasswordEncryptionNeeded()
+                   && Objects.equals(this.password, user.getPasswordEncrypted());
+        }
+    }
+}
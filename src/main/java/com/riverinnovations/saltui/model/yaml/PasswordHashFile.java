@@ -0,0 +1,93 @@
+package com.riverinnovations.saltui.model.yaml;
+
+import com.riverinnovations.saltui.model.BadYamlException;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+import org.yaml.snakeyaml.error.YAMLException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The users' password hashes, kept in a sidecar file next to the pillar rather than in it,
+ * as the pillar is sent to minions. The hashes are needed in clear to check the current
+ * password when users change their own, which the encrypted passwords in the pillar cannot
+ * be used for. The file is only readable by its owner where the file system allows.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+final class PasswordHashFile {
+
+    /** Suffix of the sidecar file */
+    private static final String SUFFIX = ".hashes";
+
+    private PasswordHashFile() {
+    }
+
+    /**
+     * @return The sidecar password hash file for a pillar.
+     */
+    static Path forPillar(Path pillarFilePath) {
+        return pillarFilePath.resolveSibling(pillarFilePath.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Reads the hashes.
+     * @return The hashes by user name; empty if there is no file.
+     * @throws BadYamlException If the file is not a mapping of names to hashes.
+     */
+    static Map<String, String> read(Path path) throws IOException, BadYamlException {
+        Map<String, String> hashes = new HashMap<>();
+        if (!Files.exists(path)) {
+            return hashes;
+        }
+        @Nullable Object map;
+        try (InputStream istr = Files.newInputStream(path)) {
+            map = new Yaml(new SafeConstructor()).load(istr);
+        }
+        catch (YAMLException e) {
+            throw new BadYamlException("Bad password hash file " + path + ": " + e.getMessage(), e);
+        }
+        if (map == null) {
+            return hashes;
+        }
+        if (!(map instanceof Map)) {
+            throw new BadYamlException("Password hash file " + path + " is not a mapping");
+        }
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) map).entrySet()) {
+            if (entry.getKey() == null || !(entry.getValue() instanceof String)) {
+                throw new BadYamlException("Bad password hash for user " + entry.getKey() + " in " + path);
+            }
+            hashes.put(entry.getKey().toString(), (String) entry.getValue());
+        }
+        return hashes;
+    }
+
+    /**
+     * Replaces the file. Called with the pillar lock held.
+     * @param hashes The hashes by user name.
+     */
+    static void write(Path path, Map<String, String> hashes) throws IOException {
+        Yaml yaml = new Yaml(UserState.createDumperOptions());
+        FileAttribute<?>[] attributes = new FileAttribute<?>[0];
+        if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            attributes = new FileAttribute<?>[] {
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))
+            };
+        }
+        AtomicFile.write(path, w -> yaml.dump(new TreeMap<>(hashes), w), attributes);
+    }
+}
@@ -0,0 +1,720 @@
+package com.riverinnovations.saltui.model.yaml;
+
+import com.riverinnovations.saltui.model.BadYamlException;
+import com.riverinnovations.saltui.model.ModelException;
+import com.riverinnovations.saltui.model.gpg.GpgDecryptor;
+import com.riverinnovations.saltui.model.gpg.GpgEncryptionException;
+import com.riverinnovations.saltui.model.gpg.GpgEncryptor;
+import com.riverinnovations.saltui.model.ssh.SshKeyStore;
+import com.riverinnovations.saltui.model.target.TargetWriter;
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.Users;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+import org.yaml.snakeyaml.emitter.Emitter;
+import org.yaml.snakeyaml.events.Event;
+import org.yaml.snakeyaml.events.ScalarEvent;
+import org.yaml.snakeyaml.nodes.Tag;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Job to re-encrypt every password in the users pillar when the Salt master GPG key is rotated.
+ *
+ * The pillar is streamed as YAML events rather than loaded, so memory use depends on the
+ * batch size and not on the number of users. Each batch of passwords is decrypted with the
+ * old secret key and encrypted with the new public key in parallel, and the new pillar is
+ * written to a temporary file which replaces the pillar atomically once complete.
+ *
+ * After each batch the new ciphertexts are appended to a checkpoint file next to the pillar.
+ * If the job is interrupted then running it again replays the checkpoint rather than
+ * repeating the work, provided the pillar has not changed in the meantime.
+ *
+ * The per-target pillar files, if a TargetWriter is set, are written again from the rotated
+ * pillar before it replaces the pillar, so that they hold the same ciphertexts; this loads
+ * the rotated pillar in full. Until the pillar is replaced the job can be run again.
+ *
+ * If the users are saved in a journal then the pillar is only an export of it, and would be
+ * written back with the old ciphertexts by the next save. The journal's rows are re-encrypted
+ * instead, as a new generation, and the pillar and target files exported from them by the
+ * journal store. The rows are held in memory, so there is no checkpoint.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class PillarKeyRotation {
+
+    /**
+     * Receives progress reports as each batch is written.
+     */
+    public interface ProgressListener {
+        /**
+         * @param usersDone The number of users written so far.
+         * @param usersResumed How many of those were taken from the checkpoint of an earlier run.
+         */
+        void progress(long usersDone, long usersResumed);
+    }
+
+    /** Default number of users re-encrypted per batch */
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    /** Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(PillarKeyRotation.class);
+
+    // Keys in the pillar
+    private static final String USERS = "users";
+    private static final String PASSWORD = "password";
+
+    // Files next to the pillar
+    private static final String TEMP_SUFFIX = ".rotating";
+    private static final String CHECKPOINT_SUFFIX = ".rotation";
+
+    // Checkpoint format
+    private static final String CHECKPOINT_MAGIC = "saltui-key-rotation-1";
+    private static final char SEPARATOR = '\t';
+    private static final String NO_PASSWORD = "-";
+
+    /** The pillar to re-encrypt */
+    private final Path pillarFilePath;
+
+    /** The secret key matching the key the pillar is currently encrypted with */
+    private final Path oldSecretKeyPath;
+
+    /** Passphrase for the old secret key, or null if it has none */
+    private final @Nullable String oldPassphrase;
+
+    /** The new public key */
+    private final Path newPublicKeyPath;
+
+    /** Number of worker threads */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /** Number of users per batch */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /** Receives progress reports; may be null */
+    private @Nullable ProgressListener progressListener;
+
+    /** Writes the per-target pillar files; may be null */
+    private @Nullable TargetWriter targetWriter;
+
+    /** The journal the users are saved in; may be null */
+    private @Nullable JournalUserStore journalStore;
+
+    /** Users written so far in the current run */
+    private long usersDone;
+
+    /** Users taken from the checkpoint so far in the current run */
+    private long usersResumed;
+
+    /**
+     * Constructor.
+     * @param pillarFilePath The users pillar file to re-encrypt in place.
+     * @param oldSecretKeyPath The secret key file for the key being retired.
+     * @param oldPassphrase The passphrase for the old secret key, or null if there is none.
+     * @param newPublicKeyPath The public key file for the new key.
+     */
+    public PillarKeyRotation(Path pillarFilePath,
+                             Path oldSecretKeyPath,
+                             @Nullable String oldPassphrase,
+                             Path newPublicKeyPath) {
+        this.pillarFilePath = pillarFilePath;
+        this.oldSecretKeyPath = oldSecretKeyPath;
+        this.oldPassphrase = oldPassphrase;
+        this.newPublicKeyPath = newPublicKeyPath;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public void setProgressListener(@Nullable ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * @param targetWriter Writes the per-target pillar files from the pillar, or null if there are none.
+     */
+    public void setTargetWriter(@Nullable TargetWriter targetWriter) {
+        this.targetWriter = targetWriter;
+    }
+
+    /**
+     * @param journalStore The journal the users are saved in, or null if they are saved in the pillar.
+     *                     Its exports are written in place of the pillar and target files.
+     */
+    public void setJournalStore(@Nullable JournalUserStore journalStore) {
+        this.journalStore = journalStore;
+    }
+
+    /**
+     * @return The checkpoint file used to resume an interrupted rotation.
+     */
+    public Path getCheckpointPath() {
+        return this.sibling(CHECKPOINT_SUFFIX);
+    }
+
+    /**
+     * Re-encrypts the pillar.
+     * @return The number of users written.
+     * @throws IOException If the pillar or checkpoint cannot be read or written.
+     * @throws ModelException If a password cannot be decrypted or encrypted.
+     */
+    public long run() throws IOException, ModelException {
+        // Fail early if either key is unusable
+        new Worker(this.oldSecretKeyPath, this.oldPassphrase, this.newPublicKeyPath);
+
+        @Nullable JournalUserStore store = this.journalStore;
+        if (store != null) {
+            long rotated = store.rewritePasswords(this::rotateAll);
+            if (rotated >= 0) {
+                LOGGER.info("Re-encrypted journal " + store.getJournalFilePath()
+                            + " with key " + this.newPublicKeyPath);
+                return rotated;
+            }
+            // No journal yet, so the pillar is still the record of the users
+        }
+
+        // Instances that loaded the old ciphertext must reload rather than save it back,
+        // so the rotated pillar has the next generation
+        PillarLock lock = PillarLock.acquire(PillarLock.forPillar(this.pillarFilePath),
+                                             UserState.DEFAULT_LOCK_TIMEOUT_MILLIS);
+        try {
+            return this.rotate();
+        }
+        finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * Re-encrypts the pillar. Called with the lock held.
+     */
+    private long rotate() throws IOException, ModelException {
+        this.usersDone = 0;
+        this.usersResumed = 0;
+
+        Path tempPath = this.sibling(TEMP_SUFFIX);
+        ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+        ThreadLocal<@Nullable Worker> workers = new ThreadLocal<>();
+        try (Checkpoint checkpoint = new Checkpoint(this.getCheckpointPath(), this.checkpointHeader());
+             Reader reader = Files.newBufferedReader(this.pillarFilePath, StandardCharsets.UTF_8);
+             Writer writer = Files.newBufferedWriter(tempPath,
+                                                     StandardCharsets.UTF_8,
+                                                     StandardOpenOption.CREATE,
+                                                     StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            Batch batch = new Batch(new Emitter(writer, UserState.createDumperOptions()));
+            List<Frame> frames = new ArrayList<>();
+            for (Event event : new Yaml().parse(reader)) {
+                batch.events.add(event);
+                if (event.is(Event.ID.MappingStart) || event.is(Event.ID.SequenceStart)) {
+                    if (frames.size() == 2 && USERS.equals(frames.get(0).key)) {
+                        batch.users.add(new PendingUser(frames.get(1).keyOrEmpty()));
+                    }
+                    frames.add(new Frame(event.is(Event.ID.MappingStart)));
+                }
+                else if (event.is(Event.ID.MappingEnd) || event.is(Event.ID.SequenceEnd)) {
+                    boolean userEnded = frames.size() == 3 && USERS.equals(frames.get(0).key);
+                    frames.remove(frames.size() - 1);
+                    if (!frames.isEmpty()) {
+                        frames.get(frames.size() - 1).nodeDone();
+                    }
+                    if (userEnded) {
+                        checkpoint.resume(batch.users.get(batch.users.size() - 1));
+                        if (batch.users.size() >= this.batchSize) {
+                            this.flush(batch, checkpoint, executor, workers);
+                        }
+                    }
+                }
+                else if (event.is(Event.ID.Scalar) && !frames.isEmpty()) {
+                    Frame frame = frames.get(frames.size() - 1);
+                    ScalarEvent scalar = (ScalarEvent) event;
+                    if (frame.isKey()) {
+                        frame.key = scalar.getValue();
+                        frame.nodeDone();
+                    }
+                    else {
+                        if (frames.size() == 1 && UserState.GENERATION_KEY.equals(frame.key)) {
+                            batch.events.set(batch.events.size() - 1, nextGeneration(scalar));
+                        }
+                        if (frames.size() == 3 && USERS.equals(frames.get(0).key) && PASSWORD.equals(frame.key)) {
+                            PendingUser user = batch.users.get(batch.users.size() - 1);
+                            user.passwordEventIndex = batch.events.size() - 1;
+                            user.oldCipherText = isNull(scalar) ? null : scalar.getValue();
+                        }
+                        frame.nodeDone();
+                    }
+                }
+            }
+            this.flush(batch, checkpoint, executor, workers);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        // Make sure the data is on disk before it replaces the pillar
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        @Nullable TargetWriter tw = this.targetWriter;
+        if (tw != null) {
+            writeTargets(tw, tempPath);
+        }
+        Files.move(tempPath, this.pillarFilePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(this.getCheckpointPath());
+        LOGGER.info("Re-encrypted pillar " + this.pillarFilePath + " with key " + this.newPublicKeyPath);
+        return this.usersDone;
+    }
+
+    /**
+     * Re-encrypts the passwords of the users in the journal, in batches.
+     * @param passwords The encrypted password of each user, by name.
+     * @return The re-encrypted passwords, by name.
+     */
+    private Map<String, String> rotateAll(Map<String, String> passwords) throws ModelException {
+        this.usersDone = 0;
+        this.usersResumed = 0;
+
+        List<PendingUser> work = new ArrayList<>(passwords.size());
+        for (Map.Entry<String, String> password : passwords.entrySet()) {
+            PendingUser user = new PendingUser(password.getKey());
+            user.oldCipherText = password.getValue();
+            work.add(user);
+        }
+        Map<String, String> rotated = new HashMap<>(passwords.size() * 2);
+        ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+        ThreadLocal<@Nullable Worker> workers = new ThreadLocal<>();
+        try {
+            for (int start = 0; start < work.size(); start += this.batchSize) {
+                List<PendingUser> batch = work.subList(start, Math.min(work.size(), start + this.batchSize));
+                this.reencrypt(batch, executor, workers);
+                for (PendingUser user : batch) {
+                    @Nullable String cipherText = user.newCipherText;
+                    if (cipherText != null) {
+                        rotated.put(user.name, cipherText);
+                    }
+                }
+                this.usersDone += batch.size();
+
+                ProgressListener listener = this.progressListener;
+                if (listener != null) {
+                    listener.progress(this.usersDone, 0);
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        return rotated;
+    }
+
+    /**
+     * Re-encrypts the passwords of the users in the batch, then writes the batch out.
+     */
+    private void flush(Batch batch,
+                       Checkpoint checkpoint,
+                       ExecutorService executor,
+                       ThreadLocal<@Nullable Worker> workers) throws IOException, ModelException {
+        List<PendingUser> work = new ArrayList<>();
+        for (PendingUser user : batch.users) {
+            if (!user.resumed && user.oldCipherText != null) {
+                work.add(user);
+            }
+        }
+        this.reencrypt(work, executor, workers);
+
+        // Replace the password events and write everything out
+        for (PendingUser user : batch.users) {
+            if (user.passwordEventIndex >= 0 && user.newCipherText != null) {
+                ScalarEvent old = (ScalarEvent) batch.events.get(user.passwordEventIndex);
+                batch.events.set(user.passwordEventIndex, new ScalarEvent(old.getAnchor(),
+                                                                          old.getTag(),
+                                                                          old.getImplicit(),
+                                                                          user.newCipherText,
+                                                                          old.getStartMark(),
+                                                                          old.getEndMark(),
+                                                                          old.getStyle()));
+            }
+        }
+        for (Event event : batch.events) {
+            batch.emitter.emit(event);
+        }
+        for (PendingUser user : batch.users) {
+            if (!user.resumed) {
+                checkpoint.append(user);
+            }
+            else {
+                this.usersResumed++;
+            }
+        }
+        checkpoint.flush();
+        this.usersDone += batch.users.size();
+        batch.events.clear();
+        batch.users.clear();
+
+        ProgressListener listener = this.progressListener;
+        if (listener != null) {
+            listener.progress(this.usersDone, this.usersResumed);
+        }
+    }
+
+    /**
+     * Decrypts the password of each user with the old key and encrypts it with the new, in parallel.
+     */
+    private void reencrypt(List<PendingUser> work,
+                           ExecutorService executor,
+                           ThreadLocal<@Nullable Worker> workers) throws ModelException {
+        // Split the work into one chunk per thread; each thread keeps its own (non thread safe) keys
+        List<Callable<@Nullable Void>> tasks = new ArrayList<>();
+        int chunk = (work.size() + this.threads - 1) / this.threads;
+        for (int start = 0; start < work.size(); start += chunk) {
+            List<PendingUser> part = work.subList(start, Math.min(work.size(), start + chunk));
+            tasks.add(() -> {
+                Worker worker = workers.get();
+                if (worker == null) {
+                    worker = new Worker(this.oldSecretKeyPath, this.oldPassphrase, this.newPublicKeyPath);
+                    workers.set(worker);
+                }
+                List<@Nullable String> plain = new ArrayList<>(part.size());
+                for (PendingUser user : part) {
+                    plain.add(worker.decryptor.decrypt(user.oldCipherText));
+                }
+                List<@Nullable String> encrypted = worker.encryptor.encryptAll(plain);
+                for (int i = 0; i < part.size(); i++) {
+                    part.get(i).newCipherText = encrypted.get(i);
+                }
+                return null;
+            });
+        }
+        try {
+            for (Future<@Nullable Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ModelException("Interrupted while re-encrypting passwords", e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ModelException) {
+                throw (ModelException) cause;
+            }
+            throw new ModelException("Error re-encrypting passwords: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes the target files from the rotated pillar, so their pillars hold its ciphertexts.
+     * @param rotated The rotated pillar, not yet in place.
+     */
+    private static void writeTargets(TargetWriter tw, Path rotated) throws IOException, ModelException {
+        @Nullable Object pillar;
+        try (Reader reader = Files.newBufferedReader(rotated, StandardCharsets.UTF_8)) {
+            pillar = new Yaml(new SafeConstructor()).load(reader);
+        }
+        if (!(pillar instanceof Map)) {
+            throw new BadYamlException("Rotated pillar " + rotated + " is not a mapping");
+        }
+        @Nullable Object usersMap = ((Map<?, ?>) pillar).get(USERS);
+        @Nullable Object keysMap = ((Map<?, ?>) pillar).get(SshKeyStore.PILLAR_KEY);
+        if ((usersMap != null && !(usersMap instanceof Map)) || (keysMap != null && !(keysMap instanceof Map))) {
+            throw new BadYamlException("Rotated pillar " + rotated + " is not as saved");
+        }
+
+        List<User> loaded = new ArrayList<>();
+        Map<String, Map<String, @Nullable Object>> pillarUsers = new HashMap<>();
+        if (usersMap != null) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) usersMap).entrySet()) {
+                if (!(entry.getValue() instanceof Map)) {
+                    throw new BadYamlException("Pillar entry for user '" + entry.getKey() + "' is not a mapping");
+                }
+                @SuppressWarnings("unchecked")
+                Map<String, @Nullable Object> userMap = (Map<String, @Nullable Object>) entry.getValue();
+                loaded.add(User.fromPillarMap(new HashMap<@Nullable Object, @Nullable Object>(userMap)));
+                pillarUsers.put(String.valueOf(entry.getKey()), userMap);
+            }
+        }
+        Map<String, String> sshKeys = new HashMap<>();
+        if (keysMap != null) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) keysMap).entrySet()) {
+                sshKeys.put(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+            }
+        }
+        Users users = new Users();
+        users.addUsers(loaded);
+        tw.write(tw.render(users, pillarUsers, sshKeys));
+    }
+
+    /**
+     * Identifies the pillar and key the checkpoint applies to, so that a stale checkpoint is ignored.
+     */
+    private String checkpointHeader() throws IOException {
+        return CHECKPOINT_MAGIC + SEPARATOR
+                + Files.size(this.pillarFilePath) + SEPARATOR
+                + Files.getLastModifiedTime(this.pillarFilePath).toMillis() + SEPARATOR
+                + this.newPublicKeyPath.toAbsolutePath();
+    }
+
+    /**
+     * @return A file in the same directory as the pillar.
+     */
+    private Path sibling(String suffix) {
+        return this.pillarFilePath.resolveSibling(this.pillarFilePath.getFileName() + suffix);
+    }
+
+    /**
+     * @return The generation scalar with the generation incremented.
+     */
+    private static ScalarEvent nextGeneration(ScalarEvent old) throws ModelException {
+        long generation;
+        try {
+            generation = Long.parseLong(old.getValue().trim());
+        }
+        catch (NumberFormatException e) {
+            throw new ModelException("Bad " + UserState.GENERATION_KEY + " '" + old.getValue() + "'", e);
+        }
+        return new ScalarEvent(old.getAnchor(),
+                               old.getTag(),
+                               old.getImplicit(),
+                               Long.toString(generation + 1),
+                               old.getStartMark(),
+                               old.getEndMark(),
+                               old.getStyle());
+    }
+
+    /**
+     * @return True if the scalar is a YAML null.
+     */
+    private static boolean isNull(ScalarEvent scalar) {
+        String value = scalar.getValue();
+        if (Tag.NULL.getValue().equals(scalar.getTag())) {
+            return true;
+        }
+        return scalar.getStyle() == DumperOptions.ScalarStyle.PLAIN
+                && (value.isEmpty() || "null".equals(value) || "~".equals(value));
+    }
+
+    /**
+     * A collection that is open in the event stream.
+     */
+    private static class Frame {
+        private final boolean mapping;
+        private boolean expectKey = true;
+        private @Nullable String key;
+
+        Frame(boolean mapping) {
+            this.mapping = mapping;
+        }
+
+        boolean isKey() {
+            return this.mapping && this.expectKey;
+        }
+
+        void nodeDone() {
+            if (this.mapping) {
+                this.expectKey = !this.expectKey;
+            }
+        }
+
+        String keyOrEmpty() {
+            return this.key == null ? "" : this.key;
+        }
+    }
+
+    /**
+     * A user in the current batch.
+     */
+    private static class PendingUser {
+        private final String name;
+        private int passwordEventIndex = -1;
+        private @Nullable String oldCipherText;
+        private @Nullable String newCipherText;
+        private boolean resumed;
+
+        PendingUser(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Events and users waiting to be written.
+     */
+    private static class Batch {
+        private final Emitter emitter;
+        private final List<Event> events = new ArrayList<>();
+        private final List<PendingUser> users = new ArrayList<>();
+
+        Batch(Emitter emitter) {
+            this.emitter = emitter;
+        }
+    }
+
+    /**
+     * Per-thread keys.
+     */
+    private static class Worker {
+        private final GpgDecryptor decryptor;
+        private final GpgEncryptor encryptor;
+
+        Worker(Path secretKeyPath, @Nullable String passphrase, Path publicKeyPath) throws GpgEncryptionException {
+            this.decryptor = new GpgDecryptor(secretKeyPath, passphrase);
+            this.encryptor = new GpgEncryptor(publicKeyPath);
+        }
+    }
+
+    /**
+     * The checkpoint file: a header identifying the source pillar and new key, followed by one
+     * line per completed user, in pillar order, holding the user name and new ciphertext.
+     */
+    private static class Checkpoint implements AutoCloseable {
+        private final Path path;
+        private final @Nullable BufferedReader reader;
+        private final Writer writer;
+        private long remaining;
+
+        Checkpoint(Path path, String header) throws IOException {
+            this.path = path;
+            long entries = this.validate(header);
+            if (entries < 0) {
+                Files.write(path, (header + "\n").getBytes(StandardCharsets.UTF_8));
+                this.reader = null;
+            }
+            else {
+                LOGGER.info("Resuming key rotation from checkpoint " + path + " with " + entries + " users done");
+                BufferedReader r = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+                r.readLine();
+                this.reader = r;
+                this.remaining = entries;
+            }
+            this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        }
+
+        /**
+         * Checks an existing checkpoint matches this run and drops any partly written last line.
+         * @return The number of complete entries, or -1 if there is no usable checkpoint.
+         */
+        private long validate(String header) throws IOException {
+            if (!Files.exists(this.path)) {
+                return -1;
+            }
+            try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocate(8192);
+                long position = 0;
+                long lastLineEnd = -1;
+                long lines = 0;
+                while (channel.read(buffer) > 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        position++;
+                        if (buffer.get() == '\n') {
+                            lastLineEnd = position;
+                            lines++;
+                        }
+                    }
+                    buffer.clear();
+                }
+                if (lines == 0) {
+                    return -1;
+                }
+                channel.truncate(lastLineEnd);
+            }
+            try (BufferedReader r = Files.newBufferedReader(this.path, StandardCharsets.UTF_8)) {
+                String first = r.readLine();
+                if (!header.equals(first)) {
+                    LOGGER.info("Ignoring stale key rotation checkpoint " + this.path);
+                    return -1;
+                }
+                long entries = 0;
+                while (r.readLine() != null) {
+                    entries++;
+                }
+                return entries;
+            }
+        }
+
+        /**
+         * Takes the user's new ciphertext from the checkpoint if an earlier run completed it.
+         */
+        void resume(PendingUser user) throws IOException, ModelException {
+            BufferedReader r = this.reader;
+            if (r == null || this.remaining == 0) {
+                return;
+            }
+            this.remaining--;
+            String line = r.readLine();
+            int separator = line == null ? -1 : line.indexOf(SEPARATOR);
+            if (line == null || separator < 0 || !user.name.equals(decode(line.substring(0, separator)))) {
+                Files.deleteIfExists(this.path);
+                throw new ModelException("Key rotation checkpoint " + this.path
+                        + " does not match the pillar at user '" + user.name + "'; it has been removed, please run again");
+            }
+            String cipherText = line.substring(separator + 1);
+            user.newCipherText = NO_PASSWORD.equals(cipherText) ? null : decode(cipherText);
+            user.resumed = true;
+        }
+
+        void append(PendingUser user) throws IOException {
+            String cipherText = user.newCipherText;
+            this.writer.write(encode(user.name));
+            this.writer.write(SEPARATOR);
+            this.writer.write(cipherText == null ? NO_PASSWORD : encode(cipherText));
+            this.writer.write('\n');
+        }
+
+        void flush() throws IOException {
+            this.writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            BufferedReader r = this.reader;
+            if (r != null) {
+                r.close();
+            }
+            this.writer.close();
+        }
+
+        private static String encode(String s) {
+            return Base64.getEncoder().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static String decode(String s) {
+            return new String(Base64.getDecoder().decode(s), StandardCharsets.UTF_8);
+        }
+    }
+}
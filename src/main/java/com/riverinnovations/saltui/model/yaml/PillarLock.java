@@ -0,0 +1,130 @@
+package com.riverinnovations.saltui.model.yaml;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exclusive lock on a pillar, shared between processes through an OS lock on a
+ * sidecar file next to the pillar. The OS releases the lock if the holding process dies,
+ * so a crashed instance cannot block the others.
+ *
+ * OS file locks are held by the process, so threads in this process are first
+ * serialised by an in-memory lock per file.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+final class PillarLock implements AutoCloseable {
+
+    /** Suffix of the sidecar lock file */
+    private static final String LOCK_SUFFIX = ".lock";
+
+    /** How often to retry the OS lock while another process holds it */
+    private static final long RETRY_MILLIS = 20;
+
+    /** In-process locks by lock file */
+    private static final Map<Path, ReentrantLock> LOCAL_LOCKS = new ConcurrentHashMap<>();
+
+    private final ReentrantLock localLock;
+
+    private final FileChannel channel;
+
+    private final FileLock fileLock;
+
+    private PillarLock(ReentrantLock localLock, FileChannel channel, FileLock fileLock) {
+        this.localLock = localLock;
+        this.channel = channel;
+        this.fileLock = fileLock;
+    }
+
+    /**
+     * @return The sidecar lock file for a pillar.
+     */
+    static Path forPillar(Path pillarFilePath) {
+        return pillarFilePath.resolveSibling(pillarFilePath.getFileName() + LOCK_SUFFIX);
+    }
+
+    /**
+     * Acquires the lock, waiting for other threads and processes to release it.
+     * @param lockFilePath The sidecar lock file; created if necessary.
+     * @param timeoutMillis How long to wait.
+     * @return The lock, which must be closed to release it.
+     * @throws PillarLockException If the lock is not acquired in time.
+     * @throws IOException If the lock file cannot be opened.
+     */
+    static PillarLock acquire(Path lockFilePath, long timeoutMillis) throws IOException, PillarLockException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        ReentrantLock local = LOCAL_LOCKS.computeIfAbsent(lockFilePath.toAbsolutePath().normalize(),
+                                                          p -> new ReentrantLock());
+        try {
+            if (!local.tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new PillarLockException("Timed out waiting for " + lockFilePath + " in this process");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PillarLockException("Interrupted waiting for " + lockFilePath, e);
+        }
+
+        @Nullable FileChannel channel = null;
+        try {
+            channel = FileChannel.open(lockFilePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            @Nullable FileLock fileLock;
+            while ((fileLock = channel.tryLock()) == null) {
+                if (System.nanoTime() - deadline > 0) {
+                    throw new PillarLockException("Timed out waiting for " + lockFilePath
+                                                  + ", held by another process");
+                }
+                Thread.sleep(RETRY_MILLIS);
+            }
+            return new PillarLock(local, channel, fileLock);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeQuietly(channel);
+            local.unlock();
+            throw new PillarLockException("Interrupted waiting for " + lockFilePath, e);
+        }
+        catch (IOException | PillarLockException | RuntimeException e) {
+            closeQuietly(channel);
+            local.unlock();
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(@Nullable FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                // Closing releases any lock; nothing more to do
+            }
+        }
+    }
+
+    /**
+     * Releases the lock.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            this.fileLock.release();
+            this.channel.close();
+        }
+        finally {
+            this.localLock.unlock();
+        }
+    }
+}
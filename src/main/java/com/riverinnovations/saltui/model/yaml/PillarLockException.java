@@ -0,0 +1,16 @@
+package com.riverinnovations.saltui.model.yaml;
+
+import com.riverinnovations.saltui.model.ModelException;
+
+/**
+ * Thrown when the lock on the pillar cannot be acquired in time.
+ */
+public class PillarLockException extends ModelException {
+    public PillarLockException(String s) {
+        super(s);
+    }
+
+    public PillarLockException(String s, Throwable throwable) {
+        super(s, throwable);
+    }
+}
@@ -0,0 +1,597 @@
+package com.riverinnovations.saltui.model.yaml;
+
+import com.riverinnovations.saltui.metrics.Counter;
+import com.riverinnovations.saltui.metrics.Metrics;
+import com.riverinnovations.saltui.metrics.Timer;
+import com.riverinnovations.saltui.model.BadYamlException;
+import com.riverinnovations.saltui.model.ModelException;
+import com.riverinnovations.saltui.model.gpg.GpgDecryptor;
+import com.riverinnovations.saltui.model.gpg.GpgEncryptionException;
+import com.riverinnovations.saltui.model.target.Target;
+import com.riverinnovations.saltui.model.target.TargetWriter;
+import com.riverinnovations.saltui.model.user.User;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background check that the saved pillar and state file are usable by Salt: that every
+ * password decrypts with the master's secret key, to something other than another PGP
+ * message, and that each saltui-users- state is the one its pillar entry would be saved
+ * as, so corruption is found before a state.apply runs into it. The per-target pillar
+ * files written by the TargetWriter, if any, must hold the same entries as the pillar;
+ * any entry that differs is reported and its password checked as well.
+ *
+ * The files are read together under the pillar lock, so a save in progress is never
+ * seen half written; the checks are made after the lock is released. Passwords are
+ * decrypted in parallel batches by low priority threads, each pausing after a batch so
+ * that together they use no more than the CPU budget.
+ *
+ * Users that pass every check are remembered by a fingerprint of their pillar entry and
+ * state, and are not checked again until either changes.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class PillarScrubber implements AutoCloseable {
+
+    /** Default number of passwords decrypted per batch */
+    public static final int DEFAULT_BATCH_SIZE = 32;
+
+    /** Default fraction of the processors to use */
+    public static final double DEFAULT_CPU_BUDGET = 0.25;
+
+    /** Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(PillarScrubber.class);
+
+    /** Time for a pass */
+    private static final Timer SCRUB_TIMER = Metrics.get().timer("scrub.run");
+
+    /** Users checked in full, and skipped as unchanged */
+    private static final Counter CHECKED = Metrics.get().counter("scrub.checked");
+    private static final Counter SKIPPED = Metrics.get().counter("scrub.skipped");
+
+    /** Problems found, counted on every pass they are found */
+    private static final Counter PROBLEMS = Metrics.get().counter("scrub.problems");
+
+    // Keys in the files
+    private static final String USERS = "users";
+    private static final String PASSWORD = "password";
+    private static final String STATE_ID_PREFIX = "saltui-users-";
+
+    /** Start of an armored PGP message, which a decrypted password should never be */
+    private static final String ARMOR_HEADER = "-----BEGIN PGP MESSAGE-----";
+
+    /** The files to check */
+    private final UserState userState;
+
+    /** The secret key Salt decrypts the pillar with */
+    private final Path secretKeyPath;
+
+    /** Passphrase for the secret key, or null if it has none */
+    private final @Nullable String passphrase;
+
+    /** Fingerprint of each user's pillar entry and state when it last passed every check */
+    private final Map<String, Long> verified = new ConcurrentHashMap<>();
+
+    /** Held for the whole of a pass, so passes don't overlap */
+    private final Object scrubLock = new Object();
+
+    /** Number of decryption threads */
+    private volatile int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    /** Number of passwords per batch */
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+    /** Fraction of the processors to use */
+    private volatile double cpuBudget = DEFAULT_CPU_BUDGET;
+
+    /** Decryption threads, created with the first pass */
+    private @Nullable ExecutorService workers;
+
+    /** Runs passes in the background, once started */
+    private @Nullable ScheduledExecutorService scheduler;
+
+    /** True while a requested pass is waiting to run */
+    private final AtomicBoolean requested = new AtomicBoolean();
+
+    /** The result of the last pass, or null if none has completed */
+    private volatile @Nullable ScrubReport lastReport;
+
+    /**
+     * Constructor.
+     * @param userState The state and pillar files to check.
+     * @param secretKeyPath The secret key file Salt decrypts the pillar with.
+     * @param passphrase The passphrase for the secret key, or null if there is none.
+     */
+    public PillarScrubber(UserState userState, Path secretKeyPath, @Nullable String passphrase) {
+        this.userState = userState;
+        this.secretKeyPath = secretKeyPath;
+        this.passphrase = passphrase;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * @param cpuBudget The fraction of all the processors the decryption threads may use, up to 1.
+     */
+    public void setCpuBudget(double cpuBudget) {
+        this.cpuBudget = Math.max(0.01, Math.min(1.0, cpuBudget));
+    }
+
+    /**
+     * @return The result of the last pass, or null if none has completed.
+     */
+    public @Nullable ScrubReport getLastReport() {
+        return lastReport;
+    }
+
+    /**
+     * Starts checking in the background: now, every interval, and when requested.
+     * @param intervalMillis Time between the end of one pass and the start of the next.
+     */
+    public synchronized void start(long intervalMillis) {
+        if (this.scheduler == null) {
+            ScheduledExecutorService s = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "saltui-scrubber");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            });
+            s.scheduleWithFixedDelay(this::scrubQuietly, 0, intervalMillis, TimeUnit.MILLISECONDS);
+            this.scheduler = s;
+        }
+    }
+
+    /**
+     * Asks for a pass soon, for example after a save. Requests made while one is waiting are combined.
+     */
+    public synchronized void requestScrub() {
+        @Nullable ScheduledExecutorService s = this.scheduler;
+        if (s != null && this.requested.compareAndSet(false, true)) {
+            s.execute(() -> {
+                this.requested.set(false);
+                this.scrubQuietly();
+            });
+        }
+    }
+
+    private void scrubQuietly() {
+        try {
+            this.scrub();
+        }
+        catch (IOException | ModelException | RuntimeException e) {
+            LOGGER.error("Cannot check pillar " + this.userState.getPillarFilePath() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Checks the files now, on the calling thread with the help of the decryption threads.
+     * @return The result, also available from getLastReport().
+     * @throws IOException If the files cannot be read.
+     * @throws ModelException If the files cannot be parsed, the secret key cannot be read, or
+     *                        the lock is not acquired.
+     */
+    public ScrubReport scrub() throws IOException, ModelException {
+        synchronized (this.scrubLock) {
+            return this.doScrub();
+        }
+    }
+
+    private ScrubReport doScrub() throws IOException, ModelException {
+        Timer.Context scrubTiming = SCRUB_TIMER.time();
+        try {
+            // Fail early if the key is unusable, rather than reporting every password
+            new GpgDecryptor(this.secretKeyPath, this.passphrase);
+
+            Snapshot snapshot = this.read();
+            List<ScrubProblem> problems = new ArrayList<>();
+            List<Pending> pending = new ArrayList<>();
+            Map<String, Long> stillVerified = new HashMap<>();
+            int skipped = 0;
+
+            for (Map.Entry<String, @Nullable Object> entry : snapshot.pillarUsers.entrySet()) {
+                String name = entry.getKey();
+                @Nullable Object pillarEntry = entry.getValue();
+                @Nullable Object stateEntry = snapshot.states.remove(STATE_ID_PREFIX + name);
+                @Nullable Object revokedEntry = snapshot.states.remove(STATE_ID_PREFIX + name
+                                                                       + User.REVOKED_SSH_STATE_SUFFIX);
+                long fingerprint = fingerprint(pillarEntry, stateEntry + "\u0000" + revokedEntry);
+                @Nullable Long previous = this.verified.get(name);
+                if (previous != null && previous == fingerprint) {
+                    stillVerified.put(name, fingerprint);
+                    skipped++;
+                    continue;
+                }
+                Pending p = new Pending(name, fingerprint);
+                this.checkState(name, pillarEntry, stateEntry, revokedEntry, p.problems);
+                if (pillarEntry instanceof Map) {
+                    @Nullable Object cipherText = ((Map<?, ?>) pillarEntry).get(PASSWORD);
+                    if (cipherText != null) {
+                        p.cipherText = cipherText.toString();
+                    }
+                }
+                pending.add(p);
+            }
+            List<Pending> targetPending = this.checkTargets(snapshot, problems);
+            for (String id : snapshot.states.keySet()) {
+                if (id.startsWith(STATE_ID_PREFIX)) {
+                    String name = id.substring(STATE_ID_PREFIX.length());
+                    if (name.endsWith(User.REVOKED_SSH_STATE_SUFFIX)) {
+                        name = name.substring(0, name.length() - User.REVOKED_SSH_STATE_SUFFIX.length());
+                    }
+                    problems.add(new ScrubProblem(name, ScrubProblem.Kind.MISSING_PILLAR,
+                                                  "State " + id + " has no pillar entry"));
+                }
+            }
+
+            List<Pending> all = new ArrayList<>(pending);
+            all.addAll(targetPending);
+            this.decrypt(all);
+            for (Pending p : targetPending) {
+                problems.addAll(p.problems);
+            }
+
+            for (Pending p : pending) {
+                if (p.problems.isEmpty()) {
+                    stillVerified.put(p.name, p.fingerprint);
+                }
+                else {
+                    problems.addAll(p.problems);
+                }
+            }
+            // Forget users that have gone, as well as those that failed
+            this.verified.clear();
+            this.verified.putAll(stillVerified);
+
+            ScrubReport report = new ScrubReport(snapshot.generation, System.currentTimeMillis(), pending.size(),
+                                                 skipped, problems);
+            CHECKED.add(pending.size());
+            SKIPPED.add(skipped);
+            PROBLEMS.add(problems.size());
+            if (report.isClean()) {
+                LOGGER.debug("Checked pillar " + this.userState.getPillarFilePath() + ": " + report);
+            }
+            else {
+                LOGGER.error("Problems in pillar " + this.userState.getPillarFilePath() + ": " + report
+                             + ", first: " + problems.get(0));
+            }
+            this.lastReport = report;
+            return report;
+        }
+        finally {
+            scrubTiming.stop();
+        }
+    }
+
+    /**
+     * Checks that a user's states are the ones its pillar entry would be saved as.
+     * @param revokedEntry The state revoking the user's SSH keys, if any.
+     */
+    private void checkState(String name,
+                            @Nullable Object pillarEntry,
+                            @Nullable Object stateEntry,
+                            @Nullable Object revokedEntry,
+                            List<ScrubProblem> problems) {
+        if (!(pillarEntry instanceof Map)) {
+            problems.add(new ScrubProblem(name, ScrubProblem.Kind.BAD_PILLAR, "Pillar entry is not a mapping"));
+            return;
+        }
+        User user;
+        try {
+            @SuppressWarnings("unchecked")
+            Map<@Nullable Object, @Nullable Object> map = (Map<@Nullable Object, @Nullable Object>) pillarEntry;
+            user = User.fromPillarMap(map);
+        }
+        catch (BadYamlException | RuntimeException e) {
+            problems.add(new ScrubProblem(name, ScrubProblem.Kind.BAD_PILLAR, "Bad pillar entry: " + e.getMessage()));
+            return;
+        }
+        if (!user.getName().equals(name)) {
+            problems.add(new ScrubProblem(name, ScrubProblem.Kind.BAD_PILLAR,
+                                          "Pillar entry is named " + user.getName()));
+        }
+        else if (stateEntry == null) {
+            problems.add(new ScrubProblem(name, ScrubProblem.Kind.MISSING_STATE,
+                                          "No state " + STATE_ID_PREFIX + name));
+        }
+        else if (!user.toStateMap().equals(stateEntry)) {
+            problems.add(new ScrubProblem(name, ScrubProblem.Kind.STATE_MISMATCH,
+                                          "State " + STATE_ID_PREFIX + name + " does not match the pillar"));
+        }
+        else if (!Objects.equals(user.toRevokedSshStateMap(), revokedEntry)) {
+            problems.add(new ScrubProblem(name, ScrubProblem.Kind.STATE_MISMATCH,
+                                          "State " + STATE_ID_PREFIX + name + User.REVOKED_SSH_STATE_SUFFIX
+                                          + " does not match the pillar"));
+        }
+    }
+
+    /**
+     * Compares the entries in the target pillar files with those in the pillar.
+     * @param problems Receives the entries with no user in the pillar.
+     * @return The entries that differ, each with a problem, and their passwords to check.
+     */
+    private List<Pending> checkTargets(Snapshot snapshot, List<ScrubProblem> problems) {
+        List<Pending> pending = new ArrayList<>();
+        for (Map.Entry<Path, Map<String, @Nullable Object>> file : snapshot.targetPillarUsers.entrySet()) {
+            for (Map.Entry<String, @Nullable Object> entry : file.getValue().entrySet()) {
+                String name = entry.getKey();
+                @Nullable Object pillarEntry = snapshot.pillarUsers.get(name);
+                if (pillarEntry == null) {
+                    problems.add(new ScrubProblem(name, ScrubProblem.Kind.MISSING_PILLAR,
+                                                  "Target pillar " + file.getKey() + " has no pillar entry"));
+                }
+                else if (!pillarEntry.equals(entry.getValue())) {
+                    Pending p = new Pending(name, 0);
+                    p.file = file.getKey();
+                    p.problems.add(new ScrubProblem(name, ScrubProblem.Kind.TARGET_MISMATCH,
+                                                    "Target pillar " + file.getKey() + " does not match the pillar"));
+                    if (entry.getValue() instanceof Map) {
+                        @Nullable Object cipherText = ((Map<?, ?>) entry.getValue()).get(PASSWORD);
+                        if (cipherText != null) {
+                            p.cipherText = cipherText.toString();
+                        }
+                    }
+                    pending.add(p);
+                }
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Decrypts the passwords in parallel batches, recording those that fail,
+     * and those that decrypt to another PGP message as they were encrypted twice.
+     */
+    private void decrypt(List<Pending> pending) throws ModelException {
+        List<Pending> work = new ArrayList<>();
+        for (Pending p : pending) {
+            if (p.cipherText != null) {
+                work.add(p);
+            }
+        }
+        if (work.isEmpty()) {
+            return;
+        }
+
+        // Each thread runs for a share of the time, so that together they keep to the budget
+        int processors = Runtime.getRuntime().availableProcessors();
+        double duty = Math.min(1.0, this.cpuBudget * processors / this.threads);
+        ThreadLocal<@Nullable GpgDecryptor> decryptors = new ThreadLocal<>();
+        List<Callable<@Nullable Void>> tasks = new ArrayList<>();
+        for (int start = 0; start < work.size(); start += this.batchSize) {
+            List<Pending> batch = work.subList(start, Math.min(work.size(), start + this.batchSize));
+            tasks.add(() -> {
+                long begin = System.nanoTime();
+                GpgDecryptor decryptor = decryptors.get();
+                if (decryptor == null) {
+                    decryptor = new GpgDecryptor(this.secretKeyPath, this.passphrase);
+                    decryptors.set(decryptor);
+                }
+                for (Pending p : batch) {
+                    String where = p.file == null ? "" : " in " + p.file;
+                    try {
+                        @Nullable String plain = decryptor.decrypt(p.cipherText);
+                        if (plain != null && plain.trim().startsWith(ARMOR_HEADER)) {
+                            p.problems.add(new ScrubProblem(p.name, ScrubProblem.Kind.DOUBLE_ENCRYPTED,
+                                                            "Password" + where + " decrypts to a PGP message"));
+                        }
+                    }
+                    catch (GpgEncryptionException e) {
+                        p.problems.add(new ScrubProblem(p.name, ScrubProblem.Kind.UNDECRYPTABLE,
+                                                        "Password" + where + " does not decrypt: " + e.getMessage()));
+                    }
+                }
+                long busy = System.nanoTime() - begin;
+                long pause = (long) (busy * (1.0 / duty - 1.0));
+                if (pause > 0) {
+                    TimeUnit.NANOSECONDS.sleep(pause);
+                }
+                return null;
+            });
+        }
+        try {
+            for (Future<@Nullable Void> future : this.workers().invokeAll(tasks)) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ModelException("Interrupted while checking passwords", e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ModelException) {
+                throw (ModelException) cause;
+            }
+            throw new ModelException("Error checking passwords: " + e.getMessage(), e);
+        }
+    }
+
+    private synchronized ExecutorService workers() {
+        @Nullable ExecutorService w = this.workers;
+        if (w == null) {
+            AtomicInteger count = new AtomicInteger();
+            w = Executors.newFixedThreadPool(this.threads, r -> {
+                Thread t = new Thread(r, "saltui-scrubber-" + count.incrementAndGet());
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            });
+            this.workers = w;
+        }
+        return w;
+    }
+
+    /**
+     * Reads the files under the lock, so that they are from the same save.
+     */
+    private Snapshot read() throws IOException, ModelException {
+        @Nullable Object state;
+        @Nullable Object pillar;
+        Map<Path, @Nullable Object> targetPillars = new LinkedHashMap<>();
+        @Nullable TargetWriter tw = this.userState.getTargetWriter();
+        PillarLock lock = PillarLock.acquire(this.userState.getLockFilePath(), UserState.DEFAULT_LOCK_TIMEOUT_MILLIS);
+        try {
+            state = loadYaml(this.userState.getStateFilePath());
+            pillar = loadYaml(this.userState.getPillarFilePath());
+            if (tw != null) {
+                for (Target target : tw.getTargets().getTargets()) {
+                    Path path = TargetWriter.slsFile(tw.getPillarRoot(), target);
+                    targetPillars.put(path, loadYaml(path));
+                }
+            }
+        }
+        finally {
+            lock.close();
+        }
+        Snapshot snapshot = new Snapshot();
+        for (Map.Entry<Path, @Nullable Object> entry : targetPillars.entrySet()) {
+            @Nullable Object targetPillar = entry.getValue();
+            if (targetPillar == null) {
+                // Not written yet
+                continue;
+            }
+            else if (!(targetPillar instanceof Map)) {
+                throw new BadYamlException("Target pillar " + entry.getKey() + " is not a mapping");
+            }
+            Map<String, @Nullable Object> targetUsers = new HashMap<>();
+            @Nullable Object users = ((Map<?, ?>) targetPillar).get(USERS);
+            if (users instanceof Map) {
+                for (Map.Entry<?, ?> user : ((Map<?, ?>) users).entrySet()) {
+                    targetUsers.put(String.valueOf(user.getKey()), user.getValue());
+                }
+            }
+            else if (users != null) {
+                throw new BadYamlException("Target pillar " + entry.getKey() + " users is not a mapping");
+            }
+            snapshot.targetPillarUsers.put(entry.getKey(), targetUsers);
+        }
+        if (state instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) state).entrySet()) {
+                snapshot.states.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+        }
+        else if (state != null) {
+            throw new BadYamlException("State file " + this.userState.getStateFilePath() + " is not a mapping");
+        }
+        if (pillar instanceof Map) {
+            Map<?, ?> pillarMap = (Map<?, ?>) pillar;
+            @Nullable Object generation = pillarMap.get(UserState.GENERATION_KEY);
+            snapshot.generation = generation instanceof Number ? ((Number) generation).longValue() : 0;
+            @Nullable Object users = pillarMap.get(USERS);
+            if (users instanceof Map) {
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) users).entrySet()) {
+                    snapshot.pillarUsers.put(String.valueOf(entry.getKey()), entry.getValue());
+                }
+            }
+            else if (users != null) {
+                throw new BadYamlException("Pillar " + this.userState.getPillarFilePath() + " users is not a mapping");
+            }
+        }
+        else if (pillar != null) {
+            throw new BadYamlException("Pillar " + this.userState.getPillarFilePath() + " is not a mapping");
+        }
+        return snapshot;
+    }
+
+    private static @Nullable Object loadYaml(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (InputStream istr = Files.newInputStream(path)) {
+            return new Yaml(new SafeConstructor()).load(istr);
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a hash of a user's pillar entry and state as read.
+     */
+    private static long fingerprint(@Nullable Object pillarEntry, @Nullable Object stateEntry) {
+        String text = pillarEntry + "\u0000" + stateEntry;
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            h = (h ^ text.charAt(i)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Stops checking in the background.
+     */
+    @Override
+    public synchronized void close() {
+        @Nullable ScheduledExecutorService s = this.scheduler;
+        if (s != null) {
+            s.shutdownNow();
+            this.scheduler = null;
+        }
+        @Nullable ExecutorService w = this.workers;
+        if (w != null) {
+            w.shutdownNow();
+            this.workers = null;
+        }
+    }
+
+    /**
+     * The files as read.
+     */
+    private static class Snapshot {
+        private long generation;
+        private final Map<String, @Nullable Object> states = new HashMap<>();
+        private final Map<String, @Nullable Object> pillarUsers = new HashMap<>();
+        /** The users in each target pillar file that exists */
+        private final Map<Path, Map<String, @Nullable Object>> targetPillarUsers = new LinkedHashMap<>();
+    }
+
+    /**
+     * A user being checked.
+     */
+    private static class Pending {
+        private final String name;
+        private final long fingerprint;
+        private @Nullable String cipherText;
+        /** The target pillar file the password is from, or null for the pillar */
+        private @Nullable Path file;
+        private final List<ScrubProblem> problems = new ArrayList<>();
+
+        Pending(String name, long fingerprint) {
+            this.name = name;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.riverinnovations.saltui.model.yaml;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+/**
+ * Something wrong with a user in the saved state or pillar, found by PillarScrubber.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class ScrubProblem {
+
+    /** What is wrong */
+    public enum Kind {
+        /** The pillar entry cannot be read as a user */
+        BAD_PILLAR,
+
+        /** The password does not decrypt with the secret key */
+        UNDECRYPTABLE,
+
+        /** The password decrypts to another PGP message, so was encrypted twice */
+        DOUBLE_ENCRYPTED,
+
+        /** The pillar has a user the state file has no state for */
+        MISSING_STATE,
+
+        /** The state file has a user state with no pillar entry */
+        MISSING_PILLAR,
+
+        /** The user state differs from the one the pillar entry would be saved as */
+        STATE_MISMATCH,
+
+        /** A target pillar file has an entry that differs from the pillar */
+        TARGET_MISMATCH
+    }
+
+    private final String user;
+
+    private final Kind kind;
+
+    private final String message;
+
+    public ScrubProblem(String user, Kind kind, String message) {
+        this.user = user;
+        this.kind = kind;
+        this.message = message;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return user + ": " + message;
+    }
+}
@@ -0,0 +1,72 @@
+package com.riverinnovations.saltui.model.yaml;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of one pass of PillarScrubber.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class ScrubReport {
+
+    /** The generation of the pillar checked */
+    private final long generation;
+
+    /** When the pass finished */
+    private final long timestamp;
+
+    /** Users checked in full */
+    private final int checked;
+
+    /** Users unchanged since they were last verified, so not checked again */
+    private final int skipped;
+
+    private final List<ScrubProblem> problems;
+
+    public ScrubReport(long generation, long timestamp, int checked, int skipped, List<ScrubProblem> problems) {
+        this.generation = generation;
+        this.timestamp = timestamp;
+        this.checked = checked;
+        this.skipped = skipped;
+        this.problems = Collections.unmodifiableList(new ArrayList<>(problems));
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getChecked() {
+        return checked;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+    public List<ScrubProblem> getProblems() {
+        return problems;
+    }
+
+    /**
+     * @return True if no problems were found.
+     */
+    public boolean isClean() {
+        return this.problems.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "Generation " + generation + ": " + checked + " users checked, " + skipped + " unchanged, "
+                + problems.size() + " problems";
+    }
+}
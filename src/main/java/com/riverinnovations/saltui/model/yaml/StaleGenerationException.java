@@ -0,0 +1,30 @@
+package com.riverinnovations.saltui.model.yaml;
+
+import com.riverinnovations.saltui.model.ModelException;
+
+/**
+ * Thrown when users cannot be saved because the pillar has been saved by another
+ * instance since they were loaded. Reload the users and make the changes again.
+ */
+public class StaleGenerationException extends ModelException {
+
+    /** The generation the users were loaded from */
+    private final long expected;
+
+    /** The generation found in the pillar */
+    private final long actual;
+
+    public StaleGenerationException(String s, long expected, long actual) {
+        super(s);
+        this.expected = expected;
+        this.actual = actual;
+    }
+
+    public long getExpected() {
+        return expected;
+    }
+
+    public long getActual() {
+        return actual;
+    }
+}
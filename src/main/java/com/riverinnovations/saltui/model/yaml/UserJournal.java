@@ -0,0 +1,333 @@
+package com.riverinnovations.saltui.model.yaml;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An embedded store of text rows by name, in a single file of transactions.
+ *
+ * Each commit appends one transaction of rows to put and names to delete, with a
+ * checksum, and forces it to disk, so a commit costs the rows changed rather than a
+ * rewrite of every row. A transaction is applied entirely or not at all: a transaction
+ * torn by a crash fails its checksum and is ignored, and removed by the next commit.
+ *
+ * When the file is mostly superseded rows it is compacted by writing the current rows
+ * to a new file that atomically replaces it.
+ *
+ * Readers need no lock. Commits and compaction must be serialised by the caller, for
+ * example with a PillarLock, and must refresh() first to see other instances' commits.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+final class UserJournal {
+
+    /** Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserJournal.class);
+
+    /** First bytes of the file: "SUJ1" */
+    private static final int MAGIC = 0x53554a31;
+
+    /** Bytes of the magic number */
+    private static final int HEADER_BYTES = 4;
+
+    /** Operations in a transaction */
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    /** Files smaller than this are never compacted */
+    private static final long COMPACT_MIN_BYTES = 1024 * 1024;
+
+    /** Suffix of the file written while compacting */
+    private static final String COMPACT_SUFFIX = ".compacting";
+
+    private final Path path;
+
+    /** The rows by name, as of the last transaction read */
+    private final Map<String, String> rows = new HashMap<>();
+
+    /** The generation of the last transaction read, or 0 if there is none */
+    private long generation;
+
+    /** Bytes of the file read, up to the end of the last complete transaction */
+    private long length;
+
+    /** Approximate bytes of the current rows */
+    private long liveBytes;
+
+    /** Identifies the file read, to notice when it is replaced by compaction */
+    private @Nullable Object fileKey;
+
+    UserJournal(Path path) {
+        this.path = path;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    synchronized boolean isEmpty() {
+        return this.length == 0;
+    }
+
+    /**
+     * @return A copy of the rows by name.
+     */
+    synchronized Map<String, String> getRows() {
+        return new HashMap<>(this.rows);
+    }
+
+    /**
+     * @return The bytes of complete transactions.
+     */
+    synchronized long getLength() {
+        return length;
+    }
+
+    /**
+     * Reads the transactions committed since the last refresh, by this or another instance.
+     * Reads the whole file again if it has been replaced.
+     * @return True if any rows changed.
+     */
+    synchronized boolean refresh() throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(this.path, BasicFileAttributes.class);
+        }
+        catch (NoSuchFileException e) {
+            boolean changed = this.length > 0;
+            this.reset();
+            return changed;
+        }
+        @Nullable Object key = attributes.fileKey();
+        boolean changed = false;
+        if (key == null || !key.equals(this.fileKey) || attributes.size() < this.length) {
+            changed = this.length > 0;
+            this.reset();
+        }
+        this.fileKey = key;
+        if (attributes.size() == this.length) {
+            return changed;
+        }
+
+        try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (this.length == 0) {
+                if (size < HEADER_BYTES) {
+                    // Being created
+                    return changed;
+                }
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                readFully(channel, header, 0);
+                if (header.getInt(0) != MAGIC) {
+                    throw new IOException(this.path + " is not a user journal");
+                }
+                this.length = HEADER_BYTES;
+            }
+            ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+            while (size - this.length >= 4) {
+                lengthBuffer.clear();
+                readFully(channel, lengthBuffer, this.length);
+                int bodyLength = lengthBuffer.getInt(0);
+                if (bodyLength < 0 || size - this.length < 4L + bodyLength + 8) {
+                    // Being written, or torn
+                    break;
+                }
+                ByteBuffer tx = ByteBuffer.allocate(bodyLength + 8);
+                readFully(channel, tx, this.length + 4);
+                CRC32 crc = new CRC32();
+                crc.update(tx.array(), 0, bodyLength);
+                if (crc.getValue() != tx.getLong(bodyLength)) {
+                    break;
+                }
+                this.apply(tx.array(), bodyLength);
+                this.length += 4L + bodyLength + 8;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Appends a transaction and forces it to disk. The caller must hold the lock and
+     * have refreshed since taking it.
+     * @param generation The generation of the transaction.
+     * @param puts Rows to add or replace, by name.
+     * @param deletes Names of rows to remove.
+     */
+    synchronized void commit(long generation, Map<String, String> puts, Collection<String> deletes)
+            throws IOException {
+        byte[] body = encode(generation, puts, deletes);
+        ByteBuffer tx = transaction(body);
+        try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            if (channel.size() > this.length) {
+                LOGGER.warn("Discarding " + (channel.size() - this.length) + " bytes of incomplete transactions from "
+                            + this.path);
+                channel.truncate(this.length);
+            }
+            if (this.length == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(0, MAGIC);
+                writeFully(channel, header, 0);
+                this.length = HEADER_BYTES;
+            }
+            writeFully(channel, tx, this.length);
+            channel.force(false);
+        }
+        this.fileKey = Files.readAttributes(this.path, BasicFileAttributes.class).fileKey();
+        this.apply(body, body.length);
+        this.length += tx.capacity();
+    }
+
+    /**
+     * Replaces the file with one holding just the current rows, if it is mostly superseded rows.
+     * The caller must hold the lock and have refreshed since taking it.
+     * @return True if compacted.
+     */
+    synchronized boolean compactIfNeeded() throws IOException {
+        if (this.length < COMPACT_MIN_BYTES || this.length < 2 * this.liveBytes) {
+            return false;
+        }
+        ByteBuffer tx = transaction(encode(this.generation, this.rows, Collections.<String>emptyList()));
+        Path temp = this.path.resolveSibling(this.path.getFileName() + COMPACT_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(0, MAGIC);
+            writeFully(channel, header, 0);
+            writeFully(channel, tx, HEADER_BYTES);
+            channel.force(true);
+        }
+        Files.move(temp, this.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        LOGGER.info("Compacted " + this.path + " from " + this.length + " to " + (HEADER_BYTES + tx.capacity())
+                    + " bytes");
+        this.fileKey = Files.readAttributes(this.path, BasicFileAttributes.class).fileKey();
+        this.length = HEADER_BYTES + tx.capacity();
+        return true;
+    }
+
+    private void reset() {
+        this.rows.clear();
+        this.generation = 0;
+        this.length = 0;
+        this.liveBytes = 0;
+        this.fileKey = null;
+    }
+
+    private static byte[] encode(long generation, Map<String, String> puts, Collection<String> deletes)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(generation);
+        out.writeInt(puts.size() + deletes.size());
+        for (Map.Entry<String, String> put : puts.entrySet()) {
+            out.writeByte(PUT);
+            out.writeUTF(put.getKey());
+            byte[] row = put.getValue().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(row.length);
+            out.write(row);
+        }
+        for (String delete : deletes) {
+            out.writeByte(DELETE);
+            out.writeUTF(delete);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return The body with its length and checksum, ready to write.
+     */
+    private static ByteBuffer transaction(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer tx = ByteBuffer.allocate(4 + body.length + 8);
+        tx.putInt(body.length).put(body).putLong(crc.getValue());
+        tx.flip();
+        return tx;
+    }
+
+    /**
+     * Applies a transaction whose checksum has been checked.
+     */
+    private void apply(byte[] body, int bodyLength) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, 0, bodyLength));
+        long txGeneration = in.readLong();
+        int ops = in.readInt();
+        for (int i = 0; i < ops; i++) {
+            byte op = in.readByte();
+            String name = in.readUTF();
+            if (op == PUT) {
+                byte[] row = new byte[in.readInt()];
+                in.readFully(row);
+                this.put(name, new String(row, StandardCharsets.UTF_8));
+            }
+            else if (op == DELETE) {
+                this.remove(name);
+            }
+            else {
+                throw new IOException("Bad operation " + op + " in " + this.path);
+            }
+        }
+        this.generation = txGeneration;
+    }
+
+    private void put(String name, String row) {
+        this.remove(name);
+        this.rows.put(name, row);
+        this.liveBytes += name.length() + row.length();
+    }
+
+    private void remove(String name) {
+        @Nullable String old = this.rows.remove(name);
+        if (old != null) {
+            this.liveBytes -= name.length() + old.length();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long p = position;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, p);
+            if (read < 0) {
+                throw new IOException("Unexpected end of journal");
+            }
+            p += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long p = position;
+        while (buffer.hasRemaining()) {
+            p += channel.write(buffer, p);
+        }
+    }
+}
@@ -1,10 +1,24 @@
 package com.riverinnovations.saltui.model.yaml;
 
+import com.riverinnovations.saltui.metrics.Histogram;
+import com.riverinnovations.saltui.metrics.Metrics;
+import com.riverinnovations.saltui.metrics.Timer;
 import com.riverinnovations.saltui.model.BadYamlException;
 import com.riverinnovations.saltui.model.ModelException;
+import com.riverinnovations.saltui.model.gpg.GpgEncryptionException;
 import com.riverinnovations.saltui.model.gpg.GpgEncryptor;
+import com.riverinnovations.saltui.model.gpg.SecretEncryptor;
+import com.riverinnovations.saltui.model.history.PillarHistory;
+import com.riverinnovations.saltui.model.ssh.SshKeyException;
+import com.riverinnovations.saltui.model.ssh.SshKeyStore;
+import com.riverinnovations.saltui.model.target.TargetWriter;
 import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.UserField;
 import com.riverinnovations.saltui.model.user.Users;
+import com.riverinnovations.saltui.model.validation.UsersValidator;
+import com.riverinnovations.saltui.model.validation.ValidationException;
+import com.riverinnovations.saltui.model.validation.ValidationResult;
+import com.riverinnovations.saltui.model.validation.Violation;
 
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -14,22 +28,77 @@ import org.yaml.snakeyaml.DumperOptions;
 import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.constructor.SafeConstructor;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
- * Represents the user data stored in a Pillar.
+ * Represents the user data stored in a Pillar, saved by rewriting the whole state and pillar files.
+ * The text of each user is kept from the last save, so a save only encrypts new passwords and
+ * serialises the users that have changed.
+ *
+ * Several instances of the application may share the same files. Saves are serialised
+ * by a lock on a sidecar file next to the pillar, and each save writes a generation
+ * number as the first line of the pillar. A save is refused with StaleGenerationException
+ * if the pillar has been saved since the users were loaded, rather than overwriting
+ * the other instance's changes. Files are replaced atomically, so loading never needs
+ * the lock.
  *
  * Items without annotation are assumed to be NonNull (default)
  */
 @DefaultQualifier(value = NonNull.class)
-public class UserState {
+public class UserState implements UserStore {
+
+    /** Top level pillar key holding the users */
+    private static final String USERS_KEY = "users";
+
+    /** Top level pillar key holding the generation */
+    public static final String GENERATION_KEY = "saltui_generation";
+
+    /** Default time to wait for another instance to finish saving */
+    public static final long DEFAULT_LOCK_TIMEOUT_MILLIS = 30000;
+
+    /** Directory of SSH keys, next to the pillar, unless another store is set */
+    public static final String DEFAULT_SSH_KEYS_DIRECTORY = "sshkeys";
+
+    /** The first line of a pillar written by save() */
+    private static final Pattern GENERATION_LINE = Pattern.compile(GENERATION_KEY + ": (\\d+)");
+
+    /** Time to load, and its phases: parsing the YAML and building the users */
+    private static final Timer LOAD_TIMER = Metrics.get().timer("userstate.load");
+    private static final Timer LOAD_PARSE_TIMER = Metrics.get().timer("userstate.load.parse");
+    private static final Timer LOAD_BUILD_TIMER = Metrics.get().timer("userstate.load.build");
+
+    /**
+     * Time to save, and its phases. Rendering includes encrypting the passwords,
+     * which is also timed by the encryptor. Writing includes serialising the YAML.
+     */
+    private static final Timer SAVE_TIMER = Metrics.get().timer("userstate.save");
+    private static final Timer SAVE_VALIDATE_TIMER = Metrics.get().timer("userstate.save.validate");
+    private static final Timer SAVE_RENDER_TIMER = Metrics.get().timer("userstate.save.render");
+    private static final Timer SAVE_WRITE_TIMER = Metrics.get().timer("userstate.save.write");
+    private static final Timer SAVE_HISTORY_TIMER = Metrics.get().timer("userstate.save.history");
+
+    /** Number of users and bytes written by each save */
+    private static final Histogram SAVE_USERS = Metrics.get().histogram("userstate.save.users");
+    /** Number of users serialised by each save; the others are written as serialised before */
+    private static final Histogram SAVE_DUMPED = Metrics.get().histogram("userstate.save.dumped");
+    private static final Histogram SAVE_BYTES = Metrics.get().histogram("userstate.save.bytes");
 
     /** The name of the file we want to manage for SaltStack State*/
     private final Path stateFilePath;
@@ -37,8 +106,33 @@ public class UserState {
     /** The name of the pillar file that holds all the data */
     private final Path pillarFilePath;
 
-    /** The name of the GPG key file */
-    private final Path gpgKeyFilePath;
+    /** The name of the GPG key file, if the encryptor is created for each save */
+    private final @Nullable Path gpgKeyFilePath;
+
+    /** The encryptor for passwords, if one was supplied */
+    private final @Nullable SecretEncryptor encryptor;
+
+    /** How long to wait for the lock */
+    private volatile long lockTimeoutMillis = DEFAULT_LOCK_TIMEOUT_MILLIS;
+
+    /** Records each save, if set */
+    private volatile @Nullable PillarHistory history;
+
+    /** Checks the users before each save, if set */
+    private volatile @Nullable UsersValidator validator = new UsersValidator();
+
+    /** The encryptor parsed from the key file, and the modification time of the file when parsed */
+    private @Nullable GpgEncryptor keyFileEncryptor;
+    private @Nullable FileTime keyFileModified;
+
+    /** Writes the files for each target on each save, if set */
+    private volatile @Nullable TargetWriter targetWriter;
+
+    /** The SSH keys the users refer to, copied into the pillar on each save */
+    private volatile SshKeyStore sshKeyStore;
+
+    /** The state and pillar text of each user as last written. Replaced, not changed, by each save. */
+    private volatile Map<String, DumpedUser> dumpedUsers = new HashMap<>();
 
     /**
      * Constructor.
@@ -61,6 +155,127 @@ public class UserState {
         this.stateFilePath = stateFilePath;
         this.pillarFilePath = pillarFilePath;
         this.gpgKeyFilePath = gpgKeyFilePath;
+        this.encryptor = null;
+        this.sshKeyStore = new SshKeyStore(pillarFilePath.resolveSibling(DEFAULT_SSH_KEYS_DIRECTORY));
+    }
+
+    /**
+     * Constructor taking an encryptor rather than a key file, so that the key is
+     * parsed once rather than on every save, or so a test encryptor can be used.
+     * @param stateFilePath The path to the file that we're going to manage.
+     * @param pillarFilePath The path to the file that will hold all
+     *                       the data about the stuff we're managing.
+     * @param encryptor The encryptor for sensitive data.
+     */
+    public UserState(Path stateFilePath,
+                     Path pillarFilePath,
+                     SecretEncryptor encryptor) {
+        this.stateFilePath = stateFilePath;
+        this.pillarFilePath = pillarFilePath;
+        this.gpgKeyFilePath = null;
+        this.encryptor = encryptor;
+        this.sshKeyStore = new SshKeyStore(pillarFilePath.resolveSibling(DEFAULT_SSH_KEYS_DIRECTORY));
+    }
+
+    public Path getStateFilePath() {
+        return stateFilePath;
+    }
+
+    public Path getPillarFilePath() {
+        return pillarFilePath;
+    }
+
+    /**
+     * @return The sidecar file locked while saving.
+     */
+    public Path getLockFilePath() {
+        return PillarLock.forPillar(this.pillarFilePath);
+    }
+
+    public void setLockTimeoutMillis(long lockTimeoutMillis) {
+        this.lockTimeoutMillis = Math.max(0, lockTimeoutMillis);
+    }
+
+    /**
+     * Sets the history that records each save, allowing earlier saves to be restored.
+     * @param history The history, or null to stop recording.
+     */
+    public void setHistory(@Nullable PillarHistory history) {
+        this.history = history;
+    }
+
+    public @Nullable PillarHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Sets the validator that checks the users before each save.
+     * The standard rules are used by default.
+     * @param validator The validator, or null to save without validating.
+     */
+    public void setValidator(@Nullable UsersValidator validator) {
+        this.validator = validator;
+    }
+
+    public @Nullable UsersValidator getValidator() {
+        return validator;
+    }
+
+    /**
+     * Sets the writer of the per-target state, pillar and top files, which are written
+     * with the lock held after the state and pillar files.
+     * @param targetWriter The writer, or null to only write the state and pillar files.
+     */
+    public void setTargetWriter(@Nullable TargetWriter targetWriter) {
+        this.targetWriter = targetWriter;
+    }
+
+    public @Nullable TargetWriter getTargetWriter() {
+        return targetWriter;
+    }
+
+    /**
+     * Sets the store of the SSH keys the users refer to by fingerprint. By default the
+     * keys are held in a directory next to the pillar.
+     */
+    public void setSshKeyStore(SshKeyStore sshKeyStore) {
+        this.sshKeyStore = sshKeyStore;
+    }
+
+    public SshKeyStore getSshKeyStore() {
+        return sshKeyStore;
+    }
+
+    /**
+     * Parses the key file now rather than on the next save, for example while starting up.
+     */
+    public void prepareEncryptor() throws IOException, GpgEncryptionException {
+        this.getEncryptor();
+    }
+
+    /**
+     * @return The encryptor to use for a save. A key file is only parsed again if it has changed.
+     */
+    SecretEncryptor getEncryptor() throws IOException, GpgEncryptionException {
+        SecretEncryptor e = this.encryptor;
+        if (e != null) {
+            return e;
+        }
+        else if (this.gpgKeyFilePath != null) {
+            FileTime modified = Files.getLastModifiedTime(this.gpgKeyFilePath);
+            synchronized (this) {
+                @Nullable GpgEncryptor cached = this.keyFileEncryptor;
+                if (cached == null || !modified.equals(this.keyFileModified)) {
+                    cached = new GpgEncryptor(this.gpgKeyFilePath);
+                    this.keyFileEncryptor = cached;
+                    this.keyFileModified = modified;
+                }
+                return cached;
+            }
+        }
+        else {
+            throw new GpgEncryptionException("No encryptor or key configured");
+        }
     }
 
     /**
@@ -83,90 +298,471 @@ public class UserState {
         return (Map<@Nullable Object, @Nullable Object>) oUserMap;
     }
 
+    /**
+     * Creates the options used for writing the state and pillar files.
+     * @return Options to create readable YAML that this parser will cope with.
+     */
+    public static DumperOptions createDumperOptions() {
+        // Notably we don't want to split lines as otherwise string entries
+        // may not be parsable.
+        DumperOptions dumperOptions = new DumperOptions();
+        dumperOptions.setIndent(2);
+        dumperOptions.setSplitLines(false);
+        dumperOptions.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+        dumperOptions.setDefaultScalarStyle(DumperOptions.ScalarStyle.DOUBLE_QUOTED);
+        // TODO - always quote strings to avoid parsing numeric data incorrectly!
+        return dumperOptions;
+    }
+
+    /**
+     * @return True if the pillar file exists.
+     */
+    @Override
+    public boolean exists() {
+        return Files.exists(this.pillarFilePath);
+    }
+
     /**
      * Loads a YAML file into memory.
      * @return A map of user name to User object.
      */
+    @Override
     public Users load() throws IOException, ModelException {
-        Users users = new Users();
+        Timer.Context loadTiming = LOAD_TIMER.time();
+        try {
+            Map<String, ?> map;
+            Timer.Context loadParseTiming = LOAD_PARSE_TIMER.time();
+            try (InputStream istr = Files.newInputStream(pillarFilePath)) {
+                map = new Yaml(new SafeConstructor()).load(istr);
+            }
+            finally {
+                loadParseTiming.stop();
+            }
+            Timer.Context loadBuildTiming = LOAD_BUILD_TIMER.time();
+            try {
+                Users users = this.buildUsers(map, this.readPasswordHashes());
+                users.setGeneration(map == null ? 0 : generationOf(map.get(GENERATION_KEY)));
+                return users;
+            }
+            finally {
+                loadBuildTiming.stop();
+            }
+        }
+        finally {
+            loadTiming.stop();
+        }
+    }
 
-        Yaml yaml = new Yaml(new SafeConstructor());
-        try (InputStream istr = Files.newInputStream(pillarFilePath)) {
-            Map<String, ?> map = yaml.load(istr);
+    /**
+     * Reads the generation of the pillar as saved, without parsing the whole pillar
+     * unless it was written by something other than save().
+     * Does not take the lock, so another instance may save a newer generation at any time.
+     * @return The generation, or 0 if there is no pillar or it has no generation.
+     */
+    @Override
+    public long readGeneration() throws IOException {
+        if (!Files.exists(this.pillarFilePath)) {
+            return 0;
+        }
+        try (BufferedReader r = Files.newBufferedReader(this.pillarFilePath, StandardCharsets.UTF_8)) {
+            @Nullable String first = r.readLine();
+            if (first != null) {
+                Matcher m = GENERATION_LINE.matcher(first);
+                if (m.matches()) {
+                    return Long.parseLong(m.group(1));
+                }
+            }
+        }
+        // Written by hand or by another tool
+        try (InputStream istr = Files.newInputStream(this.pillarFilePath)) {
+            @Nullable Object map = new Yaml(new SafeConstructor()).load(istr);
+            return map instanceof Map ? generationOf(((Map<?, ?>) map).get(GENERATION_KEY)) : 0;
+        }
+    }
 
-            if (map != null) {
-                if (map.containsKey("users")) {
-                    @Nullable Object oUsersMap = map.get("users");
-                    if (oUsersMap == null) {
-                        throw new BadYamlException("Value of users key was null");
-                    }
-                    else if (!(oUsersMap instanceof Map)) {
-                        throw new BadYamlException("Cannot find users map in pillar");
-                    }
-                    else {
-                        Map<@Nullable Object, @Nullable Object> usersMap = this.castObjectToUsersMap(oUsersMap);
+    private static long generationOf(@Nullable Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    /**
+     * @return The path of the file holding the users' password hashes, which are not in the pillar.
+     */
+    public Path getPasswordHashFilePath() {
+        return PasswordHashFile.forPillar(this.pillarFilePath);
+    }
+
+    /**
+     * Reads the password hashes saved with the pillar.
+     * @return The hashes by user name.
+     */
+    Map<String, String> readPasswordHashes() throws IOException, BadYamlException {
+        return PasswordHashFile.read(this.getPasswordHashFilePath());
+    }
+
+    /**
+     * Creates the users from the parsed pillar.
+     * @param hashes The password hashes by user name, set before each user is added so they are indexed.
+     *               A pillar written before the hashes were moved out of it keeps its own.
+     */
+    private Users buildUsers(@Nullable Map<String, ?> map, Map<String, String> hashes)
+    throws IOException, ModelException {
+        Users users = new Users();
+        if (map != null) {
+            if (map.containsKey(USERS_KEY)) {
+                @Nullable Object oUsersMap = map.get(USERS_KEY);
+                if (oUsersMap == null) {
+                    throw new BadYamlException("Value of users key was null");
+                }
+                else if (!(oUsersMap instanceof Map)) {
+                    throw new BadYamlException("Cannot find users map in pillar");
+                }
+                else {
+                    Map<@Nullable Object, @Nullable Object> usersMap = this.castObjectToUsersMap(oUsersMap);
+
+                    for (Map.Entry<@Nullable Object, @Nullable Object> usersEntry : usersMap.entrySet()) {
+                        @Nullable Object oName = usersEntry.getKey();
+                        if (oName == null) {
+                            throw new IOException("User entry key is null");
+                        }
+                        else {
+                            String name = oName.toString();
 
-                        for (Map.Entry<@Nullable Object, @Nullable Object> usersEntry : usersMap.entrySet()) {
-                            @Nullable Object oName = usersEntry.getKey();
-                            if (oName == null) {
-                                throw new IOException("User entry key is null");
+                            @Nullable Object value = usersEntry.getValue();
+                            if (!(value instanceof Map)) {
+                                throw new IOException("Value for user '" + name + " is not Map");
                             }
                             else {
-                                String name = oName.toString();
-
-                                @Nullable Object value = usersEntry.getValue();
-                                if (!(value instanceof Map)) {
-                                    throw new IOException("Value for user '" + name + " is not Map");
-                                }
-                                else {
-                                    Map<@Nullable Object, @Nullable Object> userMap = this.castObjectToUserMap(value);
-                                    User user = User.fromPillarMap(userMap);
-                                    users.addUser(user);
+                                Map<@Nullable Object, @Nullable Object> userMap = this.castObjectToUserMap(value);
+                                User user = User.fromPillarMap(userMap);
+                                if (hashes.containsKey(name)) {
+                                    user.setPasswordHash(hashes.get(name));
                                 }
+                                users.addUser(user);
                             }
                         }
                     }
                 }
             }
-
-            return users;
         }
+        return users;
     }
 
     /**
      * Saves users to a YAML file.
      * @param users The set of users to save.
+     * @throws ValidationException If any user has a validation error; nothing is written.
      * @throws Exception If something goes wrong (TODO tidy exceptions!)
      */
+    @Override
     public void save(Users users) throws Exception {
+        Timer.Context saveTiming = SAVE_TIMER.time();
+        try {
+            this.doSave(users);
+        }
+        finally {
+            saveTiming.stop();
+        }
+    }
 
-        // Set the options to create readable YAML that this parser will cope with
-        // Notably we don't want to split lines as otherwise string entries
-        // may not be parsable.
-        DumperOptions dumperOptions = new DumperOptions();
-        dumperOptions.setIndent(2);
-        dumperOptions.setSplitLines(false);
-        dumperOptions.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
-        dumperOptions.setDefaultScalarStyle(DumperOptions.ScalarStyle.DOUBLE_QUOTED);
-        // TODO - always quote strings to avoid parsing numeric data incorrectly!
+    private void doSave(Users users) throws Exception {
 
-        // Encryption settings
-        GpgEncryptor encryptor = new GpgEncryptor(this.gpgKeyFilePath);
+        // Rendered from a snapshot, so that users changed meanwhile are saved whole
+        Users snapshot = users.snapshot();
+        this.validate(snapshot);
 
-        Yaml yaml = new Yaml(dumperOptions);
-        try (Writer w = Files.newBufferedWriter(stateFilePath,
-                StandardCharsets.UTF_8,
-                StandardOpenOption.CREATE,
-                StandardOpenOption.TRUNCATE_EXISTING)) {
-            yaml.dump(users.getYamlState(), w);
+        // Render both files before writing either, so a failure to encrypt leaves both unchanged.
+        // Encryption is slow, so is done before taking the lock.
+        // Only new passwords are encrypted, and only changed users serialised.
+        Map<String, Map<String, Map<String, @Nullable Object>>> pillar;
+        Dumped dumped;
+        Map<String, String> sshKeys;
+        @Nullable Map<Path, String> targetFiles = null;
+        @Nullable TargetWriter tw = this.targetWriter;
+        Timer.Context saveRenderTiming = SAVE_RENDER_TIMER.time();
+        try {
+            pillar = snapshot.getYamlPillar(this.getEncryptor());
+            dumped = this.dump(snapshot, pillarUsersOf(pillar));
+            sshKeys = this.sshKeyLines(snapshot);
+            if (tw != null) {
+                targetFiles = tw.render(snapshot, pillarUsersOf(pillar), sshKeys);
+            }
+        }
+        finally {
+            saveRenderTiming.stop();
         }
 
-        try (Writer w = Files.newBufferedWriter(pillarFilePath,
-                                                StandardCharsets.UTF_8,
-                                                StandardOpenOption.CREATE,
-                                                StandardOpenOption.TRUNCATE_EXISTING)) {
-            yaml.dump(users.getYamlPillar(encryptor), w);
+        PillarLock lock = PillarLock.acquire(this.getLockFilePath(), this.lockTimeoutMillis);
+        try {
+            long current = this.readGeneration();
+            if (current != users.getGeneration()) {
+                throw new StaleGenerationException("Pillar " + this.pillarFilePath + " is at generation " + current
+                                                   + " but the users were loaded from generation "
+                                                   + users.getGeneration(), users.getGeneration(), current);
+            }
+            long next = current + 1;
+            Timer.Context saveWriteTiming = SAVE_WRITE_TIMER.time();
+            try {
+                this.write(dumped, sshKeys, next);
+                if (tw != null && targetFiles != null) {
+                    tw.write(targetFiles);
+                }
+            }
+            finally {
+                saveWriteTiming.stop();
+            }
+            this.dumpedUsers = dumped.users;
+            users.setGeneration(next);
+            SAVE_USERS.record(snapshot.getUsers().size());
+            SAVE_BYTES.record(Files.size(stateFilePath) + Files.size(pillarFilePath));
+
+            @Nullable PillarHistory h = this.history;
+            if (h != null) {
+                Timer.Context saveHistoryTiming = SAVE_HISTORY_TIMER.time();
+                try {
+                    h.record(pillarUsersOf(pillar));
+                }
+                finally {
+                    saveHistoryTiming.stop();
+                }
+            }
+        }
+        finally {
+            lock.close();
         }
     }
 
+    /**
+     * Checks the users with the validator, if set.
+     * @throws ValidationException If any user has a validation error.
+     */
+    void validate(Users users) throws ValidationException {
+        @Nullable UsersValidator v = this.validator;
+        if (v != null) {
+            ValidationResult result;
+            Timer.Context saveValidateTiming = SAVE_VALIDATE_TIMER.time();
+            try {
+                result = v.validate(users);
+            }
+            finally {
+                saveValidateTiming.stop();
+            }
+            if (result.hasErrors()) {
+                List<Violation> errors = result.getErrors();
+                throw new ValidationException("Cannot save users with " + errors.size() + " errors, first: "
+                                              + errors.get(0), result);
+            }
+        }
+    }
+
+    /**
+     * Writes the state, pillar and target files from users saved elsewhere, replacing
+     * whatever generation the files are at, and records the save in the history.
+     * @param users The users saved.
+     * @param pillarUsers The pillar entry of each user, with the passwords encrypted.
+     * @param generation The generation saved.
+     */
+    void export(Users users, Map<String, Map<String, @Nullable Object>> pillarUsers, long generation)
+            throws Exception {
+        Dumped dumped = this.dump(users, pillarUsers);
+        Map<String, String> sshKeys = this.sshKeyLines(users);
+        @Nullable TargetWriter tw = this.targetWriter;
+        @Nullable Map<Path, String> targetFiles = tw == null ? null : tw.render(users, pillarUsers, sshKeys);
+        PillarLock lock = PillarLock.acquire(this.getLockFilePath(), this.lockTimeoutMillis);
+        try {
+            Timer.Context saveWriteTiming = SAVE_WRITE_TIMER.time();
+            try {
+                this.write(dumped, sshKeys, generation);
+                if (tw != null && targetFiles != null) {
+                    tw.write(targetFiles);
+                }
+            }
+            finally {
+                saveWriteTiming.stop();
+            }
+            this.dumpedUsers = dumped.users;
+            @Nullable PillarHistory h = this.history;
+            if (h != null) {
+                Timer.Context saveHistoryTiming = SAVE_HISTORY_TIMER.time();
+                try {
+                    h.record(pillarUsers);
+                }
+                finally {
+                    saveHistoryTiming.stop();
+                }
+            }
+        }
+        finally {
+            lock.close();
+        }
+    }
+
+    private static Map<String, Map<String, @Nullable Object>> pillarUsersOf(
+            Map<String, Map<String, Map<String, @Nullable Object>>> pillar) {
+        @Nullable Map<String, Map<String, @Nullable Object>> pillarUsers = pillar.get(USERS_KEY);
+        return pillarUsers == null ? new HashMap<>() : pillarUsers;
+    }
+
+    /**
+     * @return The authorized_keys line of each SSH key the users refer to, by fingerprint.
+     * @throws SshKeyException If a user refers to a key that is not in the store.
+     */
+    private Map<String, String> sshKeyLines(Users users) throws IOException, SshKeyException {
+        Set<String> fingerprints = new HashSet<>();
+        for (User user : users.getUsers()) {
+            fingerprints.addAll(user.getSshKeys());
+            fingerprints.addAll(user.getRevokedSshKeys());
+        }
+        return this.sshKeyStore.lines(fingerprints);
+    }
+
+    /**
+     * Serialises the state and pillar entries of each user, reusing the text written before
+     * for users whose fingerprint and encrypted password are unchanged.
+     * @param pillarUsers The pillar entry of each user, with the passwords encrypted.
+     */
+    private Dumped dump(Users users, Map<String, Map<String, @Nullable Object>> pillarUsers) {
+        Yaml yaml = new Yaml(createDumperOptions());
+        Map<String, DumpedUser> previous = this.dumpedUsers;
+        List<User> sorted = new ArrayList<>(users.getUsers());
+        sorted.sort(Comparator.comparing(User::getName));
+        Dumped dumped = new Dumped(sorted.size());
+        int serialised = 0;
+        for (User user : sorted) {
+            @Nullable Long indexed = users.getFingerprint(user.getName());
+            long fingerprint = indexed != null ? indexed : user.fingerprint();
+            @Nullable Map<String, @Nullable Object> pillarEntry = pillarUsers.get(user.getName());
+            @Nullable Object password = pillarEntry == null ? null : pillarEntry.get(UserField.PASSWORD.getKey());
+            @Nullable DumpedUser d = previous.get(user.getName());
+            if (d == null || d.fingerprint != fingerprint || !Objects.equals(d.password, password)) {
+                // Block mappings with quoted scalars, so the lines can be indented under the users key
+                String pillarText = yaml.dump(Collections.singletonMap(user.getName(), pillarEntry));
+                d = new DumpedUser(fingerprint, password, yaml.dump(Users.getYamlState(user)),
+                                   "  " + pillarText.substring(0, pillarText.length() - 1).replace("\n", "\n  ")
+                                   + "\n");
+                serialised++;
+            }
+            dumped.users.put(user.getName(), d);
+            @Nullable String hash = user.getPasswordHash();
+            if (hash != null) {
+                dumped.hashes.put(user.getName(), hash);
+            }
+            dumped.state.append(d.state);
+            dumped.pillar.append(d.pillar);
+        }
+        SAVE_DUMPED.record(serialised);
+        return dumped;
+    }
+
+    /**
+     * Replaces the state, pillar and password hash files. Called with the lock held.
+     * @param dumped The serialised users.
+     * @param sshKeys The SSH keys the states refer to, by fingerprint.
+     * @param generation Written as the first line of the pillar.
+     */
+    private void write(Dumped dumped, Map<String, String> sshKeys, long generation) throws IOException {
+        Yaml yaml = new Yaml(createDumperOptions());
+        AtomicFile.write(this.stateFilePath, w -> {
+            if (dumped.users.isEmpty()) {
+                yaml.dump(Collections.emptyMap(), w);
+            }
+            else {
+                w.append(dumped.state);
+            }
+        });
+        AtomicFile.write(this.pillarFilePath, w -> {
+            // Block mappings, so this line and the dumped keys form a single mapping
+            w.write(GENERATION_KEY + ": " + generation + "\n");
+            if (dumped.users.isEmpty()) {
+                yaml.dump(Collections.singletonMap(USERS_KEY, Collections.emptyMap()), w);
+            }
+            else {
+                w.write(USERS_KEY + ":\n");
+                w.append(dumped.pillar);
+            }
+            if (!sshKeys.isEmpty()) {
+                yaml.dump(Collections.singletonMap(SshKeyStore.PILLAR_KEY, sshKeys), w);
+            }
+        });
+        PasswordHashFile.write(this.getPasswordHashFilePath(), dumped.hashes);
+    }
+
+    /**
+     * Restores the state and pillar files to an earlier generation from the history.
+     * The pillar is written with the passwords exactly as they were encrypted then.
+     * The history holds no password hashes, so a user keeps their current hash only if
+     * their password is restored unchanged.
+     * The restore is itself recorded as a new generation, so it can be undone.
+     * @param generation The generation to restore.
+     * @return The restored users, as load() would return them.
+     * @throws Exception If there is no history or the generation cannot be restored.
+     */
+    public Users rollback(long generation) throws Exception {
+        @Nullable PillarHistory h = this.history;
+        if (h == null) {
+            throw new ModelException("No history configured for " + this.pillarFilePath);
+        }
+        Map<String, Map<String, @Nullable Object>> pillarUsers = h.load(generation);
+        Users current = this.exists() ? this.load() : new Users();
+        Users users = new Users();
+        for (Map<String, @Nullable Object> userMap : pillarUsers.values()) {
+            User user = User.fromPillarMap(new HashMap<@Nullable Object, @Nullable Object>(userMap));
+            @Nullable User now = current.getUser(user.getName());
+            if (now != null && Objects.equals(now.getPasswordEncrypted(), user.getPasswordEncrypted())) {
+                user.setPasswordHash(now.getPasswordHash());
+            }
+            users.addUser(user);
+        }
+
+        Dumped dumped = this.dump(users, pillarUsers);
+        Map<String, String> sshKeys = this.sshKeyLines(users);
+        @Nullable TargetWriter tw = this.targetWriter;
+        @Nullable Map<Path, String> targetFiles = tw == null ? null : tw.render(users, pillarUsers, sshKeys);
+        PillarLock lock = PillarLock.acquire(this.getLockFilePath(), this.lockTimeoutMillis);
+        try {
+            // Restoring is deliberate, so replaces whatever generation is current
+            long next = this.readGeneration() + 1;
+            this.write(dumped, sshKeys, next);
+            this.dumpedUsers = dumped.users;
+            if (tw != null && targetFiles != null) {
+                tw.write(targetFiles);
+            }
+            users.setGeneration(next);
+            h.record(pillarUsers);
+        }
+        finally {
+            lock.close();
+        }
+        return users;
+    }
+
+    /**
+     * A user's state and pillar text, and the fingerprint and encrypted password it was serialised from.
+     */
+    private static final class DumpedUser {
+        private final long fingerprint;
+        private final @Nullable Object password;
+        private final String state;
+        private final String pillar;
+
+        DumpedUser(long fingerprint, @Nullable Object password, String state, String pillar) {
+            this.fingerprint = fingerprint;
+            this.password = password;
+            this.state = state;
+            this.pillar = pillar;
+        }
+    }
+
+    /**
+     * The serialised users, in name order.
+     */
+    private static final class Dumped {
+        private final Map<String, DumpedUser> users;
+        private final Map<String, String> hashes = new HashMap<>();
+        private final StringBuilder state = new StringBuilder();
+        private final StringBuilder pillar = new StringBuilder();
+
+        Dumped(int size) {
+            this.users = new HashMap<>(size * 2);
+        }
+    }
 }
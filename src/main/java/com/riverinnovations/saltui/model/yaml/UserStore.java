@@ -0,0 +1,46 @@
+package com.riverinnovations.saltui.model.yaml;
+
+import com.riverinnovations.saltui.model.ModelException;
+import com.riverinnovations.saltui.model.user.Users;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.io.IOException;
+
+/**
+ * Where the users are saved.
+ *
+ * Each save is numbered with a generation. A save is refused with StaleGenerationException
+ * if another instance has saved since the users were loaded.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public interface UserStore {
+
+    /**
+     * @return True if users have been saved, so there is something to load.
+     */
+    boolean exists() throws IOException;
+
+    /**
+     * Loads the users as last saved, by this or another instance.
+     * @return The users, with the generation they were loaded from.
+     */
+    Users load() throws IOException, ModelException;
+
+    /**
+     * Saves the users, and sets their generation to the new generation.
+     * @param users The users to save.
+     * @throws StaleGenerationException If saved by another instance since the users were loaded.
+     * @throws Exception If something else goes wrong.
+     */
+    void save(Users users) throws Exception;
+
+    /**
+     * Reads the generation last saved, by this or another instance.
+     * @return The generation, or 0 if nothing has been saved.
+     */
+    long readGeneration() throws IOException;
+}
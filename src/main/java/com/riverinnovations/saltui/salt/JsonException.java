@@ -0,0 +1,16 @@
+package com.riverinnovations.saltui.salt;
+
+import com.riverinnovations.saltui.model.ModelException;
+
+/**
+ * Thrown when Salt produces output that is not valid JSON.
+ */
+public class JsonException extends ModelException {
+    public JsonException(String s) {
+        super(s);
+    }
+
+    public JsonException(String s, Throwable throwable) {
+        super(s, throwable);
+    }
+}
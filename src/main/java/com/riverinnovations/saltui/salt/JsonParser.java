@@ -0,0 +1,251 @@
+package com.riverinnovations.saltui.salt;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON parser for the output of Salt commands.
+ *
+ * Objects become LinkedHashMaps, arrays become ArrayLists, integral numbers become Longs
+ * and other numbers Doubles.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public final class JsonParser {
+
+    /** The text being parsed */
+    private final CharSequence text;
+
+    /** Current position in the text */
+    private int pos;
+
+    private JsonParser(CharSequence text) {
+        this.text = text;
+    }
+
+    /**
+     * Parses a single JSON value.
+     * @param text The JSON text.
+     * @return The value, which may be null for the JSON literal null.
+     * @throws JsonException If the text is not valid JSON.
+     */
+    public static @Nullable Object parse(CharSequence text) throws JsonException {
+        JsonParser parser = new JsonParser(text);
+        parser.skipWhitespace();
+        @Nullable Object value = parser.parseValue();
+        parser.skipWhitespace();
+        if (parser.pos != text.length()) {
+            throw parser.error("Unexpected text after value");
+        }
+        return value;
+    }
+
+    /**
+     * Casts a parsed value to an object, or returns null if it isn't one.
+     */
+    @SuppressWarnings("unchecked")
+    public static @Nullable Map<String, @Nullable Object> asObject(@Nullable Object value) {
+        return value instanceof Map ? (Map<String, @Nullable Object>) value : null;
+    }
+
+    /**
+     * Casts a parsed value to an array, or returns null if it isn't one.
+     */
+    @SuppressWarnings("unchecked")
+    public static @Nullable List<@Nullable Object> asArray(@Nullable Object value) {
+        return value instanceof List ? (List<@Nullable Object>) value : null;
+    }
+
+    private @Nullable Object parseValue() throws JsonException {
+        if (this.pos >= this.text.length()) {
+            throw this.error("Unexpected end of text");
+        }
+        char c = this.text.charAt(this.pos);
+        switch (c) {
+            case '{':
+                return this.parseObject();
+            case '[':
+                return this.parseArray();
+            case '"':
+                return this.parseString();
+            case 't':
+                this.expect("true");
+                return Boolean.TRUE;
+            case 'f':
+                this.expect("false");
+                return Boolean.FALSE;
+            case 'n':
+                this.expect("null");
+                return null;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return this.parseNumber();
+                }
+                throw this.error("Unexpected character '" + c + "'");
+        }
+    }
+
+    private Map<String, @Nullable Object> parseObject() throws JsonException {
+        Map<String, @Nullable Object> map = new LinkedHashMap<>();
+        this.pos++;
+        this.skipWhitespace();
+        if (this.peek() == '}') {
+            this.pos++;
+            return map;
+        }
+        while (true) {
+            this.skipWhitespace();
+            if (this.peek() != '"') {
+                throw this.error("Expected object key");
+            }
+            String key = this.parseString();
+            this.skipWhitespace();
+            this.expect(":");
+            this.skipWhitespace();
+            map.put(key, this.parseValue());
+            this.skipWhitespace();
+            char c = this.next();
+            if (c == '}') {
+                return map;
+            }
+            else if (c != ',') {
+                throw this.error("Expected ',' or '}'");
+            }
+        }
+    }
+
+    private List<@Nullable Object> parseArray() throws JsonException {
+        List<@Nullable Object> list = new ArrayList<>();
+        this.pos++;
+        this.skipWhitespace();
+        if (this.peek() == ']') {
+            this.pos++;
+            return list;
+        }
+        while (true) {
+            this.skipWhitespace();
+            list.add(this.parseValue());
+            this.skipWhitespace();
+            char c = this.next();
+            if (c == ']') {
+                return list;
+            }
+            else if (c != ',') {
+                throw this.error("Expected ',' or ']'");
+            }
+        }
+    }
+
+    private String parseString() throws JsonException {
+        StringBuilder sb = new StringBuilder();
+        this.pos++;
+        while (true) {
+            char c = this.next();
+            if (c == '"') {
+                return sb.toString();
+            }
+            else if (c == '\\') {
+                char e = this.next();
+                switch (e) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        sb.append(e);
+                        break;
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'u':
+                        if (this.pos + 4 > this.text.length()) {
+                            throw this.error("Bad unicode escape");
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(this.text.subSequence(this.pos, this.pos + 4).toString(), 16));
+                        }
+                        catch (NumberFormatException ex) {
+                            throw this.error("Bad unicode escape");
+                        }
+                        this.pos += 4;
+                        break;
+                    default:
+                        throw this.error("Bad escape '\\" + e + "'");
+                }
+            }
+            else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private Number parseNumber() throws JsonException {
+        int start = this.pos;
+        boolean integral = true;
+        while (this.pos < this.text.length()) {
+            char c = this.text.charAt(this.pos);
+            if (c == '.' || c == 'e' || c == 'E') {
+                integral = false;
+            }
+            else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+                break;
+            }
+            this.pos++;
+        }
+        String number = this.text.subSequence(start, this.pos).toString();
+        try {
+            return integral ? (Number) Long.valueOf(number) : (Number) Double.valueOf(number);
+        }
+        catch (NumberFormatException e) {
+            throw this.error("Bad number '" + number + "'");
+        }
+    }
+
+    private void expect(String s) throws JsonException {
+        for (int i = 0; i < s.length(); i++) {
+            if (this.next() != s.charAt(i)) {
+                throw this.error("Expected '" + s + "'");
+            }
+        }
+    }
+
+    private char peek() throws JsonException {
+        if (this.pos >= this.text.length()) {
+            throw this.error("Unexpected end of text");
+        }
+        return this.text.charAt(this.pos);
+    }
+
+    private char next() throws JsonException {
+        char c = this.peek();
+        this.pos++;
+        return c;
+    }
+
+    private void skipWhitespace() {
+        while (this.pos < this.text.length() && Character.isWhitespace(this.text.charAt(this.pos))) {
+            this.pos++;
+        }
+    }
+
+    private JsonException error(String message) {
+        return new JsonException(message + " at offset " + this.pos);
+    }
+}
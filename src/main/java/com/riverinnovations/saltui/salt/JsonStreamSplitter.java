@@ -0,0 +1,127 @@
+package com.riverinnovations.saltui.salt;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+/**
+ * Splits a stream of characters holding a sequence of top level JSON objects or arrays,
+ * such as the output of "salt --out=json", into the text of each value as soon as the
+ * value is complete. Only the value currently being received is buffered.
+ *
+ * Text between values that isn't whitespace, such as warnings, is passed on line by line.
+ *
+ * Single threaded.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class JsonStreamSplitter {
+
+    /**
+     * Receives the split values.
+     */
+    public interface Handler {
+        /**
+         * @param json The text of a complete top level value. Only valid for the duration of the call.
+         */
+        void value(CharSequence json);
+
+        /**
+         * @param line A line of text found between values.
+         */
+        void noise(String line);
+    }
+
+    /** Receives the values */
+    private final Handler handler;
+
+    /** The value currently being received */
+    private final StringBuilder value = new StringBuilder();
+
+    /** Text between values */
+    private final StringBuilder noise = new StringBuilder();
+
+    /** Nesting depth; 0 between values */
+    private int depth;
+
+    /** Whether the current character is inside a string */
+    private boolean inString;
+
+    /** Whether the previous character was a backslash inside a string */
+    private boolean escape;
+
+    public JsonStreamSplitter(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Processes the next chunk of characters.
+     */
+    public void feed(CharSequence chars) {
+        for (int i = 0; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+            if (this.depth == 0) {
+                if (c == '{' || c == '[') {
+                    this.flushNoise();
+                    this.value.append(c);
+                    this.depth = 1;
+                }
+                else if (c == '\n') {
+                    this.flushNoise();
+                }
+                else {
+                    this.noise.append(c);
+                }
+            }
+            else {
+                this.value.append(c);
+                if (this.inString) {
+                    if (this.escape) {
+                        this.escape = false;
+                    }
+                    else if (c == '\\') {
+                        this.escape = true;
+                    }
+                    else if (c == '"') {
+                        this.inString = false;
+                    }
+                }
+                else if (c == '"') {
+                    this.inString = true;
+                }
+                else if (c == '{' || c == '[') {
+                    this.depth++;
+                }
+                else if (c == '}' || c == ']') {
+                    this.depth--;
+                    if (this.depth == 0) {
+                        this.handler.value(this.value);
+                        this.value.setLength(0);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Called at the end of the stream. Any incomplete value is passed on as noise.
+     */
+    public void finish() {
+        if (this.depth > 0) {
+            this.noise.append(this.value);
+            this.value.setLength(0);
+            this.depth = 0;
+            this.inString = false;
+            this.escape = false;
+        }
+        this.flushNoise();
+    }
+
+    private void flushNoise() {
+        String line = this.noise.toString().trim();
+        this.noise.setLength(0);
+        if (!line.isEmpty()) {
+            this.handler.noise(line);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.riverinnovations.saltui.salt;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * One running state.apply. Created by StateApplyRunner, which polls it for output;
+ * the output is parsed incrementally, one minion at a time, as it arrives.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class StateApplyJob {
+
+    /** Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(StateApplyJob.class);
+
+    /** Separator between the parts of a state key in Salt's JSON output */
+    private static final Pattern STATE_KEY_SEPARATOR = Pattern.compile(Pattern.quote("_|-"));
+
+    /** Maximum amount of standard error kept */
+    private static final int MAX_STDERR = 64 * 1024;
+
+    /** Size of read buffers */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The target the state was applied to */
+    private final String target;
+
+    /** The running command */
+    private final Process process;
+
+    /** Only states with IDs starting with this are reported */
+    private final String stateIdPrefix;
+
+    /** Receives results */
+    private final StateApplyListener listener;
+
+    /** Splits standard output into one value per minion */
+    private final JsonStreamSplitter splitter;
+
+    /** Decoders for standard output and standard error */
+    private final CharsetDecoder stdoutDecoder = newDecoder();
+    private final CharsetDecoder stderrDecoder = newDecoder();
+
+    /** Bytes read but not yet decoded, for standard output and standard error */
+    private final ByteBuffer stdoutBytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer stderrBytes = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /** Decoded characters */
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+
+    /** Results received so far */
+    private final List<StateResult> results = Collections.synchronizedList(new ArrayList<>());
+
+    /** Problems with the output */
+    private final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+
+    /** Standard error, truncated */
+    private final StringBuilder stderr = new StringBuilder();
+
+    /** Exit code once finished */
+    private volatile @Nullable Integer exitCode;
+
+    StateApplyJob(String target, Process process, String stateIdPrefix, StateApplyListener listener) {
+        this.target = target;
+        this.process = process;
+        this.stateIdPrefix = stateIdPrefix;
+        this.listener = listener;
+        this.splitter = new JsonStreamSplitter(new JsonStreamSplitter.Handler() {
+            @Override
+            public void value(CharSequence json) {
+                StateApplyJob.this.minionOutput(json);
+            }
+
+            @Override
+            public void noise(String line) {
+                StateApplyJob.this.errors.add("Unexpected output: " + line);
+            }
+        });
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * @return A copy of the results received so far.
+     */
+    public List<StateResult> getResults() {
+        synchronized (this.results) {
+            return new ArrayList<>(this.results);
+        }
+    }
+
+    /**
+     * @return A copy of the problems found in the output so far.
+     */
+    public List<String> getErrors() {
+        synchronized (this.errors) {
+            return new ArrayList<>(this.errors);
+        }
+    }
+
+    /**
+     * @return Standard error of the command, truncated to 64k characters.
+     */
+    public synchronized String getStderr() {
+        return this.stderr.toString();
+    }
+
+    public boolean isFinished() {
+        return this.exitCode != null;
+    }
+
+    /**
+     * @return The exit code of the command, or null if it is still running.
+     */
+    public @Nullable Integer getExitCode() {
+        return this.exitCode;
+    }
+
+    /**
+     * Kills the command. Results received so far are kept.
+     */
+    public void cancel() {
+        this.process.destroy();
+    }
+
+    /**
+     * Kills the command after an error and reports it as finished.
+     * @param error Description of the error.
+     */
+    void abort(String error) {
+        this.process.destroy();
+        this.errors.add(error);
+        this.exitCode = -1;
+        this.notifyFinished();
+    }
+
+    /**
+     * Reads whatever output is available without blocking.
+     * @return True if the command has finished and all of its output has been processed,
+     *         in which case the caller must call notifyFinished().
+     */
+    boolean poll() throws IOException {
+        boolean alive = this.process.isAlive();
+        this.read(this.process.getInputStream(), this.stdoutBytes, this.stdoutDecoder, false, alive);
+        this.read(this.process.getErrorStream(), this.stderrBytes, this.stderrDecoder, true, alive);
+        if (!alive) {
+            this.splitter.finish();
+            int exit = this.process.exitValue();
+            this.exitCode = exit;
+            if (exit != 0) {
+                LOGGER.warn("State apply to '" + this.target + "' exited with " + exit + ": " + this.getStderr());
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads from a stream. If the process is still alive then only reads what is
+     * available; otherwise reads to the end of the stream.
+     */
+    private void read(InputStream in,
+                      ByteBuffer bytes,
+                      CharsetDecoder decoder,
+                      boolean isStderr,
+                      boolean alive) throws IOException {
+        while (true) {
+            int available = alive ? in.available() : bytes.remaining();
+            if (available <= 0) {
+                break;
+            }
+            int n = in.read(bytes.array(),
+                            bytes.arrayOffset() + bytes.position(),
+                            Math.min(available, bytes.remaining()));
+            if (n < 0) {
+                break;
+            }
+            bytes.position(bytes.position() + n);
+            this.decode(bytes, decoder, isStderr, false);
+        }
+        if (!alive) {
+            this.decode(bytes, decoder, isStderr, true);
+        }
+    }
+
+    /**
+     * Decodes the buffered bytes and passes the characters on.
+     */
+    private void decode(ByteBuffer bytes, CharsetDecoder decoder, boolean isStderr, boolean endOfInput) {
+        bytes.flip();
+        decoder.decode(bytes, this.chars, endOfInput);
+        if (endOfInput) {
+            decoder.flush(this.chars);
+        }
+        bytes.compact();
+        this.chars.flip();
+        if (isStderr) {
+            synchronized (this) {
+                int room = MAX_STDERR - this.stderr.length();
+                if (room > 0) {
+                    this.stderr.append(this.chars, 0, Math.min(room, this.chars.length()));
+                }
+            }
+        }
+        else {
+            this.splitter.feed(this.chars);
+        }
+        this.chars.clear();
+    }
+
+    /**
+     * Handles the output for one minion: {"minion": {"stateKey": {...}, ...}}
+     */
+    private void minionOutput(CharSequence json) {
+        Map<String, @Nullable Object> output;
+        try {
+            output = JsonParser.asObject(JsonParser.parse(json));
+        }
+        catch (JsonException e) {
+            this.errors.add("Cannot parse output: " + e.getMessage());
+            return;
+        }
+        if (output == null) {
+            this.errors.add("Unexpected output: " + json);
+            return;
+        }
+        for (Map.Entry<String, @Nullable Object> minionEntry : output.entrySet()) {
+            String minion = minionEntry.getKey();
+            Map<String, @Nullable Object> states = JsonParser.asObject(minionEntry.getValue());
+            if (states == null) {
+                // Salt returns a list of error messages if the states could not be compiled
+                this.report(new StateResult(minion, "", "", Boolean.FALSE,
+                                            String.valueOf(minionEntry.getValue()), "", null));
+                continue;
+            }
+            for (Map.Entry<String, @Nullable Object> stateEntry : states.entrySet()) {
+                // Keys look like user_|-saltui-users-one_|-one_|-present
+                String[] parts = STATE_KEY_SEPARATOR.split(stateEntry.getKey());
+                String stateId = parts.length > 1 ? parts[1] : stateEntry.getKey();
+                if (stateId.startsWith(this.stateIdPrefix)) {
+                    Map<String, @Nullable Object> state = JsonParser.asObject(stateEntry.getValue());
+                    String function = parts.length > 3 ? parts[0] + "." + parts[3] : "";
+                    if (state == null) {
+                        this.report(new StateResult(minion, stateId, function, Boolean.FALSE,
+                                                    String.valueOf(stateEntry.getValue()), "", null));
+                    }
+                    else {
+                        @Nullable Object result = state.get("result");
+                        @Nullable Object comment = state.get("comment");
+                        @Nullable Object changes = state.get("changes");
+                        @Nullable Object duration = state.get("duration");
+                        Map<String, @Nullable Object> changesMap = JsonParser.asObject(changes);
+                        this.report(new StateResult(minion,
+                                                    stateId,
+                                                    function,
+                                                    result instanceof Boolean ? (Boolean) result : null,
+                                                    comment == null ? "" : comment.toString(),
+                                                    changesMap == null || changesMap.isEmpty() ? "" : changesMap.toString(),
+                                                    duration instanceof Number ? ((Number) duration).doubleValue() : null));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells the listener the job has finished.
+     */
+    void notifyFinished() {
+        try {
+            this.listener.finished(this);
+        }
+        catch (RuntimeException e) {
+            LOGGER.warn("State apply listener failed: " + e.getMessage(), e);
+        }
+    }
+
+    private void report(StateResult result) {
+        this.results.add(result);
+        try {
+            this.listener.stateResult(this, result);
+        }
+        catch (RuntimeException e) {
+            LOGGER.warn("State apply listener failed: " + e.getMessage(), e);
+        }
+    }
+
+    private static CharsetDecoder newDecoder() {
+        return StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+}
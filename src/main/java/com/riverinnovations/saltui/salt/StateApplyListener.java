@@ -0,0 +1,26 @@
+package com.riverinnovations.saltui.salt;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+/**
+ * Receives the results of a state.apply as they arrive.
+ * Called on the runner's poller thread, so implementations must return quickly;
+ * UI code should hand the result to UI.access().
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public interface StateApplyListener {
+
+    /**
+     * Called for each matching state result as soon as its minion has returned.
+     */
+    void stateResult(StateApplyJob job, StateResult result);
+
+    /**
+     * Called once the command has exited and all its output has been processed.
+     */
+    void finished(StateApplyJob job);
+
+}
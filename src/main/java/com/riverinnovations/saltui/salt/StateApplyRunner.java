@@ -0,0 +1,182 @@
+package com.riverinnovations.saltui.salt;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs state.apply on the Salt master and streams the parsed results to listeners.
+ *
+ * A single poller thread services every running command: it reads whatever output
+ * each command has produced without blocking and parses it incrementally, so many
+ * concurrent applies to different targets share one thread rather than needing a
+ * thread each.
+ *
+ * The command is configurable so that a stub script can stand in for salt when testing.
+ * The placeholder {target} in the command is replaced by the target of the apply.
+ *
+ * Thread safe.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class StateApplyRunner implements AutoCloseable {
+
+    /** Placeholder for the target in the command */
+    public static final String TARGET = "{target}";
+
+    /**
+     * The default command. --out-indent=-1 makes salt print each minion's
+     * return on a single line as soon as the minion returns.
+     */
+    public static final List<String> DEFAULT_COMMAND = Collections.unmodifiableList(
+            Arrays.asList("salt", "--out=json", "--out-indent=-1", TARGET, "state.apply"));
+
+    /** System property holding a space separated command to use instead of the default */
+    public static final String COMMAND_PROPERTY = "saltui.salt.command";
+
+    /** Only the user states managed by this application are reported by default */
+    public static final String DEFAULT_STATE_ID_PREFIX = "saltui-users-";
+
+    /** Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(StateApplyRunner.class);
+
+    /** How often running commands are checked for output */
+    private static final long POLL_INTERVAL_MILLIS = 50;
+
+    /** The command template */
+    private final List<String> command;
+
+    /** Only states with IDs starting with this are reported */
+    private final String stateIdPrefix;
+
+    /** Commands that are still running */
+    private final Queue<StateApplyJob> jobs = new ConcurrentLinkedQueue<>();
+
+    /** Thread that reads the output of every running command */
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "saltui-state-apply-poller");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Constructor using the command from the system property saltui.salt.command if set,
+     * or the default salt command otherwise.
+     */
+    public StateApplyRunner() {
+        this(commandFromSystemProperty(), DEFAULT_STATE_ID_PREFIX);
+    }
+
+    /**
+     * Constructor.
+     * @param command The command to run, which must write Salt JSON output to standard output.
+     *                Any {target} entries are replaced by the target.
+     * @param stateIdPrefix Only states with IDs starting with this are reported.
+     */
+    public StateApplyRunner(List<String> command, String stateIdPrefix) {
+        if (command.isEmpty()) {
+            throw new IllegalArgumentException("Empty command");
+        }
+        this.command = new ArrayList<>(command);
+        this.stateIdPrefix = stateIdPrefix;
+        this.poller.scheduleWithFixedDelay(this::poll, POLL_INTERVAL_MILLIS, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The command from the system property, or the default command.
+     */
+    public static List<String> commandFromSystemProperty() {
+        @Nullable String property = System.getProperty(COMMAND_PROPERTY);
+        if (property == null || property.trim().isEmpty()) {
+            return DEFAULT_COMMAND;
+        }
+        else {
+            return Arrays.asList(property.trim().split("\\s+"));
+        }
+    }
+
+    /**
+     * Starts a state.apply and returns immediately.
+     * @param target The Salt target, e.g. '*' or 'web*'.
+     * @param listener Receives results as they arrive, on the poller thread.
+     * @return The running job.
+     * @throws IOException If the command cannot be started.
+     * @throws IllegalArgumentException If the target is not valid, see isValidTarget().
+     */
+    public StateApplyJob apply(String target, StateApplyListener listener) throws IOException {
+        if (!isValidTarget(target)) {
+            throw new IllegalArgumentException("Invalid target '" + target + "'");
+        }
+        List<String> args = new ArrayList<>(this.command.size());
+        for (String arg : this.command) {
+            args.add(arg.replace(TARGET, target));
+        }
+        Process process = new ProcessBuilder(args).start();
+        process.getOutputStream().close();
+        StateApplyJob job = new StateApplyJob(target, process, this.stateIdPrefix, listener);
+        this.jobs.add(job);
+        LOGGER.info("Started state apply to '" + target + "'");
+        return job;
+    }
+
+    /**
+     * A target must not be empty, and must not start with '-' as salt would take it as an option.
+     * @return True if the target can be passed to apply().
+     */
+    public static boolean isValidTarget(String target) {
+        return !target.isEmpty() && !target.startsWith("-");
+    }
+
+    /**
+     * @return The number of commands still running.
+     */
+    public int getRunningCount() {
+        return this.jobs.size();
+    }
+
+    /**
+     * Services every running command. Runs on the poller thread.
+     */
+    private void poll() {
+        for (StateApplyJob job : this.jobs) {
+            try {
+                if (job.poll()) {
+                    this.jobs.remove(job);
+                    job.notifyFinished();
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                LOGGER.warn("Error reading output of state apply to '" + job.getTarget() + "': " + e.getMessage(), e);
+                this.jobs.remove(job);
+                job.abort("Error reading output: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops polling and kills any running commands.
+     */
+    @Override
+    public void close() {
+        this.poller.shutdownNow();
+        for (StateApplyJob job : this.jobs) {
+            job.cancel();
+        }
+        this.jobs.clear();
+    }
+}
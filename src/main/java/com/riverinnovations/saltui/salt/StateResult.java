@@ -0,0 +1,85 @@
+package com.riverinnovations.saltui.salt;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+/**
+ * The result of one state on one minion from a state.apply.
+ * Immutable.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class StateResult {
+
+    /** The minion the state ran on */
+    private final String minion;
+
+    /** The state ID, e.g. saltui-users-one; empty if the minion failed before running states */
+    private final String stateId;
+
+    /** The state function, e.g. user.present */
+    private final String function;
+
+    /** True if succeeded, false if failed, null if it would change in test mode */
+    private final @Nullable Boolean result;
+
+    /** Salt's comment on the result */
+    private final String comment;
+
+    /** Description of the changes made; empty if none */
+    private final String changes;
+
+    /** How long the state took, in milliseconds, if known */
+    private final @Nullable Double durationMillis;
+
+    public StateResult(String minion,
+                       String stateId,
+                       String function,
+                       @Nullable Boolean result,
+                       String comment,
+                       String changes,
+                       @Nullable Double durationMillis) {
+        this.minion = minion;
+        this.stateId = stateId;
+        this.function = function;
+        this.result = result;
+        this.comment = comment;
+        this.changes = changes;
+        this.durationMillis = durationMillis;
+    }
+
+    public String getMinion() {
+        return minion;
+    }
+
+    public String getStateId() {
+        return stateId;
+    }
+
+    public String getFunction() {
+        return function;
+    }
+
+    public @Nullable Boolean getResult() {
+        return result;
+    }
+
+    public String getComment() {
+        return comment;
+    }
+
+    public String getChanges() {
+        return changes;
+    }
+
+    public @Nullable Double getDurationMillis() {
+        return durationMillis;
+    }
+
+    @Override
+    public String toString() {
+        return this.minion + " " + this.stateId + " " + this.function + ": " + this.result + " " + this.comment;
+    }
+}
@@ -0,0 +1,77 @@
+package com.riverinnovations.saltui.ui;
+
+import com.riverinnovations.saltui.ApplicationModel;
+import com.riverinnovations.saltui.model.ModelException;
+import com.riverinnovations.saltui.model.export.ExportFormat;
+import com.riverinnovations.saltui.model.export.UserExporter;
+import com.riverinnovations.saltui.model.query.UserQuery;
+import com.riverinnovations.saltui.model.user.UserField;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Serves the users at /export for other tools to read, streamed as they are written
+ * rather than built in memory. Passwords are never included.
+ *
+ * Parameters, all optional:
+ * <ul>
+ *     <li>format: jsonl (the default) or csv</li>
+ *     <li>fields: comma separated pillar keys, e.g. name,uid,groups; every field by default</li>
+ *     <li>q: a query selecting the users, e.g. shell=/bin/bash AND group=wheel</li>
+ * </ul>
+ */
+@WebServlet(urlPatterns = "/export", name = "ExportServlet")
+public class ExportServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Size of the response buffer; the response is sent in chunks of about this size */
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!ApplicationModel.get().isReady()) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Users are loading");
+            return;
+        }
+
+        UserExporter exporter;
+        ExportFormat format;
+        try {
+            @Nullable String formatKey = request.getParameter("format");
+            @Nullable ExportFormat f = formatKey == null ? ExportFormat.JSON_LINES : ExportFormat.forKey(formatKey);
+            if (f == null) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown format '" + formatKey + "'");
+                return;
+            }
+            format = f;
+            @Nullable String fieldKeys = request.getParameter("fields");
+            List<UserField> fields = fieldKeys == null
+                    ? UserExporter.exportableFields() : UserExporter.parseFields(fieldKeys);
+            @Nullable String q = request.getParameter("q");
+            @Nullable UserQuery query = q == null || q.trim().isEmpty() ? null : UserQuery.parse(q);
+            exporter = new UserExporter(ApplicationModel.get().getUsers(), format, fields, query);
+        }
+        catch (ModelException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        // No content length, so the container sends each flushed page as a chunk
+        response.setBufferSize(BUFFER_SIZE);
+        response.setContentType(format.getContentType() + "; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setHeader("Content-Disposition", "inline; filename=\"users." + format.getKey() + "\"");
+        try (Writer w = response.getWriter()) {
+            exporter.write(w);
+        }
+    }
+}
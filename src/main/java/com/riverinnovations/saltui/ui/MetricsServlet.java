@@ -0,0 +1,31 @@
+package com.riverinnovations.saltui.ui;
+
+import com.riverinnovations.saltui.metrics.Metrics;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Serves the application metrics at /metrics in the Prometheus text format,
+ * for monitoring systems to scrape.
+ */
+@WebServlet(urlPatterns = "/metrics", name = "MetricsServlet")
+public class MetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        StringBuilder text = new StringBuilder(4096);
+        Metrics.get().writeText(text);
+        response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        try (Writer w = response.getWriter()) {
+            w.write(text.toString());
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.riverinnovations.saltui.ui;
+
+import com.riverinnovations.saltui.ApplicationModel;
+import com.riverinnovations.saltui.model.password.PasswordChangeResult;
+import com.riverinnovations.saltui.model.password.PasswordChangeService;
+
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.UIDetachedException;
+import com.vaadin.flow.component.button.Button;
+import com.vaadin.flow.component.html.H2;
+import com.vaadin.flow.component.html.Span;
+import com.vaadin.flow.component.orderedlayout.VerticalLayout;
+import com.vaadin.flow.component.page.Push;
+import com.vaadin.flow.component.textfield.PasswordField;
+import com.vaadin.flow.component.textfield.TextField;
+import com.vaadin.flow.router.Route;
+
+/**
+ * Self-service view where account holders change their own password.
+ * The result is pushed back once the password has been checked and hashed;
+ * the change is saved shortly afterwards along with any others.
+ */
+@Push
+@Route("password")
+public class PasswordChangeView extends VerticalLayout {
+
+    private final TextField name = new TextField("User name");
+
+    private final PasswordField currentPassword = new PasswordField("Current password");
+
+    private final PasswordField newPassword = new PasswordField("New password");
+
+    private final PasswordField confirmPassword = new PasswordField("Confirm new password");
+
+    private final Button change = new Button("Change password");
+
+    /** Shows the outcome */
+    private final Span status = new Span();
+
+    public PasswordChangeView() {
+        super();
+
+        this.change.addClickListener(event -> this.changePassword());
+        add(new H2("Change your password"), this.name, this.currentPassword, this.newPassword,
+            this.confirmPassword, this.change, this.status);
+    }
+
+    private void changePassword() {
+        if (!this.newPassword.getValue().equals(this.confirmPassword.getValue())) {
+            this.status.setText("The new passwords do not match");
+            return;
+        }
+        if (!ApplicationModel.get().isReady()) {
+            this.status.setText(PasswordChangeResult.BUSY.getMessage());
+            return;
+        }
+        UI ui = UI.getCurrent();
+        PasswordChangeService service = ApplicationModel.get().getPasswordChanges();
+        this.change.setEnabled(false);
+        this.status.setText("Changing password...");
+        service.changePassword(this.name.getValue().trim(), this.currentPassword.getValue(), this.newPassword.getValue())
+               .thenAccept(result -> {
+                   try {
+                       ui.access(() -> this.showResult(result));
+                   }
+                   catch (UIDetachedException e) {
+                       // The user has navigated away - nothing to update
+                   }
+               });
+    }
+
+    private void showResult(PasswordChangeResult result) {
+        this.status.setText(result.getMessage());
+        this.change.setEnabled(true);
+        this.currentPassword.clear();
+        if (result == PasswordChangeResult.ACCEPTED) {
+            this.newPassword.clear();
+            this.confirmPassword.clear();
+        }
+    }
+}
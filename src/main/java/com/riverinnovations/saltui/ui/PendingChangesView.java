@@ -0,0 +1,135 @@
+package com.riverinnovations.saltui.ui;
+
+import com.riverinnovations.saltui.ApplicationModel;
+import com.riverinnovations.saltui.MainView;
+import com.riverinnovations.saltui.metrics.Metrics;
+import com.riverinnovations.saltui.metrics.Timer;
+import com.riverinnovations.saltui.model.diff.UserChange;
+import com.riverinnovations.saltui.model.diff.UsersDiff;
+import com.riverinnovations.saltui.model.user.Users;
+import com.riverinnovations.saltui.model.yaml.UserStore;
+
+import com.vaadin.flow.component.AttachEvent;
+import com.vaadin.flow.component.button.Button;
+import com.vaadin.flow.component.grid.Grid;
+import com.vaadin.flow.component.html.Span;
+import com.vaadin.flow.component.orderedlayout.VerticalLayout;
+import com.vaadin.flow.data.provider.DataProvider;
+import com.vaadin.flow.router.Route;
+import com.vaadin.flow.router.RouterLink;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * View showing the accounts that will be created, changed or removed on the minions
+ * when the users are next saved, by comparing them with the users last saved.
+ *
+ * The grid fetches the changes a page at a time, so very large diffs are not sent
+ * to the browser in one go.
+ */
+@Route("changes")
+public class PendingChangesView extends VerticalLayout {
+
+    /** Number of rows the grid fetches at a time */
+    private static final int PAGE_SIZE = 100;
+
+    /** Time for the grid to fetch a page of changes */
+    private static final Timer FETCH_TIMER = Metrics.get().timer("ui.changes.fetch");
+
+    /** The changes found by the last comparison */
+    private List<UserChange> changes = new ArrayList<>();
+
+    /** Summary of the changes */
+    private final Span summary = new Span();
+
+    /** Provides the grid with pages of the changes */
+    private final DataProvider<UserChange, Void> dataProvider = DataProvider.fromCallbacks(
+            query -> {
+                Timer.Context fetchTiming = FETCH_TIMER.time();
+                try {
+                    return new ArrayList<>(this.changes.subList(
+                            Math.min(query.getOffset(), this.changes.size()),
+                            Math.min(query.getOffset() + query.getLimit(), this.changes.size()))).stream();
+                }
+                finally {
+                    fetchTiming.stop();
+                }
+            },
+            query -> this.changes.size());
+
+    public PendingChangesView() {
+        super();
+
+        Grid<UserChange> grid = new Grid<>();
+        grid.setSizeFull();
+        grid.setPageSize(PAGE_SIZE);
+        grid.setDataProvider(this.dataProvider);
+        grid.addColumn(UserChange::getName).setHeader("User Name");
+        grid.addColumn(change -> change.getKind().toString()).setHeader("Change");
+        grid.addColumn(UserChange::describeFields).setHeader("Fields").setFlexGrow(4);
+
+        Button refresh = new Button("Refresh", event -> this.refresh());
+        add(new RouterLink("Users", MainView.class), refresh, this.summary, grid);
+        setHeight("100vh");
+    }
+
+    @Override
+    protected void onAttach(AttachEvent attachEvent) {
+        super.onAttach(attachEvent);
+        this.refresh();
+    }
+
+    /**
+     * Compares the users with the users last saved.
+     */
+    private void refresh() {
+        if (!ApplicationModel.get().isReady()) {
+            this.summary.setText("Users are still loading, refresh shortly");
+            return;
+        }
+        @Nullable UserStore userStore = ApplicationModel.get().getUserStore();
+        Users saved;
+        try {
+            if (userStore == null || !userStore.exists()) {
+                saved = new Users();
+            }
+            else {
+                saved = userStore.load();
+            }
+        }
+        catch (Exception e) {
+            this.changes = new ArrayList<>();
+            this.summary.setText("Cannot load the saved users: " + e.getMessage());
+            this.dataProvider.refreshAll();
+            return;
+        }
+
+        UsersDiff diff = new UsersDiff();
+        // The saved copy only has the encrypted passwords
+        diff.setComparePlainPasswords(false);
+        this.changes = diff.compare(saved, ApplicationModel.get().getUsers());
+
+        int added = 0;
+        int changed = 0;
+        int removed = 0;
+        for (UserChange change : this.changes) {
+            switch (change.getKind()) {
+                case ADDED:
+                    added++;
+                    break;
+                case CHANGED:
+                    changed++;
+                    break;
+                default:
+                    removed++;
+                    break;
+            }
+        }
+        this.summary.setText(added + " to create, " + changed + " to change, " + removed + " to remove"
+                             + (userStore == null ? " (no pillar configured)" : ""));
+        this.dataProvider.refreshAll();
+    }
+}
@@ -0,0 +1,147 @@
+package com.riverinnovations.saltui.ui;
+
+import com.riverinnovations.saltui.ApplicationModel;
+import com.riverinnovations.saltui.MainView;
+import com.riverinnovations.saltui.model.yaml.PillarScrubber;
+import com.riverinnovations.saltui.model.yaml.ScrubProblem;
+import com.riverinnovations.saltui.model.yaml.ScrubReport;
+import com.riverinnovations.saltui.salt.StateApplyJob;
+import com.riverinnovations.saltui.salt.StateApplyListener;
+import com.riverinnovations.saltui.salt.StateApplyRunner;
+import com.riverinnovations.saltui.salt.StateResult;
+
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.UIDetachedException;
+import com.vaadin.flow.component.button.Button;
+import com.vaadin.flow.component.grid.Grid;
+import com.vaadin.flow.component.html.Span;
+import com.vaadin.flow.component.notification.Notification;
+import com.vaadin.flow.component.orderedlayout.HorizontalLayout;
+import com.vaadin.flow.component.orderedlayout.VerticalLayout;
+import com.vaadin.flow.component.page.Push;
+import com.vaadin.flow.component.textfield.TextField;
+import com.vaadin.flow.data.provider.ListDataProvider;
+import com.vaadin.flow.router.Route;
+import com.vaadin.flow.router.RouterLink;
+import com.vaadin.flow.server.Command;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * View to run state.apply against a target and watch the user state results arrive.
+ * Results are pushed to the browser as each minion returns.
+ *
+ * If the last check of the saved files found problems they are shown first, and Apply
+ * must be pressed again to apply anyway.
+ */
+@Push
+@Route("apply")
+public class StateApplyView extends VerticalLayout {
+
+    /** Results shown in the grid */
+    private final List<StateResult> results = new ArrayList<>();
+
+    /** Provider for the grid */
+    private final ListDataProvider<StateResult> dataProvider = new ListDataProvider<>(results);
+
+    /** The target to apply to */
+    private final TextField target = new TextField("Target");
+
+    /** Starts the apply */
+    private final Button apply = new Button("Apply");
+
+    /** Shows the state of the apply */
+    private final Span status = new Span();
+
+    /** The check of the saved files whose problems have been shown, or null */
+    private @Nullable ScrubReport acknowledged;
+
+    public StateApplyView() {
+        super();
+
+        this.target.setValue("*");
+        this.apply.addClickListener(event -> this.startApply());
+
+        Grid<StateResult> grid = new Grid<>();
+        grid.setSizeFull();
+        grid.setDataProvider(this.dataProvider);
+        grid.addColumn(StateResult::getMinion).setHeader("Minion");
+        grid.addColumn(StateResult::getStateId).setHeader("State");
+        grid.addColumn(result -> result.getResult() == null ? "Pending" : result.getResult() ? "OK" : "Failed")
+                .setHeader("Result");
+        grid.addColumn(StateResult::getComment).setHeader("Comment");
+        grid.addColumn(StateResult::getChanges).setHeader("Changes");
+
+        HorizontalLayout controls = new HorizontalLayout(this.target, this.apply);
+        controls.setDefaultVerticalComponentAlignment(Alignment.BASELINE);
+        add(new RouterLink("Users", MainView.class), controls, this.status, grid);
+        setHeight("100vh");
+    }
+
+    /**
+     * Starts a state.apply; results are added to the grid as each minion returns.
+     */
+    private void startApply() {
+        @Nullable PillarScrubber scrubber = ApplicationModel.get().getScrubber();
+        @Nullable ScrubReport report = scrubber == null ? null : scrubber.getLastReport();
+        if (report != null && !report.isClean() && report != this.acknowledged) {
+            this.acknowledged = report;
+            List<ScrubProblem> problems = report.getProblems();
+            this.status.setText("The saved files have " + problems.size() + " problems: "
+                    + problems.stream().limit(5).map(ScrubProblem::toString).collect(Collectors.joining("; "))
+                    + (problems.size() > 5 ? "; ..." : "") + ". Press Apply again to apply anyway.");
+            Notification.show("Problems found in the saved files");
+            return;
+        }
+        String tgt = this.target.getValue().trim();
+        if (!StateApplyRunner.isValidTarget(tgt)) {
+            Notification.show("The target must not be empty or start with '-'");
+            return;
+        }
+        UI ui = UI.getCurrent();
+        this.results.clear();
+        this.dataProvider.refreshAll();
+        try {
+            ApplicationModel.get().getStateApplyRunner().apply(tgt, new StateApplyListener() {
+                @Override
+                public void stateResult(StateApplyJob job, StateResult result) {
+                    access(ui, () -> {
+                        StateApplyView.this.results.add(result);
+                        StateApplyView.this.dataProvider.refreshAll();
+                    });
+                }
+
+                @Override
+                public void finished(StateApplyJob job) {
+                    access(ui, () -> {
+                        StateApplyView.this.status.setText("Finished with exit code " + job.getExitCode()
+                                + (job.getErrors().isEmpty() ? "" : ": " + String.join("; ", job.getErrors())));
+                        StateApplyView.this.apply.setEnabled(true);
+                    });
+                }
+            });
+            this.apply.setEnabled(false);
+            this.status.setText("Applying state to '" + tgt + "'...");
+        }
+        catch (IOException e) {
+            Notification.show("Cannot run salt: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the command with the UI locked, ignoring UIs that have gone away.
+     */
+    private static void access(UI ui, Command command) {
+        try {
+            ui.access(command);
+        }
+        catch (UIDetachedException e) {
+            // The user has navigated away - nothing to update
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.riverinnovations.saltui.ui;
+
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.UsersChangeEvent;
+import com.riverinnovations.saltui.model.user.UsersListener;
+
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.UIDetachedException;
+import com.vaadin.flow.data.provider.DataProvider;
+import com.vaadin.flow.shared.Registration;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Pushes changes to the users to every attached session.
+ *
+ * Changes are coalesced per UI: while a UI has an update waiting for its session lock,
+ * further changes are merged into that update rather than queued as new ones. A changed
+ * user is refreshed once however many times it changed, and adds or deletes cause a
+ * single refreshAll, so a bulk import costs each session one round trip.
+ *
+ * The data providers must identify users by name, since User.equals() compares every field.
+ *
+ * Thread safe.
+ *
+ * Items without annotation are assumed to be NonNull (default)
+ */
+@DefaultQualifier(value = NonNull.class)
+public class UsersBroadcaster implements UsersListener {
+
+    /** The attached sessions */
+    private final List<Receiver> receivers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Registers a data provider to be refreshed when the users change.
+     * Call from onAttach(), and remove the registration in onDetach().
+     * @param ui The UI showing the data.
+     * @param dataProvider Provider of the users, with getId() returning the user name.
+     * @return Registration to remove when the UI is detached.
+     */
+    public Registration register(UI ui, DataProvider<User, ?> dataProvider) {
+        Receiver receiver = new Receiver(ui, dataProvider);
+        this.receivers.add(receiver);
+        return () -> this.receivers.remove(receiver);
+    }
+
+    /**
+     * @return The number of registered receivers.
+     */
+    public int getReceiverCount() {
+        return this.receivers.size();
+    }
+
+    @Override
+    public void usersChanged(UsersChangeEvent event) {
+        for (Receiver receiver : this.receivers) {
+            receiver.merge(event);
+        }
+    }
+
+    /**
+     * One registered data provider and the changes not yet sent to it.
+     */
+    private class Receiver {
+
+        private final UI ui;
+
+        private final DataProvider<User, ?> dataProvider;
+
+        /** Changed users not yet refreshed, by name */
+        private final Map<String, User> changed = new LinkedHashMap<>();
+
+        /** True if users have been added or deleted since the last refresh */
+        private boolean structural;
+
+        /** True if an update is waiting to run in the UI */
+        private boolean scheduled;
+
+        Receiver(UI ui, DataProvider<User, ?> dataProvider) {
+            this.ui = ui;
+            this.dataProvider = dataProvider;
+        }
+
+        /**
+         * Adds the event to the pending changes, scheduling an update if none is waiting.
+         */
+        void merge(UsersChangeEvent event) {
+            synchronized (this) {
+                if (event.isStructural()) {
+                    this.structural = true;
+                    this.changed.clear();
+                }
+                else if (!this.structural) {
+                    for (User user : event.getChanged()) {
+                        this.changed.put(user.getName(), user);
+                    }
+                }
+                if (this.scheduled) {
+                    return;
+                }
+                this.scheduled = true;
+            }
+            try {
+                this.ui.access(this::drain);
+            }
+            catch (UIDetachedException e) {
+                UsersBroadcaster.this.receivers.remove(this);
+            }
+        }
+
+        /**
+         * Sends the pending changes to the data provider. Runs with the session locked.
+         */
+        private void drain() {
+            boolean refreshAll;
+            List<User> refresh;
+            synchronized (this) {
+                refreshAll = this.structural;
+                refresh = new ArrayList<>(this.changed.values());
+                this.structural = false;
+                this.changed.clear();
+                this.scheduled = false;
+            }
+            if (refreshAll) {
+                this.dataProvider.refreshAll();
+            }
+            else {
+                for (User user : refresh) {
+                    this.dataProvider.refreshItem(user);
+                }
+            }
+        }
+    }
+}
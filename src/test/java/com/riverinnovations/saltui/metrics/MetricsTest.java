@@ -0,0 +1,61 @@
+package com.riverinnovations.saltui.metrics;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    @Test
+    public void testHistogram() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500500.0, histogram.getMean(), 0.001);
+        // Within the bucket resolution of 1/16
+        assertEquals(500000, histogram.getP50(), 500000 / 16);
+        assertEquals(990000, histogram.getP99(), 990000 / 16);
+
+        for (long v = 0; v < 100000; v += 7) {
+            int bucket = Histogram.bucketOf(v);
+            assertTrue(v <= Histogram.bucketMax(bucket));
+            assertTrue(bucket == 0 || v > Histogram.bucketMax(bucket - 1));
+        }
+        assertTrue(Histogram.bucketOf(Long.MAX_VALUE) < 960);
+    }
+
+    @Test
+    public void testRegistry() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        Metrics metrics = new Metrics(server);
+        metrics.counter("test.count").add(3);
+        metrics.counter("test.count").inc();
+        Timer.Context timing = metrics.timer("test.time").time();
+        try {
+            Thread.sleep(1);
+        }
+        finally {
+            timing.stop();
+        }
+        metrics.gauge("test.gauge", () -> 42);
+
+        assertEquals(4L, server.getAttribute(
+                new ObjectName(Metrics.JMX_DOMAIN + ":type=Counter,name=\"test.count\""), "Count"));
+        assertEquals(1L, server.getAttribute(
+                new ObjectName(Metrics.JMX_DOMAIN + ":type=Timer,name=\"test.time\""), "Count"));
+
+        StringBuilder text = new StringBuilder();
+        metrics.writeText(text);
+        assertTrue(text.toString().contains("saltui_test_count_total 4\n"));
+        assertTrue(text.toString().contains("saltui_test_gauge 42\n"));
+        assertTrue(text.toString().contains("saltui_test_time_seconds_count 1\n"));
+    }
+}
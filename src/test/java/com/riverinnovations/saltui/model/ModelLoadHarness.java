@@ -0,0 +1,272 @@
+package com.riverinnovations.saltui.model;
+
+import com.riverinnovations.saltui.metrics.Metrics;
+import com.riverinnovations.saltui.metrics.Timer;
+import com.riverinnovations.saltui.model.gpg.NoOpEncryptor;
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.UserField;
+import com.riverinnovations.saltui.model.user.Users;
+import com.riverinnovations.saltui.model.yaml.UserState;
+import com.vaadin.flow.data.provider.ListDataProvider;
+import com.vaadin.flow.data.provider.Query;
+import com.vaadin.flow.function.SerializablePredicate;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Load harness for the model: many simulated admin sessions reading, paging through the
+ * grid, editing, adding and deleting users while the users are saved in the background.
+ *
+ * Reports throughput and latency for each kind of operation, time spent waiting for the
+ * users' write lock, and lost updates. Updates are counted two ways: through modifyUser(),
+ * which must never lose an update, and by reading a value then writing it back, as a form
+ * bound to a user does, which loses updates whenever two sessions edit the same user.
+ * After the run the users are saved and loaded again, and any difference is also counted
+ * as lost.
+ *
+ * Not run by default as it takes a while; run with mvn -Pload test. Configured by the
+ * system properties saltui.load.sessions, .seconds, .users and .saveMillis.
+ */
+public class ModelLoadHarness {
+
+    /** Number of users edited by every session, to provoke contention */
+    private static final int HOT_USERS = 8;
+
+    /** Rows per grid page, as in MainView */
+    private static final int PAGE_SIZE = 50;
+
+    private enum Op {
+        READ, PAGE, EDIT, FORM_EDIT, ADD, DELETE, SAVE
+    }
+
+    /** Latency of each kind of operation */
+    private final Metrics metrics = new Metrics(null);
+
+    /** Increments made to the hot users, by each method */
+    private final AtomicLong modifyIncrements = new AtomicLong();
+    private final AtomicLong formIncrements = new AtomicLong();
+
+    @Test
+    public void testLoad() throws Exception {
+        int sessions = Integer.getInteger("saltui.load.sessions", 32);
+        int seconds = Integer.getInteger("saltui.load.seconds", 10);
+        int userCount = Integer.getInteger("saltui.load.users", 5000);
+        long saveMillis = Long.getLong("saltui.load.saveMillis", 500);
+
+        Path dir = Paths.get("target/test/load");
+        Files.createDirectories(dir);
+        Path pillarPath = dir.resolve("userpillar.yaml");
+        Files.deleteIfExists(pillarPath);
+        UserState userState = new UserState(dir.resolve("userstate.yaml"), pillarPath, new NoOpEncryptor());
+
+        Users users = new Users();
+        List<User> initial = new ArrayList<>(userCount + HOT_USERS);
+        for (int i = 0; i < userCount; i++) {
+            User user = new User(String.format("user%06d", i));
+            user.setUid(1000 + i);
+            user.setGid(1000 + i % 100);
+            user.setGecosFullname("User " + i);
+            user.setShell(i % 3 == 0 ? "/bin/sh" : "/bin/bash");
+            initial.add(user);
+        }
+        for (int i = 0; i < HOT_USERS; i++) {
+            User user = new User("hot" + i);
+            user.setGecosOther("0");
+            user.setGecosRoomNumber("0");
+            initial.add(user);
+        }
+        users.addUsers(initial);
+        userState.save(users);
+
+        Timer lockWait = Metrics.get().timer("users.writelock.wait");
+        long lockWaitsBefore = lockWait.getHistogram().getCount();
+        long lockWaitNanosBefore = lockWait.getHistogram().getSum();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService executor = Executors.newFixedThreadPool(sessions + 1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int s = 0; s < sessions; s++) {
+            int session = s;
+            futures.add(executor.submit(() -> {
+                this.runSession(session, users, deadline);
+                return null;
+            }));
+        }
+        futures.add(executor.submit(() -> {
+            while (System.nanoTime() < deadline) {
+                Timer.Context timing = this.timer(Op.SAVE).time();
+                try {
+                    userState.save(users);
+                }
+                finally {
+                    timing.stop();
+                }
+                Thread.sleep(saveMillis);
+            }
+            return null;
+        }));
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        // Save what's left and check it all reached the pillar
+        userState.save(users);
+        Users loaded = userState.load();
+        long lostInSave = Math.abs(loaded.getUsers().size() - users.getUsers().size());
+        for (User user : users.getUsers()) {
+            User saved = loaded.getUser(user.getName());
+            if (saved != null && saved.fingerprint() != user.fingerprint()) {
+                lostInSave++;
+            }
+        }
+
+        long modifyTotal = 0;
+        long formTotal = 0;
+        for (int i = 0; i < HOT_USERS; i++) {
+            User hot = users.getUser("hot" + i);
+            modifyTotal += Long.parseLong(hot.getGecosOther());
+            formTotal += Long.parseLong(hot.getGecosRoomNumber());
+        }
+        long lostModify = this.modifyIncrements.get() - modifyTotal;
+        long lostForm = this.formIncrements.get() - formTotal;
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "%n%d sessions for %ds against %d users%n",
+                                    sessions, seconds, userCount));
+        report.append(String.format(Locale.ROOT, "%-10s %10s %10s %10s %10s %10s%n",
+                                    "op", "count", "ops/s", "p50 ms", "p99 ms", "max ms"));
+        for (Op op : Op.values()) {
+            Timer t = this.timer(op);
+            report.append(String.format(Locale.ROOT, "%-10s %10d %10.0f %10.3f %10.3f %10.3f%n",
+                                        op, t.getCount(), t.getCount() / (double) seconds,
+                                        t.getP50Millis(), t.getP99Millis(), t.getMaxMillis()));
+        }
+        long waits = lockWait.getHistogram().getCount() - lockWaitsBefore;
+        long waitNanos = lockWait.getHistogram().getSum() - lockWaitNanosBefore;
+        report.append(String.format(Locale.ROOT, "Write lock: %d acquisitions, %.1f ms waiting in total, "
+                                    + "p99 %.3f ms (all runs)%n",
+                                    waits, waitNanos / 1e6, lockWait.getP99Millis()));
+        report.append(String.format(Locale.ROOT, "Lost updates: %d of %d through modifyUser, "
+                                    + "%d of %d read then written as a form does, %d not saved%n",
+                                    lostModify, this.modifyIncrements.get(),
+                                    lostForm, this.formIncrements.get(), lostInSave));
+        System.out.print(report);
+
+        assertEquals("Updates lost through modifyUser", 0, lostModify);
+        assertEquals("Users differ after saving", 0, lostInSave);
+    }
+
+    /**
+     * One session: a mix of operations until the deadline.
+     */
+    private void runSession(int session, Users users, long deadline) throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // Each session has its own provider, as each MainView does
+        ListDataProvider<User> provider = new ListDataProvider<>(users.getUsers());
+        Comparator<User> byName = Comparator.comparing(User::getName);
+        Deque<String> added = new ArrayDeque<>();
+        int next = 0;
+        while (System.nanoTime() < deadline) {
+            int roll = random.nextInt(100);
+            if (roll < 40) {
+                Timer.Context timing = this.timer(Op.READ).time();
+                try {
+                    User user = users.getUser(String.format("user%06d", random.nextInt(Math.max(1, users.getUsers().size()))));
+                    if (user != null) {
+                        for (UserField field : UserField.all()) {
+                            field.get(user);
+                        }
+                    }
+                }
+                finally {
+                    timing.stop();
+                }
+            }
+            else if (roll < 65) {
+                Timer.Context timing = this.timer(Op.PAGE).time();
+                try {
+                    int offset = random.nextInt(Math.max(1, users.getUsers().size() - PAGE_SIZE));
+                    Query<User, SerializablePredicate<User>> query =
+                            new Query<>(offset, PAGE_SIZE, Collections.emptyList(), byName, null);
+                    provider.size(new Query<>());
+                    provider.fetch(query).collect(Collectors.toList());
+                }
+                finally {
+                    timing.stop();
+                }
+            }
+            else if (roll < 75) {
+                String name = "hot" + random.nextInt(HOT_USERS);
+                Timer.Context timing = this.timer(Op.EDIT).time();
+                try {
+                    users.modifyUser(name, u -> u.setGecosOther(String.valueOf(Long.parseLong(u.getGecosOther()) + 1)));
+                }
+                finally {
+                    timing.stop();
+                }
+                this.modifyIncrements.incrementAndGet();
+            }
+            else if (roll < 85) {
+                String name = "hot" + random.nextInt(HOT_USERS);
+                Timer.Context timing = this.timer(Op.FORM_EDIT).time();
+                try {
+                    // Read into the form, then write back on save
+                    String value = users.getUser(name).getGecosRoomNumber();
+                    String edited = String.valueOf(Long.parseLong(value) + 1);
+                    users.modifyUser(name, u -> u.setGecosRoomNumber(edited));
+                }
+                finally {
+                    timing.stop();
+                }
+                this.formIncrements.incrementAndGet();
+            }
+            else if (roll < 93 || added.isEmpty()) {
+                String name = "s" + session + "-" + next++;
+                Timer.Context timing = this.timer(Op.ADD).time();
+                try {
+                    User user = new User(name);
+                    user.setGecosFullname("Added by session " + session);
+                    users.addUser(user);
+                }
+                finally {
+                    timing.stop();
+                }
+                added.add(name);
+            }
+            else {
+                String name = added.removeFirst();
+                Timer.Context timing = this.timer(Op.DELETE).time();
+                try {
+                    users.deleteUser(name);
+                }
+                finally {
+                    timing.stop();
+                }
+            }
+        }
+    }
+
+    private Timer timer(Op op) {
+        return this.metrics.timer(op.name().toLowerCase(Locale.ROOT));
+    }
+}
@@ -41,6 +41,8 @@ public class ModelTest {
         Path pillarPath = Paths.get("target/test/userpillar.yaml");
         Path gpgKeyPath = Paths.get("src/test/resources/gpg/pubring.gpg");
         Files.createDirectories(pillarPath.getParent());
+        // A fresh set of users cannot be saved over a pillar left by an earlier run
+        Files.deleteIfExists(pillarPath);
         UserState userState = new UserState(statePath, pillarPath, gpgKeyPath);
         userState.save(users);
 
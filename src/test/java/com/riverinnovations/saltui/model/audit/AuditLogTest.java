@@ -0,0 +1,96 @@
+package com.riverinnovations.saltui.model.audit;
+
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.Users;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AuditLogTest {
+
+    @Test
+    public void testRecordRoundTrip() throws Exception {
+        AuditRecord record = new AuditRecord(123, "admin", "bob", AuditAction.CHANGED, "fullname",
+                                             "Bob\tSmith\\", null);
+        assertEquals(record, AuditRecord.parse(record.toLine()));
+    }
+
+    @Test
+    public void testAuditLog() throws Exception {
+        Path dir = Paths.get("target/test/audit");
+        if (Files.exists(dir)) {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+
+        Users users = new Users();
+        users.addUser(new User("existing"));
+        try (AuditLog log = new AuditLog(dir, 64)) {
+            // Small segments and buffer, to exercise rotation and waiting for the writer
+            log.setSegmentBytes(2048);
+            AuditRecorder recorder = new AuditRecorder(users, log, () -> "tester");
+
+            users.modifyUser("existing", u -> u.setShell("/bin/zsh"));
+            users.modifyUser("existing", u -> u.setPasswordPlain("secret"));
+            users.addUser(new User("added"));
+            users.deleteUser("added");
+
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                String name = "thread" + t;
+                users.addUser(new User(name));
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        int uid = 1000 + i;
+                        users.modifyUser(name, u -> u.setUid(uid));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+            recorder.close();
+
+            List<AuditRecord> existing = log.query("existing", 0, Long.MAX_VALUE);
+            assertEquals(2, existing.size());
+            assertEquals("shell", existing.get(0).getField());
+            assertEquals("/bin/zsh", existing.get(0).getNewValue());
+            assertEquals("tester", existing.get(0).getActor());
+            // Passwords are never recorded
+            assertEquals("password", existing.get(1).getField());
+            assertNull(existing.get(1).getNewValue());
+
+            List<AuditRecord> added = log.query("added", 0, Long.MAX_VALUE);
+            assertEquals(AuditAction.ADDED, added.get(0).getAction());
+            assertEquals(AuditAction.DELETED, added.get(1).getAction());
+
+            assertEquals(201, log.query("thread2", 0, Long.MAX_VALUE).size());
+            assertTrue(log.getSegmentCount() > 1);
+            assertEquals(Collections.emptyList(), log.query("thread2", 0, 1));
+        }
+
+        // Reopened from the indexes and the unsealed segment
+        try (AuditLog log = new AuditLog(dir)) {
+            assertEquals(201, log.query("thread3", 0, Long.MAX_VALUE).size());
+            assertEquals(4 + 4 + 4 * 200, log.query(0, Long.MAX_VALUE).size());
+        }
+    }
+}
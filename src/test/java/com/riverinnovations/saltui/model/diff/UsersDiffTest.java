@@ -0,0 +1,62 @@
+package com.riverinnovations.saltui.model.diff;
+
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.Users;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UsersDiffTest {
+
+    private static Users createUsers(int count) throws Exception {
+        Users users = new Users();
+        for (int i = 0; i < count; i++) {
+            User user = new User("user" + i);
+            user.setUid(1000 + i);
+            user.setShell("/bin/sh");
+            user.setPasswordPlain("secret" + i);
+            users.addUser(user);
+        }
+        return users;
+    }
+
+    @Test
+    public void testCompare() throws Exception {
+        Users before = createUsers(10000);
+        Users after = createUsers(10000);
+        after.deleteUser("user5");
+        after.addUser(new User("newuser"));
+        after.modifyUser("user7", user -> {
+            user.setShell("/bin/bash");
+            user.setUid(7);
+        });
+        after.modifyUser("user9", user -> user.setPasswordPlain("changed"));
+
+        List<UserChange> changes = new UsersDiff().compare(before, after);
+        assertEquals(4, changes.size());
+        assertEquals("newuser", changes.get(0).getName());
+        assertEquals(UserChange.Kind.ADDED, changes.get(0).getKind());
+        assertEquals("user5", changes.get(1).getName());
+        assertEquals(UserChange.Kind.REMOVED, changes.get(1).getKind());
+
+        UserChange user7 = changes.get(2);
+        assertEquals(UserChange.Kind.CHANGED, user7.getKind());
+        assertEquals(2, user7.getFields().size());
+        assertEquals("uid", user7.getFields().get(0).getField());
+        assertEquals(1007, user7.getFields().get(0).getOldValue());
+        assertEquals("shell", user7.getFields().get(1).getField());
+
+        FieldChange password = changes.get(3).getFields().get(0);
+        assertEquals("password", password.getField());
+        assertTrue(password.isSensitive());
+        assertNull(password.getNewValue());
+
+        UsersDiff withoutPasswords = new UsersDiff();
+        withoutPasswords.setComparePlainPasswords(false);
+        assertEquals(3, withoutPasswords.compare(before, after).size());
+    }
+}
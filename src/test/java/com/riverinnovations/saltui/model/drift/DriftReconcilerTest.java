@@ -0,0 +1,136 @@
+package com.riverinnovations.saltui.model.drift;
+
+import com.riverinnovations.saltui.model.target.MatchType;
+import com.riverinnovations.saltui.model.target.Target;
+import com.riverinnovations.saltui.model.target.TargetSet;
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.Users;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class DriftReconcilerTest {
+
+    @Test
+    public void testFileDumps() throws Exception {
+        Path root = Paths.get("target/test/drift");
+        write(root.resolve("web1/passwd"),
+              "alice:x:1001:100:Alice:/home/alice:/bin/sh\n"
+              + "carol:x:1003:100::/home/carol:/bin/bash\n");
+        write(root.resolve("web1/group"), "staff:x:100:\nwheel:x:10:alice\n");
+        write(root.resolve("db1/passwd"),
+              "alice:x:1001:100:Alice:/home/alice:/bin/bash\n"
+              + "bob:x:1002:100::/home/bob:/bin/bash\n"
+              + "other:x:1010:100::/home/other:/bin/bash\n");
+        write(root.resolve("db1/group"), "staff:x:100:alice\nwheel:x:10:\n");
+
+        Users users = users();
+        DriftReconciler reconciler = new DriftReconciler(users, targets());
+        reconciler.setThreads(2);
+        List<MinionDrift> results = reconciler.reconcile(AccountDumps.fromDirectory(root));
+        assertEquals(2, results.size());
+
+        // db1 has everyone but dave, who is only targeted at the web servers
+        MinionDrift db1 = results.get(0);
+        assertEquals("db1", db1.getMinion());
+        assertEquals(3, db1.getChecked());
+        assertTrue(db1.toString(), db1.isClean());
+
+        MinionDrift web1 = results.get(1);
+        assertEquals("web1", web1.getMinion());
+        assertEquals(4, web1.getChecked());
+        assertEquals("[alice CHANGED [shell: /bin/bash -> /bin/sh, groups: [staff] -> [wheel]], bob MISSING, "
+                     + "carol NOT_REMOVED, dave MISSING]", web1.getDrifts().toString());
+
+        // Nothing changed, so nothing is read again
+        results = reconciler.reconcile(AccountDumps.fromDirectory(root));
+        assertTrue(results.get(0).isUnchanged());
+        assertTrue(results.get(1).isUnchanged());
+        assertEquals(4, results.get(1).getDrifts().size());
+
+        // A change to a user is seen on the minions it is targeted at
+        users.modifyUser("alice", u -> u.setShell("/bin/sh"));
+        results = reconciler.reconcile(AccountDumps.fromDirectory(root));
+        assertFalse(results.get(0).isUnchanged());
+        assertEquals("[alice CHANGED [shell: /bin/sh -> /bin/bash]]", results.get(0).getDrifts().toString());
+        assertFalse(results.get(1).isUnchanged());
+        assertEquals("[alice CHANGED [groups: [staff] -> [wheel]], bob MISSING, carol NOT_REMOVED, dave MISSING]",
+                     results.get(1).getDrifts().toString());
+
+        // As is a change to a dump
+        write(root.resolve("web1/passwd"), "alice:x:1001:100:Alice:/home/alice:/bin/sh\n");
+        results = reconciler.reconcile(AccountDumps.fromDirectory(root));
+        assertTrue(results.get(0).isUnchanged());
+        assertFalse(results.get(1).isUnchanged());
+        assertEquals("[alice CHANGED [groups: [staff] -> [wheel]], bob MISSING, dave MISSING]",
+                     results.get(1).getDrifts().toString());
+    }
+
+    @Test
+    public void testSaltJson() throws Exception {
+        String json = "{\"web2\": [{\"name\": \"alice\", \"uid\": 1001, \"gid\": 100, \"home\": \"/home/alice\",\n"
+                      + " \"shell\": \"/bin/bash\", \"fullname\": \"Alice\", \"roomnumber\": \"\",\n"
+                      + " \"groups\": [\"staff\", \"wheel\"]},\n"
+                      + " {\"name\": \"dave\", \"uid\": 2000, \"gid\": 100, \"shell\": \"/bin/bash\", \"groups\": []}]}\n"
+                      + "{\"db2\": [\"alice\", \"carol\"]}\n"
+                      + "{\"db3\": \"Minion did not return. [No response]\"}\n";
+        List<MinionDump> dumps = AccountDumps.fromSaltJson(new StringReader(json));
+        assertEquals(3, dumps.size());
+
+        List<MinionDrift> results = new DriftReconciler(users(), targets()).reconcile(dumps);
+
+        // user.info lists the primary group, so extra groups are not drift
+        MinionDrift web2 = results.get(0);
+        assertEquals("[bob MISSING, dave CHANGED [uid: 1004 -> 2000]]", web2.getDrifts().toString());
+
+        // Only names, so only which accounts exist is checked
+        MinionDrift db2 = results.get(1);
+        assertEquals("[bob MISSING, carol NOT_REMOVED]", db2.getDrifts().toString());
+
+        MinionDrift db3 = results.get(2);
+        assertFalse(db3.isClean());
+        assertNotNull(db3.getError());
+    }
+
+    private static Users users() throws Exception {
+        Users users = new Users();
+        User alice = new User("alice");
+        alice.setUid(1001);
+        alice.setShell("/bin/bash");
+        alice.setGroups(Collections.singletonList("staff"));
+        users.addUser(alice);
+        User bob = new User("bob");
+        bob.setUid(1002);
+        users.addUser(bob);
+        User carol = new User("carol");
+        carol.setPresent(false);
+        users.addUser(carol);
+        User dave = new User("dave");
+        dave.setUid(1004);
+        dave.setTargets(Collections.singletonList("web"));
+        users.addUser(dave);
+        return users;
+    }
+
+    private static TargetSet targets() throws Exception {
+        return new TargetSet(Arrays.asList(new Target("web", MatchType.GLOB, "web*"),
+                                           new Target("db", MatchType.GRAIN, "role:db")));
+    }
+
+    private static void write(Path path, String text) throws Exception {
+        Files.createDirectories(path.getParent());
+        Files.write(path, text.getBytes(StandardCharsets.UTF_8));
+    }
+}
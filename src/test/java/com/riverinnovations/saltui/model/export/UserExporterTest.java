@@ -0,0 +1,134 @@
+package com.riverinnovations.saltui.model.export;
+
+import com.riverinnovations.saltui.model.importer.CsvUserReader;
+import com.riverinnovations.saltui.model.importer.ImportRecord;
+import com.riverinnovations.saltui.model.query.UserQuery;
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.UserField;
+import com.riverinnovations.saltui.model.user.Users;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UserExporterTest {
+
+    @Test
+    public void testJsonLines() throws Exception {
+        Users users = users(3);
+        StringWriter out = new StringWriter();
+        UserExporter exporter = new UserExporter(users, ExportFormat.JSON_LINES,
+                                                 UserExporter.parseFields("name,uid,groups,fullname"),
+                                                 UserQuery.parse("uid>=1001"));
+        assertEquals(2, exporter.write(out));
+        assertEquals("{\"name\":\"user1\",\"uid\":1001,\"groups\":[\"staff\",\"wheel\"],"
+                     + "\"fullname\":\"User \\\"1\\\", Esq.\"}\n"
+                     + "{\"name\":\"user2\",\"uid\":1002,\"groups\":[\"staff\",\"wheel\"],"
+                     + "\"fullname\":\"User \\\"2\\\", Esq.\"}\n", out.toString());
+    }
+
+    @Test
+    public void testCsvRoundTrip() throws Exception {
+        Users users = users(3);
+        StringWriter out = new StringWriter();
+        new UserExporter(users, ExportFormat.CSV, UserExporter.exportableFields(), null).write(out);
+        String csv = out.toString();
+        assertFalse(csv.contains("secret"));
+        List<String> header = Arrays.asList(csv.substring(0, csv.indexOf('\r')).split(","));
+        assertFalse(header.contains("password"));
+        assertFalse(header.contains("password_hash"));
+
+        try (CsvUserReader reader = new CsvUserReader(new StringReader(csv), "export")) {
+            for (int i = 0; i < 3; i++) {
+                ImportRecord record = reader.next();
+                assertNotNull(record);
+                assertNull(record.getError());
+                User user = record.getUser();
+                assertNotNull(user);
+                User original = users.getUser("user" + i);
+                assertNotNull(original);
+                for (UserField field : UserExporter.exportableFields()) {
+                    assertEquals(field.getKey(), field.get(original), field.get(user));
+                }
+            }
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void testStreamsInPages() throws Exception {
+        Users users = users(UserExporter.PAGE_SIZE * 4 + 1);
+        List<Integer> flushed = new ArrayList<>();
+        Writer out = new Writer() {
+            private int pending;
+
+            @Override
+            public void write(char[] cbuf, int off, int len) {
+                this.pending += len;
+            }
+
+            @Override
+            public void flush() {
+                flushed.add(this.pending);
+                this.pending = 0;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        assertEquals(UserExporter.PAGE_SIZE * 4 + 1,
+                     new UserExporter(users, ExportFormat.JSON_LINES, UserExporter.exportableFields(), null).write(out));
+        assertTrue(flushed.size() >= 5);
+        for (int chars : flushed) {
+            assertTrue(chars < UserExporter.PAGE_SIZE * 1024);
+        }
+    }
+
+    @Test
+    public void testNoPasswords() throws Exception {
+        for (String fields : Arrays.asList("name,password", "password_hash", "nosuchfield")) {
+            try {
+                UserExporter.parseFields(fields);
+                fail("Expected ExportException for " + fields);
+            }
+            catch (ExportException e) {
+                // Expected
+            }
+        }
+        try {
+            new UserExporter(new Users(), ExportFormat.CSV, Arrays.asList(UserField.NAME, UserField.PASSWORD), null);
+            fail("Expected ExportException");
+        }
+        catch (ExportException e) {
+            // Expected
+        }
+    }
+
+    private static Users users(int count) throws Exception {
+        Users users = new Users();
+        List<User> all = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            User user = new User("user" + i);
+            user.setUid(1000 + i);
+            user.setShell("/bin/bash");
+            user.setGecosFullname("User \"" + i + "\", Esq.");
+            user.setGroups(Arrays.asList("staff", "wheel"));
+            user.setPasswordPlain("secret" + i);
+            all.add(user);
+        }
+        users.addUsers(all);
+        return users;
+    }
+}
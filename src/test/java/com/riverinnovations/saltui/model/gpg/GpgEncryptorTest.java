@@ -11,8 +11,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
 public class GpgEncryptorTest {
@@ -55,4 +58,19 @@ public class GpgEncryptorTest {
             fail("Exception thrown in GPG encryption/decryption");
         }
     }
+
+    @Test
+    public void testEncryptAll() throws Exception {
+        GpgEncryptor encryptor = new GpgEncryptor(Paths.get("src/test/resources/gpg/pubring.gpg"));
+        List<@Nullable String> encrypted = encryptor.encryptAll(Arrays.asList("one", null, "three"));
+        assertEquals(3, encrypted.size());
+        assertNull(encrypted.get(1));
+
+        Key secKey = new Key((Paths.get("src/test/resources/gpg/secring.gpg").toFile()));
+        secKey.setNoPassphrase(true);
+        Decryptor decryptor = new Decryptor(secKey);
+        decryptor.setVerificationRequired(false);
+        assertEquals("one", this.decrypt(decryptor, encrypted.get(0)));
+        assertEquals("three", this.decrypt(decryptor, encrypted.get(2)));
+    }
 }
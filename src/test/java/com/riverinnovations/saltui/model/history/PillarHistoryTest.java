@@ -0,0 +1,152 @@
+package com.riverinnovations.saltui.model.history;
+
+import com.riverinnovations.saltui.model.gpg.GpgEncryptor;
+import com.riverinnovations.saltui.model.gpg.NoOpEncryptor;
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.Users;
+import com.riverinnovations.saltui.model.yaml.UserState;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class PillarHistoryTest {
+
+    @Test
+    public void testHistory() throws Exception {
+        Path dir = Paths.get("target/test/history");
+        if (Files.exists(dir)) {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+        Files.createDirectories(dir);
+        Path statePath = dir.resolve("userstate.yaml");
+        Path pillarPath = dir.resolve("userpillar.yaml");
+        UserState userState = new UserState(statePath, pillarPath,
+                                            new GpgEncryptor(Paths.get("src/test/resources/gpg/pubring.gpg")));
+        PillarHistory history = new PillarHistory(PillarHistory.defaultDirectory(pillarPath));
+        history.setCheckpointInterval(3);
+        userState.setHistory(history);
+
+        Users users = new Users();
+        for (int i = 0; i < 5; i++) {
+            User user = new User("user" + i);
+            user.setShell("/bin/sh");
+            user.setPasswordPlain("secret" + i);
+            users.addUser(user);
+        }
+        userState.save(users);
+        assertEquals(1, history.getLatestGeneration());
+
+        // Passwords are encrypted differently each time, but are only encrypted once
+        userState.save(users);
+        assertEquals(1, history.getLatestGeneration());
+
+        // Nor are they a change after a restart, when only the encrypted passwords are known
+        UserState restarted = new UserState(statePath, pillarPath,
+                                            new GpgEncryptor(Paths.get("src/test/resources/gpg/pubring.gpg")));
+        PillarHistory restartedHistory = new PillarHistory(history.getDirectory());
+        restarted.setHistory(restartedHistory);
+        Users loaded = restarted.load();
+        restarted.save(loaded);
+        assertEquals(1, restartedHistory.getLatestGeneration());
+        users.setGeneration(loaded.getGeneration());
+
+        users.modifyUser("user2", user -> user.setShell("/bin/bash"));
+        userState.save(users);
+        users.deleteUser("user3");
+        userState.save(users);
+
+        List<Generation> generations = history.list();
+        assertEquals(3, generations.size());
+        assertTrue(generations.get(0).isCheckpoint());
+        assertFalse(generations.get(1).isCheckpoint());
+        assertEquals(1, generations.get(1).getChanged());
+        assertEquals(1, generations.get(2).getDeleted());
+
+        GenerationDiff diff = history.diff(1, 3);
+        assertEquals(Collections.singletonList("user3"), diff.getDeleted());
+        assertEquals(Collections.singletonList("shell"), diff.getChanged().get("user2"));
+        assertTrue(diff.getAdded().isEmpty());
+
+        Users restored = userState.rollback(1);
+        assertEquals(5, restored.getUsers().size());
+        User user2 = restored.getUser("user2");
+        assertNotNull(user2);
+        assertEquals("/bin/sh", user2.getShell());
+        assertEquals(5, userState.load().getUsers().size());
+        assertEquals(4, history.getLatestGeneration());
+        assertTrue(history.list().get(3).isCheckpoint());
+        assertTrue(history.diff(1, 4).isEmpty());
+
+        // A new history reads the index and rebuilds generations from the files
+        PillarHistory reopened = new PillarHistory(history.getDirectory());
+        assertEquals(4, reopened.list().size());
+        assertEquals(4, reopened.load(3).size());
+        assertEquals("/bin/bash", reopened.load(2).get("user2").get("shell"));
+    }
+
+    @Test
+    public void testSharedHistory() throws Exception {
+        Path dir = Paths.get("target/test/sharedhistory");
+        if (Files.exists(dir)) {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+        Files.createDirectories(dir);
+        Path statePath = dir.resolve("userstate.yaml");
+        Path pillarPath = dir.resolve("userpillar.yaml");
+        Path historyDir = PillarHistory.defaultDirectory(pillarPath);
+
+        // Two instances sharing the pillar, each with its own view of the history
+        UserState[] instances = new UserState[2];
+        for (int i = 0; i < instances.length; i++) {
+            instances[i] = new UserState(statePath, pillarPath, new NoOpEncryptor());
+            PillarHistory history = new PillarHistory(historyDir);
+            history.setCheckpointInterval(3);
+            instances[i].setHistory(history);
+        }
+        Users users = new Users();
+        users.addUser(new User("one"));
+        users.addUser(new User("two"));
+        instances[0].save(users);
+
+        // Each saves a change in turn, so neither has seen the other's last generation
+        for (int save = 1; save <= 6; save++) {
+            UserState instance = instances[save % 2];
+            Users loaded = instance.load();
+            String shell = "/bin/shell" + save;
+            loaded.modifyUser(save % 3 == 0 ? "one" : "two", user -> user.setShell(shell));
+            instance.save(loaded);
+            assertEquals(save + 1, instance.getHistory().getLatestGeneration());
+        }
+
+        List<String> index = Files.readAllLines(historyDir.resolve("history.idx"), StandardCharsets.UTF_8);
+        assertEquals(7, index.size());
+        PillarHistory reopened = new PillarHistory(historyDir);
+        List<Generation> generations = reopened.list();
+        assertEquals(7, generations.size());
+        for (int i = 0; i < generations.size(); i++) {
+            assertEquals(i + 1, generations.get(i).getNumber());
+            assertEquals(i % 3 == 0, generations.get(i).isCheckpoint());
+        }
+        // Each delta is against the generation before it, whichever instance recorded that
+        assertEquals("/bin/shell5", reopened.load(6).get("two").get("shell"));
+        assertEquals("/bin/shell3", reopened.load(6).get("one").get("shell"));
+        assertEquals("/bin/shell6", reopened.load(7).get("one").get("shell"));
+        assertEquals(reopened.load(7), instances[1].getHistory().load(7));
+    }
+}
@@ -0,0 +1,122 @@
+package com.riverinnovations.saltui.model.importer;
+
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.Users;
+import org.junit.Test;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class UserImporterTest {
+
+    private static Reader open(String name) throws Exception {
+        return Files.newBufferedReader(Paths.get("src/test/resources/import", name), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testCsv() throws Exception {
+        Users users = new Users();
+        UserImporter importer = new UserImporter();
+        importer.setBatchSize(2);
+        ImportResult result;
+        try (CsvUserReader reader = new CsvUserReader(open("users.csv"), "users.csv")) {
+            result = importer.importUsers(reader, users);
+        }
+        assertEquals(6, result.getRecords());
+        assertEquals(2, result.getImported());
+        assertEquals(4, result.getErrorCount());
+        assertEquals(5, result.getErrors().get(0).getLine());
+        assertEquals(6, result.getErrors().get(1).getLine());
+
+        User alice = users.getUser("alice");
+        assertNotNull(alice);
+        assertEquals("Smith, Alice", alice.getGecosFullname());
+        assertEquals(Arrays.asList("wheel", "adm"), alice.getGroups());
+        assertEquals(Integer.valueOf(90), alice.getMaxDaysBetweenPasswordChanges());
+        User bob = users.getUser("bob");
+        assertNotNull(bob);
+        assertEquals("Bob \"The Builder\"\nJones", bob.getGecosFullname());
+    }
+
+    @Test
+    public void testPasswd() throws Exception {
+        Users users = new Users();
+        ImportResult result;
+        try (PasswdUserReader reader = new PasswdUserReader(open("passwd"), open("shadow"), open("group"), "passwd")) {
+            result = new UserImporter().importUsers(reader, users);
+        }
+        assertEquals(3, result.getImported());
+        assertEquals(1, result.getErrorCount());
+        assertEquals(4, result.getErrors().get(0).getLine());
+
+        User alice = users.getUser("alice");
+        assertNotNull(alice);
+        assertEquals("Alice Smith", alice.getGecosFullname());
+        assertEquals("555-1234", alice.getGecosWorkphone());
+        assertEquals("$6$salt$hash", alice.getPasswordHash());
+        assertEquals(Integer.valueOf(18000), alice.getDateExpire());
+        assertEquals(Arrays.asList("wheel", "adm"), alice.getGroups());
+        User bob = users.getUser("bob");
+        assertNotNull(bob);
+        assertNull(bob.getPasswordHash());
+        assertEquals(Integer.valueOf(17000), bob.getDateLastPasswordChange());
+        User carol = users.getUser("carol");
+        assertNotNull(carol);
+        assertEquals(Arrays.asList("wheel"), carol.getGroups());
+    }
+
+    @Test
+    public void testShadowLookAheadBounded() throws Exception {
+        String passwd = "dave:x:1005:1005::/home/dave:/bin/sh\n"
+                        + "alice:x:1001:1001::/home/alice:/bin/sh\n"
+                        + "bob:x:1002:1002::/home/bob:/bin/sh\n"
+                        + "carol:x:1004:1004::/home/carol:/bin/sh\n";
+        String shadow = "alice:$6$salt$alice:17500::::::\n"
+                        + "bob:$6$salt$bob:17500::::::\n"
+                        + "carol:$6$salt$carol:17500::::::\n";
+        Users users = new Users();
+        ImportResult result;
+        try (PasswdUserReader reader = new PasswdUserReader(new StringReader(passwd), new StringReader(shadow),
+                                                            null, "passwd")) {
+            reader.setMaxShadowAhead(2);
+            result = new UserImporter().importUsers(reader, users);
+        }
+        // Dave has no shadow entry, and looking for it stops after two entries
+        assertEquals(3, result.getImported());
+        assertEquals(1, result.getErrorCount());
+        assertEquals(1, result.getErrors().get(0).getLine());
+        assertNull(users.getUser("dave"));
+        assertEquals("$6$salt$alice", users.getUser("alice").getPasswordHash());
+        assertEquals("$6$salt$bob", users.getUser("bob").getPasswordHash());
+        assertEquals("$6$salt$carol", users.getUser("carol").getPasswordHash());
+    }
+
+    @Test
+    public void testLdif() throws Exception {
+        Users users = new Users();
+        ImportResult result;
+        try (LdifUserReader reader = new LdifUserReader(open("users.ldif"), "users.ldif")) {
+            result = new UserImporter().importUsers(reader, users);
+        }
+        assertEquals(2, result.getImported());
+        assertEquals(1, result.getErrorCount());
+        assertEquals(29, result.getErrors().get(0).getLine());
+
+        User alice = users.getUser("alice");
+        assertNotNull(alice);
+        assertEquals("$6$salt$hash", alice.getPasswordHash());
+        assertEquals(Integer.valueOf(90), alice.getMaxDaysBetweenPasswordChanges());
+        User bob = users.getUser("bob");
+        assertNotNull(bob);
+        assertEquals("Bob Jörgensen", bob.getGecosFullname());
+        assertEquals(Integer.valueOf(1002), bob.getUid());
+    }
+}
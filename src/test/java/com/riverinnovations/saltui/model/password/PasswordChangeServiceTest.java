@@ -0,0 +1,140 @@
+package com.riverinnovations.saltui.model.password;
+
+import com.riverinnovations.saltui.model.gpg.GpgDecryptor;
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.Users;
+import com.riverinnovations.saltui.model.yaml.UserState;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PasswordChangeServiceTest {
+
+    @Test
+    public void testTokenBucket() {
+        AtomicLong now = new AtomicLong();
+        TokenBucket bucket = new TokenBucket(2, 1, now::get);
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        now.addAndGet(500_000_000L);
+        assertFalse(bucket.tryAcquire());
+        now.addAndGet(500_000_000L);
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.isFull());
+        now.addAndGet(10_000_000_000L);
+        assertTrue(bucket.isFull());
+    }
+
+    @Test
+    public void testActorPassedWithChange() throws Exception {
+        Users users = new Users();
+        User user = new User("alice");
+        user.setPasswordHash(Sha512Crypt.hash("oldpassword", Sha512Crypt.MIN_ROUNDS));
+        users.addUser(user);
+        // Only known on the asking thread, as for the current request
+        ThreadLocal<String> request = new ThreadLocal<>();
+        List<String> actors = new CopyOnWriteArrayList<>();
+        users.addListener(event -> actors.add(event.getActor() != null ? event.getActor() : "unknown"));
+        try (PasswordHasher hasher = new PasswordHasher(Sha512Crypt.MIN_ROUNDS);
+             PasswordChangeService service = new PasswordChangeService(users, hasher, () -> true)) {
+            service.setActor(request::get);
+            request.set("alice@10.0.0.1");
+            assertEquals(PasswordChangeResult.ACCEPTED,
+                         service.changePassword("alice", "oldpassword", "newpassword").get());
+            assertEquals(Collections.singletonList("alice@10.0.0.1"), actors);
+        }
+    }
+
+    @Test
+    public void testChangePassword() throws Exception {
+        Users users = new Users();
+        for (int i = 0; i < 10; i++) {
+            User user = new User("user" + i);
+            user.setPasswordHash(Sha512Crypt.hash("oldpassword" + i, Sha512Crypt.MIN_ROUNDS));
+            users.addUser(user);
+        }
+        AtomicInteger saves = new AtomicInteger();
+        try (PasswordHasher hasher = new PasswordHasher(Sha512Crypt.MIN_ROUNDS);
+             PasswordChangeService service = new PasswordChangeService(users, hasher, () -> {
+                 saves.incrementAndGet();
+                 return true;
+             }, 2, 0.001, 100, 100)) {
+            service.setSaveDelayMillis(60000);
+
+            assertEquals(PasswordChangeResult.TOO_WEAK,
+                         service.changePassword("user0", "oldpassword0", "short").get());
+            assertEquals(PasswordChangeResult.REJECTED,
+                         service.changePassword("user0", "wrong", "newpassword0").get());
+            assertEquals(PasswordChangeResult.REJECTED,
+                         service.changePassword("nobody", "wrong", "newpassword0").get());
+            for (int i = 0; i < 10; i++) {
+                assertEquals(PasswordChangeResult.ACCEPTED,
+                             service.changePassword("user" + i, "oldpassword" + i, "newpassword" + i).get());
+            }
+            // Two attempts per user, and user0 has used them
+            assertEquals(PasswordChangeResult.RATE_LIMITED,
+                         service.changePassword("user0", "newpassword0", "newerpassword").get());
+
+            assertEquals("newpassword3", users.getUser("user3").getPasswordPlain());
+            assertTrue(Sha512Crypt.verify("newpassword3", users.getUser("user3").getPasswordHash()));
+
+            // All the changes are saved together
+            assertEquals(10, service.getPendingCount());
+            assertEquals(0, saves.get());
+            service.flush();
+            assertEquals(1, saves.get());
+            assertEquals(0, service.getPendingCount());
+        }
+    }
+
+    @Test
+    public void testChangeSavedEncrypted() throws Exception {
+        Path statePath = Paths.get("target/test/passwordchange/userstate.yaml");
+        Path pillarPath = Paths.get("target/test/passwordchange/userpillar.yaml");
+        Files.createDirectories(pillarPath.getParent());
+        Files.deleteIfExists(pillarPath);
+        UserState userState = new UserState(statePath, pillarPath, Paths.get("src/test/resources/gpg/pubring.gpg"));
+        GpgDecryptor decryptor = new GpgDecryptor(Paths.get("src/test/resources/gpg/secring.gpg"), null);
+
+        Users saved = new Users();
+        for (int i = 0; i < 3; i++) {
+            User user = new User("user" + i);
+            user.setPasswordPlain("oldpassword" + i);
+            user.setPasswordHash(Sha512Crypt.hash("oldpassword" + i, Sha512Crypt.MIN_ROUNDS));
+            saved.addUser(user);
+        }
+        userState.save(saved);
+
+        // As after a restart: only the encrypted passwords are known
+        Users users = userState.load();
+        String unchanged = users.getUser("user0").getPasswordEncrypted();
+        try (PasswordHasher hasher = new PasswordHasher(Sha512Crypt.MIN_ROUNDS);
+             PasswordChangeService service = new PasswordChangeService(users, hasher, () -> {
+                 userState.save(users);
+                 return true;
+             })) {
+            assertEquals(PasswordChangeResult.ACCEPTED,
+                         service.changePassword("user1", "oldpassword1", "newpassword1").get());
+            service.flush();
+        }
+
+        Users reloaded = userState.load();
+        assertEquals("newpassword1", decryptor.decrypt(reloaded.getUser("user1").getPasswordEncrypted()));
+        // The other passwords are saved as they were encrypted, not encrypted again
+        assertEquals(unchanged, reloaded.getUser("user0").getPasswordEncrypted());
+        assertEquals("oldpassword0", decryptor.decrypt(reloaded.getUser("user0").getPasswordEncrypted()));
+        assertEquals("oldpassword2", decryptor.decrypt(reloaded.getUser("user2").getPasswordEncrypted()));
+    }
+}
@@ -0,0 +1,52 @@
+package com.riverinnovations.saltui.model.password;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Sha512CryptTest {
+
+    @Test
+    public void testSpecificationVectors() {
+        // Test vectors from https://www.akkadia.org/drepper/SHA-crypt.txt
+        assertEquals("$6$saltstring$svn8UoSVapNtMuq1ukKS4tPQd8iKwSMHWjl/O817G3uBnIFNjnQJuesI68u4OTLiBFdcbYEdFCoEOfaS35inz1",
+                     Sha512Crypt.crypt("Hello world!", "$6$saltstring"));
+        assertEquals("$6$rounds=10000$saltstringsaltst$OW1/O6BYHV6BcXZu8QVeXbDWra3Oeqh0sbHbbMCVNSnCM/UrjmM0Dp8vOuZeHBy/YTBmSK6H9qs/y3RnOaw5v.",
+                     Sha512Crypt.crypt("Hello world!", "$6$rounds=10000$saltstringsaltstring"));
+        assertEquals("$6$rounds=5000$toolongsaltstrin$lQ8jolhgVRVhY4b5pZKaysCLi0QBxGoNeKQzQ3glMhwllF7oGDZxUhx1yxdYcz/e1JSbq3y6JMxxl8audkUEm0",
+                     Sha512Crypt.crypt("This is just a test", "$6$rounds=5000$toolongsaltstring"));
+        assertEquals("$6$rounds=1000$roundstoolow$kUMsbe306n21p9R.FRkW3IGn.S9NPN0x50YhH1xhLsPuWGsUSklZt58jaTfF4ZEQpyUNGc0dqbpBYYBaHHrsX.",
+                     Sha512Crypt.crypt("the minimum number is still observed", "$6$rounds=10$roundstoolow"));
+    }
+
+    @Test
+    public void testHashAndVerify() {
+        String hash = Sha512Crypt.hash("secret1", 6000);
+        assertTrue(hash.startsWith("$6$rounds=6000$"));
+        assertTrue(Sha512Crypt.verify("secret1", hash));
+        assertFalse(Sha512Crypt.verify("secret2", hash));
+        assertFalse(Sha512Crypt.verify("secret1", null));
+    }
+
+    @Test
+    public void testHasher() throws Exception {
+        try (PasswordHasher hasher = new PasswordHasher(Sha512Crypt.MIN_ROUNDS, 2, 4)) {
+            List<String> passwords = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                passwords.add("secret" + i);
+            }
+            List<String> hashes = hasher.hashAll(passwords).get();
+            assertEquals(passwords.size(), hashes.size());
+            for (int i = 0; i < passwords.size(); i++) {
+                assertTrue(Sha512Crypt.verify(passwords.get(i), hashes.get(i)));
+            }
+
+            assertTrue(Sha512Crypt.verify("secret1", hasher.hashAsync("secret1").get()));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.riverinnovations.saltui.model.query;
+
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.Users;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UserQueryTest {
+
+    private static final LocalDate TODAY = LocalDate.of(2026, 1, 1);
+
+    @Test
+    public void testMatch() throws Exception {
+        User user = new User("alice");
+        user.setUid(1001);
+        user.setShell("/bin/bash");
+        user.setGecosFullname("Alice Smith");
+        user.setGroups(Arrays.asList("wheel", "dev"));
+        user.setDateExpire((int) TODAY.toEpochDay() + 10);
+
+        assertTrue(matches("shell=/bin/bash AND group=wheel AND expire<30d AND present", user));
+        assertFalse(matches("shell=/bin/bash AND expire<7d", user));
+        assertTrue(matches("expire<=2026-01-11 and expire>today", user));
+        assertTrue(matches("fullname=\"Alice *\"", user));
+        assertTrue(matches("name=bob OR (uid>=1000 AND NOT system)", user));
+        assertTrue(matches("group!=admin AND groups=d*", user));
+        assertFalse(matches("absent OR home", user));
+        assertTrue(matches("home!=/home/alice AND uid!=0", user));
+        assertFalse(matches("gid=100", user));
+    }
+
+    @Test
+    public void testNeverExpires() throws Exception {
+        User never = new User("never");
+        never.setDateExpire(-1);
+        assertFalse(matches("expire<30d", never));
+        assertFalse(matches("expire<=today", never));
+        assertFalse(matches("expire>=-1", never));
+        assertTrue(matches("expire=-1", never));
+
+        Users users = new Users();
+        users.addUser(never);
+        User soon = new User("soon");
+        soon.setDateExpire((int) TODAY.toEpochDay() + 10);
+        users.addUser(soon);
+        assertEquals(Collections.singletonList(soon), users.find(UserQuery.parse("expire<30d", TODAY)));
+        assertEquals("expire in [0," + (TODAY.toEpochDay() + 30) + ")",
+                     UserQuery.parse("expire<30d", TODAY).getIndexTerms().get(0).toString());
+    }
+
+    @Test
+    public void testIndexTerms() throws Exception {
+        UserQuery query = UserQuery.parse("(name=dev* AND uid=5) AND expire>=today AND fullname=x", TODAY);
+        assertEquals(Arrays.asList("name=dev*", "uid=5", "expire in [" + TODAY.toEpochDay() + ",)"),
+                     Arrays.asList(query.getIndexTerms().stream().map(IndexTerm::toString).toArray()));
+        // Nothing in a disjunction is a condition every match meets
+        assertTrue(UserQuery.parse("uid=5 OR group=wheel", TODAY).getIndexTerms().isEmpty());
+        assertTrue(UserQuery.parse("name=*x AND group=w*", TODAY).getIndexTerms().isEmpty());
+    }
+
+    @Test
+    public void testErrors() {
+        for (String text : Arrays.asList("", "shell=", "nosuchfield=1", "uid=abc", "password=x",
+                                         "(shell=/bin/sh", "groups<a", "system=maybe", "uid=1 uid=2",
+                                         "\"shell\"=x", "expire<30x")) {
+            try {
+                UserQuery.parse(text, TODAY);
+                fail("Expected QueryException for " + text);
+            }
+            catch (QueryException e) {
+                // Expected
+            }
+        }
+    }
+
+    private static boolean matches(String text, User user) throws QueryException {
+        return UserQuery.parse(text, TODAY).test(user);
+    }
+}
@@ -0,0 +1,202 @@
+package com.riverinnovations.saltui.model.ssh;
+
+import com.riverinnovations.saltui.model.gpg.NoOpEncryptor;
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.Users;
+import com.riverinnovations.saltui.model.yaml.UserState;
+import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SshKeyStoreTest {
+
+    private static final String ALICE_KEY =
+            "ssh-ed25519 AAAAC3NzaC1lZDI1NTE5AAAAIPE/wjIOMIiUZaN8TVHFPePYABxtyO8lpHMAN6OJV6cQ alice@laptop";
+    private static final String ALICE_FINGERPRINT = "SHA256:69SZq4YyiOHV67PLrdoaYSVZHSt51ufIdjGMHdChKRI";
+
+    private static final String BOB_KEY =
+            "ssh-ed25519 AAAAC3NzaC1lZDI1NTE5AAAAIP2qo02iU4sG4nMMpYN6cWCniFbs+ETqOTp7HZtQFmoy bob@desk";
+    private static final String BOB_FINGERPRINT = "SHA256:6rrHEcSovqJdyhjEDWl9bAmky6CN1b35j/1LVdaZaAk";
+
+    @Test
+    public void testParse() throws Exception {
+        SshKey key = SshKey.parse("  " + ALICE_KEY + "\n");
+        assertEquals("ssh-ed25519", key.getType());
+        assertEquals("alice@laptop", key.getComment());
+        assertEquals(ALICE_FINGERPRINT, key.getFingerprint());
+        assertEquals(ALICE_KEY, key.toLine());
+
+        // The comment is not part of the key
+        assertEquals(key, SshKey.parse(ALICE_KEY.replace("alice@laptop", "")));
+
+        for (String bad : Arrays.asList("", "ssh-ed25519", "ssh-ed25519 not-base64!",
+                                        ALICE_KEY.replace("ssh-ed25519", "ssh-rsa"),
+                                        "from=\"10.0.0.1\" " + ALICE_KEY)) {
+            try {
+                SshKey.parse(bad);
+                fail("Parsed " + bad);
+            }
+            catch (SshKeyException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testStoreHoldsEachKeyOnce() throws Exception {
+        Path dir = Paths.get("target/test/sshkeys/store");
+        deleteFiles(dir);
+        SshKeyStore store = new SshKeyStore(dir);
+        SshKey stored = store.put(SshKey.parse(ALICE_KEY));
+        assertSame(stored, store.put(SshKey.parse(ALICE_KEY.replace("alice@laptop", "alice@desk"))));
+        store.put(SshKey.parse(BOB_KEY));
+        assertEquals(2, countFiles(dir));
+
+        // Another store reads the same files
+        SshKeyStore other = new SshKeyStore(dir);
+        assertTrue(other.contains(ALICE_FINGERPRINT));
+        assertEquals(ALICE_KEY, other.get(ALICE_FINGERPRINT).toLine());
+        assertFalse(other.contains("SHA256:" + BOB_FINGERPRINT.substring(8, 50) + "x"));
+        try {
+            other.get("SHA256:../../etc/passwd");
+            fail("Looked up a bad fingerprint");
+        }
+        catch (SshKeyException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testRevokeAcrossUsers() throws Exception {
+        Users users = new Users();
+        for (int i = 0; i < 100; i++) {
+            User user = new User("user" + i);
+            user.authorizeSshKey(i % 10 == 0 ? ALICE_FINGERPRINT : BOB_FINGERPRINT);
+            users.addUser(user);
+        }
+        users.modifyUser("user1", u -> u.authorizeSshKey(ALICE_FINGERPRINT));
+        assertEquals(11, users.findBySshKey(ALICE_FINGERPRINT).size());
+        assertEquals(90, users.findBySshKey(BOB_FINGERPRINT).size());
+
+        List<User> revoked = users.revokeSshKey(ALICE_FINGERPRINT);
+        assertEquals(11, revoked.size());
+        assertTrue(users.findBySshKey(ALICE_FINGERPRINT).isEmpty());
+        User user1 = users.getUser("user1");
+        assertNotNull(user1);
+        assertEquals(Collections.singletonList(BOB_FINGERPRINT), user1.getSshKeys());
+        assertEquals(Collections.singletonList(ALICE_FINGERPRINT), user1.getRevokedSshKeys());
+
+        // Authorizing the key again undoes the revocation
+        users.modifyUser("user1", u -> u.authorizeSshKey(ALICE_FINGERPRINT));
+        assertTrue(user1.getRevokedSshKeys().isEmpty());
+        assertEquals(1, users.findBySshKey(ALICE_FINGERPRINT).size());
+    }
+
+    @Test
+    public void testSavedToState() throws Exception {
+        Path dir = Paths.get("target/test/sshkeys");
+        Path pillarPath = dir.resolve("userpillar.yaml");
+        Path statePath = dir.resolve("userstate.yaml");
+        Files.createDirectories(dir);
+        Files.deleteIfExists(pillarPath);
+        UserState userState = new UserState(statePath, pillarPath, new NoOpEncryptor());
+        SshKeyStore store = userState.getSshKeyStore();
+        assertEquals(dir.resolve(UserState.DEFAULT_SSH_KEYS_DIRECTORY), store.getDirectory());
+        store.put(SshKey.parse(ALICE_KEY));
+        store.put(SshKey.parse(BOB_KEY));
+
+        Users users = new Users();
+        for (String name : Arrays.asList("one", "two")) {
+            User user = new User(name);
+            user.authorizeSshKey(ALICE_FINGERPRINT);
+            user.authorizeSshKey(BOB_FINGERPRINT);
+            users.addUser(user);
+        }
+        users.revokeSshKey(BOB_FINGERPRINT);
+        userState.save(users);
+
+        // Each key is in the pillar once, and the states refer to it
+        String pillar = new String(Files.readAllBytes(pillarPath), StandardCharsets.UTF_8);
+        assertEquals(1, count(pillar, "\"" + ALICE_KEY + "\""));
+        assertEquals(1, count(pillar, "\"" + BOB_KEY + "\""));
+        String state = new String(Files.readAllBytes(statePath), StandardCharsets.UTF_8);
+        assertEquals(2, count(state, "ssh_auth.present"));
+        assertEquals(2, count(state, "ssh_auth.absent"));
+        assertEquals(2, count(state, "{{ pillar['ssh_keys']['" + ALICE_FINGERPRINT + "'] }}"));
+        // Salt allows each state module only once under an ID
+        Map<String, Map<String, ?>> states = new Yaml(new SafeConstructor()).load(state);
+        for (Map.Entry<String, Map<String, ?>> entry : states.entrySet()) {
+            Set<String> modules = new HashSet<>();
+            for (String function : entry.getValue().keySet()) {
+                assertTrue(entry.getKey() + " has " + function + " twice",
+                           modules.add(function.substring(0, function.indexOf('.'))));
+            }
+        }
+        assertTrue(states.get("saltui-users-one").containsKey("ssh_auth.present"));
+        assertTrue(states.get("saltui-users-one" + User.REVOKED_SSH_STATE_SUFFIX).containsKey("ssh_auth.absent"));
+
+        Users loaded = userState.load();
+        User one = loaded.getUser("one");
+        assertNotNull(one);
+        assertEquals(Collections.singletonList(ALICE_FINGERPRINT), one.getSshKeys());
+        assertEquals(Collections.singletonList(BOB_FINGERPRINT), one.getRevokedSshKeys());
+        assertEquals(2, loaded.findBySshKey(ALICE_FINGERPRINT).size());
+
+        // A key that is not in the store is not saved
+        loaded.modifyUser("one", u -> u.authorizeSshKey("SHA256:" + ALICE_FINGERPRINT.substring(8, 50) + "A"));
+        try {
+            userState.save(loaded);
+            fail("Saved an unknown key");
+        }
+        catch (SshKeyException e) {
+            assertEquals(1, userState.readGeneration());
+        }
+    }
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static int countFiles(Path dir) throws Exception {
+        int count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path ignored : files) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void deleteFiles(Path dir) throws Exception {
+        if (Files.exists(dir)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+}
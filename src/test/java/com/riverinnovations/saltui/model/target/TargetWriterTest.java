@@ -0,0 +1,140 @@
+package com.riverinnovations.saltui.model.target;
+
+import com.riverinnovations.saltui.model.gpg.NoOpEncryptor;
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.Users;
+import com.riverinnovations.saltui.model.yaml.UserState;
+import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TargetWriterTest {
+
+    @Test
+    public void testTargets() throws Exception {
+        Path dir = Paths.get("target/test/targets");
+        if (Files.exists(dir)) {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+        Files.createDirectories(dir);
+        Path targetsFile = dir.resolve("targets.yaml");
+        Files.write(targetsFile, Arrays.asList(
+                "web:",
+                "  match: glob",
+                "  tgt: \"web*\"",
+                "db:",
+                "  match: grain",
+                "  tgt: \"role:db\""));
+        TargetSet targets = TargetSet.load(targetsFile);
+        assertEquals(3, targets.getTargets().size());
+        assertEquals("*", targets.getDefault().getExpression());
+
+        Path stateRoot = dir.resolve("salt");
+        Path pillarRoot = dir.resolve("pillar");
+        UserState userState = new UserState(dir.resolve("userstate.yaml"), dir.resolve("userpillar.yaml"),
+                                            new NoOpEncryptor());
+        TargetWriter writer = new TargetWriter(stateRoot, pillarRoot, targets);
+        userState.setTargetWriter(writer);
+
+        Users users = new Users();
+        users.addUser(new User("everywhere"));
+        User both = new User("both");
+        both.setTargets(Arrays.asList("web", "db"));
+        both.setPasswordPlain("secret");
+        users.addUser(both);
+        User web = new User("webonly");
+        web.setTargets(Collections.singletonList("web"));
+        users.addUser(web);
+        userState.save(users);
+
+        // The assignments survive a reload
+        assertEquals(Arrays.asList("web", "db"), userState.load().getUser("both").getTargets());
+
+        Map<String, Map<String, ?>> webState = load(TargetWriter.slsFile(stateRoot, targets.get("web")));
+        assertEquals(2, webState.size());
+        assertNotNull(webState.get("saltui-users-web-both"));
+        assertNotNull(webState.get("saltui-users-web-webonly"));
+        Map<String, Map<String, ?>> allState = load(TargetWriter.slsFile(stateRoot, targets.getDefault()));
+        assertEquals(Collections.singleton("saltui-users-all-everywhere"), allState.keySet());
+
+        Map<String, Map<String, Map<String, ?>>> dbPillar = load(TargetWriter.slsFile(pillarRoot, targets.get("db")));
+        assertEquals(Collections.singleton("both"), dbPillar.get("users").keySet());
+        assertEquals("secret", dbPillar.get("users").get("both").get("password"));
+
+        Map<String, Map<String, List<?>>> top = load(stateRoot.resolve(TargetWriter.TOP_FILE));
+        assertEquals(Collections.singletonList("saltui.users.all"), top.get("base").get("*"));
+        assertEquals(Arrays.asList(Collections.singletonMap("match", "grain"), "saltui.users.db"),
+                     top.get("base").get("role:db"));
+        assertEquals(new String(Files.readAllBytes(stateRoot.resolve(TargetWriter.TOP_FILE))),
+                     new String(Files.readAllBytes(pillarRoot.resolve(TargetWriter.TOP_FILE))));
+
+        // A changed user is rendered again; removed targets' files are deleted
+        users.modifyUser("both", user -> user.setShell("/bin/zsh"));
+        userState.setTargetWriter(new TargetWriter(stateRoot, pillarRoot,
+                                                   new TargetSet(Collections.singletonList(targets.get("web")))));
+        users.modifyUser("both", user -> user.setTargets(Collections.singletonList("web")));
+        userState.save(users);
+        assertFalse(Files.exists(TargetWriter.slsFile(stateRoot, targets.get("db"))));
+        assertFalse(Files.exists(TargetWriter.slsFile(pillarRoot, targets.get("db"))));
+        String webText = new String(Files.readAllBytes(TargetWriter.slsFile(stateRoot, targets.get("web"))));
+        assertTrue(webText.contains("/bin/zsh"));
+
+        // Setting a password leaves the fingerprint alone but changes the state
+        String allText = new String(Files.readAllBytes(TargetWriter.slsFile(stateRoot, targets.getDefault())));
+        assertFalse(allText.contains("password:"));
+        users.modifyUser("everywhere", user -> user.setPasswordPlain("secret"));
+        userState.save(users);
+        allText = new String(Files.readAllBytes(TargetWriter.slsFile(stateRoot, targets.getDefault())));
+        assertTrue(allText.contains("pillar['users']['everywhere']['password']"));
+        assertFalse(allText.contains("enforce_password"));
+
+        // Unknown targets are refused before anything is written
+        users.modifyUser("webonly", user -> user.setTargets(Collections.singletonList("nowhere")));
+        try {
+            userState.save(users);
+            fail("Saved a user with an unknown target");
+        }
+        catch (TargetException e) {
+            assertEquals(1, userState.load().getUser("webonly").getTargets().size());
+            assertEquals("web", userState.load().getUser("webonly").getTargets().get(0));
+        }
+        assertNull(targets.get("nowhere"));
+    }
+
+    @Test(expected = TargetException.class)
+    public void testDuplicateExpression() throws Exception {
+        new TargetSet(Arrays.asList(new Target("one", MatchType.GLOB, "web*"),
+                                    new Target("two", MatchType.GLOB, "web*")));
+    }
+
+    @Test(expected = TargetException.class)
+    public void testDuplicateExpressionOtherMatch() throws Exception {
+        // The top file would have only one of them
+        new TargetSet(Arrays.asList(new Target("one", MatchType.GLOB, "web*"),
+                                    new Target("two", MatchType.GRAIN, "web*")));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T load(Path path) throws Exception {
+        return (T) new Yaml(new SafeConstructor()).load(new String(Files.readAllBytes(path), "UTF-8"));
+    }
+}
@@ -1,9 +1,17 @@
 package com.riverinnovations.saltui.model.user;
 
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
 
 public class UserTest {
 
@@ -20,4 +28,89 @@ public class UserTest {
         assertNotEquals(one.hashCode(), two.hashCode());
     }
 
+    @Test
+    public void testFingerprint() throws Exception {
+        User one = new User("one");
+        one.setGecosFullname("Aa");
+        User same = new User("one");
+        same.setGecosFullname("Aa");
+        assertEquals(one.fingerprint(), same.fingerprint());
+
+        // Equal String.hashCode()
+        User other = new User("one");
+        other.setGecosFullname("BB");
+        assertNotEquals(one.fingerprint(), other.fingerprint());
+
+        // Null, empty and zero all have a hash code of 0
+        User noName = new User("one");
+        User emptyName = new User("one");
+        emptyName.setGecosFullname("");
+        assertNotEquals(noName.fingerprint(), emptyName.fingerprint());
+        User zeroUid = new User("one");
+        zeroUid.setUid(0);
+        assertNotEquals(noName.fingerprint(), zeroUid.fingerprint());
+
+        // The same text in neighbouring fields
+        User room = new User("one");
+        room.setGecosRoomNumber("x");
+        User phone = new User("one");
+        phone.setGecosWorkphone("x");
+        assertNotEquals(room.fingerprint(), phone.fingerprint());
+    }
+
+    @Test
+    public void testPillarRoundTrip() throws Exception {
+        User user = new User("one");
+        user.setPasswordPlain("secret");
+        user.setShell("/bin/zsh");
+        user.setUid(1001);
+        user.setCreateHome(false);
+        user.setGroups(Arrays.asList("wheel", "adm"));
+        user.setPresent(false);
+        user.setAbsentPurge(true);
+
+        // Without encryption the pillar password is the plain text password
+        Map<@Nullable Object, @Nullable Object> pillarMap = new HashMap<>(user.toPillarMap(user.getPasswordPlain()));
+        User restored = User.fromPillarMap(pillarMap);
+        // The password read from the pillar is the encrypted one
+        assertNull(restored.getPasswordPlain());
+        assertEquals("secret", restored.getPasswordEncrypted());
+        user.setPasswordEncrypted("secret");
+        assertEquals(user, restored);
+        assertEquals("/bin/zsh", restored.getShell());
+        assertEquals(Arrays.asList("wheel", "adm"), restored.getGroups());
+    }
+
+    @Test
+    public void testStateMap() throws Exception {
+        User user = new User("one");
+        user.setShell("/bin/zsh");
+        user.setCreateHome(false);
+        user.setGroups(Arrays.asList("wheel"));
+        user.setPasswordPlain("secret");
+
+        List<Map<String, @Nullable Object>> state = user.toStateMap().get("user.present");
+        assertEquals(5, state.size());
+        assertEquals("one", state.get(0).get("name"));
+        assertEquals(false, state.get(1).get("createhome"));
+        assertEquals("{{ pillar['users']['one']['password'] }}", state.get(2).get("password"));
+        assertEquals("/bin/zsh", state.get(3).get("shell"));
+        assertEquals(Arrays.asList("wheel"), state.get(4).get("groups"));
+
+        // Without a password in the pillar, the password on the minions is left alone
+        user.setPasswordPlain(null);
+        user.setPasswordHash("$6$salt$hash");
+        state = user.toStateMap().get("user.present");
+        assertEquals(5, state.size());
+        assertEquals(false, state.get(2).get("enforce_password"));
+        for (Map<String, @Nullable Object> property : state) {
+            assertFalse(property.containsKey("password"));
+        }
+
+        user.setPresent(false);
+        user.setAbsentForce(true);
+        state = user.toStateMap().get("user.absent");
+        assertEquals(2, state.size());
+        assertEquals(true, state.get(1).get("force"));
+    }
 }
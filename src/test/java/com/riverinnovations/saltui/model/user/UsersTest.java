@@ -0,0 +1,216 @@
+package com.riverinnovations.saltui.model.user;
+
+import com.riverinnovations.saltui.model.UnknownUserException;
+import com.riverinnovations.saltui.model.query.UserQuery;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UsersTest {
+
+    @Test
+    public void testChangeEvents() throws Exception {
+        Users users = new Users();
+        List<UsersChangeEvent> events = new ArrayList<>();
+        users.addListener(events::add);
+
+        users.addUser(new User("one"));
+        users.modifyUser("one", user -> user.setUid(1001));
+        users.setUsers(Arrays.asList(new User("two"), new User("three")));
+        users.deleteUser("two");
+
+        assertEquals(4, events.size());
+        assertEquals("one", events.get(0).getAdded().get(0).getName());
+        assertEquals(Integer.valueOf(1001), events.get(1).getChanged().get(0).getUid());
+        assertTrue(!events.get(1).isStructural());
+        assertEquals(2, events.get(2).getAdded().size());
+        assertEquals(1, events.get(2).getDeleted().size());
+        assertEquals("two", events.get(3).getDeleted().get(0).getName());
+
+        try {
+            users.modifyUser("two", user -> user.setUid(1));
+            throw new AssertionError("Expected UnknownUserException");
+        }
+        catch (UnknownUserException e) {
+            // Expected
+        }
+        assertEquals(4, events.size());
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        Users users = new Users();
+        List<User> cohort = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            User user = new User("user" + i);
+            user.setShell("/bin/sh");
+            user.setGroups(Arrays.asList(i % 2 == 0 ? "even" : "odd", "all"));
+            cohort.add(user);
+        }
+        users.addUsers(cohort);
+        List<UsersChangeEvent> events = new ArrayList<>();
+        users.addListener(events::add);
+
+        List<User> changed = users.batch()
+                .whereGroup("even")
+                .whereShell("/bin/sh")
+                .where(user -> !user.getName().equals("user0"))
+                .update(user -> user.setShell("/bin/bash"))
+                .update(user -> user.setMaxDaysBetweenPasswordChanges(90))
+                .parallel()
+                .commit();
+
+        assertEquals(999, changed.size());
+        assertEquals(1, events.size());
+        assertEquals(999, events.get(0).getChanged().size());
+        assertEquals(999, users.findByShell("/bin/bash").size());
+        assertEquals(1001, users.findByShell("/bin/sh").size());
+        assertEquals(1000, users.findByGroup("odd").size());
+        assertEquals(Integer.valueOf(90), users.getUser("user2").getMaxDaysBetweenPasswordChanges());
+
+        users.modifyUser("user1", user -> user.setUid(5000));
+        users.deleteUser("user3");
+        assertEquals("user1", users.findByUid(5000).get(0).getName());
+        assertEquals(1999, users.findByGroup("all").size());
+    }
+
+    @Test
+    public void testFailedChangesIndexed() throws Exception {
+        Users users = new Users();
+        for (int i = 0; i < 4; i++) {
+            User user = new User("user" + i);
+            user.setShell("/bin/sh");
+            users.addUser(user);
+        }
+        List<UsersChangeEvent> events = new ArrayList<>();
+        users.addListener(events::add);
+        long before = users.getFingerprint("user0");
+
+        try {
+            users.modifyUser("user0", user -> {
+                user.setShell("/bin/bash");
+                UserField.UID.set(user, "not a number");
+            });
+            throw new AssertionError("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected
+        }
+        // The change made before the failure is indexed, fingerprinted and notified
+        assertEquals("user0", users.findByShell("/bin/bash").get(0).getName());
+        assertNotEquals(before, (long) users.getFingerprint("user0"));
+        assertEquals(users.getUser("user0").fingerprint(), (long) users.getFingerprint("user0"));
+        assertEquals(1, events.size());
+
+        // Fails on the third user
+        AtomicInteger updates = new AtomicInteger();
+        try {
+            users.batch()
+                    .whereShell("/bin/sh")
+                    .update(user -> {
+                        if (updates.incrementAndGet() == 3) {
+                            throw new IllegalArgumentException("Bad update");
+                        }
+                        user.setShell("/bin/zsh");
+                    })
+                    .commit();
+            throw new AssertionError("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected
+        }
+        List<User> zsh = users.findByShell("/bin/zsh");
+        assertEquals(2, zsh.size());
+        assertEquals(1, users.findByShell("/bin/sh").size());
+        assertEquals(2, events.size());
+        assertEquals(2, events.get(1).getChanged().size());
+        for (User user : zsh) {
+            assertEquals(user.fingerprint(), (long) users.getFingerprint(user.getName()));
+        }
+    }
+
+    @Test
+    public void testFind() throws Exception {
+        LocalDate today = LocalDate.of(2026, 1, 1);
+        int day = (int) today.toEpochDay();
+        Users users = new Users();
+        List<User> all = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            User user = new User(String.format("user%04d", i));
+            user.setUid(1000 + i);
+            user.setShell(i % 2 == 0 ? "/bin/bash" : "/bin/sh");
+            if (i % 100 == 0) {
+                user.setGroups(Arrays.asList("wheel"));
+            }
+            user.setDateExpire(day + i);
+            all.add(user);
+        }
+        users.addUsers(all);
+
+        UserQuery query = UserQuery.parse("shell=/bin/bash AND group=wheel AND expire<30d AND present", today);
+        assertEquals("index group=wheel (20 of 2000 users)", users.explain(query));
+        List<User> found = users.find(query);
+        assertEquals(1, found.size());
+        assertEquals("user0000", found.get(0).getName());
+
+        assertEquals("index name=user01* (100 of 2000 users)", users.explain(UserQuery.parse("name=user01*", today)));
+        assertEquals("index uid=1500 (1 of 2000 users)", users.explain(UserQuery.parse("uid=1500 AND shell=/bin/bash", today)));
+        assertEquals("index expire in [" + (day + 1990) + ",) (10 of 2000 users)",
+                     users.explain(UserQuery.parse("shell=/bin/sh AND expire>=1990d", today)));
+        assertEquals("scan of 2000 users", users.explain(UserQuery.parse("shell=/bin/bash", today)));
+        assertEquals(1000, users.find(UserQuery.parse("shell=/bin/bash", today)).size());
+        assertEquals(5, users.find(UserQuery.parse("expire>=1990d AND shell=/bin/sh", today)).size());
+
+        // The index follows changes
+        users.modifyUser("user0001", u -> u.setDateExpire(day + 1999));
+        assertEquals(6, users.find(UserQuery.parse("expire>=1990d AND shell=/bin/sh", today)).size());
+
+        List<User> changed = users.batch()
+                .where(UserQuery.parse("group=wheel AND uid>=2000", today))
+                .update(u -> u.setShell("/bin/zsh"))
+                .commit();
+        assertEquals(10, changed.size());
+        assertEquals(10, users.findByShell("/bin/zsh").size());
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        Users users = new Users();
+        User one = new User("one");
+        one.setGroups(Arrays.asList("wheel", "staff"));
+        one.setPasswordPlain("secret");
+        users.addUser(one);
+        users.setGeneration(7);
+        List<UsersChangeEvent> events = new ArrayList<>();
+        users.addListener(events::add);
+
+        Users snapshot = users.snapshot();
+        assertEquals(7, snapshot.getGeneration());
+        assertEquals(users.getFingerprint("one"), snapshot.getFingerprint("one"));
+        assertEquals(one.fingerprint(), snapshot.getUser("one").fingerprint());
+
+        // Later changes leave the snapshot alone
+        users.modifyUser("one", user -> user.setGroups(Arrays.asList("users")));
+        assertEquals(Arrays.asList("wheel", "staff"), snapshot.getUser("one").getGroups());
+
+        // Passwords encrypted on the snapshot are kept on the users, unless changed since
+        snapshot.recordEncryptedPasswords(Arrays.asList(snapshot.getUser("one")),
+                                          Arrays.asList("secret"), Arrays.asList("encrypted"));
+        assertEquals("encrypted", snapshot.getUser("one").getPasswordEncrypted());
+        assertEquals("encrypted", one.getPasswordEncrypted());
+        users.modifyUser("one", user -> user.setPasswordPlain("changed"));
+        users.snapshot().recordEncryptedPasswords(Arrays.asList(one), Arrays.asList("secret"),
+                                                  Arrays.asList("stale"));
+        assertNull(one.getPasswordEncrypted());
+        assertEquals(2, events.size());
+    }
+}
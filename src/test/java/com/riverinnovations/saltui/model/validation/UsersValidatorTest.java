@@ -0,0 +1,85 @@
+package com.riverinnovations.saltui.model.validation;
+
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.Users;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UsersValidatorTest {
+
+    @Test
+    public void testValidate() throws Exception {
+        Users users = new Users();
+        for (int i = 0; i < 1000; i++) {
+            User user = new User("user" + i);
+            user.setUid(1000 + i);
+            user.setHome("/home/user" + i);
+            user.setShell("/bin/sh");
+            users.addUser(user);
+        }
+
+        UsersValidator validator = new UsersValidator();
+        ValidationResult result = validator.validate(users);
+        assertEquals(1000, result.getChecked());
+        assertTrue(result.getViolations().isEmpty());
+
+        // Only changed users are checked again
+        users.modifyUser("user1", user -> user.setShell("bin/sh"));
+        users.modifyUser("user2", user -> {
+            user.setMinDaysBetweenPasswordChanges(30);
+            user.setMaxDaysBetweenPasswordChanges(10);
+        });
+        users.modifyUser("user3", user -> user.setSystem(true));
+        users.modifyUser("user4", user -> user.setUid(1005));
+        User upper = new User("Upper");
+        upper.setUid(2000);
+        users.addUser(upper);
+        result = validator.validate(users);
+        assertEquals(5, result.getChecked());
+        assertTrue(result.hasErrors());
+
+        List<Violation> errors = result.getErrors();
+        assertEquals(2, errors.size());
+        assertEquals("user1", errors.get(0).getUser());
+        assertEquals("shell", errors.get(0).getField());
+        assertEquals("user2", errors.get(1).getUser());
+        assertEquals("mindays", errors.get(1).getField());
+
+        // Warnings for the upper case name, the system user's UID and the two users sharing UID 1005
+        assertEquals(6, result.getViolations().size());
+        assertEquals("Upper", result.getViolations().get(0).getUser());
+        assertFalse(result.getViolations().get(0).isError());
+
+        users.deleteUser("user1");
+        users.modifyUser("user2", user -> user.setMinDaysBetweenPasswordChanges(null));
+        users.modifyUser("user3", user -> user.setSystem(false));
+        result = validator.validate(users);
+        assertEquals(2, result.getChecked());
+        assertFalse(result.hasErrors());
+    }
+
+    @Test
+    public void testUidRangesOnlyWarn() throws Exception {
+        Users users = new Users();
+        User legacy = new User("legacy");
+        legacy.setUid(500);
+        users.addUser(legacy);
+        User daemon = new User("daemon");
+        daemon.setUid(1500);
+        daemon.setSystem(true);
+        users.addUser(daemon);
+
+        ValidationResult result = new UsersValidator().validate(users);
+        assertFalse(result.hasErrors());
+        assertEquals(2, result.getViolations().size());
+
+        // The ranges are site policy
+        result = new UsersValidator(StandardRules.all(1, 1999, 500, 60000)).validate(users);
+        assertTrue(result.getViolations().isEmpty());
+    }
+}
@@ -0,0 +1,122 @@
+package com.riverinnovations.saltui.model.yaml;
+
+import com.riverinnovations.saltui.model.gpg.NoOpEncryptor;
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.Users;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JournalUserStoreTest {
+
+    @Test
+    public void testSavesChangedUsers() throws Exception {
+        Path dir = Paths.get("target/test/journal");
+        Path statePath = dir.resolve("userstate.yaml");
+        Path pillarPath = dir.resolve("userpillar.yaml");
+        Path journalPath = dir.resolve("users.journal");
+        Files.createDirectories(dir);
+        Files.deleteIfExists(pillarPath);
+        Files.deleteIfExists(journalPath);
+
+        AtomicInteger encrypted = new AtomicInteger();
+        UserState exports = new UserState(statePath, pillarPath, new NoOpEncryptor() {
+            @Override
+            public List<@Nullable String> encryptAll(List<@Nullable String> plain) {
+                encrypted.addAndGet(plain.size());
+                return super.encryptAll(plain);
+            }
+        });
+
+        // Users saved to the pillar before there was a journal
+        Users users = new Users();
+        for (int i = 0; i < 100; i++) {
+            User user = new User("user" + i);
+            user.setUid(1000 + i);
+            user.setPasswordPlain("secret" + i);
+            users.addUser(user);
+        }
+        exports.save(users);
+        assertEquals(1, exports.readGeneration());
+
+        JournalUserStore store = new JournalUserStore(journalPath, exports);
+        assertTrue(store.exists());
+        users = store.load();
+        assertEquals(100, users.getUsers().size());
+        assertEquals(1, store.readGeneration());
+
+        // The first save writes every user, with the passwords as already encrypted
+        encrypted.set(0);
+        store.save(users);
+        assertEquals(0, encrypted.get());
+        assertEquals(2, users.getGeneration());
+        assertEquals(2, exports.readGeneration());
+        long length = Files.size(journalPath);
+
+        // Then only the changed users, encrypting only the new password
+        encrypted.set(0);
+        users.modifyUser("user7", u -> u.setShell("/bin/zsh"));
+        users.modifyUser("user9", u -> u.setPasswordPlain("changed"));
+        users.deleteUser("user8");
+        store.save(users);
+        assertEquals(1, encrypted.get());
+        assertEquals(3, users.getGeneration());
+        assertTrue(Files.size(journalPath) - length < 2048);
+
+        // The exports are written from the journal
+        Users exported = exports.load();
+        assertEquals(3, exported.getGeneration());
+        assertEquals(99, exported.getUsers().size());
+        User exportedUser = exported.getUser("user7");
+        assertNotNull(exportedUser);
+        assertEquals("/bin/zsh", exportedUser.getShell());
+        assertEquals("secret7", exportedUser.getPasswordEncrypted());
+        assertEquals("changed", exported.getUser("user9").getPasswordEncrypted());
+
+        // Another instance reads the journal
+        JournalUserStore other = new JournalUserStore(journalPath, exports);
+        Users otherUsers = other.load();
+        assertEquals(3, otherUsers.getGeneration());
+        assertEquals(99, otherUsers.getUsers().size());
+        assertNull(otherUsers.getUser("user8"));
+        otherUsers.addUser(new User("added"));
+        other.save(otherUsers);
+
+        users.modifyUser("user7", u -> u.setShell("/bin/sh"));
+        try {
+            store.save(users);
+            fail("Saved over a newer generation");
+        }
+        catch (StaleGenerationException e) {
+            assertEquals(3, e.getExpected());
+            assertEquals(4, e.getActual());
+        }
+
+        // A transaction torn by a crash is ignored, and removed by the next save
+        length = Files.size(journalPath);
+        Files.write(journalPath, new byte[] {0, 0, 1, 0, 42}, StandardOpenOption.APPEND);
+        users = new JournalUserStore(journalPath, exports).load();
+        assertEquals(4, users.getGeneration());
+        assertNotNull(users.getUser("added"));
+        users.deleteUser("added");
+        store.load();
+        store.save(users);
+        Users reloaded = new JournalUserStore(journalPath, exports).load();
+        assertEquals(5, reloaded.getGeneration());
+        assertNull(reloaded.getUser("added"));
+        assertEquals(99, reloaded.getUsers().size());
+        assertTrue(Files.size(journalPath) > length);
+    }
+}
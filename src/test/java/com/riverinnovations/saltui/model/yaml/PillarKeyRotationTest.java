@@ -0,0 +1,195 @@
+package com.riverinnovations.saltui.model.yaml;
+
+import com.riverinnovations.saltui.model.gpg.GpgDecryptor;
+import com.riverinnovations.saltui.model.target.TargetSet;
+import com.riverinnovations.saltui.model.target.TargetWriter;
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.Users;
+import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PillarKeyRotationTest {
+
+    @Test
+    public void testRotation() throws Exception {
+        Path statePath = Paths.get("target/test/rotation/userstate.yaml");
+        Path pillarPath = Paths.get("target/test/rotation/userpillar.yaml");
+        Path pubKeyPath = Paths.get("src/test/resources/gpg/pubring.gpg");
+        Path secKeyPath = Paths.get("src/test/resources/gpg/secring.gpg");
+        Files.createDirectories(pillarPath.getParent());
+        // A fresh set of users cannot be saved over a pillar left by an earlier run
+        Files.deleteIfExists(pillarPath);
+
+        Users users = new Users();
+        for (int i = 0; i < 10; i++) {
+            User user = new User("user" + i);
+            user.setPasswordPlain("secret" + i);
+            users.addUser(user);
+        }
+        users.addUser(new User("nopassword"));
+        UserState userState = new UserState(statePath, pillarPath, pubKeyPath);
+        userState.save(users);
+        String before = new String(Files.readAllBytes(pillarPath), "UTF-8");
+
+        // The test resources only have one key pair, so rotate to the same key
+        PillarKeyRotation rotation = new PillarKeyRotation(pillarPath, secKeyPath, null, pubKeyPath);
+        rotation.setBatchSize(3);
+        rotation.setThreads(2);
+        assertEquals(11, rotation.run());
+        assertFalse(Files.exists(rotation.getCheckpointPath()));
+        assertNotEquals(before, new String(Files.readAllBytes(pillarPath), "UTF-8"));
+
+        GpgDecryptor decryptor = new GpgDecryptor(secKeyPath, null);
+        Users rotated = userState.load();
+        assertEquals(11, rotated.getUsers().size());
+        for (int i = 0; i < 10; i++) {
+            User user = rotated.getUser("user" + i);
+            assertNotNull(user);
+            assertEquals("secret" + i, decryptor.decrypt(user.getPasswordEncrypted()));
+        }
+    }
+
+    @Test
+    public void testResumeWithTargets() throws Exception {
+        Path dir = Paths.get("target/test/rotationtargets");
+        Path pillarPath = dir.resolve("userpillar.yaml");
+        Path pubKeyPath = Paths.get("src/test/resources/gpg/pubring.gpg");
+        Path secKeyPath = Paths.get("src/test/resources/gpg/secring.gpg");
+        Files.createDirectories(dir);
+        Files.deleteIfExists(pillarPath);
+        Files.deleteIfExists(dir.resolve("userpillar.yaml.rotation"));
+
+        Users users = new Users();
+        for (int i = 0; i < 10; i++) {
+            User user = new User("user" + i);
+            user.setPasswordPlain("secret" + i);
+            users.addUser(user);
+        }
+        UserState userState = new UserState(dir.resolve("userstate.yaml"), pillarPath, pubKeyPath);
+        TargetSet targets = TargetSet.defaultOnly();
+        TargetWriter writer = new TargetWriter(dir.resolve("salt"), dir.resolve("pillar"), targets);
+        userState.setTargetWriter(writer);
+        userState.save(users);
+        String before = new String(Files.readAllBytes(pillarPath), "UTF-8");
+        Path targetPillar = TargetWriter.slsFile(dir.resolve("pillar"), targets.getDefault());
+        String targetBefore = new String(Files.readAllBytes(targetPillar), "UTF-8");
+
+        // Interrupted after the first batch
+        PillarKeyRotation rotation = new PillarKeyRotation(pillarPath, secKeyPath, null, pubKeyPath);
+        rotation.setTargetWriter(writer);
+        rotation.setBatchSize(3);
+        rotation.setThreads(2);
+        rotation.setProgressListener((done, resumed) -> {
+            if (done >= 3) {
+                throw new IllegalStateException("Interrupted");
+            }
+        });
+        try {
+            rotation.run();
+            fail("Not interrupted");
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+        assertTrue(Files.exists(rotation.getCheckpointPath()));
+        assertEquals(before, new String(Files.readAllBytes(pillarPath), "UTF-8"));
+        assertEquals(targetBefore, new String(Files.readAllBytes(targetPillar), "UTF-8"));
+
+        // Resumed from the checkpoint
+        AtomicLong resumedUsers = new AtomicLong();
+        rotation.setProgressListener((done, resumed) -> resumedUsers.set(resumed));
+        assertEquals(10, rotation.run());
+        assertEquals(3, resumedUsers.get());
+        assertFalse(Files.exists(rotation.getCheckpointPath()));
+
+        // The target pillar has the rotated ciphertexts
+        Map<String, Object> pillarUsers = usersOf(pillarPath);
+        assertEquals(pillarUsers, usersOf(targetPillar));
+        assertNotEquals(targetBefore, new String(Files.readAllBytes(targetPillar), "UTF-8"));
+        GpgDecryptor decryptor = new GpgDecryptor(secKeyPath, null);
+        Users rotated = userState.load();
+        for (int i = 0; i < 10; i++) {
+            assertEquals("secret" + i, decryptor.decrypt(rotated.getUser("user" + i).getPasswordEncrypted()));
+        }
+    }
+
+    @Test
+    public void testRotationWithJournal() throws Exception {
+        Path dir = Paths.get("target/test/rotationjournal");
+        Path pillarPath = dir.resolve("userpillar.yaml");
+        Path journalPath = dir.resolve("users.journal");
+        Path pubKeyPath = Paths.get("src/test/resources/gpg/pubring.gpg");
+        Path secKeyPath = Paths.get("src/test/resources/gpg/secring.gpg");
+        Files.createDirectories(dir);
+        Files.deleteIfExists(pillarPath);
+        Files.deleteIfExists(journalPath);
+
+        UserState exports = new UserState(dir.resolve("userstate.yaml"), pillarPath, pubKeyPath);
+        JournalUserStore store = new JournalUserStore(journalPath, exports);
+        Users users = new Users();
+        for (int i = 0; i < 10; i++) {
+            User user = new User("user" + i);
+            user.setPasswordPlain("secret" + i);
+            users.addUser(user);
+        }
+        users.addUser(new User("nopassword"));
+        store.save(users);
+        Map<String, Object> before = usersOf(pillarPath);
+
+        PillarKeyRotation rotation = new PillarKeyRotation(pillarPath, secKeyPath, null, pubKeyPath);
+        rotation.setJournalStore(store);
+        rotation.setBatchSize(3);
+        rotation.setThreads(2);
+        assertEquals(11, rotation.run());
+        assertEquals(2, store.readGeneration());
+        assertEquals(2, exports.readGeneration());
+
+        // Users loaded before the rotation hold the old ciphertexts, so cannot be saved
+        users.modifyUser("user0", user -> user.setUid(1000));
+        try {
+            store.save(users);
+            fail("Saved the old ciphertexts over the rotation");
+        }
+        catch (StaleGenerationException e) {
+            assertEquals(2, e.getActual());
+        }
+
+        // Saving after reloading keeps the rotated ciphertexts, as does a restart
+        Users reloaded = store.load();
+        reloaded.modifyUser("user0", user -> user.setUid(1000));
+        store.save(reloaded);
+        Map<String, Object> rotated = usersOf(pillarPath);
+        Users restarted = new JournalUserStore(journalPath, exports).load();
+        GpgDecryptor decryptor = new GpgDecryptor(secKeyPath, null);
+        for (int i = 0; i < 10; i++) {
+            String password = restarted.getUser("user" + i).getPasswordEncrypted();
+            assertEquals("secret" + i, decryptor.decrypt(password));
+            assertEquals(password, ((Map<?, ?>) rotated.get("user" + i)).get("password"));
+            assertNotEquals(((Map<?, ?>) before.get("user" + i)).get("password"), password);
+        }
+        assertEquals(Integer.valueOf(1000), restarted.getUser("user0").getUid());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> usersOf(Path path) throws Exception {
+        try (InputStream istr = Files.newInputStream(path)) {
+            Map<String, Object> yaml = new Yaml(new SafeConstructor()).load(istr);
+            return (Map<String, Object>) yaml.get("users");
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.riverinnovations.saltui.model.yaml;
+
+import com.riverinnovations.saltui.model.gpg.GpgEncryptor;
+import com.riverinnovations.saltui.model.target.TargetSet;
+import com.riverinnovations.saltui.model.target.TargetWriter;
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.Users;
+import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PillarScrubberTest {
+
+    @Test
+    public void testScrub() throws Exception {
+        Path statePath = Paths.get("target/test/scrub/userstate.yaml");
+        Path pillarPath = Paths.get("target/test/scrub/userpillar.yaml");
+        Path pubKeyPath = Paths.get("src/test/resources/gpg/pubring.gpg");
+        Path secKeyPath = Paths.get("src/test/resources/gpg/secring.gpg");
+        Files.createDirectories(pillarPath.getParent());
+        Files.deleteIfExists(pillarPath);
+
+        Users users = new Users();
+        for (int i = 0; i < 10; i++) {
+            User user = new User("user" + i);
+            user.setPasswordPlain("secret" + i);
+            user.setUid(1000 + i);
+            users.addUser(user);
+        }
+        users.addUser(new User("nopassword"));
+        UserState userState = new UserState(statePath, pillarPath, pubKeyPath);
+        userState.save(users);
+
+        try (PillarScrubber scrubber = new PillarScrubber(userState, secKeyPath, null)) {
+            scrubber.setThreads(2);
+            scrubber.setBatchSize(3);
+            scrubber.setCpuBudget(1.0);
+
+            ScrubReport report = scrubber.scrub();
+            assertEquals(Collections.emptyList(), report.getProblems());
+            assertEquals(11, report.getChecked());
+
+            // Unchanged users are not checked again
+            report = scrubber.scrub();
+            assertTrue(report.isClean());
+            assertEquals(0, report.getChecked());
+            assertEquals(11, report.getSkipped());
+
+            // Corrupt the files as Salt would see them
+            Map<String, Object> pillar = load(pillarPath);
+            @SuppressWarnings("unchecked")
+            Map<String, Map<String, Object>> pillarUsers = (Map<String, Map<String, Object>>) pillar.get("users");
+            String cipherText = (String) pillarUsers.get("user3").get("password");
+            pillarUsers.get("user3").put("password", cipherText.replace("=", "A").substring(0, cipherText.length() / 2));
+            pillarUsers.get("user7").put("shell", "/bin/false");
+            dump(pillar, pillarPath);
+            Map<String, Object> state = load(statePath);
+            state.put("saltui-users-ghost", state.remove("saltui-users-user5"));
+            dump(state, statePath);
+
+            report = scrubber.scrub();
+            assertEquals(Arrays.asList("ghost MISSING_PILLAR", "user3 UNDECRYPTABLE", "user5 MISSING_STATE",
+                                       "user7 STATE_MISMATCH"), problems(report));
+            assertEquals(3, report.getChecked());
+            assertEquals(8, report.getSkipped());
+
+            // Problems are reported until fixed
+            assertEquals(4, scrubber.scrub().getProblems().size());
+            userState.save(users);
+            report = scrubber.scrub();
+            assertTrue(report.isClean());
+            // Only the repaired users are checked: the others' passwords are saved as already encrypted
+            assertEquals(3, report.getChecked());
+            assertEquals(8, report.getSkipped());
+        }
+    }
+
+    @Test
+    public void testDoubleEncryptedAndTargets() throws Exception {
+        Path dir = Paths.get("target/test/scrubtargets");
+        Path pillarPath = dir.resolve("userpillar.yaml");
+        Path pubKeyPath = Paths.get("src/test/resources/gpg/pubring.gpg");
+        Path secKeyPath = Paths.get("src/test/resources/gpg/secring.gpg");
+        Files.createDirectories(dir);
+        Files.deleteIfExists(pillarPath);
+        UserState userState = new UserState(dir.resolve("userstate.yaml"), pillarPath, pubKeyPath);
+        TargetSet targets = TargetSet.defaultOnly();
+        userState.setTargetWriter(new TargetWriter(dir.resolve("salt"), dir.resolve("pillar"), targets));
+
+        Users users = new Users();
+        for (String name : Arrays.asList("one", "twice", "three")) {
+            User user = new User(name);
+            user.setPasswordPlain("secret");
+            users.addUser(user);
+        }
+        // A password that was already encrypted, encrypted again
+        String encrypted = new GpgEncryptor(pubKeyPath).encrypt("secret");
+        users.modifyUser("twice", u -> u.setPasswordPlain(encrypted));
+        userState.save(users);
+
+        try (PillarScrubber scrubber = new PillarScrubber(userState, secKeyPath, null)) {
+            assertEquals(Collections.singletonList("twice DOUBLE_ENCRYPTED"), problems(scrubber.scrub()));
+
+            // Corrupt the target pillar, leaving the pillar as it is
+            Path targetPillar = TargetWriter.slsFile(dir.resolve("pillar"), targets.getDefault());
+            Map<String, Object> pillar = load(targetPillar);
+            @SuppressWarnings("unchecked")
+            Map<String, Map<String, Object>> pillarUsers = (Map<String, Map<String, Object>>) pillar.get("users");
+            String cipherText = (String) pillarUsers.get("three").get("password");
+            pillarUsers.get("three").put("password", cipherText.substring(0, cipherText.length() / 2));
+            pillarUsers.put("ghost", new HashMap<>(pillarUsers.get("one")));
+            dump(pillar, targetPillar);
+
+            assertEquals(Arrays.asList("ghost MISSING_PILLAR", "three TARGET_MISMATCH", "three UNDECRYPTABLE",
+                                       "twice DOUBLE_ENCRYPTED"), problems(scrubber.scrub()));
+        }
+    }
+
+    private static List<String> problems(ScrubReport report) {
+        List<String> problems = new ArrayList<>();
+        for (ScrubProblem problem : report.getProblems()) {
+            problems.add(problem.getUser() + " " + problem.getKind());
+        }
+        Collections.sort(problems);
+        return problems;
+    }
+
+    private static Map<String, Object> load(Path path) throws Exception {
+        try (InputStream istr = Files.newInputStream(path)) {
+            return new Yaml(new SafeConstructor()).load(istr);
+        }
+    }
+
+    private static void dump(Object yaml, Path path) throws Exception {
+        try (Writer w = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            new Yaml(UserState.createDumperOptions()).dump(yaml, w);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.riverinnovations.saltui.model.yaml;
+
+import com.riverinnovations.saltui.model.gpg.GpgDecryptor;
+import com.riverinnovations.saltui.model.gpg.NoOpEncryptor;
+import com.riverinnovations.saltui.model.user.User;
+import com.riverinnovations.saltui.model.user.Users;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UserStateTest {
+
+    @Test
+    public void testStaleGeneration() throws Exception {
+        Path statePath = Paths.get("target/test/generation/userstate.yaml");
+        Path pillarPath = Paths.get("target/test/generation/userpillar.yaml");
+        Files.createDirectories(pillarPath.getParent());
+        Files.deleteIfExists(pillarPath);
+
+        // Two instances sharing the files
+        UserState first = new UserState(statePath, pillarPath, new NoOpEncryptor());
+        UserState second = new UserState(statePath, pillarPath, new NoOpEncryptor());
+        assertEquals(0, first.readGeneration());
+
+        Users users = new Users();
+        users.addUser(new User("one"));
+        first.save(users);
+        assertEquals(1, users.getGeneration());
+        assertEquals(1, second.readGeneration());
+
+        Users firstUsers = first.load();
+        Users secondUsers = second.load();
+        assertEquals(1, secondUsers.getGeneration());
+
+        firstUsers.addUser(new User("two"));
+        first.save(firstUsers);
+        secondUsers.addUser(new User("three"));
+        try {
+            second.save(secondUsers);
+            fail("Saved over a newer generation");
+        }
+        catch (StaleGenerationException e) {
+            assertEquals(1, e.getExpected());
+            assertEquals(2, e.getActual());
+        }
+        assertNotNull(second.load().getUser("two"));
+
+        // Concurrent saves each reload and retry until they succeed, so none are lost
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            UserState state = new UserState(statePath, pillarPath, new NoOpEncryptor());
+            String name = "thread" + t;
+            futures.add(executor.submit(() -> {
+                while (true) {
+                    Users loaded = state.load();
+                    loaded.addUser(new User(name));
+                    try {
+                        state.save(loaded);
+                        return null;
+                    }
+                    catch (StaleGenerationException e) {
+                        // Another instance saved first
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        Users result = first.load();
+        assertEquals(6, result.getUsers().size());
+        assertEquals(6, result.getGeneration());
+    }
+
+    @Test
+    public void testPasswordsEncryptedOnce() throws Exception {
+        Path statePath = Paths.get("target/test/encrypted/userstate.yaml");
+        Path pillarPath = Paths.get("target/test/encrypted/userpillar.yaml");
+        Files.createDirectories(pillarPath.getParent());
+        Files.deleteIfExists(pillarPath);
+        UserState userState = new UserState(statePath, pillarPath, Paths.get("src/test/resources/gpg/pubring.gpg"));
+        GpgDecryptor decryptor = new GpgDecryptor(Paths.get("src/test/resources/gpg/secring.gpg"), null);
+
+        Users users = new Users();
+        User alice = new User("alice");
+        alice.setPasswordPlain("secret1");
+        users.addUser(alice);
+        User bob = new User("bob");
+        bob.setPasswordPlain("secret2");
+        users.addUser(bob);
+        userState.save(users);
+        // The encryption is kept, so saving again doesn't encrypt again
+        @Nullable String aliceEncrypted = alice.getPasswordEncrypted();
+        assertNotNull(aliceEncrypted);
+        assertEquals("secret1", decryptor.decrypt(aliceEncrypted));
+
+        // Loaded passwords are only the encrypted ones, and are saved as they are
+        Users loaded = userState.load();
+        assertNull(loaded.getUser("alice").getPasswordPlain());
+        assertEquals(aliceEncrypted, loaded.getUser("alice").getPasswordEncrypted());
+        loaded.modifyUser("bob", user -> user.setPasswordPlain("changed"));
+        userState.save(loaded);
+
+        Users reloaded = userState.load();
+        assertEquals(aliceEncrypted, reloaded.getUser("alice").getPasswordEncrypted());
+        assertEquals("secret1", decryptor.decrypt(reloaded.getUser("alice").getPasswordEncrypted()));
+        assertEquals("changed", decryptor.decrypt(reloaded.getUser("bob").getPasswordEncrypted()));
+    }
+
+    @Test
+    public void testPasswordHashesKeptOutOfPillar() throws Exception {
+        Path statePath = Paths.get("target/test/hashes/userstate.yaml");
+        Path pillarPath = Paths.get("target/test/hashes/userpillar.yaml");
+        Files.createDirectories(pillarPath.getParent());
+        Files.deleteIfExists(pillarPath);
+        UserState userState = new UserState(statePath, pillarPath, new NoOpEncryptor());
+
+        Users users = new Users();
+        User one = new User("one");
+        one.setPasswordHash("$6$salt$hash");
+        users.addUser(one);
+        users.addUser(new User("two"));
+        userState.save(users);
+
+        String pillar = new String(Files.readAllBytes(pillarPath), StandardCharsets.UTF_8);
+        assertFalse(pillar.contains("password_hash"));
+        assertFalse(pillar.contains("$6$salt$hash"));
+        Path hashPath = userState.getPasswordHashFilePath();
+        assertTrue(new String(Files.readAllBytes(hashPath), StandardCharsets.UTF_8).contains("$6$salt$hash"));
+        if (hashPath.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(hashPath));
+        }
+
+        Users loaded = userState.load();
+        assertEquals("$6$salt$hash", loaded.getUser("one").getPasswordHash());
+        assertNull(loaded.getUser("two").getPasswordHash());
+    }
+
+    @Test
+    public void testSaveWhileEditing() throws Exception {
+        Path statePath = Paths.get("target/test/editing/userstate.yaml");
+        Path pillarPath = Paths.get("target/test/editing/userpillar.yaml");
+        Files.createDirectories(pillarPath.getParent());
+        Files.deleteIfExists(pillarPath);
+        UserState userState = new UserState(statePath, pillarPath, new NoOpEncryptor());
+
+        List<String> before = Arrays.asList("a1", "a2", "a3", "a4", "a5", "a6", "a7", "a8");
+        List<String> after = Arrays.asList("b1", "b2", "b3", "b4", "b5", "b6", "b7", "b8");
+        Users users = new Users();
+        for (int i = 0; i < 20; i++) {
+            User user = new User("user" + i);
+            user.setGroups(before);
+            users.addUser(user);
+        }
+        userState.save(users);
+
+        // Changes replace each list of groups in place while the saves run
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> editor = executor.submit(() -> {
+            for (int n = 0; running.get(); n++) {
+                List<String> groups = n % 2 == 0 ? after : before;
+                users.modifyUser("user" + (n % 20), user -> user.setGroups(groups));
+            }
+            return null;
+        });
+        try {
+            for (int save = 0; save < 30; save++) {
+                userState.save(users);
+                Users saved = new UserState(statePath, pillarPath, new NoOpEncryptor()).load();
+                assertEquals(20, saved.getUsers().size());
+                for (User user : saved.getUsers()) {
+                    assertTrue(user.getName() + " saved with groups " + user.getGroups(),
+                               user.getGroups().equals(before) || user.getGroups().equals(after));
+                }
+            }
+        }
+        finally {
+            running.set(false);
+            executor.shutdown();
+        }
+        editor.get();
+    }
+}
@@ -0,0 +1,79 @@
+package com.riverinnovations.saltui.salt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StateApplyRunnerTest {
+
+    @Test
+    public void testStubbedApply() throws Exception {
+        // Use cat as a stub for salt, replaying recorded output
+        List<String> command = Arrays.asList("cat", "src/test/resources/salt/state-apply.json");
+        List<StateResult> received = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+
+        try (StateApplyRunner runner = new StateApplyRunner(command, StateApplyRunner.DEFAULT_STATE_ID_PREFIX)) {
+            StateApplyJob job = runner.apply("*", new StateApplyListener() {
+                @Override
+                public void stateResult(StateApplyJob job, StateResult result) {
+                    received.add(result);
+                }
+
+                @Override
+                public void finished(StateApplyJob job) {
+                    done.countDown();
+                }
+            });
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(Integer.valueOf(0), job.getExitCode());
+            assertEquals(0, runner.getRunningCount());
+        }
+
+        // The motd state is not a user state so is not reported
+        assertEquals(4, received.size());
+        assertEquals("minion-one", received.get(0).getMinion());
+        assertEquals("saltui-users-one", received.get(0).getStateId());
+        assertEquals("user.present", received.get(0).getFunction());
+        assertEquals(Boolean.TRUE, received.get(0).getResult());
+        assertEquals("{fullname=The second user}", received.get(1).getChanges());
+        assertEquals(Boolean.FALSE, received.get(2).getResult());
+        assertEquals("Error: \"three\" is logged in — cannot remove", received.get(2).getComment());
+        assertEquals("minion-three", received.get(3).getMinion());
+        assertEquals(Boolean.FALSE, received.get(3).getResult());
+    }
+
+    @Test
+    public void testOptionTargetRejected() throws Exception {
+        assertFalse(StateApplyRunner.isValidTarget(""));
+        assertFalse(StateApplyRunner.isValidTarget("--return=local_cache"));
+        assertTrue(StateApplyRunner.isValidTarget("web-*"));
+
+        List<String> command = Arrays.asList("echo", StateApplyRunner.TARGET);
+        try (StateApplyRunner runner = new StateApplyRunner(command, StateApplyRunner.DEFAULT_STATE_ID_PREFIX)) {
+            runner.apply("-x", new StateApplyListener() {
+                @Override
+                public void stateResult(StateApplyJob job, StateResult result) {
+                }
+
+                @Override
+                public void finished(StateApplyJob job) {
+                }
+            });
+            fail("Option-like target accepted");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}